@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the {@code changesOnly} comparisons: the allocation-free
+ * comparison of raw values and deadbands, the older comparisons of message
+ * bodies, and the cost of a poll which does send a message.
+ *
+ * @author Steven Swor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeDetectionBenchmark {
+
+    /**
+     * The number of registers or coils polled.
+     */
+    @Param({"1", "125"})
+    public int count;
+
+    private RegistersPollingConsumer registersConsumer;
+    private RegistersPollingConsumer deadbandConsumer;
+    private RegistersPollingConsumer emittingConsumer;
+    private DiscreteOutputsPollingConsumer coilsConsumer;
+    private ReadMultipleRegistersResponse registersResponse;
+    private ReadMultipleRegistersResponse[] alternatingResponses;
+    private ReadCoilsResponse coilsResponse;
+    private Register[] registers;
+    private Register[] sameRegisters;
+    private BitVector bits;
+    private BitVector sameBits;
+    private int poll;
+
+    /**
+     * Creates a consumer which is never started.
+     */
+    private static JamodEndpoint createEndpoint(final String uri) throws Exception {
+        JamodComponent component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        return (JamodEndpoint) component.createEndpoint(uri);
+    }
+
+    private static Register[] createRegisters(final int count, final int seed) {
+        Register[] result = new Register[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new SimpleRegister(seed + i);
+        }
+        return result;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Processor processor = new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+            }
+        };
+        JamodEndpoint endpoint = createEndpoint("jamod:tcp://localhost/registers/0");
+        registersConsumer = new RegistersPollingConsumer(endpoint, processor);
+        registersConsumer.setChangesOnly(true);
+        deadbandConsumer = new RegistersPollingConsumer(endpoint, processor);
+        deadbandConsumer.setChangesOnly(true);
+        deadbandConsumer.setDeadband(5);
+        emittingConsumer = new RegistersPollingConsumer(endpoint, processor);
+        emittingConsumer.setChangesOnly(true);
+        coilsConsumer = new DiscreteOutputsPollingConsumer(createEndpoint("jamod:tcp://localhost/coils/0"), processor);
+        coilsConsumer.setChangesOnly(true);
+
+        registers = createRegisters(count, 0);
+        sameRegisters = createRegisters(count, 0);
+        registersResponse = new ReadMultipleRegistersResponse(registers);
+        alternatingResponses = new ReadMultipleRegistersResponse[]{
+            new ReadMultipleRegistersResponse(createRegisters(count, 0)),
+            new ReadMultipleRegistersResponse(createRegisters(count, 100))
+        };
+        coilsResponse = new ReadCoilsResponse(count);
+        bits = new BitVector(count);
+        sameBits = new BitVector(count);
+        for (int i = 0; i < count; i += 3) {
+            coilsResponse.setCoilStatus(i, true);
+            bits.setBit(i, true);
+            sameBits.setBit(i, true);
+        }
+        // remember the first poll, so that every measured poll is unchanged
+        registersConsumer.processResponse(registersResponse);
+        deadbandConsumer.processResponse(registersResponse);
+        coilsConsumer.processResponse(coilsResponse);
+    }
+
+    @Benchmark
+    public int unchangedRegisters() throws Exception {
+        return registersConsumer.processResponse(registersResponse);
+    }
+
+    @Benchmark
+    public int unchangedRegistersWithDeadband() throws Exception {
+        return deadbandConsumer.processResponse(registersResponse);
+    }
+
+    @Benchmark
+    public int unchangedCoils() throws Exception {
+        return coilsConsumer.processResponse(coilsResponse);
+    }
+
+    @Benchmark
+    public int changedRegisters() throws Exception {
+        return emittingConsumer.processResponse(alternatingResponses[poll++ & 1]);
+    }
+
+    @Benchmark
+    public boolean registerArrayComparator() {
+        return registersConsumer.valueHasChanged(registers, sameRegisters);
+    }
+
+    @Benchmark
+    public boolean bitVectorComparator() {
+        return coilsConsumer.valueHasChanged(bits, sameBits);
+    }
+}
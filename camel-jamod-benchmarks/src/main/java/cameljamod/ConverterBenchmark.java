@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.util.BitVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks each {@link JamodConverter} method, for a single register and
+ * for a full 125-register block.
+ *
+ * @author Steven Swor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+    /**
+     * The number of registers converted.
+     */
+    @Param({"1", "125"})
+    public int registerCount;
+
+    private byte[] bytes;
+    private BitVector bits;
+    private String bitString;
+    private Register[] registers;
+    private InputRegister[] inputRegisters;
+    private short[] shorts;
+    private int[] ints;
+    private ByteBuffer buffer;
+    private RegisterRecord record;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[registerCount * 2];
+        new Random(42).nextBytes(bytes);
+        bits = JamodConverter.toBitVector(bytes);
+        bitString = JamodConverter.toString(bits);
+        registers = JamodConverter.toRegisterArray(bytes);
+        inputRegisters = JamodConverter.toInputRegisterArray(bytes);
+        shorts = JamodConverter.toShortArray(bytes);
+        ints = JamodConverter.toIntArray(bytes);
+        buffer = ByteBuffer.wrap(bytes);
+        record = new RegisterRecord(RegisterLayout.parse("0:uint16"), ints);
+    }
+
+    @Benchmark
+    public byte[] bitVectorToByteArray() {
+        return JamodConverter.toByteArray(bits);
+    }
+
+    @Benchmark
+    public BitVector byteArrayToBitVector() {
+        return JamodConverter.toBitVector(bytes);
+    }
+
+    @Benchmark
+    public String bitVectorToString() {
+        return JamodConverter.toString(bits);
+    }
+
+    @Benchmark
+    public BitVector stringToBitVector() {
+        return JamodConverter.toBitVector(bitString);
+    }
+
+    @Benchmark
+    public InputRegister[] byteArrayToInputRegisterArray() {
+        return JamodConverter.toInputRegisterArray(bytes);
+    }
+
+    @Benchmark
+    public byte[] inputRegisterArrayToByteArray() {
+        return JamodConverter.toByteArray(inputRegisters);
+    }
+
+    @Benchmark
+    public Register[] byteArrayToRegisterArray() {
+        return JamodConverter.toRegisterArray(bytes);
+    }
+
+    @Benchmark
+    public byte[] registerArrayToByteArray() {
+        return JamodConverter.toByteArray(registers);
+    }
+
+    @Benchmark
+    public String inputRegisterArrayToString() {
+        return JamodConverter.toString(inputRegisters);
+    }
+
+    @Benchmark
+    public String registerArrayToString() {
+        return JamodConverter.toString(registers);
+    }
+
+    @Benchmark
+    public byte[] registerToByteArray() {
+        return JamodConverter.toByteArray(registers[0]);
+    }
+
+    @Benchmark
+    public byte[] inputRegisterToByteArray() {
+        return JamodConverter.toByteArray(inputRegisters[0]);
+    }
+
+    @Benchmark
+    public String registerToString() {
+        return JamodConverter.toString(registers[0]);
+    }
+
+    @Benchmark
+    public String inputRegisterToString() {
+        return JamodConverter.toString(inputRegisters[0]);
+    }
+
+    @Benchmark
+    public BitVector inputRegisterToBitVector() {
+        return JamodConverter.toBitVector(inputRegisters[0]);
+    }
+
+    @Benchmark
+    public Register[] bitVectorToRegisterArray() {
+        return JamodConverter.toRegisterArray(bits);
+    }
+
+    @Benchmark
+    public Register bitVectorToRegister() {
+        return JamodConverter.toRegister(bits);
+    }
+
+    @Benchmark
+    public short[] registerArrayToShortArray() {
+        return JamodConverter.toShortArray(registers);
+    }
+
+    @Benchmark
+    public short[] inputRegisterArrayToShortArray() {
+        return JamodConverter.toShortArray(inputRegisters);
+    }
+
+    @Benchmark
+    public int[] registerArrayToIntArray() {
+        return JamodConverter.toIntArray(registers);
+    }
+
+    @Benchmark
+    public int[] inputRegisterArrayToIntArray() {
+        return JamodConverter.toIntArray(inputRegisters);
+    }
+
+    @Benchmark
+    public short[] byteArrayToShortArray() {
+        return JamodConverter.toShortArray(bytes);
+    }
+
+    @Benchmark
+    public int[] byteArrayToIntArray() {
+        return JamodConverter.toIntArray(bytes);
+    }
+
+    @Benchmark
+    public byte[] shortArrayToByteArray() {
+        return JamodConverter.toByteArray(shorts);
+    }
+
+    @Benchmark
+    public byte[] intArrayToByteArray() {
+        return JamodConverter.toByteArray(ints);
+    }
+
+    @Benchmark
+    public Register[] shortArrayToRegisterArray() {
+        return JamodConverter.toRegisterArray(shorts);
+    }
+
+    @Benchmark
+    public Register[] intArrayToRegisterArray() {
+        return JamodConverter.toRegisterArray(ints);
+    }
+
+    @Benchmark
+    public InputRegister[] shortArrayToInputRegisterArray() {
+        return JamodConverter.toInputRegisterArray(shorts);
+    }
+
+    @Benchmark
+    public InputRegister[] intArrayToInputRegisterArray() {
+        return JamodConverter.toInputRegisterArray(ints);
+    }
+
+    @Benchmark
+    public Register[] byteBufferToRegisterArray() {
+        return JamodConverter.toRegisterArray(buffer);
+    }
+
+    @Benchmark
+    public ByteBuffer inputRegisterArrayToByteBuffer() {
+        return JamodConverter.toByteBuffer(inputRegisters);
+    }
+
+    @Benchmark
+    public ByteBuffer registerArrayToByteBuffer() {
+        return JamodConverter.toByteBuffer(registers);
+    }
+
+    @Benchmark
+    public Object registerRecordToMap() {
+        return JamodConverter.toMap(record);
+    }
+
+    @Benchmark
+    public Register[] registerRecordToRegisterArray() {
+        return JamodConverter.toRegisterArray(record);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.net.ModbusTCPListener;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks polling registers end to end, over loopback, from jamod's own
+ * in-process {@link ModbusTCPListener}.
+ *
+ * @author Steven Swor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollBenchmark {
+
+    /**
+     * Whether the endpoint uses blocking sockets or the event loop.
+     */
+    @Param({"false", "true"})
+    public boolean nio;
+
+    /**
+     * The number of registers polled.
+     */
+    @Param({"1", "125"})
+    public int count;
+
+    private ModbusTCPListener listener;
+    private JamodComponent component;
+    private JamodEndpoint endpoint;
+    private RegistersPollingConsumer consumer;
+
+    @Setup
+    public void setUp() throws Exception {
+        SimpleProcessImage image = new SimpleProcessImage();
+        for (int i = 0; i < 125; i++) {
+            image.addRegister(new SimpleRegister(i));
+        }
+        ModbusCoupler.getReference().setMaster(false);
+        ModbusCoupler.getReference().setUnitID(1);
+        ModbusCoupler.getReference().setProcessImage(image);
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        ServerSocket probe = new ServerSocket(0, 1, loopback);
+        int port = probe.getLocalPort();
+        probe.close();
+        listener = new ModbusTCPListener(2, loopback);
+        listener.setPort(port);
+        listener.start();
+        while (!listener.isListening()) {
+            Thread.sleep(10);
+        }
+        component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+        endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + port + "/registers/0?nio=" + nio);
+        consumer = new RegistersPollingConsumer(endpoint, new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+            }
+        });
+        consumer.setCount(count);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        component.stop();
+        listener.stop();
+    }
+
+    @Benchmark
+    public ModbusResponse execute() throws Exception {
+        return endpoint.execute(new ReadMultipleRegistersRequest(0, count));
+    }
+
+    @Benchmark
+    public int poll() throws Exception {
+        return consumer.poll();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.MBAPCodec;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building requests and framing them for Modbus/TCP.
+ *
+ * @author Steven Swor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    private RegistersPollingConsumer registersConsumer;
+    private DiscreteOutputsPollingConsumer coilsConsumer;
+    private ReadMultipleRegistersRequest request;
+    private byte[] responseFrame;
+    private int transactionId;
+
+    @Setup
+    public void setUp() throws Exception {
+        Processor processor = new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+            }
+        };
+        JamodComponent component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        registersConsumer = new RegistersPollingConsumer((JamodEndpoint) component.createEndpoint("jamod:tcp://localhost/registers/0"), processor);
+        registersConsumer.setCount(125);
+        coilsConsumer = new DiscreteOutputsPollingConsumer((JamodEndpoint) component.createEndpoint("jamod:tcp://localhost/coils/0"), processor);
+        coilsConsumer.setCount(2000);
+        request = new ReadMultipleRegistersRequest(0, 125);
+        Register[] registers = new Register[125];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = new SimpleRegister(i);
+        }
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(registers);
+        responseFrame = MBAPCodec.encode(response, 1);
+    }
+
+    @Benchmark
+    public ReadMultipleRegistersRequest createRegistersRequest() {
+        return registersConsumer.createRequest();
+    }
+
+    @Benchmark
+    public ReadCoilsRequest createCoilsRequest() {
+        return coilsConsumer.createRequest();
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() throws Exception {
+        return MBAPCodec.encode(request, ++transactionId & 0xffff);
+    }
+
+    @Benchmark
+    public ModbusResponse decodeResponse() throws Exception {
+        return MBAPCodec.decodeResponse(responseFrame, responseFrame.length);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.ReadCoalescer.ReadRange;
+import cameljamod.ReadCoalescer.Scan;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.Locale;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import org.apache.camel.Processor;
+
+/**
+ * Parent class for camel consumers which poll modbus devices for holding or
+ * input registers.  When only changes are sent, changes smaller than a
+ * deadband can be ignored, which keeps noisy analog inputs from flooding the
+ * route, and messages can carry the registers as a primitive array, or as
+ * typed values decoded through a {@link RegisterLayout}, rather than as
+ * register objects.
+ *
+ * @author Steven Swor
+ */
+public abstract class AbstractRegisterPollingConsumer<RequestType extends ModbusRequest, ResponseType extends ModbusResponse, BodyType> extends ModbusPollingConsumer<RequestType, ResponseType, BodyType> {
+
+    /**
+     * The ways a message body can represent registers.
+     */
+    private static enum RegisterBodyType {
+
+        /**
+         * The registers as returned by jamod.
+         */
+        REGISTERS("registers"),
+        /**
+         * A {@code short[]} of the raw register values.
+         */
+        SHORT_ARRAY("shortArray"),
+        /**
+         * An {@code int[]} of the unsigned register values.
+         */
+        INT_ARRAY("intArray"),
+        /**
+         * A big-endian {@link ByteBuffer} of the registers.
+         */
+        BYTE_BUFFER("byteBuffer"),
+        /**
+         * A map of the values decoded through the layout.
+         */
+        MAP("map"),
+        /**
+         * A {@link RegisterRecord} which decodes values through the layout.
+         */
+        RECORD("record");
+
+        /**
+         * The name used in URIs.
+         */
+        private final String uriName;
+
+        private RegisterBodyType(final String uriName) {
+            this.uriName = uriName;
+        }
+
+        /**
+         * Gets the body type with the given URI name.
+         * @param name the name, such as {@code intArray}
+         * @return the body type
+         * @throws IllegalArgumentException if there is no such body type
+         */
+        static RegisterBodyType fromName(final String name) {
+            for (RegisterBodyType type : values()) {
+                if (type.uriName.equalsIgnoreCase(name)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported body type: {0}", name));
+        }
+    }
+
+    /**
+     * The deadband.
+     */
+    private final Deadband deadband = new Deadband();
+
+    /**
+     * How message bodies represent the registers.
+     */
+    private RegisterBodyType bodyType = RegisterBodyType.REGISTERS;
+
+    /**
+     * How the registers are decoded into typed values, or {@code null}.
+     */
+    private RegisterLayout layout = null;
+
+    /**
+     * Creates a new AbstractRegisterPollingConsumer.
+     *
+     * @param endpoint the endpoint
+     * @param processor the processor
+     */
+    public AbstractRegisterPollingConsumer(final JamodEndpoint endpoint, final Processor processor) {
+        super(endpoint, processor);
+    }
+
+    /**
+     * Gets the number of registers in a response.
+     * @param response the response
+     * @return the number of registers
+     */
+    protected abstract int getWordCount(ResponseType response);
+
+    /**
+     * Gets the raw value of a register in a response.
+     * @param response the response
+     * @param index the index of the register
+     * @return the raw, unsigned value of the register
+     */
+    protected abstract int getWordValue(ResponseType response, int index);
+
+    @Override
+    protected boolean responseHasChanged(final ResponseType response) {
+        int length = getWordCount(response);
+        if (deadband.isEnabled()) {
+            int[] words = deadband.words(length);
+            for (int i = 0; i < length; i++) {
+                words[i] = getWordValue(response, i);
+            }
+            return deadband.exceeded(length);
+        }
+        RawValueBuffer last = getLastRawValues();
+        boolean changed = last.resize(length);
+        for (int i = 0; i < length; i++) {
+            changed |= last.set(i, getWordValue(response, i));
+        }
+        return changed;
+    }
+
+    @Override
+    boolean scanHasChanged(final Scan scan, final ReadRange range) {
+        if (deadband.isEnabled()) {
+            int[] words = deadband.words(range.count);
+            for (int i = 0; i < range.count; i++) {
+                words[i] = scan.getValue(range, i);
+            }
+            return deadband.exceeded(range.count);
+        }
+        return rawValuesHaveChanged(scan, range);
+    }
+
+    /**
+     * Creates the body of a message in the configured representation.  The
+     * primitive representations copy the register values straight out of the
+     * response into a single array.
+     * @param response the polled response
+     * @return the message body
+     */
+    @Override
+    protected Object createBody(final ResponseType response) {
+        int length;
+        switch (bodyType) {
+            case SHORT_ARRAY:
+                length = getWordCount(response);
+                short[] shorts = new short[length];
+                for (int i = 0; i < length; i++) {
+                    shorts[i] = (short) getWordValue(response, i);
+                }
+                return shorts;
+            case INT_ARRAY:
+                length = getWordCount(response);
+                int[] ints = new int[length];
+                for (int i = 0; i < length; i++) {
+                    ints[i] = getWordValue(response, i);
+                }
+                return ints;
+            case BYTE_BUFFER:
+                length = getWordCount(response);
+                byte[] bytes = new byte[2 * length];
+                for (int i = 0; i < length; i++) {
+                    int value = getWordValue(response, i);
+                    bytes[2 * i] = (byte) (value >> 8);
+                    bytes[2 * i + 1] = (byte) value;
+                }
+                return ByteBuffer.wrap(bytes);
+            case MAP:
+            case RECORD:
+                length = getWordCount(response);
+                int[] words = new int[length];
+                for (int i = 0; i < length; i++) {
+                    words[i] = getWordValue(response, i);
+                }
+                if (bodyType == RegisterBodyType.MAP) {
+                    return layout.decode(words);
+                }
+                return new RegisterRecord(layout, words);
+            default:
+                return getBodyFromResponse(response);
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if ((bodyType == RegisterBodyType.MAP || bodyType == RegisterBodyType.RECORD) && layout == null) {
+            throw new IllegalArgumentException(MessageFormat.format("bodyType={0} needs a layout", bodyType.uriName));
+        }
+        if (layout != null && getCount() < layout.getWordCount()) {
+            throw new IllegalArgumentException(MessageFormat.format("count={0} is smaller than the {1} registers the layout spans", String.valueOf(getCount()), String.valueOf(layout.getWordCount())));
+        }
+        super.doStart();
+    }
+
+    /**
+     * Gets how message bodies represent the registers.
+     * @return {@code registers}, {@code shortArray}, {@code intArray},
+     * {@code byteBuffer}, {@code map} or {@code record}
+     */
+    public String getBodyType() {
+        return bodyType.uriName;
+    }
+
+    /**
+     * Sets how message bodies represent the registers: as jamod register
+     * objects ({@code registers}, the default), as a {@code short[]}
+     * ({@code shortArray}), as an {@code int[]} of unsigned values
+     * ({@code intArray}), as a big-endian {@link ByteBuffer}
+     * ({@code byteBuffer}), or, given a layout, as a map of typed values
+     * ({@code map}) or a {@link RegisterRecord} ({@code record}).
+     * @param bodyType the body type
+     */
+    public void setBodyType(String bodyType) {
+        this.bodyType = RegisterBodyType.fromName(bodyType);
+    }
+
+    /**
+     * Gets how the registers are decoded into typed values.
+     * @return the layout, or {@code null}
+     */
+    public String getLayout() {
+        return layout == null ? null : layout.toString();
+    }
+
+    /**
+     * Sets how the registers are decoded into typed values.
+     * @param layout the layout, as described by {@link RegisterLayout}, or
+     * {@code null} for none
+     */
+    public void setLayout(String layout) {
+        this.layout = layout == null ? null : RegisterLayout.parse(layout);
+    }
+
+    /**
+     * Gets the absolute deadband.
+     * @return the absolute deadband
+     */
+    public double getDeadband() {
+        return deadband.getDeadband();
+    }
+
+    /**
+     * Sets the absolute deadband.  When only changes are sent, a value must
+     * differ from the value last sent by more than this to count as a
+     * change.
+     * @param deadband the absolute deadband
+     */
+    public void setDeadband(double deadband) {
+        this.deadband.setDeadband(deadband);
+    }
+
+    /**
+     * Gets the deadband as a percentage of the value last sent.
+     * @return the percentage deadband
+     */
+    public double getDeadbandPercent() {
+        return deadband.getDeadbandPercent();
+    }
+
+    /**
+     * Sets the deadband as a percentage of the value last sent.  When it is
+     * larger than the absolute deadband it takes precedence.
+     * @param deadbandPercent the percentage deadband
+     */
+    public void setDeadbandPercent(double deadbandPercent) {
+        deadband.setDeadbandPercent(deadbandPercent);
+    }
+
+    /**
+     * Gets the per-index thresholds.
+     * @return the per-index thresholds, or {@code null}
+     */
+    public String getDeadbandThresholds() {
+        return deadband.getThresholds();
+    }
+
+    /**
+     * Sets thresholds for individual values, which take the place of the
+     * absolute deadband for those values.
+     * @param thresholds comma-separated {@code index:threshold} pairs, such
+     * as {@code 0:5,3:12.5}
+     */
+    public void setDeadbandThresholds(String thresholds) {
+        deadband.setThresholds(thresholds);
+    }
+
+    /**
+     * Gets how registers are combined into values for deadband comparisons.
+     * @return {@code uint16}, {@code int16}, {@code int32} or {@code float32}
+     */
+    public String getDeadbandType() {
+        return deadband.getValueType().name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Sets how registers are combined into values for deadband comparisons.
+     * The 32-bit types combine consecutive pairs of registers, high word
+     * first, and value indexes then count pairs rather than registers.
+     * @param type {@code uint16}, {@code int16}, {@code int32} or
+     * {@code float32}
+     */
+    public void setDeadbandType(String type) {
+        deadband.setValueType(Deadband.ValueType.fromName(type));
+    }
+}
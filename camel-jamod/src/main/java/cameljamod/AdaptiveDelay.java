@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+/**
+ * Decides when a polling consumer next reads its device, polling quickly
+ * while values change and backing off while they hold still.
+ *
+ * <p>The consumer's scheduler ticks every {@code minDelay} milliseconds and
+ * asks {@link #isDue(long)} before each poll.  Every poll which finds nothing
+ * changed doubles the interval, up to {@code maxDelay}; a poll which finds a
+ * change drops it straight back to {@code minDelay}, so a tag which starts
+ * moving is followed closely from its next poll on.  A poll which fails
+ * counts as one which found nothing changed, so a device which is down is
+ * polled less and less often.</p>
+ *
+ * @author Steven Swor
+ */
+final class AdaptiveDelay {
+
+    /**
+     * The shortest interval, in milliseconds, or 0 to use the consumer's
+     * delay.
+     */
+    private long minDelay;
+
+    /**
+     * The longest interval, in milliseconds, or 0 to poll at a fixed rate.
+     */
+    private long maxDelay;
+
+    /**
+     * The shortest interval in effect since the consumer started, in
+     * milliseconds.
+     */
+    private long floor;
+
+    /**
+     * The current interval, in milliseconds.
+     */
+    private long interval;
+
+    /**
+     * When the next poll is due, in {@link System#nanoTime()} units.
+     */
+    private long nextPoll;
+
+    /**
+     * Whether or not any poll has happened since the last reset.
+     */
+    private boolean polled;
+
+    /**
+     * Gets the shortest interval.
+     * @return the shortest interval, in milliseconds, or 0 to use the
+     * consumer's delay
+     */
+    long getMinDelay() {
+        return minDelay;
+    }
+
+    /**
+     * Sets the shortest interval.
+     * @param minDelay the shortest interval, in milliseconds, or 0 to use the
+     * consumer's delay
+     */
+    void setMinDelay(final long minDelay) {
+        this.minDelay = minDelay;
+    }
+
+    /**
+     * Gets the longest interval.
+     * @return the longest interval, in milliseconds, or 0 if polling is not
+     * adaptive
+     */
+    long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the longest interval.
+     * @param maxDelay the longest interval, in milliseconds, or 0 to poll at
+     * a fixed rate
+     */
+    void setMaxDelay(final long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Determines if polling is adaptive.
+     * @return {@code true} if a longest interval is set
+     */
+    boolean isEnabled() {
+        return maxDelay > 0;
+    }
+
+    /**
+     * Gets the current interval.
+     * @return the current interval, in milliseconds
+     */
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Goes back to the shortest interval and makes the next poll due at once.
+     * Called when the consumer starts.
+     * @param delay the consumer's configured delay, in milliseconds
+     * @return the delay the consumer's scheduler should tick at
+     */
+    long start(final long delay) {
+        floor = minDelay > 0 ? minDelay : delay;
+        interval = floor;
+        polled = false;
+        return isEnabled() ? floor : delay;
+    }
+
+    /**
+     * Determines if a poll is due.
+     * @param now the time, in {@link System#nanoTime()} units
+     * @return whether or not to poll now
+     */
+    boolean isDue(final long now) {
+        return !polled || now - nextPoll >= 0;
+    }
+
+    /**
+     * Records the outcome of a poll and picks the next interval.  The next
+     * poll falls due half a tick early, so that scheduler jitter never pushes
+     * it a whole tick late.
+     * @param finished when the poll finished, in {@link System#nanoTime()}
+     * units
+     * @param changed whether or not the poll found anything changed
+     */
+    void polled(final long finished, final boolean changed) {
+        if (changed || !polled) {
+            interval = floor;
+        } else {
+            interval = Math.max(Math.min(Math.max(interval, 1L) * 2L, maxDelay), floor);
+        }
+        polled = true;
+        nextPoll = finished + (interval * 1000000L) - (floor * 500000L);
+    }
+
+    /**
+     * Records a poll which failed, backing off as if it found nothing
+     * changed.
+     * @param finished when the poll finished, in {@link System#nanoTime()}
+     * units
+     */
+    void failed(final long finished) {
+        polled(finished, false);
+    }
+}
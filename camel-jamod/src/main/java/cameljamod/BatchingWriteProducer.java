@@ -0,0 +1,576 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.TransactionCallback;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultAsyncProducer;
+
+/**
+ * Collects writes to single addresses and sends them as few multiple-value
+ * writes as possible.
+ *
+ * <p>Each exchange writes its body at the address in the
+ * {@link JamodEndpoint#REFERENCE_ADDRESS_HEADER} header, or at the endpoint's
+ * reference address without one.  A register body is a number or anything
+ * which converts to {@code int[]}; a coil body is a {@link Boolean} or a
+ * {@link BitVector}.  Writes are held for up to {@link #getBatchWindow()}
+ * milliseconds, or until {@link #getBatchSize()} addresses are waiting, and
+ * then contiguous addresses are merged into single Write Multiple Registers
+ * or Write Multiple Coils requests.  If two exchanges of a batch write the
+ * same address, the later value is sent.  Each exchange completes once every
+ * request covering its addresses has been answered, with the exception of
+ * the first one which failed, if any.  Batches whose window closes are sent
+ * from the component's worker threads, which also complete their exchanges,
+ * so the one thread timing the windows is never held up by a device.  Once
+ * the producer has stopped, exchanges are rejected with a
+ * {@link RejectedExecutionException}.</p>
+ *
+ * @author Steven Swor
+ */
+public class BatchingWriteProducer extends DefaultAsyncProducer {
+
+    /**
+     * The largest number of registers one request may write.
+     */
+    private static final int MAX_WRITE_REGISTERS = 123;
+
+    /**
+     * The largest number of coils one request may write.
+     */
+    private static final int MAX_WRITE_COILS = 1968;
+
+    /**
+     * The number of addresses in the Modbus data model.
+     */
+    private static final int ADDRESS_SPACE = 65536;
+
+    /**
+     * The endpoint.
+     */
+    private final JamodEndpoint endpoint;
+
+    /**
+     * Whether the producer writes coils rather than holding registers.
+     */
+    private final boolean coils;
+
+    /**
+     * The address of exchanges without an address header.
+     */
+    private int referenceAddress;
+
+    /**
+     * The Modbus Slave ID.
+     */
+    private int slaveId = 0;
+
+    /**
+     * How long to hold writes, in milliseconds.
+     */
+    private long batchWindow = 10;
+
+    /**
+     * How many addresses may wait before a batch is sent early.
+     */
+    private int batchSize = 1000;
+
+    /**
+     * Sends batches when their window closes, or {@code null} while the
+     * producer is stopped.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * The batch being collected, or {@code null}.
+     */
+    private Batch batch;
+
+    /**
+     * Creates a new BatchingWriteProducer.
+     *
+     * @param endpoint the endpoint
+     * @param dataType {@code coils} or {@code registers}
+     */
+    public BatchingWriteProducer(final JamodEndpoint endpoint, final String dataType) {
+        super(endpoint);
+        this.endpoint = endpoint;
+        if ("coils".equalsIgnoreCase(dataType)) {
+            coils = true;
+        } else if ("registers".equalsIgnoreCase(dataType)) {
+            coils = false;
+        } else {
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported data type: {0}", dataType));
+        }
+    }
+
+    public int getReferenceAddress() {
+        return referenceAddress;
+    }
+
+    public void setReferenceAddress(int referenceAddress) {
+        this.referenceAddress = referenceAddress;
+    }
+
+    public int getSlaveId() {
+        return slaveId;
+    }
+
+    public void setSlaveId(int slaveId) {
+        this.slaveId = slaveId;
+    }
+
+    /**
+     * Gets how long writes are held to be merged with others.
+     * @return the window, in milliseconds
+     */
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Sets how long writes are held to be merged with others.
+     * @param batchWindow the window, in milliseconds
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Gets how many addresses may wait before a batch is sent early.
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets how many addresses may wait before a batch is sent early.
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        executor = endpoint.getCamelContext().getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "JamodWriteBatch");
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        Batch pending;
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            pending = batch;
+            batch = null;
+            stopped = executor;
+            executor = null;
+        }
+        if (pending != null) {
+            pending.window.cancel(false);
+            pending.send();
+        }
+        if (stopped != null) {
+            endpoint.getCamelContext().getExecutorServiceManager().shutdownGraceful(stopped);
+        }
+        super.doStop();
+    }
+
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        int reference;
+        int[] values;
+        try {
+            Message in = exchange.getIn();
+            reference = in.getHeader(JamodEndpoint.REFERENCE_ADDRESS_HEADER, Integer.valueOf(referenceAddress), Integer.class).intValue();
+            values = getValues(in);
+            if (reference < 0 || values.length == 0 || reference + values.length > ADDRESS_SPACE) {
+                throw new IllegalArgumentException(MessageFormat.format("Cannot write {0} values at address {1}", String.valueOf(values.length), String.valueOf(reference)));
+            }
+        } catch (Exception ex) {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+        final Batch full;
+        try {
+            full = add(new PendingWrite(exchange, callback, reference, values.length), values);
+        } catch (RejectedExecutionException ex) {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+        if (full != null) {
+            // like any other write, a full batch is sent on the calling thread
+            full.window.cancel(false);
+            full.send();
+        }
+        return false;
+    }
+
+    /**
+     * Adds a write to the batch being collected, starting one if there is
+     * none.
+     * @param write the write
+     * @param values the values it writes
+     * @return the batch, if the write filled it, otherwise {@code null}
+     * @throws RejectedExecutionException if the producer is stopped
+     */
+    private synchronized Batch add(final PendingWrite write, final int[] values) {
+        if (executor == null) {
+            throw new RejectedExecutionException("Producer is stopped");
+        }
+        if (batch == null) {
+            final Batch created = new Batch();
+            batch = created;
+            created.window = executor.schedule(new Runnable() {
+
+                public void run() {
+                    closeWindow(created);
+                }
+            }, batchWindow, TimeUnit.MILLISECONDS);
+        }
+        batch.add(write, values);
+        if (batch.size() < batchSize) {
+            return null;
+        }
+        Batch full = batch;
+        batch = null;
+        return full;
+    }
+
+    /**
+     * Hands a batch whose window has closed to a worker thread to send.
+     * Runs on the thread timing the windows.
+     * @param closed the batch
+     */
+    private void closeWindow(final Batch closed) {
+        try {
+            endpoint.getWorkerExecutor().execute(new Runnable() {
+
+                public void run() {
+                    send(closed);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            //the component is stopping; nothing else will send the batch
+            send(closed);
+        }
+    }
+
+    /**
+     * Sends a batch whose window has closed.
+     * @param closed the batch
+     */
+    private void send(final Batch closed) {
+        synchronized (this) {
+            if (batch == closed) {
+                batch = null;
+            }
+        }
+        closed.send();
+    }
+
+    /**
+     * Gets the values an exchange writes.
+     * @param in the message
+     * @return the values, with coils as 0 or 1
+     * @throws Exception if the body cannot be converted
+     */
+    private int[] getValues(final Message in) throws Exception {
+        Object body = in.getBody();
+        if (coils) {
+            if (body instanceof Boolean) {
+                return new int[]{((Boolean) body).booleanValue() ? 1 : 0};
+            }
+            BitVector bits = in.getMandatoryBody(BitVector.class);
+            int[] values = new int[bits.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = bits.getBit(i) ? 1 : 0;
+            }
+            return values;
+        }
+        if (body instanceof Number) {
+            return new int[]{((Number) body).intValue()};
+        }
+        return in.getMandatoryBody(int[].class);
+    }
+
+    /**
+     * An exchange waiting for its write.
+     */
+    private static final class PendingWrite {
+
+        /**
+         * The exchange.
+         */
+        private final Exchange exchange;
+
+        /**
+         * Camel's callback.
+         */
+        private final AsyncCallback callback;
+
+        /**
+         * The first address written.
+         */
+        private final int reference;
+
+        /**
+         * The number of addresses written.
+         */
+        private final int count;
+
+        /**
+         * The number of requests covering the write which have not finished.
+         */
+        private int remaining;
+
+        /**
+         * The first failure of a request covering the write, or {@code null}.
+         */
+        private ModbusException failure;
+
+        PendingWrite(final Exchange exchange, final AsyncCallback callback, final int reference, final int count) {
+            this.exchange = exchange;
+            this.callback = callback;
+            this.reference = reference;
+            this.count = count;
+        }
+
+        /**
+         * Records that a request covering the write finished, and completes
+         * the exchange after the last one.
+         * @param response the response, or {@code null} if the request failed
+         * @param cause why the request failed, or {@code null}
+         */
+        void finished(final ModbusResponse response, final ModbusException cause) {
+            synchronized (this) {
+                if (cause != null && failure == null) {
+                    failure = cause;
+                }
+                if (--remaining > 0) {
+                    return;
+                }
+            }
+            if (failure != null) {
+                exchange.setException(failure);
+            } else {
+                exchange.getOut().setBody(response);
+            }
+            callback.done(false);
+        }
+    }
+
+    /**
+     * A run of contiguous addresses sent as one request.
+     */
+    private final class Run implements TransactionCallback {
+
+        /**
+         * The first address.
+         */
+        private final int reference;
+
+        /**
+         * The values.
+         */
+        private final int[] values;
+
+        /**
+         * The writes the run covers.
+         */
+        private final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+
+        Run(final int reference, final int[] values) {
+            this.reference = reference;
+            this.values = values;
+        }
+
+        /**
+         * Creates the request.
+         * @return the request
+         */
+        ModbusRequest createRequest() {
+            ModbusRequest request;
+            if (coils) {
+                BitVector bits = new BitVector(values.length);
+                for (int i = 0; i < values.length; i++) {
+                    bits.setBit(i, values[i] != 0);
+                }
+                request = new WriteMultipleCoilsRequest(reference, bits);
+            } else {
+                request = new WriteMultipleRegistersRequest(reference, JamodConverter.toRegisterArray(values));
+            }
+            request.setUnitID(slaveId);
+            return request;
+        }
+
+        public void completed(final ModbusResponse response) {
+            for (PendingWrite write : writes) {
+                write.finished(response, null);
+            }
+        }
+
+        public void failed(final ModbusException cause) {
+            for (PendingWrite write : writes) {
+                write.finished(null, cause);
+            }
+        }
+    }
+
+    /**
+     * The writes collected during one window.
+     */
+    private final class Batch {
+
+        /**
+         * The value of each address, by address.
+         */
+        private final TreeMap<Integer, Integer> values = new TreeMap<Integer, Integer>();
+
+        /**
+         * The exchanges, in arrival order.
+         */
+        private final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+
+        /**
+         * Sends the batch when its window closes.
+         */
+        private ScheduledFuture<?> window;
+
+        /**
+         * Whether or not the batch has been sent.
+         */
+        private boolean sent = false;
+
+        void add(final PendingWrite write, final int[] newValues) {
+            writes.add(write);
+            for (int i = 0; i < newValues.length; i++) {
+                values.put(Integer.valueOf(write.reference + i), Integer.valueOf(newValues[i]));
+            }
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        /**
+         * Merges the batch into requests and sends them, unless it has
+         * already been sent.
+         */
+        void send() {
+            synchronized (this) {
+                if (sent) {
+                    return;
+                }
+                sent = true;
+            }
+            List<Run> runs = merge();
+            for (PendingWrite write : writes) {
+                int end = write.reference + write.count;
+                for (int i = findRun(runs, write.reference); i < runs.size() && runs.get(i).reference < end; i++) {
+                    runs.get(i).writes.add(write);
+                    write.remaining++;
+                }
+            }
+            for (Run run : runs) {
+                try {
+                    endpoint.execute(run.createRequest(), run);
+                } catch (ModbusException ex) {
+                    run.failed(ex);
+                } catch (Exception ex) {
+                    ModbusException failure = new ModbusException(ex.getMessage());
+                    failure.initCause(ex);
+                    run.failed(failure);
+                }
+            }
+        }
+
+        /**
+         * Splits the batch into runs of contiguous addresses no longer than
+         * one request may write.
+         * @return the runs, in address order
+         */
+        private List<Run> merge() {
+            int max = coils ? MAX_WRITE_COILS : MAX_WRITE_REGISTERS;
+            List<Run> runs = new ArrayList<Run>();
+            int[] buffer = new int[max];
+            int start = -1;
+            int length = 0;
+            for (Map.Entry<Integer, Integer> entry : values.entrySet()) {
+                int address = entry.getKey().intValue();
+                if (length > 0 && (address != start + length || length == max)) {
+                    runs.add(new Run(start, copy(buffer, length)));
+                    length = 0;
+                }
+                if (length == 0) {
+                    start = address;
+                }
+                buffer[length++] = entry.getValue().intValue();
+            }
+            if (length > 0) {
+                runs.add(new Run(start, copy(buffer, length)));
+            }
+            return runs;
+        }
+
+        /**
+         * Finds the first run which ends after an address.
+         * @param runs the runs, in address order
+         * @param address the address
+         * @return the index of the run
+         */
+        private int findRun(final List<Run> runs, final int address) {
+            int low = 0;
+            int high = runs.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                Run run = runs.get(mid);
+                if (run.reference + run.values.length <= address) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int[] copy(final int[] buffer, final int length) {
+            int[] result = new int[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.text.MessageFormat;
+
+/**
+ * Decides whether polled register values have moved far enough from the
+ * values last sent to be worth sending again.
+ *
+ * <p>Values are the raw registers read as unsigned or signed 16-bit
+ * integers, or consecutive pairs of registers (high word first) read as
+ * 32-bit integers or floats.  A value has changed when it differs from the
+ * value last sent by more than its threshold: the per-index threshold if one
+ * was given, otherwise the absolute deadband, raised to the percentage
+ * deadband of the value last sent if that is larger.  Since values are
+ * compared against the last values <em>sent</em>, slow drift is still
+ * reported once it adds up to more than the deadband.</p>
+ *
+ * <p>Comparisons reuse the same arrays from poll to poll, so they allocate
+ * nothing once the number of values stops changing.</p>
+ *
+ * @author Steven Swor
+ */
+final class Deadband {
+
+    /**
+     * How registers are combined into values.
+     */
+    enum ValueType {
+
+        /**
+         * Each register is an unsigned 16-bit integer.
+         */
+        UINT16(1),
+        /**
+         * Each register is a signed 16-bit integer.
+         */
+        INT16(1),
+        /**
+         * Each pair of registers is a signed 32-bit integer.
+         */
+        INT32(2),
+        /**
+         * Each pair of registers is a 32-bit IEEE 754 float.
+         */
+        FLOAT32(2);
+
+        /**
+         * The number of registers in one value.
+         */
+        private final int words;
+
+        private ValueType(final int words) {
+            this.words = words;
+        }
+
+        /**
+         * Gets the value type with the given URI name.
+         * @param name the name, such as {@code float32}
+         * @return the value type
+         * @throws IllegalArgumentException if there is no such value type
+         */
+        static ValueType fromName(final String name) {
+            for (ValueType type : values()) {
+                if (type.name().equalsIgnoreCase(name)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported deadband type: {0}", name));
+        }
+    }
+
+    /**
+     * The absolute deadband.
+     */
+    private double deadband = 0;
+
+    /**
+     * The deadband as a percentage of the value last sent.
+     */
+    private double deadbandPercent = 0;
+
+    /**
+     * The per-index thresholds, or {@code null}.  {@code NaN} entries fall
+     * back to the absolute deadband.
+     */
+    private double[] thresholds = null;
+
+    /**
+     * The per-index thresholds as configured.
+     */
+    private String thresholdsSpec = null;
+
+    /**
+     * How registers are combined into values.
+     */
+    private ValueType valueType = ValueType.UINT16;
+
+    /**
+     * The registers of the current poll.
+     */
+    private int[] words = new int[0];
+
+    /**
+     * The values last sent.
+     */
+    private double[] sent = new double[0];
+
+    /**
+     * The number of registers last sent, or -1 if nothing has been sent.
+     */
+    private int sentLength = -1;
+
+    /**
+     * Determines whether any threshold has been configured.  If not, every
+     * change counts and a plain comparison of the raw registers will do.
+     * @return whether or not any threshold has been configured
+     */
+    boolean isEnabled() {
+        return deadband > 0 || deadbandPercent > 0 || thresholds != null;
+    }
+
+    double getDeadband() {
+        return deadband;
+    }
+
+    void setDeadband(final double deadband) {
+        if (deadband < 0) {
+            throw new IllegalArgumentException("deadband must not be negative");
+        }
+        this.deadband = deadband;
+    }
+
+    double getDeadbandPercent() {
+        return deadbandPercent;
+    }
+
+    void setDeadbandPercent(final double deadbandPercent) {
+        if (deadbandPercent < 0) {
+            throw new IllegalArgumentException("deadbandPercent must not be negative");
+        }
+        this.deadbandPercent = deadbandPercent;
+    }
+
+    String getThresholds() {
+        return thresholdsSpec;
+    }
+
+    /**
+     * Sets the per-index thresholds.
+     * @param spec comma-separated {@code index:threshold} pairs, such as
+     * {@code 0:5,3:12.5}, or {@code null} for none
+     * @throws IllegalArgumentException if the pairs cannot be parsed
+     */
+    void setThresholds(final String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            thresholds = null;
+            thresholdsSpec = null;
+            return;
+        }
+        double[] parsed = new double[0];
+        for (String pair : spec.split(",")) {
+            int colon = pair.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException(MessageFormat.format("Expected index:threshold but got {0}", pair));
+            }
+            int index;
+            double threshold;
+            try {
+                index = Integer.parseInt(pair.substring(0, colon).trim());
+                threshold = Double.parseDouble(pair.substring(colon + 1).trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(MessageFormat.format("Expected index:threshold but got {0}", pair), ex);
+            }
+            if (index < 0 || threshold < 0) {
+                throw new IllegalArgumentException(MessageFormat.format("Expected index:threshold but got {0}", pair));
+            }
+            if (index >= parsed.length) {
+                double[] grown = new double[index + 1];
+                System.arraycopy(parsed, 0, grown, 0, parsed.length);
+                for (int i = parsed.length; i < grown.length; i++) {
+                    grown[i] = Double.NaN;
+                }
+                parsed = grown;
+            }
+            parsed[index] = threshold;
+        }
+        thresholds = parsed;
+        thresholdsSpec = spec;
+    }
+
+    ValueType getValueType() {
+        return valueType;
+    }
+
+    void setValueType(final ValueType valueType) {
+        this.valueType = valueType;
+    }
+
+    /**
+     * Gets the array to fill with the registers of the current poll.
+     * @param length the number of registers in the current poll
+     * @return an array of at least {@code length} elements
+     */
+    int[] words(final int length) {
+        if (words.length < length) {
+            words = new int[length];
+        }
+        return words;
+    }
+
+    /**
+     * Compares the registers of the current poll, as filled in to the array
+     * returned by {@link #words(int)}, against the values last sent.  If any
+     * value has changed by more than its threshold, the current values
+     * become the ones last sent.
+     * @param length the number of registers in the current poll
+     * @return whether or not any value changed by more than its threshold
+     */
+    boolean exceeded(final int length) {
+        int count = valueCount(length);
+        if (length != sentLength) {
+            if (sent.length < count) {
+                sent = new double[count];
+            }
+            remember(length, count);
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            double value = value(i, length);
+            double last = sent[i];
+            if (Double.compare(value, last) == 0) {
+                continue;
+            }
+            if (!(Math.abs(value - last) <= threshold(i, last))) {
+                remember(length, count);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the values last sent, so the next poll counts as a change.
+     */
+    void reset() {
+        sentLength = -1;
+    }
+
+    /**
+     * Remembers the current values as the ones last sent.
+     * @param length the number of registers
+     * @param count the number of values
+     */
+    private void remember(final int length, final int count) {
+        for (int i = 0; i < count; i++) {
+            sent[i] = value(i, length);
+        }
+        sentLength = length;
+    }
+
+    /**
+     * Gets the number of values in a poll.  A trailing register which does
+     * not make up a whole 32-bit value counts as an unsigned 16-bit value.
+     * @param length the number of registers
+     * @return the number of values
+     */
+    private int valueCount(final int length) {
+        return length / valueType.words + length % valueType.words;
+    }
+
+    /**
+     * Gets a value of the current poll.
+     * @param index the index of the value
+     * @param length the number of registers
+     * @return the value
+     */
+    private double value(final int index, final int length) {
+        int offset = index * valueType.words;
+        if (offset + valueType.words > length) {
+            return words[offset] & 0xffff;
+        }
+        switch (valueType) {
+            case INT16:
+                return (short) words[offset];
+            case INT32:
+                return (words[offset] << 16) | (words[offset + 1] & 0xffff);
+            case FLOAT32:
+                return Float.intBitsToFloat((words[offset] << 16) | (words[offset + 1] & 0xffff));
+            default:
+                return words[offset] & 0xffff;
+        }
+    }
+
+    /**
+     * Gets the threshold of a value.
+     * @param index the index of the value
+     * @param last the value last sent
+     * @return the threshold
+     */
+    private double threshold(final int index, final double last) {
+        double result = deadband;
+        if (thresholds != null && index < thresholds.length && !Double.isNaN(thresholds[index])) {
+            result = thresholds[index];
+        }
+        if (deadbandPercent > 0) {
+            result = Math.max(result, Math.abs(last) * deadbandPercent / 100);
+        }
+        return result;
+    }
+}
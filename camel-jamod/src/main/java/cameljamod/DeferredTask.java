@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+/**
+ * Work which the component runs later on one of its own threads, and which
+ * must still be finished off if the component stops first.
+ *
+ * @author Steven Swor
+ */
+interface DeferredTask extends Runnable {
+
+    /**
+     * Called instead of {@link #run()} when the component stops before the
+     * task runs, so that whoever is waiting on it is not left waiting for
+     * ever.
+     */
+    void abandon();
+}
@@ -15,6 +15,8 @@
  */
 package cameljamod;
 
+import cameljamod.ReadCoalescer.ReadRange;
+import cameljamod.ReadCoalescer.Scan;
 import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
 import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
 import net.wimpi.modbus.util.BitVector;
@@ -46,4 +48,20 @@ public class DiscreteInputsPollingConsumer extends ModbusPollingConsumer<ReadInp
     protected BitVector getBodyFromResponse(ReadInputDiscretesResponse response) {
         return response.getDiscretes();
     }
+
+    @Override
+    protected boolean responseHasChanged(final ReadInputDiscretesResponse response) {
+        RawValueBuffer last = getLastRawValues();
+        int length = response.getBitCount();
+        boolean changed = last.resize(length);
+        for (int i = 0; i < length; i++) {
+            changed |= last.set(i, response.getDiscreteStatus(i) ? 1 : 0);
+        }
+        return changed;
+    }
+
+    @Override
+    boolean scanHasChanged(final Scan scan, final ReadRange range) {
+        return rawValuesHaveChanged(scan, range);
+    }
 }
@@ -15,6 +15,8 @@
  */
 package cameljamod;
 
+import cameljamod.ReadCoalescer.ReadRange;
+import cameljamod.ReadCoalescer.Scan;
 import java.util.Arrays;
 import net.wimpi.modbus.msg.ReadCoilsRequest;
 import net.wimpi.modbus.msg.ReadCoilsResponse;
@@ -47,4 +49,20 @@ public class DiscreteOutputsPollingConsumer extends ModbusPollingConsumer<ReadCo
     protected BitVector getBodyFromResponse(ReadCoilsResponse response) {
         return response.getCoils();
     }
+
+    @Override
+    protected boolean responseHasChanged(final ReadCoilsResponse response) {
+        RawValueBuffer last = getLastRawValues();
+        int length = response.getBitCount();
+        boolean changed = last.resize(length);
+        for (int i = 0; i < length; i++) {
+            changed |= last.set(i, response.getCoilStatus(i) ? 1 : 0);
+        }
+        return changed;
+    }
+
+    @Override
+    boolean scanHasChanged(final Scan scan, final ReadRange range) {
+        return rawValuesHaveChanged(scan, range);
+    }
 }
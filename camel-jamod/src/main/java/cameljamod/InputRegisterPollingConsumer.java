@@ -26,7 +26,7 @@ import org.apache.camel.Processor;
  *
  * @author Steven Swor
  */
-public class InputRegisterPollingConsumer extends ModbusPollingConsumer<ReadInputRegistersRequest, ReadInputRegistersResponse, InputRegister> {
+public class InputRegisterPollingConsumer extends AbstractRegisterPollingConsumer<ReadInputRegistersRequest, ReadInputRegistersResponse, InputRegister> {
 
     /**
      * Creates a new DiscreteInputsPollingConsumer.
@@ -58,4 +58,14 @@ public class InputRegisterPollingConsumer extends ModbusPollingConsumer<ReadInpu
         }
         return !Arrays.equals(oldValue.toBytes(), newValue.toBytes());
     }
+
+    @Override
+    protected int getWordCount(final ReadInputRegistersResponse response) {
+        return response.getWordCount();
+    }
+
+    @Override
+    protected int getWordValue(final ReadInputRegistersResponse response, final int index) {
+        return response.getRegisterValue(index);
+    }
 }
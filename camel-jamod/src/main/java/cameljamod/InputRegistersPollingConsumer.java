@@ -25,7 +25,7 @@ import org.apache.camel.Processor;
  *
  * @author Steven Swor
  */
-public class InputRegistersPollingConsumer extends ModbusPollingConsumer<ReadInputRegistersRequest, ReadInputRegistersResponse, InputRegister[]> {
+public class InputRegistersPollingConsumer extends AbstractRegisterPollingConsumer<ReadInputRegistersRequest, ReadInputRegistersResponse, InputRegister[]> {
 
     /**
      * Creates a new DiscreteInputsPollingConsumer.
@@ -46,4 +46,14 @@ public class InputRegistersPollingConsumer extends ModbusPollingConsumer<ReadInp
     protected InputRegister[] getBodyFromResponse(ReadInputRegistersResponse response) {
         return response.getRegisters();
     }
+
+    @Override
+    protected int getWordCount(final ReadInputRegistersResponse response) {
+        return response.getWordCount();
+    }
+
+    @Override
+    protected int getWordValue(final ReadInputRegistersResponse response, final int index) {
+        return response.getRegisterValue(index);
+    }
 }
@@ -15,11 +15,32 @@
  */
 package cameljamod;
 
+import cameljamod.net.CircuitBreaker;
+import cameljamod.net.MasterConnectionPool;
+import cameljamod.net.NioEventLoopGroup;
+import cameljamod.net.RequestScheduler;
+import cameljamod.net.RetryBudget;
+import cameljamod.net.UnitQueue;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.camel.CamelContext;
 import org.apache.camel.ComponentConfiguration;
+import org.apache.camel.RuntimeCamelException;
 import org.apache.camel.impl.DefaultComponent;
+import org.apache.camel.spi.ManagementAgent;
 import org.apache.camel.util.URISupport;
 
 /**
@@ -29,6 +50,120 @@ import org.apache.camel.util.URISupport;
  */
 public class JamodComponent extends DefaultComponent {
 
+    /**
+     * Connections shared by all of this component's endpoints.
+     */
+    private final MasterConnectionPool connectionPool = new MasterConnectionPool();
+
+    /**
+     * Merges reads of consumers which share a device.
+     */
+    private final ReadCoalescer readCoalescer = new ReadCoalescer();
+
+    /**
+     * Periodically evicts idle connections from the pool.
+     */
+    private ScheduledExecutorService evictionExecutor;
+
+    /**
+     * Waits out the delay before asynchronous requests are retried, created
+     * on first use.
+     */
+    private ScheduledExecutorService retryExecutor;
+
+    /**
+     * Runs the callbacks of asynchronous requests and the routes of server
+     * consumers off the event loops, created on first use.
+     */
+    private ExecutorService workerExecutor;
+
+    /**
+     * Retries waiting out their delay, which are abandoned if the component
+     * stops first.
+     */
+    private final Set<DeferredTask> pendingRetries = new HashSet<DeferredTask>();
+
+    /**
+     * Whether or not the component is stopping, after which its executors
+     * refuse new work instead of being created again.
+     */
+    private boolean stopping = false;
+
+    /**
+     * The number of event loop threads shared by non-blocking endpoints.
+     */
+    private int nioThreads = 1;
+
+    /**
+     * The event loops shared by non-blocking endpoints, created on first use.
+     */
+    private NioEventLoopGroup eventLoopGroup;
+
+    /**
+     * The process images of {@code tcp-server} addresses, by device key.
+     */
+    private final Map<String, ModbusServer> servers = new HashMap<String, ModbusServer>();
+
+    /**
+     * The request schedulers of master devices, by device key.
+     */
+    private final Map<String, RequestScheduler> requestSchedulers = new HashMap<String, RequestScheduler>();
+
+    /**
+     * The largest number of requests per second to each device, or 0 for no
+     * limit.
+     */
+    private double maxRequestsPerSecond = 0;
+
+    /**
+     * The circuit breaker of each device, by device key.
+     */
+    private final Map<String, CircuitBreaker> circuitBreakers = new HashMap<String, CircuitBreaker>();
+
+    /**
+     * The number of consecutive failures which cuts a device off, or 0 to
+     * never cut devices off.
+     */
+    private int failureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+    /**
+     * The delay before the first attempt to reach a device which was cut
+     * off, in milliseconds.
+     */
+    private long reconnectDelay = CircuitBreaker.DEFAULT_INITIAL_BACKOFF;
+
+    /**
+     * The longest delay between attempts to reach a device which was cut
+     * off, in milliseconds.
+     */
+    private long maxReconnectDelay = CircuitBreaker.DEFAULT_MAX_BACKOFF;
+
+    /**
+     * The request queue of each unit behind a gateway, by unit key.
+     */
+    private final Map<String, UnitQueue> unitQueues = new HashMap<String, UnitQueue>();
+
+    /**
+     * The retry budget of each device, by device key.
+     */
+    private final Map<String, RetryBudget> retryBudgets = new HashMap<String, RetryBudget>();
+
+    /**
+     * The largest number of retries per second to each device, or 0 for no
+     * limit.
+     */
+    private double maxRetriesPerSecond = 0;
+
+    /**
+     * The transaction metrics of each device, by device key.
+     */
+    private final Map<String, TransactionMetrics> deviceMetrics = new HashMap<String, TransactionMetrics>();
+
+    /**
+     * The names of the device metrics MBeans which are registered.
+     */
+    private final List<ObjectName> deviceMetricsNames = new ArrayList<ObjectName>();
+
     @Override
     protected JamodEndpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) throws Exception {
         String addressUri = uri;
@@ -49,4 +184,571 @@ public class JamodComponent extends DefaultComponent {
     public ComponentConfiguration createComponentConfiguration() {
         return new JamodComponentConfiguration(this);
     }
+
+    /**
+     * Gets the connection pool shared by this component's endpoints.
+     *
+     * @return the connection pool
+     */
+    public MasterConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Gets the maximum number of connections to a single device.
+     *
+     * @return the maximum number of connections to a single device
+     */
+    public int getMaxConnectionsPerDevice() {
+        return connectionPool.getMaxConnectionsPerDevice();
+    }
+
+    /**
+     * Sets the maximum number of connections to a single device.
+     *
+     * @param maxConnectionsPerDevice the maximum number of connections to a
+     * single device
+     */
+    public void setMaxConnectionsPerDevice(int maxConnectionsPerDevice) {
+        connectionPool.setMaxConnectionsPerDevice(maxConnectionsPerDevice);
+    }
+
+    /**
+     * Gets how long a pooled connection may sit idle before it is closed.
+     *
+     * @return the idle timeout, in milliseconds
+     */
+    public long getConnectionIdleTimeout() {
+        return connectionPool.getIdleTimeout();
+    }
+
+    /**
+     * Sets how long a pooled connection may sit idle before it is closed.
+     *
+     * @param connectionIdleTimeout the idle timeout, in milliseconds
+     */
+    public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+        connectionPool.setIdleTimeout(connectionIdleTimeout);
+    }
+
+    /**
+     * Gets how long to wait for a connection when a device's connections are
+     * all in use.
+     *
+     * @return the borrow timeout, in milliseconds
+     */
+    public long getConnectionBorrowTimeout() {
+        return connectionPool.getBorrowTimeout();
+    }
+
+    /**
+     * Sets how long to wait for a connection when a device's connections are
+     * all in use.
+     *
+     * @param connectionBorrowTimeout the borrow timeout, in milliseconds
+     */
+    public void setConnectionBorrowTimeout(long connectionBorrowTimeout) {
+        connectionPool.setBorrowTimeout(connectionBorrowTimeout);
+    }
+
+    /**
+     * Determines whether idle connections are validated before reuse.
+     *
+     * @return {@code true} if idle connections are validated before reuse
+     */
+    public boolean isValidateConnectionOnBorrow() {
+        return connectionPool.isValidateOnBorrow();
+    }
+
+    /**
+     * Sets whether idle connections are validated before reuse.
+     *
+     * @param validateConnectionOnBorrow {@code true} to validate idle
+     * connections before reuse
+     */
+    public void setValidateConnectionOnBorrow(boolean validateConnectionOnBorrow) {
+        connectionPool.setValidateOnBorrow(validateConnectionOnBorrow);
+    }
+
+    /**
+     * Gets the read coalescer shared by this component's consumers.
+     *
+     * @return the read coalescer
+     */
+    public ReadCoalescer getReadCoalescer() {
+        return readCoalescer;
+    }
+
+    /**
+     * Gets the largest number of unrequested addresses which coalesced reads
+     * may include to join two consumers' ranges.
+     *
+     * @return the gap tolerance
+     */
+    public int getCoalesceGapTolerance() {
+        return readCoalescer.getGapTolerance();
+    }
+
+    /**
+     * Sets the largest number of unrequested addresses which coalesced reads
+     * may include to join two consumers' ranges.
+     *
+     * @param coalesceGapTolerance the gap tolerance
+     */
+    public void setCoalesceGapTolerance(int coalesceGapTolerance) {
+        readCoalescer.setGapTolerance(coalesceGapTolerance);
+    }
+
+    /**
+     * Gets the number of event loop threads shared by non-blocking endpoints.
+     *
+     * @return the number of event loop threads
+     */
+    public int getNioThreads() {
+        return nioThreads;
+    }
+
+    /**
+     * Sets the number of event loop threads shared by non-blocking endpoints.
+     * Takes effect the next time the event loops are created.
+     *
+     * @param nioThreads the number of event loop threads
+     */
+    public void setNioThreads(int nioThreads) {
+        this.nioThreads = nioThreads;
+    }
+
+    /**
+     * Gets the event loops shared by non-blocking endpoints, creating them if
+     * necessary.
+     *
+     * @return the event loops
+     * @throws IOException if the event loops cannot be created
+     */
+    public synchronized NioEventLoopGroup getEventLoopGroup() throws IOException {
+        if (eventLoopGroup == null) {
+            eventLoopGroup = new NioEventLoopGroup(nioThreads, "JamodNioEventLoop");
+        }
+        return eventLoopGroup;
+    }
+
+    /**
+     * Gets the process image of a {@code tcp-server} address, creating it if
+     * necessary.
+     *
+     * @param deviceKey the server's device key
+     * @param imageSize the size of a new image
+     * @return the process image
+     */
+    public synchronized ModbusServer getServer(final String deviceKey, final int imageSize) {
+        ModbusServer server = servers.get(deviceKey);
+        if (server == null) {
+            server = new ModbusServer(imageSize);
+            servers.put(deviceKey, server);
+        }
+        return server;
+    }
+
+    /**
+     * Gets the largest number of requests per second to each device.
+     *
+     * @return the largest number of requests per second, or 0 for no limit
+     */
+    public double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    /**
+     * Sets the largest number of requests per second to each device.
+     * Endpoints may set their own device's limit.  Takes effect for devices
+     * the component has not talked to yet.
+     *
+     * @param maxRequestsPerSecond the largest number of requests per second,
+     * or 0 for no limit
+     */
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * Gets the request scheduler of a device, creating it if necessary.
+     *
+     * @param deviceKey the device key
+     * @return the request scheduler
+     */
+    public synchronized RequestScheduler getRequestScheduler(final String deviceKey) {
+        RequestScheduler scheduler = requestSchedulers.get(deviceKey);
+        if (scheduler == null) {
+            scheduler = new RequestScheduler();
+            scheduler.setMaxRequestsPerSecond(maxRequestsPerSecond);
+            requestSchedulers.put(deviceKey, scheduler);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Gets the number of consecutive failures which cuts a device off.
+     *
+     * @return the failure threshold, or 0 if devices are never cut off
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures which cuts a device off.
+     * Endpoints may set their own device's threshold.  Takes effect for
+     * devices the component has not talked to yet.
+     *
+     * @param failureThreshold the failure threshold, or 0 to never cut
+     * devices off
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Gets the delay before the first attempt to reach a device which was
+     * cut off.
+     *
+     * @return the delay, in milliseconds
+     */
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    /**
+     * Sets the delay before the first attempt to reach a device which was
+     * cut off.  The delay doubles after every failed attempt.  Takes effect
+     * for devices the component has not talked to yet.
+     *
+     * @param reconnectDelay the delay, in milliseconds
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * Gets the longest delay between attempts to reach a device which was
+     * cut off.
+     *
+     * @return the delay, in milliseconds
+     */
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    /**
+     * Sets the longest delay between attempts to reach a device which was
+     * cut off.  Takes effect for devices the component has not talked to
+     * yet.
+     *
+     * @param maxReconnectDelay the delay, in milliseconds
+     */
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    /**
+     * Gets the circuit breaker of a device, or of a unit behind a gateway,
+     * creating it if necessary.
+     *
+     * @param deviceKey the device key, or the unit key
+     * @return the circuit breaker
+     */
+    public synchronized CircuitBreaker getCircuitBreaker(final String deviceKey) {
+        CircuitBreaker breaker = circuitBreakers.get(deviceKey);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(deviceKey);
+            breaker.setFailureThreshold(failureThreshold);
+            breaker.setInitialBackoff(reconnectDelay);
+            breaker.setMaxBackoff(maxReconnectDelay);
+            circuitBreakers.put(deviceKey, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * Gets the units behind a gateway which are currently cut off, and whose
+     * requests therefore fail at once.
+     *
+     * @param deviceKey the gateway's device key
+     * @return the unit identifiers, in ascending order
+     */
+    public synchronized List<Integer> getSkippedUnits(final String deviceKey) {
+        String prefix = deviceKey + "/";
+        List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<String, CircuitBreaker> entry : circuitBreakers.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && entry.getValue().getState() != CircuitBreaker.State.CLOSED) {
+                result.add(Integer.valueOf(entry.getKey().substring(prefix.length())));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Gets the request queue of a unit behind a gateway, creating it if
+     * necessary.
+     *
+     * @param unitKey the unit key, in the form {@code
+     * protocol://host:port/unit}
+     * @return the unit's request queue
+     */
+    public synchronized UnitQueue getUnitQueue(final String unitKey) {
+        UnitQueue queue = unitQueues.get(unitKey);
+        if (queue == null) {
+            queue = new UnitQueue(unitKey);
+            unitQueues.put(unitKey, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Gets the largest number of retries per second to each device.
+     *
+     * @return the largest number of retries per second, or 0 for no limit
+     */
+    public double getMaxRetriesPerSecond() {
+        return maxRetriesPerSecond;
+    }
+
+    /**
+     * Sets the largest number of retries per second to each device, so that
+     * a degraded link is not flooded with retries.  Endpoints may set their
+     * own device's limit.  Takes effect for devices the component has not
+     * talked to yet.
+     *
+     * @param maxRetriesPerSecond the largest number of retries per second,
+     * or 0 for no limit
+     */
+    public void setMaxRetriesPerSecond(double maxRetriesPerSecond) {
+        this.maxRetriesPerSecond = maxRetriesPerSecond;
+    }
+
+    /**
+     * Gets the retry budget of a device, creating it if necessary.
+     *
+     * @param deviceKey the device key
+     * @return the retry budget
+     */
+    public synchronized RetryBudget getRetryBudget(final String deviceKey) {
+        RetryBudget budget = retryBudgets.get(deviceKey);
+        if (budget == null) {
+            budget = new RetryBudget();
+            budget.setMaxRetriesPerSecond(maxRetriesPerSecond);
+            retryBudgets.put(deviceKey, budget);
+        }
+        return budget;
+    }
+
+    /**
+     * Gets the thread which waits out the delay before an asynchronous
+     * request is retried, creating it if necessary.  The retry itself runs on
+     * a worker thread.
+     *
+     * @return the retry executor
+     * @throws RejectedExecutionException if the component is stopping
+     */
+    synchronized ScheduledExecutorService getRetryExecutor() {
+        if (stopping) {
+            throw new RejectedExecutionException("Component is stopping");
+        }
+        if (retryExecutor == null) {
+            retryExecutor = getCamelContext().getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "JamodRetry");
+        }
+        return retryExecutor;
+    }
+
+    /**
+     * Gets the threads which run the callbacks and retries of asynchronous
+     * requests and the routes of server consumers, creating them if
+     * necessary.  Event loops hand this work over so that a route which
+     * blocks, or makes another request, cannot stall every connection on the
+     * loop.
+     *
+     * @return the worker executor
+     * @throws RejectedExecutionException if the component is stopping
+     */
+    synchronized ExecutorService getWorkerExecutor() {
+        if (stopping) {
+            throw new RejectedExecutionException("Component is stopping");
+        }
+        if (workerExecutor == null) {
+            workerExecutor = getCamelContext().getExecutorServiceManager().newCachedThreadPool(this, "JamodWorker");
+        }
+        return workerExecutor;
+    }
+
+    /**
+     * Runs a retry on a worker thread once its delay has passed.  A retry
+     * still waiting when the component stops is abandoned.
+     *
+     * @param retry the retry
+     * @param delay how long to wait first, in milliseconds
+     * @throws RejectedExecutionException if the component is stopping
+     */
+    synchronized void retryLater(final DeferredTask retry, final long delay) {
+        ScheduledExecutorService executor = getRetryExecutor();
+        pendingRetries.add(retry);
+        executor.schedule(new Runnable() {
+
+            public void run() {
+                synchronized (JamodComponent.this) {
+                    if (!pendingRetries.remove(retry)) {
+                        return;
+                    }
+                }
+                // the retry may wait for its turn or a connection, which
+                // must not hold up every other retry
+                try {
+                    getWorkerExecutor().execute(retry);
+                } catch (RejectedExecutionException ex) {
+                    retry.abandon();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the transaction metrics of a device, creating them if necessary.
+     *
+     * @param deviceKey the device key
+     * @return the device's transaction metrics
+     */
+    public synchronized TransactionMetrics getDeviceMetrics(final String deviceKey) {
+        TransactionMetrics metrics = deviceMetrics.get(deviceKey);
+        if (metrics == null) {
+            metrics = new TransactionMetrics();
+            deviceMetrics.put(deviceKey, metrics);
+            if (isStarted()) {
+                ObjectName name = manageMetrics(metrics, deviceKey, null);
+                if (name != null) {
+                    deviceMetricsNames.add(name);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers transaction metrics as an MBean, if Camel's JMX management
+     * is enabled.  Device metrics are named after the device, and endpoint
+     * metrics after their device and endpoint.
+     *
+     * @param metrics the metrics
+     * @param deviceKey the device key
+     * @param endpointUri the endpoint's URI, or {@code null} for a device's
+     * metrics
+     * @return the name of the MBean, or {@code null} if it was not registered
+     */
+    ObjectName manageMetrics(final TransactionMetrics metrics, final String deviceKey, final String endpointUri) {
+        CamelContext context = getCamelContext();
+        ManagementAgent agent = context == null || context.getManagementStrategy() == null ? null : context.getManagementStrategy().getManagementAgent();
+        if (agent == null || agent.getMBeanServer() == null) {
+            return null;
+        }
+        String contextName = context.getManagementName() != null ? context.getManagementName() : context.getName();
+        StringBuilder sb = new StringBuilder(agent.getMBeanObjectDomainName());
+        sb.append(":context=").append(ObjectName.quote(contextName));
+        sb.append(",type=jamod,device=").append(ObjectName.quote(deviceKey));
+        if (endpointUri != null) {
+            sb.append(",endpoint=").append(ObjectName.quote(URISupport.sanitizeUri(endpointUri)));
+        }
+        try {
+            ObjectName name = new ObjectName(sb.toString());
+            if (agent.isRegistered(name)) {
+                // another endpoint with the same URI already registered its metrics
+                return null;
+            }
+            agent.register(metrics, name);
+            return name;
+        } catch (JMException ex) {
+            throw new RuntimeCamelException(ex);
+        }
+    }
+
+    /**
+     * Unregisters a transaction metrics MBean.
+     *
+     * @param name the name of the MBean
+     */
+    void unmanageMetrics(final ObjectName name) {
+        CamelContext context = getCamelContext();
+        ManagementAgent agent = context == null || context.getManagementStrategy() == null ? null : context.getManagementStrategy().getManagementAgent();
+        if (agent == null || agent.getMBeanServer() == null) {
+            return;
+        }
+        try {
+            agent.unregister(name);
+        } catch (JMException ex) {
+            throw new RuntimeCamelException(ex);
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        synchronized (this) {
+            stopping = false;
+            for (Map.Entry<String, TransactionMetrics> entry : deviceMetrics.entrySet()) {
+                ObjectName name = manageMetrics(entry.getValue(), entry.getKey(), null);
+                if (name != null) {
+                    deviceMetricsNames.add(name);
+                }
+            }
+        }
+        long period = Math.max(1000L, connectionPool.getIdleTimeout() / 2);
+        evictionExecutor = getCamelContext().getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "JamodConnectionEviction");
+        evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                connectionPool.evictIdleConnections();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (evictionExecutor != null) {
+            getCamelContext().getExecutorServiceManager().shutdownNow(evictionExecutor);
+            evictionExecutor = null;
+        }
+        connectionPool.close();
+        List<DeferredTask> abandoned = new ArrayList<DeferredTask>();
+        List<Runnable> dropped = Collections.emptyList();
+        synchronized (this) {
+            stopping = true;
+            for (ObjectName name : deviceMetricsNames) {
+                unmanageMetrics(name);
+            }
+            deviceMetricsNames.clear();
+            abandoned.addAll(pendingRetries);
+            pendingRetries.clear();
+            if (retryExecutor != null) {
+                getCamelContext().getExecutorServiceManager().shutdownNow(retryExecutor);
+                retryExecutor = null;
+            }
+            if (workerExecutor != null) {
+                dropped = getCamelContext().getExecutorServiceManager().shutdownNow(workerExecutor);
+                workerExecutor = null;
+            }
+            if (eventLoopGroup != null) {
+                eventLoopGroup.close();
+                eventLoopGroup = null;
+            }
+        }
+        // whoever is waiting on the work thrown away must still hear back
+        for (DeferredTask retry : abandoned) {
+            retry.abandon();
+        }
+        for (Runnable task : dropped) {
+            if (task instanceof DeferredTask) {
+                ((DeferredTask) task).abandon();
+            } else {
+                task.run();
+            }
+        }
+        super.doStop();
+    }
 }
@@ -47,6 +47,38 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
     public static final String REFERENCE_ADDRESS_KEY = "referenceAddress";
     public static final Integer DEFAULT_REFERENCE_ADDRESS = Integer.valueOf(0);
     public static final String CHANGES_ONLY_KEY = "changesOnly";
+    public static final String MAX_IN_FLIGHT_KEY = "maxInFlight";
+    public static final String NIO_KEY = "nio";
+    public static final String COALESCE_KEY = "coalesce";
+    public static final String DEADBAND_KEY = "deadband";
+    public static final String DEADBAND_PERCENT_KEY = "deadbandPercent";
+    public static final String DEADBAND_THRESHOLDS_KEY = "deadbandThresholds";
+    public static final String DEADBAND_TYPE_KEY = "deadbandType";
+    public static final String BODY_TYPE_KEY = "bodyType";
+    public static final String LAYOUT_KEY = "layout";
+    public static final String SCAN_LIST_KEY = "scanList";
+    public static final String MODE_KEY = "mode";
+    public static final String MAX_CONNECTIONS_KEY = "maxConnections";
+    public static final String IMAGE_SIZE_KEY = "imageSize";
+    public static final String MIN_DELAY_KEY = "minDelay";
+    public static final String MAX_DELAY_KEY = "maxDelay";
+    public static final String PRIORITY_KEY = "priority";
+    public static final String MAX_REQUESTS_PER_SECOND_KEY = "maxRequestsPerSecond";
+    public static final String BATCH_WINDOW_KEY = "batchWindow";
+    public static final String BATCH_SIZE_KEY = "batchSize";
+    public static final String READ_REFERENCE_KEY = "readReference";
+    public static final String SPLIT_READ_WRITE_KEY = "splitReadWrite";
+    public static final String FAILURE_THRESHOLD_KEY = "failureThreshold";
+    public static final String RECONNECT_DELAY_KEY = "reconnectDelay";
+    public static final String MAX_RECONNECT_DELAY_KEY = "maxReconnectDelay";
+    public static final String TIMEOUT_KEY = "timeout";
+    public static final String RETRIES_KEY = "retries";
+    public static final String RETRY_DELAY_KEY = "retryDelay";
+    public static final String MAX_RETRIES_PER_SECOND_KEY = "maxRetriesPerSecond";
+    public static final String BAUD_RATE_KEY = "baudRate";
+    public static final String GATEWAY_KEY = "gateway";
+    public static final String MAX_IN_FLIGHT_PER_UNIT_KEY = "maxInFlightPerUnit";
+    public static final String STATUS_MESSAGES_KEY = "statusMessages";
 
     static {
         CONFIGS.put(DATA_TYPE_KEY, new ParameterConfiguration("dataType", DATA_TYPES.class));
@@ -59,6 +91,38 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
         CONFIGS.put("count", new ParameterConfiguration("count", Integer.TYPE));
         CONFIGS.put(CHANGES_ONLY_KEY, new ParameterConfiguration(CHANGES_ONLY_KEY, Boolean.TYPE));
         CONFIGS.put(JamodEndpoint.SLAVE_ID, new ParameterConfiguration(JamodEndpoint.SLAVE_ID, Integer.TYPE));
+        CONFIGS.put(MAX_IN_FLIGHT_KEY, new ParameterConfiguration(MAX_IN_FLIGHT_KEY, Integer.TYPE));
+        CONFIGS.put(NIO_KEY, new ParameterConfiguration(NIO_KEY, Boolean.TYPE));
+        CONFIGS.put(COALESCE_KEY, new ParameterConfiguration(COALESCE_KEY, Boolean.TYPE));
+        CONFIGS.put(DEADBAND_KEY, new ParameterConfiguration(DEADBAND_KEY, Double.TYPE));
+        CONFIGS.put(DEADBAND_PERCENT_KEY, new ParameterConfiguration(DEADBAND_PERCENT_KEY, Double.TYPE));
+        CONFIGS.put(DEADBAND_THRESHOLDS_KEY, new ParameterConfiguration(DEADBAND_THRESHOLDS_KEY, String.class));
+        CONFIGS.put(DEADBAND_TYPE_KEY, new ParameterConfiguration(DEADBAND_TYPE_KEY, String.class));
+        CONFIGS.put(BODY_TYPE_KEY, new ParameterConfiguration(BODY_TYPE_KEY, String.class));
+        CONFIGS.put(LAYOUT_KEY, new ParameterConfiguration(LAYOUT_KEY, String.class));
+        CONFIGS.put(SCAN_LIST_KEY, new ParameterConfiguration(SCAN_LIST_KEY, String.class));
+        CONFIGS.put(MODE_KEY, new ParameterConfiguration(MODE_KEY, String.class));
+        CONFIGS.put(MAX_CONNECTIONS_KEY, new ParameterConfiguration(MAX_CONNECTIONS_KEY, Integer.TYPE));
+        CONFIGS.put(IMAGE_SIZE_KEY, new ParameterConfiguration(IMAGE_SIZE_KEY, Integer.TYPE));
+        CONFIGS.put(MIN_DELAY_KEY, new ParameterConfiguration(MIN_DELAY_KEY, Integer.TYPE));
+        CONFIGS.put(MAX_DELAY_KEY, new ParameterConfiguration(MAX_DELAY_KEY, Integer.TYPE));
+        CONFIGS.put(PRIORITY_KEY, new ParameterConfiguration(PRIORITY_KEY, String.class));
+        CONFIGS.put(MAX_REQUESTS_PER_SECOND_KEY, new ParameterConfiguration(MAX_REQUESTS_PER_SECOND_KEY, Double.TYPE));
+        CONFIGS.put(BATCH_WINDOW_KEY, new ParameterConfiguration(BATCH_WINDOW_KEY, Integer.TYPE));
+        CONFIGS.put(BATCH_SIZE_KEY, new ParameterConfiguration(BATCH_SIZE_KEY, Integer.TYPE));
+        CONFIGS.put(READ_REFERENCE_KEY, new ParameterConfiguration(READ_REFERENCE_KEY, Integer.TYPE));
+        CONFIGS.put(SPLIT_READ_WRITE_KEY, new ParameterConfiguration(SPLIT_READ_WRITE_KEY, Boolean.TYPE));
+        CONFIGS.put(FAILURE_THRESHOLD_KEY, new ParameterConfiguration(FAILURE_THRESHOLD_KEY, Integer.TYPE));
+        CONFIGS.put(RECONNECT_DELAY_KEY, new ParameterConfiguration(RECONNECT_DELAY_KEY, Long.TYPE));
+        CONFIGS.put(MAX_RECONNECT_DELAY_KEY, new ParameterConfiguration(MAX_RECONNECT_DELAY_KEY, Long.TYPE));
+        CONFIGS.put(TIMEOUT_KEY, new ParameterConfiguration(TIMEOUT_KEY, Integer.TYPE));
+        CONFIGS.put(RETRIES_KEY, new ParameterConfiguration(RETRIES_KEY, Integer.TYPE));
+        CONFIGS.put(RETRY_DELAY_KEY, new ParameterConfiguration(RETRY_DELAY_KEY, Long.TYPE));
+        CONFIGS.put(MAX_RETRIES_PER_SECOND_KEY, new ParameterConfiguration(MAX_RETRIES_PER_SECOND_KEY, Double.TYPE));
+        CONFIGS.put(BAUD_RATE_KEY, new ParameterConfiguration(BAUD_RATE_KEY, Integer.TYPE));
+        CONFIGS.put(GATEWAY_KEY, new ParameterConfiguration(GATEWAY_KEY, Boolean.TYPE));
+        CONFIGS.put(MAX_IN_FLIGHT_PER_UNIT_KEY, new ParameterConfiguration(MAX_IN_FLIGHT_PER_UNIT_KEY, Integer.TYPE));
+        CONFIGS.put(STATUS_MESSAGES_KEY, new ParameterConfiguration(STATUS_MESSAGES_KEY, Boolean.TYPE));
     }
 
     //This is a list of the parameters that are ignored in the uri building
@@ -75,7 +139,30 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
     public static enum PROTOCOL {
 
         tcp,
-        udp
+        udp,
+        rtutcp,
+        /**
+         * A Modbus/TCP slave, written {@code tcp-server} in URIs.
+         */
+        tcp_server;
+
+        /**
+         * Gets the protocol as it is written in URIs.
+         * @return the URI scheme
+         */
+        public String getScheme() {
+            return name().replace('_', '-');
+        }
+
+        /**
+         * Gets a protocol from a URI scheme.
+         * @param scheme the URI scheme
+         * @return the protocol
+         * @throws IllegalArgumentException if there is no such protocol
+         */
+        public static PROTOCOL fromUri(final String scheme) {
+            return valueOf(scheme.replace('-', '_'));
+        }
     }
 
     public static enum DATA_TYPES {
@@ -85,7 +172,9 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
         registers,
         register,
         inputRegisters,
-        inputRegister
+        inputRegister,
+        readWriteRegisters,
+        scan
     }
 
     public JamodComponentConfiguration(Component component) {
@@ -107,7 +196,7 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
 
     @Override
     public String getBaseUri() {
-        return String.format("jamod:%s://%s:%s/%s/%s", getProtocol(), getHostName(), getPort(), getDataType(), getReferenceAddress());
+        return String.format("jamod:%s://%s:%s/%s/%s", getProtocol().getScheme(), getHostName(), getPort(), getDataType(), getReferenceAddress());
     }
 
     @Override
@@ -125,7 +214,7 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
             if (protocolFromUri == null) {
                 protocolFromUri = DEFAULT_PROTOCOL.toString();
             }
-            setParameter(PROTOCOL_KEY, PROTOCOL.valueOf(protocolFromUri));
+            setParameter(PROTOCOL_KEY, PROTOCOL.fromUri(protocolFromUri));
             setParameter(PORT_KEY, getPortFromUri(uri));
             setParameter(HOST_NAME_KEY, getHostFromUri(uri));
             String dataTypeFromUri = getDataTypeFromUri(uri);
@@ -133,7 +222,9 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
                 dataTypeFromUri = DEFAULT_DATA_TYPE.toString();
             }
             setParameter(DATA_TYPE_KEY, DATA_TYPES.valueOf(dataTypeFromUri));
-            setParameter(REFERENCE_ADDRESS_KEY, getReferenceFromUri(uri));
+            if (!DATA_TYPES.scan.toString().equals(dataTypeFromUri)) {
+                setParameter(REFERENCE_ADDRESS_KEY, getReferenceFromUri(uri));
+            }
 
             int idx = newUriString.indexOf('?');
             Map<String, Object> newParameters = Collections.emptyMap();
@@ -144,7 +235,8 @@ public class JamodComponentConfiguration extends ComponentConfigurationSupport {
             for (Map.Entry<String, Object> entry : newParameters.entrySet()) {
                 final String key = entry.getKey();
                 final Object value = entry.getValue();
-                if (key.equals(CHANGES_ONLY_KEY)) {
+                ParameterConfiguration config = CONFIGS.get(key);
+                if (config != null && config.getParameterType() == Boolean.TYPE) {
                     setParameter(key, value.toString().equalsIgnoreCase("true") ? Boolean.TRUE : Boolean.FALSE);
                 } else {
 
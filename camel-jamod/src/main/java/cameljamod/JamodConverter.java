@@ -15,8 +15,9 @@
  */
 package cameljamod;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Formatter;
+import java.util.Map;
 import net.wimpi.modbus.procimg.InputRegister;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.procimg.SimpleInputRegister;
@@ -31,6 +32,17 @@ import org.apache.camel.Converter;
 @Converter
 public class JamodConverter {
 
+    /**
+     * The hexadecimal digits, by value.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The number of characters in a register's string form, such as
+     * {@code 0x1A2B}.
+     */
+    private static final int REGISTER_STRING_LENGTH = 6;
+
     private JamodConverter() {
     }
 
@@ -49,7 +61,20 @@ public class JamodConverter {
 
     @Converter
     public static String toString(final BitVector bitVector) {
-        return bitVector.toString().trim();
+        int size = bitVector.size();
+        if (size == 0) {
+            return "";
+        }
+        // one character per bit, with a space between each group of 8
+        char[] chars = new char[size + (size - 1) / 8];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && i % 8 == 0) {
+                chars[pos++] = ' ';
+            }
+            chars[pos++] = bitVector.getBit(i) ? '1' : '0';
+        }
+        return new String(chars);
     }
 
     @Converter
@@ -115,32 +140,23 @@ public class JamodConverter {
 
     @Converter
     public static String toString(final InputRegister[] registers) {
-        StringBuilder sb = new StringBuilder(7 * registers.length - 1);
-        boolean first = true;
-        for (InputRegister register : registers) {
-            if (first) {
-                first = false;
-            } else {
-                sb.append(" ");
+        if (registers.length == 0) {
+            return "";
+        }
+        char[] chars = new char[(REGISTER_STRING_LENGTH + 1) * registers.length - 1];
+        for (int i = 0; i < registers.length; i++) {
+            int pos = i * (REGISTER_STRING_LENGTH + 1);
+            if (i > 0) {
+                chars[pos - 1] = ' ';
             }
-            appendRegisterToString(register, sb);
+            appendRegisterToString(registers[i], chars, pos);
         }
-        return sb.toString();
+        return new String(chars);
     }
 
     @Converter
     public static String toString(final Register[] registers) {
-        StringBuilder sb = new StringBuilder(7 * registers.length - 1);
-        boolean first = true;
-        for (InputRegister register : registers) {
-            if (first) {
-                first = false;
-            } else {
-                sb.append(" ");
-            }
-            appendRegisterToString(register, sb);
-        }
-        return sb.toString();
+        return toString((InputRegister[]) registers);
     }
 
     @Converter
@@ -155,24 +171,31 @@ public class JamodConverter {
 
     @Converter
     public static String toString(final Register register) {
-        StringBuilder sb = new StringBuilder(6);
-        appendRegisterToString(register, sb);
-        return sb.toString();
+        return toString((InputRegister) register);
     }
 
     @Converter
     public static String toString(final InputRegister register) {
-        StringBuilder sb = new StringBuilder(6);
-        appendRegisterToString(register, sb);
-        return sb.toString();
+        char[] chars = new char[REGISTER_STRING_LENGTH];
+        appendRegisterToString(register, chars, 0);
+        return new String(chars);
     }
 
-    private static void appendRegisterToString(final InputRegister register, final StringBuilder sb) {
-        sb.append("0x");
-        Formatter formatter = new Formatter(sb);
-        byte[] bytes = register.toBytes();
-        formatter.format("%02X", bytes[0]);
-        formatter.format("%02X", bytes[1]);
+    /**
+     * Writes a register's string form, such as {@code 0x1A2B}, into a
+     * character array.
+     * @param register the register
+     * @param chars the character array
+     * @param offset where to write the string form
+     */
+    private static void appendRegisterToString(final InputRegister register, final char[] chars, final int offset) {
+        int value = register.getValue();
+        chars[offset] = '0';
+        chars[offset + 1] = 'x';
+        chars[offset + 2] = HEX_DIGITS[(value >> 12) & 0xf];
+        chars[offset + 3] = HEX_DIGITS[(value >> 8) & 0xf];
+        chars[offset + 4] = HEX_DIGITS[(value >> 4) & 0xf];
+        chars[offset + 5] = HEX_DIGITS[value & 0xf];
     }
 
     @Converter
@@ -211,4 +234,136 @@ public class JamodConverter {
             return new SimpleRegister(bytes[0], (byte) 0);
         }
     }
+
+    @Converter
+    public static short[] toShortArray(final InputRegister[] registers) {
+        short[] results = new short[registers.length];
+        for (int i = 0; i < registers.length; i++) {
+            results[i] = (short) registers[i].getValue();
+        }
+        return results;
+    }
+
+    @Converter
+    public static short[] toShortArray(final Register[] registers) {
+        return toShortArray((InputRegister[]) registers);
+    }
+
+    @Converter
+    public static int[] toIntArray(final InputRegister[] registers) {
+        int[] results = new int[registers.length];
+        for (int i = 0; i < registers.length; i++) {
+            results[i] = registers[i].getValue();
+        }
+        return results;
+    }
+
+    @Converter
+    public static int[] toIntArray(final Register[] registers) {
+        return toIntArray((InputRegister[]) registers);
+    }
+
+    @Converter
+    public static short[] toShortArray(final byte[] bytes) {
+        short[] results = new short[bytes.length / 2];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = (short) ((bytes[2 * i] << 8) | (bytes[2 * i + 1] & 0xff));
+        }
+        return results;
+    }
+
+    @Converter
+    public static int[] toIntArray(final byte[] bytes) {
+        int[] results = new int[bytes.length / 2];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = ((bytes[2 * i] & 0xff) << 8) | (bytes[2 * i + 1] & 0xff);
+        }
+        return results;
+    }
+
+    @Converter
+    public static byte[] toByteArray(final short[] words) {
+        byte[] results = new byte[words.length * 2];
+        for (int i = 0; i < words.length; i++) {
+            results[2 * i] = (byte) (words[i] >> 8);
+            results[2 * i + 1] = (byte) words[i];
+        }
+        return results;
+    }
+
+    @Converter
+    public static byte[] toByteArray(final int[] words) {
+        byte[] results = new byte[words.length * 2];
+        for (int i = 0; i < words.length; i++) {
+            results[2 * i] = (byte) (words[i] >> 8);
+            results[2 * i + 1] = (byte) words[i];
+        }
+        return results;
+    }
+
+    @Converter
+    public static Register[] toRegisterArray(final short[] words) {
+        Register[] results = new Register[words.length];
+        for (int i = 0; i < words.length; i++) {
+            results[i] = new SimpleRegister(words[i] & 0xffff);
+        }
+        return results;
+    }
+
+    @Converter
+    public static Register[] toRegisterArray(final int[] words) {
+        Register[] results = new Register[words.length];
+        for (int i = 0; i < words.length; i++) {
+            results[i] = new SimpleRegister(words[i] & 0xffff);
+        }
+        return results;
+    }
+
+    @Converter
+    public static InputRegister[] toInputRegisterArray(final short[] words) {
+        InputRegister[] results = new InputRegister[words.length];
+        for (int i = 0; i < words.length; i++) {
+            results[i] = new SimpleInputRegister(words[i] & 0xffff);
+        }
+        return results;
+    }
+
+    @Converter
+    public static InputRegister[] toInputRegisterArray(final int[] words) {
+        InputRegister[] results = new InputRegister[words.length];
+        for (int i = 0; i < words.length; i++) {
+            results[i] = new SimpleInputRegister(words[i] & 0xffff);
+        }
+        return results;
+    }
+
+    @Converter
+    public static Register[] toRegisterArray(final ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        Register[] results = new Register[source.remaining() / 2];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new SimpleRegister(source.get(), source.get());
+        }
+        return results;
+    }
+
+    @Converter
+    public static ByteBuffer toByteBuffer(final InputRegister[] registers) {
+        return ByteBuffer.wrap(toByteArray(registers));
+    }
+
+    @Converter
+    public static ByteBuffer toByteBuffer(final Register[] registers) {
+        return ByteBuffer.wrap(toByteArray(registers));
+    }
+
+    @Converter
+    public static Map<String, Object> toMap(final RegisterRecord record) {
+        return record.toMap();
+    }
+
+    @Converter
+    public static Register[] toRegisterArray(final RegisterRecord record) {
+        return toRegisterArray(record.getWords());
+    }
 }
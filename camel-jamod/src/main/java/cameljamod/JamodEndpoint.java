@@ -15,19 +15,55 @@
  */
 package cameljamod;
 
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
 import cameljamod.net.AbstractMasterConnectionWrapper;
+import cameljamod.net.CircuitBreaker;
+import cameljamod.net.CircuitOpenException;
+import cameljamod.net.MasterConnectionFactory;
+import cameljamod.net.MasterConnectionPool;
+import cameljamod.net.ModbusTimeoutException;
+import cameljamod.net.NioEventLoopGroup;
+import cameljamod.net.NioTCPMasterConnection;
+import cameljamod.net.NioTCPMasterConnectionWrapper;
+import cameljamod.net.PipelinedTCPMasterConnection;
+import cameljamod.net.PipelinedTCPMasterConnectionWrapper;
+import cameljamod.net.RTUOverTCPMasterConnection;
+import cameljamod.net.RTUOverTCPMasterConnectionWrapper;
+import cameljamod.net.RequestScheduler;
+import cameljamod.net.RetryBudget;
 import cameljamod.net.TCPMasterConnectionWrapper;
+import cameljamod.net.TransactionCallback;
 import cameljamod.net.UDPMasterConnectionWrapper;
+import cameljamod.net.UnitQueue;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.ObjectName;
 import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
 import net.wimpi.modbus.net.TCPMasterConnection;
 import net.wimpi.modbus.net.UDPMasterConnection;
 import org.apache.camel.Consumer;
 import org.apache.camel.Processor;
+import org.apache.camel.Producer;
 import org.apache.camel.ResolveEndpointFailedException;
 import org.apache.camel.RuntimeCamelException;
 import org.apache.camel.impl.DefaultPollingEndpoint;
@@ -45,9 +81,74 @@ public class JamodEndpoint extends DefaultPollingEndpoint {
     public static final String SLAVE_ID = "slaveId";
 
     /**
-     * The connection.
+     * The header holding the unit identifier of a request received by a
+     * server consumer, or of the unit a status message is about.
      */
-    private volatile AbstractMasterConnectionWrapper conn;
+    public static final String UNIT_ID_HEADER = "CamelJamodUnitId";
+
+    /**
+     * The header of a status message holding {@link #STATUS_DOWN} or
+     * {@link #STATUS_UP}.
+     */
+    public static final String STATUS_HEADER = "CamelJamodStatus";
+
+    /**
+     * The status of a unit which was cut off.
+     */
+    public static final String STATUS_DOWN = "DOWN";
+
+    /**
+     * The status of a unit which answers again.
+     */
+    public static final String STATUS_UP = "UP";
+
+    /**
+     * The header holding the function code of a request received by a server
+     * consumer.
+     */
+    public static final String FUNCTION_CODE_HEADER = "CamelJamodFunctionCode";
+
+    /**
+     * The header holding the first address of a request received by a server
+     * consumer.
+     */
+    public static final String REFERENCE_ADDRESS_HEADER = "CamelJamodReferenceAddress";
+
+    /**
+     * The header holding the number of addresses of a request received by a
+     * server consumer.
+     */
+    public static final String COUNT_HEADER = "CamelJamodCount";
+
+    /**
+     * The default number of each kind of value in a server's process image.
+     */
+    public static final int DEFAULT_IMAGE_SIZE = 65536;
+
+    /**
+     * The default timeout of a transaction, in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 1000;
+
+    /**
+     * The exception code of a gateway which has no path to the unit.
+     */
+    private static final int GATEWAY_PATH_UNAVAILABLE = 10;
+
+    /**
+     * The exception code of a gateway whose unit did not answer.
+     */
+    private static final int GATEWAY_TARGET_FAILED_TO_RESPOND = 11;
+
+    /**
+     * Creates connections for the component's connection pool.
+     */
+    private final MasterConnectionFactory connectionFactory = new MasterConnectionFactory() {
+
+        public AbstractMasterConnectionWrapper<?> createConnection() {
+            return JamodEndpoint.this.createConnection();
+        }
+    };
     /**
      * The URI to the modbus device.
      */
@@ -60,6 +161,111 @@ public class JamodEndpoint extends DefaultPollingEndpoint {
      * The component.
      */
     private final JamodComponent component;
+    /**
+     * The maximum number of Modbus/TCP transactions in flight on one
+     * connection.
+     */
+    private int maxInFlight = 1;
+    /**
+     * Whether or not to use the component's non-blocking event loops for
+     * Modbus/TCP.
+     */
+    private boolean nio = false;
+    /**
+     * The number of each kind of value in the process image of a
+     * {@code tcp-server} address.
+     */
+    private int imageSize = DEFAULT_IMAGE_SIZE;
+    /**
+     * The priority of this endpoint's reads in its device's request
+     * scheduler.
+     */
+    private RequestScheduler.Priority priority = RequestScheduler.Priority.POLL;
+    /**
+     * The largest number of requests per second to this endpoint's device,
+     * or 0 to leave the component's setting.
+     */
+    private double maxRequestsPerSecond = 0;
+    /**
+     * The device's request scheduler, once looked up.
+     */
+    private volatile RequestScheduler requestScheduler;
+    /**
+     * The number of consecutive failures which cuts this endpoint's device
+     * off, or -1 to leave the component's setting.
+     */
+    private int failureThreshold = -1;
+    /**
+     * The delay before the first attempt to reach this endpoint's device
+     * once it was cut off, or 0 to leave the component's setting.
+     */
+    private long reconnectDelay = 0;
+    /**
+     * The longest delay between attempts to reach this endpoint's device
+     * once it was cut off, or 0 to leave the component's setting.
+     */
+    private long maxReconnectDelay = 0;
+    /**
+     * The device's circuit breaker, once looked up.
+     */
+    private volatile CircuitBreaker circuitBreaker;
+    /**
+     * How long to wait for the device to answer, in milliseconds.
+     */
+    private int timeout = DEFAULT_TIMEOUT;
+    /**
+     * The number of times a request which the device did not answer is
+     * tried again.
+     */
+    private int retries = Modbus.DEFAULT_RETRIES;
+    /**
+     * The delay before a request is tried again, in milliseconds.
+     */
+    private long retryDelay = 0;
+    /**
+     * The speed of the serial line behind an {@code rtutcp} terminal
+     * server, in bits per second.
+     */
+    private int baudRate = RTUOverTCPMasterConnection.DEFAULT_BAUD_RATE;
+    /**
+     * The largest number of retries per second to this endpoint's device,
+     * or 0 to leave the component's setting.
+     */
+    private double maxRetriesPerSecond = 0;
+    /**
+     * The device's retry budget, once looked up.
+     */
+    private volatile RetryBudget retryBudget;
+    /**
+     * Whether or not the device is a gateway to several units.
+     */
+    private boolean gateway = false;
+    /**
+     * The largest number of requests to one unit behind the gateway on their
+     * way at once, or 0 to leave the default.
+     */
+    private int maxInFlightPerUnit = 0;
+    /**
+     * The circuit breakers of the units behind the gateway, once looked up.
+     */
+    private final ConcurrentMap<Integer, CircuitBreaker> unitCircuitBreakers = new ConcurrentHashMap<Integer, CircuitBreaker>();
+    /**
+     * The request queues of the units behind the gateway, once looked up.
+     */
+    private final ConcurrentMap<Integer, UnitQueue> unitQueues = new ConcurrentHashMap<Integer, UnitQueue>();
+    /**
+     * This endpoint's transaction metrics.
+     */
+    private final TransactionMetrics metrics = new TransactionMetrics();
+    /**
+     * The device's transaction metrics, once looked up.
+     */
+    private volatile TransactionMetrics deviceMetrics;
+    /**
+     * The name of this endpoint's metrics MBean, or {@code null} if it is
+     * not registered.
+     */
+    private ObjectName metricsName;
 
     /**
      * Creates a new JamodEndpoint.
@@ -78,25 +284,58 @@ public class JamodEndpoint extends DefaultPollingEndpoint {
      * @return {@code null}
      * @throws Exception never
      */
-    public ModbusProducer createProducer() throws Exception {
+    public Producer createProducer() throws Exception {
         String dataType = JamodUriResolver.getDataTypeFromUri(modbusURI);
+        if (isTCPServer(modbusURI)) {
+            imageSize = component.getAndRemoveParameter(parameters, "imageSize", Integer.class, Integer.valueOf(DEFAULT_IMAGE_SIZE));
+            ModbusServerProducer serverProducer = new ModbusServerProducer(this, dataType);
+            serverProducer.setReferenceAddress(JamodUriResolver.getReferenceFromUri(modbusURI));
+            return serverProducer;
+        }
+        int batchWindow = component.getAndRemoveParameter(parameters, "batchWindow", Integer.class, Integer.valueOf(0));
+        if (batchWindow > 0) {
+            BatchingWriteProducer batchingProducer = new BatchingWriteProducer(this, dataType);
+            batchingProducer.setBatchWindow(batchWindow);
+            int batchSize = component.getAndRemoveParameter(parameters, "batchSize", Integer.class, Integer.valueOf(1000));
+            batchingProducer.setBatchSize(batchSize);
+            batchingProducer.setReferenceAddress(JamodUriResolver.getReferenceFromUri(modbusURI));
+            int slaveId = component.getAndRemoveParameter(parameters, SLAVE_ID, Integer.class, 0);
+            batchingProducer.setSlaveId(slaveId);
+            return batchingProducer;
+        }
         ModbusProducer producer;
         if ("coils".equalsIgnoreCase(dataType)) {
             producer = new DiscreteOutputsProducer(this);
         } else if ("registers".equalsIgnoreCase(dataType)) {
             producer = new RegistersProducer(this);
+        } else if ("readWriteRegisters".equalsIgnoreCase(dataType)) {
+            ReadWriteRegistersProducer readWriteProducer = new ReadWriteRegistersProducer(this);
+            readWriteProducer.setReadReference(component.getAndRemoveParameter(parameters, "readReference", Integer.class, Integer.valueOf(0)));
+            readWriteProducer.setReadCount(component.getAndRemoveParameter(parameters, "count", Integer.class, Integer.valueOf(1)));
+            readWriteProducer.setSplitReadWrite(component.getAndRemoveParameter(parameters, "splitReadWrite", Boolean.class, Boolean.FALSE));
+            producer = readWriteProducer;
         } else {
             throw new IllegalArgumentException(MessageFormat.format("Unsupported data type: {0}", dataType));
         }
         producer.setReferenceAddress(JamodUriResolver.getReferenceFromUri(modbusURI));
         int slaveId = component.getAndRemoveParameter(parameters, SLAVE_ID, Integer.class, 0);
         producer.setSlaveId(slaveId);
+        if (producer instanceof RegistersProducer) {
+            String layout = component.getAndRemoveParameter(parameters, "layout", String.class);
+            ((RegistersProducer) producer).setLayout(layout);
+        }
         return producer;
     }
 
     @Override
     public Consumer createConsumer(final Processor processor) throws Exception {
+        if (isTCPServer(modbusURI)) {
+            return createServerConsumer(processor);
+        }
         String dataType = JamodUriResolver.getDataTypeFromUri(modbusURI);
+        if ("scan".equalsIgnoreCase(dataType)) {
+            return createScanListConsumer(processor);
+        }
         ModbusPollingConsumer consumer;
         if ("discreteInputs".equalsIgnoreCase(dataType)) {
             consumer = new DiscreteInputsPollingConsumer(this, processor);
@@ -118,117 +357,1319 @@ public class JamodEndpoint extends DefaultPollingEndpoint {
         consumer.setDelay(delay);
         int initialDelay = component.getAndRemoveParameter(parameters, "initialDelay", Integer.class, Integer.valueOf(500));
         consumer.setInitialDelay(initialDelay);
-        int count = component.getAndRemoveParameter(parameters, "count", Integer.class, Integer.valueOf(1));
+        int minDelay = component.getAndRemoveParameter(parameters, "minDelay", Integer.class, Integer.valueOf(0));
+        consumer.setMinDelay(minDelay);
+        int maxDelay = component.getAndRemoveParameter(parameters, "maxDelay", Integer.class, Integer.valueOf(0));
+        consumer.setMaxDelay(maxDelay);
+        String layout = null;
+        int defaultCount = 1;
+        if (consumer instanceof AbstractRegisterPollingConsumer) {
+            layout = component.getAndRemoveParameter(parameters, "layout", String.class);
+            if (layout != null && (consumer instanceof RegisterPollingConsumer || consumer instanceof InputRegisterPollingConsumer)) {
+                // these read a single register, which a layout cannot span
+                throw new IllegalArgumentException(MessageFormat.format("Data type {0} does not support a layout", dataType));
+            }
+            if (layout != null) {
+                ((AbstractRegisterPollingConsumer) consumer).setLayout(layout);
+                defaultCount = RegisterLayout.parse(layout).getWordCount();
+            }
+        }
+        int count = component.getAndRemoveParameter(parameters, "count", Integer.class, Integer.valueOf(defaultCount));
         consumer.setCount(count);
         boolean changesOnly = component.getAndRemoveParameter(parameters, "changesOnly", Boolean.class, Boolean.FALSE);
         consumer.setChangesOnly(changesOnly);
+        boolean statusMessages = component.getAndRemoveParameter(parameters, "statusMessages", Boolean.class, Boolean.FALSE);
+        consumer.setStatusMessages(statusMessages);
         int slaveId = component.getAndRemoveParameter(parameters, SLAVE_ID, Integer.class, 0);
         consumer.setSlaveId(slaveId);
+        boolean coalesce = component.getAndRemoveParameter(parameters, "coalesce", Boolean.class, Boolean.FALSE);
+        consumer.setCoalesce(coalesce);
+        if (consumer instanceof AbstractRegisterPollingConsumer) {
+            AbstractRegisterPollingConsumer registerConsumer = (AbstractRegisterPollingConsumer) consumer;
+            double deadband = component.getAndRemoveParameter(parameters, "deadband", Double.class, Double.valueOf(0));
+            registerConsumer.setDeadband(deadband);
+            double deadbandPercent = component.getAndRemoveParameter(parameters, "deadbandPercent", Double.class, Double.valueOf(0));
+            registerConsumer.setDeadbandPercent(deadbandPercent);
+            String deadbandThresholds = component.getAndRemoveParameter(parameters, "deadbandThresholds", String.class);
+            registerConsumer.setDeadbandThresholds(deadbandThresholds);
+            String deadbandType = component.getAndRemoveParameter(parameters, "deadbandType", String.class, "uint16");
+            registerConsumer.setDeadbandType(deadbandType);
+            String bodyType = component.getAndRemoveParameter(parameters, "bodyType", String.class, layout == null ? "registers" : "map");
+            registerConsumer.setBodyType(bodyType);
+        }
         return consumer;
     }
 
-    @Override
-    public boolean isSingleton() {
-        return false;
-    }
-
-    @Override
-    public boolean isLenientProperties() {
-        return true;
+    /**
+     * Creates a consumer which serves a {@code tcp-server} address.
+     *
+     * @param processor the processor
+     * @return the consumer
+     */
+    private ModbusServerConsumer createServerConsumer(final Processor processor) {
+        imageSize = component.getAndRemoveParameter(parameters, "imageSize", Integer.class, Integer.valueOf(DEFAULT_IMAGE_SIZE));
+        ModbusServerConsumer consumer = new ModbusServerConsumer(this, processor);
+        String mode = component.getAndRemoveParameter(parameters, "mode", String.class, "image");
+        consumer.setMode(mode);
+        int maxConnections = component.getAndRemoveParameter(parameters, "maxConnections", Integer.class, Integer.valueOf(0));
+        consumer.setMaxConnections(maxConnections);
+        return consumer;
     }
 
-    @Override
-    protected String createEndpointUri() {
-        StringBuilder sb = new StringBuilder(modbusURI.toString());
-        return sb.toString();
+    /**
+     * Creates a consumer which reads a scan list.
+     *
+     * @param processor the processor
+     * @return the consumer
+     */
+    private ScanListPollingConsumer createScanListConsumer(final Processor processor) {
+        ScanListPollingConsumer consumer = new ScanListPollingConsumer(this, processor);
+        Object scanList = component.getAndRemoveParameter(parameters, "scanList", Object.class);
+        if (scanList instanceof String && ((String) scanList).startsWith("#")) {
+            String name = ((String) scanList).substring(1);
+            scanList = getCamelContext().getRegistry().lookupByName(name);
+            if (scanList == null) {
+                throw new IllegalArgumentException(MessageFormat.format("No scan list named {0} in the registry", name));
+            }
+        }
+        consumer.setScanList(toScanItems(scanList));
+        int delay = component.getAndRemoveParameter(parameters, "delay", Integer.class, Integer.valueOf(500));
+        consumer.setDelay(delay);
+        int initialDelay = component.getAndRemoveParameter(parameters, "initialDelay", Integer.class, Integer.valueOf(500));
+        consumer.setInitialDelay(initialDelay);
+        int minDelay = component.getAndRemoveParameter(parameters, "minDelay", Integer.class, Integer.valueOf(0));
+        consumer.setMinDelay(minDelay);
+        int maxDelay = component.getAndRemoveParameter(parameters, "maxDelay", Integer.class, Integer.valueOf(0));
+        consumer.setMaxDelay(maxDelay);
+        boolean changesOnly = component.getAndRemoveParameter(parameters, "changesOnly", Boolean.class, Boolean.FALSE);
+        consumer.setChangesOnly(changesOnly);
+        boolean statusMessages = component.getAndRemoveParameter(parameters, "statusMessages", Boolean.class, Boolean.FALSE);
+        consumer.setStatusMessages(statusMessages);
+        int slaveId = component.getAndRemoveParameter(parameters, SLAVE_ID, Integer.class, 0);
+        consumer.setSlaveId(slaveId);
+        return consumer;
     }
 
     /**
-     * Gets the Modbus connection.
+     * Converts a scan list to scan items.
      *
-     * @return the connection
+     * @param scanList a collection of {@link ScanItem}s or item strings, or
+     * a comma-separated string of items
+     * @return the scan items
      */
-    public AbstractMasterConnectionWrapper getConnection() {
-        if (conn == null) {
-            synchronized (this) {
-                if (conn == null) {
-                    conn = createConnection();
-                }
+    static List<ScanItem> toScanItems(final Object scanList) {
+        Collection<?> items;
+        if (scanList instanceof Collection) {
+            items = (Collection<?>) scanList;
+        } else if (scanList instanceof String) {
+            items = Arrays.asList(((String) scanList).split(","));
+        } else {
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported scan list: {0}", scanList));
+        }
+        List<ScanItem> retVal = new ArrayList<ScanItem>(items.size());
+        for (Object item : items) {
+            if (item instanceof ScanItem) {
+                retVal.add((ScanItem) item);
+            } else {
+                retVal.add(ScanItem.parse(String.valueOf(item)));
             }
         }
-        return conn;
+        return retVal;
     }
 
-    @Override
-    protected void doStop() throws Exception {
-        super.doStop();
-        getConnection().close();
+    /**
+     * Gets the maximum number of Modbus/TCP transactions in flight on one
+     * connection.
+     *
+     * @return the maximum number of transactions in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
     }
 
     /**
-     * Creates the Modbus connection.
+     * Sets the maximum number of Modbus/TCP transactions in flight on one
+     * connection.  Values greater than 1 enable pipelining, which the device
+     * must support.
      *
-     * @return the connection
+     * @param maxInFlight the maximum number of transactions in flight
      */
-    protected AbstractMasterConnectionWrapper createConnection() {
-        AbstractMasterConnectionWrapper result = null;
-        InetAddress addr = resolveHostAddress(modbusURI);
-        if (isTCP(modbusURI)) {
-            result = new TCPMasterConnectionWrapper(createTCPMasterConnection(addr));
-            result.setTimeout(1000);
-        } else if (isUDP(modbusURI)) {
-            result = new UDPMasterConnectionWrapper(createUDPMasterConnection(addr));
-        } else {
-            throw new ResolveEndpointFailedException(modbusURI.toString());
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Determines whether Modbus/TCP I/O uses the component's non-blocking
+     * event loops.
+     *
+     * @return {@code true} if Modbus/TCP I/O is non-blocking
+     */
+    public boolean isNio() {
+        return nio;
+    }
+
+    /**
+     * Sets whether Modbus/TCP I/O uses the component's non-blocking event
+     * loops instead of a blocking socket per connection.
+     *
+     * @param nio {@code true} to make Modbus/TCP I/O non-blocking
+     */
+    public void setNio(boolean nio) {
+        this.nio = nio;
+    }
+
+    /**
+     * Gets the priority of this endpoint's reads.
+     *
+     * @return {@code poll} or {@code alarm}
+     */
+    public String getPriority() {
+        return priority.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Sets the priority of this endpoint's reads when requests to the device
+     * are rate limited.  Writes always go first, then alarm reads, then
+     * ordinary polls.
+     *
+     * @param priority {@code poll} or {@code alarm}
+     */
+    public void setPriority(String priority) {
+        RequestScheduler.Priority value;
+        try {
+            value = RequestScheduler.Priority.valueOf(priority.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            value = null;
         }
-        int port = modbusURI.getPort();
-        if (port == -1) {
-            port = Modbus.DEFAULT_PORT;
+        if (value == null || value == RequestScheduler.Priority.WRITE) {
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported priority: {0}", priority));
         }
-        result.setPort(port);
-        return result;
+        this.priority = value;
     }
 
     /**
-     * Creates a new TCP master connection.
+     * Gets the largest number of requests per second to this endpoint's
+     * device.
      *
-     * @param addr the address of the modbus device
-     * @return a new TCP master connection
+     * @return the largest number of requests per second, or 0 to use the
+     * component's setting
      */
-    protected TCPMasterConnection createTCPMasterConnection(final InetAddress addr) {
-        return new TCPMasterConnection(addr);
+    public double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
     }
 
     /**
-     * Creates a new UDP master connection.
+     * Sets the largest number of requests per second to this endpoint's
+     * device.  The limit applies to the device, so it is shared with every
+     * other endpoint of the same device.
      *
-     * @param addr the address of the modbus device
-     * @return a new UDP master connection
+     * @param maxRequestsPerSecond the largest number of requests per second,
+     * or 0 to use the component's setting
      */
-    protected UDPMasterConnection createUDPMasterConnection(final InetAddress addr) {
-        return new UDPMasterConnection(addr);
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
     }
 
     /**
-     * Determines if a URI represents a TCP connection.
+     * Gets the number of consecutive failures which cuts this endpoint's
+     * device off.
      *
-     * @param uri the URI to check
-     * @return {@code true} if the URI scheme is {@code tcp}, otherwise
-     * {@code false}.
+     * @return the failure threshold, or -1 to use the component's setting
      */
-    public static boolean isTCP(final URI uri) {
-        return "tcp".equalsIgnoreCase(uri.getScheme());
+    public int getFailureThreshold() {
+        return failureThreshold;
     }
 
     /**
-     * Determines if a URI represents a UDP connection.
+     * Sets the number of consecutive failures which cuts this endpoint's
+     * device off.  The setting applies to the device, so it is shared with
+     * every other endpoint of the same device.
      *
-     * @param uri the URI to check
-     * @return {@code true} if the URI scheme is {@code udp}, otherwise
-     * {@code false}.
+     * @param failureThreshold the failure threshold, 0 to never cut the
+     * device off, or -1 to use the component's setting
      */
-    public static boolean isUDP(final URI uri) {
-        return "udp".equalsIgnoreCase(uri.getScheme());
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Gets the delay before the first attempt to reach this endpoint's
+     * device once it was cut off.
+     *
+     * @return the delay, in milliseconds, or 0 to use the component's
+     * setting
+     */
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    /**
+     * Sets the delay before the first attempt to reach this endpoint's
+     * device once it was cut off.
+     *
+     * @param reconnectDelay the delay, in milliseconds, or 0 to use the
+     * component's setting
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * Gets the longest delay between attempts to reach this endpoint's
+     * device once it was cut off.
+     *
+     * @return the delay, in milliseconds, or 0 to use the component's
+     * setting
+     */
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    /**
+     * Sets the longest delay between attempts to reach this endpoint's
+     * device once it was cut off.
+     *
+     * @param maxReconnectDelay the delay, in milliseconds, or 0 to use the
+     * component's setting
+     */
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    /**
+     * Gets how long to wait for the device to answer.
+     *
+     * @return the timeout, in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long to wait for the device to answer, and for a connection
+     * to it to be established.  Applies to every transport.  The metrics'
+     * suggested timeout is a good value once the device has been polled for
+     * a while.
+     *
+     * @param timeout the timeout, in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Gets the number of times a request which the device did not answer is
+     * tried again.
+     *
+     * @return the number of retries
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Sets the number of times a request which the device did not answer is
+     * tried again, each time over a fresh connection.  Exception responses
+     * are never retried.
+     *
+     * @param retries the number of retries
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Gets the delay before a request is tried again.
+     *
+     * @return the delay, in milliseconds
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the delay before a request is tried again.
+     *
+     * @param retryDelay the delay, in milliseconds
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Gets the speed of the serial line behind an {@code rtutcp} terminal
+     * server.
+     *
+     * @return the speed, in bits per second
+     */
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * Sets the speed of the serial line behind an {@code rtutcp} terminal
+     * server, which paces requests and stretches the timeout by the time
+     * frames take on the line.
+     *
+     * @param baudRate the speed, in bits per second
+     */
+    public void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * Gets the largest number of retries per second to this endpoint's
+     * device.
+     *
+     * @return the largest number of retries per second, or 0 to use the
+     * component's setting
+     */
+    public double getMaxRetriesPerSecond() {
+        return maxRetriesPerSecond;
+    }
+
+    /**
+     * Sets the largest number of retries per second to this endpoint's
+     * device.  The budget applies to the device, so it is shared with every
+     * other endpoint of the same device.
+     *
+     * @param maxRetriesPerSecond the largest number of retries per second,
+     * or 0 to use the component's setting
+     */
+    public void setMaxRetriesPerSecond(double maxRetriesPerSecond) {
+        this.maxRetriesPerSecond = maxRetriesPerSecond;
+    }
+
+    /**
+     * Determines if the device is a gateway to several units.
+     *
+     * @return whether or not the device is a gateway
+     */
+    public boolean isGateway() {
+        return gateway;
+    }
+
+    /**
+     * Sets whether the device is a gateway to several units.  The endpoints
+     * of a gateway share a single pipelined TCP connection, each unit's
+     * requests wait in their own queue, and units which stop answering are
+     * cut off on their own, without the gateway.
+     *
+     * @param gateway whether or not the device is a gateway
+     */
+    public void setGateway(boolean gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Gets the largest number of requests to one unit behind the gateway on
+     * their way at once.
+     *
+     * @return the largest number of requests, or 0 for the default of
+     * {@value cameljamod.net.UnitQueue#DEFAULT_MAX_IN_FLIGHT}
+     */
+    public int getMaxInFlightPerUnit() {
+        return maxInFlightPerUnit;
+    }
+
+    /**
+     * Sets the largest number of requests to one unit behind the gateway on
+     * their way at once.  The limit applies to the unit, so it is shared with
+     * every other endpoint of the same unit.
+     *
+     * @param maxInFlightPerUnit the largest number of requests, or 0 for the
+     * default
+     */
+    public void setMaxInFlightPerUnit(int maxInFlightPerUnit) {
+        this.maxInFlightPerUnit = maxInFlightPerUnit;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        metricsName = component.manageMetrics(metrics, getDeviceKey(), getEndpointUri());
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (metricsName != null) {
+            component.unmanageMetrics(metricsName);
+            metricsName = null;
+        }
+        super.doStop();
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return false;
+    }
+
+    @Override
+    public boolean isLenientProperties() {
+        return true;
+    }
+
+    @Override
+    protected String createEndpointUri() {
+        StringBuilder sb = new StringBuilder(modbusURI.toString());
+        return sb.toString();
+    }
+
+    /**
+     * Gets the key which identifies this endpoint's device.  The device's
+     * circuit breaker, request scheduler, retry budget and metrics are shared
+     * under this key.
+     *
+     * @return the device key, in the form {@code protocol://host:port}
+     */
+    public String getDeviceKey() {
+        int port = modbusURI.getPort();
+        if (port == -1) {
+            port = Modbus.DEFAULT_PORT;
+        }
+        return MessageFormat.format("{0}://{1}:{2}", String.valueOf(modbusURI.getScheme()).toLowerCase(Locale.ENGLISH), modbusURI.getHost(), String.valueOf(port));
+    }
+
+    /**
+     * Gets the key under which this endpoint's connections are pooled.  It
+     * adds the kind of connection the endpoint creates to the device key, so
+     * that endpoints which talk to the same device over different transports
+     * never borrow each other's connections.
+     *
+     * @return the connection key, for example {@code tcp://host:502} or
+     * {@code tcp://host:502?nio=true&maxInFlight=4}
+     */
+    public String getConnectionKey() {
+        String deviceKey = getDeviceKey();
+        if (isTCP(modbusURI)) {
+            if (nio) {
+                return deviceKey + "?nio=true&maxInFlight=" + Math.max(1, maxInFlight);
+            } else if (maxInFlight > 1 || gateway) {
+                return deviceKey + "?maxInFlight=" + maxInFlight;
+            }
+        } else if (isRTUOverTCP(modbusURI)) {
+            return deviceKey + "?baudRate=" + baudRate;
+        }
+        return deviceKey;
+    }
+
+    /**
+     * Gets the key which identifies a unit behind this endpoint's device.
+     *
+     * @param unitId the unit identifier
+     * @return the unit key, in the form {@code protocol://host:port/unit}
+     */
+    public String getUnitKey(final int unitId) {
+        return getDeviceKey() + "/" + unitId;
+    }
+
+    /**
+     * Gets the units behind this endpoint's gateway which are currently cut
+     * off.
+     *
+     * @return the unit identifiers, in ascending order
+     */
+    public List<Integer> getSkippedUnits() {
+        return component.getSkippedUnits(getDeviceKey());
+    }
+
+    /**
+     * Leases a Modbus connection from the component's connection pool.  The
+     * connection must be handed back with {@link
+     * #releaseConnection(AbstractMasterConnectionWrapper)} or {@link
+     * #invalidateConnection(AbstractMasterConnectionWrapper)}.
+     *
+     * @return the connection
+     * @throws Exception if no connection is available
+     */
+    public AbstractMasterConnectionWrapper<?> borrowConnection() throws Exception {
+        return getConnectionPool().borrow(getConnectionKey(), connectionFactory);
+    }
+
+    /**
+     * Leases a Modbus connection from the component's connection pool.
+     * Unlike the endpoint's single connection this once returned, it must be
+     * handed back with {@link
+     * #releaseConnection(AbstractMasterConnectionWrapper)} or {@link
+     * #invalidateConnection(AbstractMasterConnectionWrapper)}.
+     *
+     * @return the connection
+     * @throws RuntimeCamelException if no connection is available
+     * @deprecated use {@link #borrowConnection()}
+     */
+    @Deprecated
+    public AbstractMasterConnectionWrapper getConnection() {
+        try {
+            return borrowConnection();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeCamelException(ex);
+        }
+    }
+
+    /**
+     * Returns a leased connection to the component's connection pool.
+     *
+     * @param connection the connection
+     */
+    public void releaseConnection(final AbstractMasterConnectionWrapper<?> connection) {
+        getConnectionPool().release(getConnectionKey(), connection);
+    }
+
+    /**
+     * Closes a broken connection and frees its slot in the component's
+     * connection pool.
+     *
+     * @param connection the connection
+     */
+    public void invalidateConnection(final AbstractMasterConnectionWrapper<?> connection) {
+        getConnectionPool().invalidate(getConnectionKey(), connection);
+    }
+
+    /**
+     * Waits for a request's turn in the device's request scheduler, unless
+     * the device's circuit breaker refuses it outright.  Writes take
+     * priority over reads.  Behind a gateway, the request first waits in its
+     * unit's queue, and is refused if its unit is cut off.  A probe handed
+     * out by a circuit breaker is handed back if the request is refused or
+     * interrupted later on.  Every turn must end with
+     * {@link #finishTurn(ModbusRequest)}.
+     *
+     * @param request the request
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws ModbusIOException if the unit's earlier requests are still
+     * pending after the connection borrow timeout
+     * @throws CircuitOpenException if the device or unit is considered down
+     */
+    void awaitTurn(final ModbusRequest request) throws InterruptedException, ModbusIOException, CircuitOpenException {
+        if (gateway) {
+            getUnitQueue(request.getUnitID()).acquire(getConnectionPool().getBorrowTimeout());
+        }
+        boolean granted = false;
+        boolean deviceProbe = false;
+        boolean unitProbe = false;
+        try {
+            deviceProbe = getCircuitBreaker().acquire();
+            if (gateway) {
+                unitProbe = getUnitCircuitBreaker(request.getUnitID()).acquire();
+            }
+            getRequestScheduler().acquire(isWrite(request) ? RequestScheduler.Priority.WRITE : priority, this);
+            granted = true;
+        } finally {
+            if (!granted) {
+                if (deviceProbe) {
+                    getCircuitBreaker().cancelProbe();
+                }
+                if (unitProbe) {
+                    getUnitCircuitBreaker(request.getUnitID()).cancelProbe();
+                }
+                finishTurn(request);
+            }
+        }
+    }
+
+    /**
+     * Hands back the circuit breakers' probes for a request which was given
+     * its turn but is not sent after all, e.g. because no connection could be
+     * borrowed.  A request let through while a breaker is half open is its
+     * probe, so the breaker probes again with the next request instead of
+     * refusing everything until the probe would have timed out.
+     *
+     * @param request the request
+     */
+    private void cancelProbes(final ModbusRequest request) {
+        getCircuitBreaker().cancelProbe();
+        if (gateway) {
+            getUnitCircuitBreaker(request.getUnitID()).cancelProbe();
+        }
+    }
+
+    /**
+     * Ends a request's turn, letting the next request to its unit go.
+     *
+     * @param request the request
+     */
+    void finishTurn(final ModbusRequest request) {
+        if (gateway) {
+            getUnitQueue(request.getUnitID()).release();
+        }
+    }
+
+    /**
+     * Determines if requests to a unit are currently let through.  Behind a
+     * gateway a unit is down when either the gateway's or the unit's circuit
+     * breaker is not closed, and otherwise when the device's is not.
+     *
+     * @param unitId the unit identifier
+     * @return {@code false} if the unit or device is cut off, or is being
+     * probed
+     */
+    public boolean isAvailable(final int unitId) {
+        if (getCircuitBreaker().getState() != CircuitBreaker.State.CLOSED) {
+            return false;
+        }
+        return !gateway || getUnitCircuitBreaker(unitId).getState() == CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Gets the request queue of a unit behind this endpoint's gateway,
+     * applying this endpoint's limit the first time.
+     *
+     * @param unitId the unit identifier
+     * @return the unit's request queue
+     */
+    UnitQueue getUnitQueue(final int unitId) {
+        Integer key = Integer.valueOf(unitId);
+        UnitQueue result = unitQueues.get(key);
+        if (result == null) {
+            result = component.getUnitQueue(getUnitKey(unitId));
+            if (maxInFlightPerUnit > 0) {
+                result.setMaxInFlight(maxInFlightPerUnit);
+            }
+            unitQueues.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the circuit breaker of a unit behind this endpoint's gateway,
+     * applying this endpoint's settings the first time.
+     *
+     * @param unitId the unit identifier
+     * @return the unit's circuit breaker
+     */
+    CircuitBreaker getUnitCircuitBreaker(final int unitId) {
+        Integer key = Integer.valueOf(unitId);
+        CircuitBreaker result = unitCircuitBreakers.get(key);
+        if (result == null) {
+            result = configure(component.getCircuitBreaker(getUnitKey(unitId)));
+            unitCircuitBreakers.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the request scheduler of this endpoint's device, applying this
+     * endpoint's rate limit the first time.
+     *
+     * @return the request scheduler
+     */
+    RequestScheduler getRequestScheduler() {
+        RequestScheduler result = requestScheduler;
+        if (result == null) {
+            result = component.getRequestScheduler(getDeviceKey());
+            if (maxRequestsPerSecond > 0) {
+                result.setMaxRequestsPerSecond(maxRequestsPerSecond);
+            }
+            requestScheduler = result;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the circuit breaker of this endpoint's device, applying this
+     * endpoint's settings the first time.
+     *
+     * @return the circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        CircuitBreaker result = circuitBreaker;
+        if (result == null) {
+            result = configure(component.getCircuitBreaker(getDeviceKey()));
+            circuitBreaker = result;
+        }
+        return result;
+    }
+
+    /**
+     * Applies this endpoint's settings to a circuit breaker.
+     *
+     * @param breaker the circuit breaker
+     * @return the circuit breaker
+     */
+    private CircuitBreaker configure(final CircuitBreaker breaker) {
+        if (failureThreshold >= 0) {
+            breaker.setFailureThreshold(failureThreshold);
+        }
+        if (reconnectDelay > 0) {
+            breaker.setInitialBackoff(reconnectDelay);
+        }
+        if (maxReconnectDelay > 0) {
+            breaker.setMaxBackoff(maxReconnectDelay);
+        }
+        return breaker;
+    }
+
+    /**
+     * Gets the retry budget of this endpoint's device, applying this
+     * endpoint's limit the first time.
+     *
+     * @return the retry budget
+     */
+    RetryBudget getRetryBudget() {
+        RetryBudget result = retryBudget;
+        if (result == null) {
+            result = component.getRetryBudget(getDeviceKey());
+            if (maxRetriesPerSecond > 0) {
+                result.setMaxRetriesPerSecond(maxRetriesPerSecond);
+            }
+            retryBudget = result;
+        }
+        return result;
+    }
+
+    /**
+     * Determines if a request changes the device.
+     *
+     * @param request the request
+     * @return {@code true} if the request writes coils or registers
+     */
+    static boolean isWrite(final ModbusRequest request) {
+        switch (request.getFunctionCode()) {
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_SINGLE_REGISTER:
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+            case ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets this endpoint's transaction metrics.
+     *
+     * @return the transaction metrics
+     */
+    public TransactionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the transaction metrics of this endpoint's device, which every
+     * endpoint of the device adds to.
+     *
+     * @return the device's transaction metrics
+     */
+    public TransactionMetrics getDeviceMetrics() {
+        TransactionMetrics result = deviceMetrics;
+        if (result == null) {
+            result = component.getDeviceMetrics(getDeviceKey());
+            deviceMetrics = result;
+        }
+        return result;
+    }
+
+    /**
+     * Records a poll in the endpoint's and the device's metrics.
+     *
+     * @param sent whether or not the poll sent a message
+     */
+    void polled(final boolean sent) {
+        metrics.polled(sent);
+        getDeviceMetrics().polled(sent);
+    }
+
+    /**
+     * Records a request about to be sent in the endpoint's and the device's
+     * metrics.
+     *
+     * @param request the request
+     * @return the time the transaction started, in {@link System#nanoTime()}
+     * units
+     */
+    private long beginTransaction(final ModbusRequest request) {
+        metrics.begin(request);
+        getDeviceMetrics().begin(request);
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the outcome of a transaction in the endpoint's and the
+     * device's metrics.  The device's circuit breaker only learns how a
+     * request finally went, so that retries do not cut the device off
+     * sooner.  Behind a gateway, a unit which times out, or which the gateway
+     * reports unreachable, counts against the unit alone; only a failure to
+     * reach the gateway counts against the gateway.
+     *
+     * @param request the request
+     * @param started when the transaction started
+     * @param response the response, or {@code null} if it failed
+     * @param cause why the transaction failed, or {@code null}
+     * @param settled {@code false} if the request is tried again
+     */
+    private void endTransaction(final ModbusRequest request, final long started, final ModbusResponse response, final Exception cause, final boolean settled) {
+        long elapsed = System.nanoTime() - started;
+        TransactionMetrics device = getDeviceMetrics();
+        if (cause == null) {
+            metrics.completed(response, elapsed);
+            device.completed(response, elapsed);
+        } else {
+            metrics.failed(cause, elapsed);
+            device.failed(cause, elapsed);
+        }
+        if (!settled) {
+            return;
+        }
+        boolean answered = cause == null || cause instanceof ModbusSlaveException;
+        boolean gatewayFailed = !answered && !(gateway && cause instanceof ModbusTimeoutException);
+        if (gatewayFailed) {
+            getCircuitBreaker().failed();
+        } else {
+            getCircuitBreaker().succeeded();
+        }
+        if (gateway) {
+            if (cause instanceof ModbusTimeoutException || isGatewayException(cause)) {
+                getUnitCircuitBreaker(request.getUnitID()).failed();
+            } else if (answered) {
+                getUnitCircuitBreaker(request.getUnitID()).succeeded();
+            }
+        }
+    }
+
+    /**
+     * Determines if a transaction failed with a gateway's report that its
+     * unit cannot be reached.
+     *
+     * @param cause why the transaction failed
+     * @return {@code true} for exception codes 10 and 11
+     */
+    private static boolean isGatewayException(final Exception cause) {
+        if (!(cause instanceof ModbusSlaveException)) {
+            return false;
+        }
+        int code = ((ModbusSlaveException) cause).getType();
+        return code == GATEWAY_PATH_UNAVAILABLE || code == GATEWAY_TARGET_FAILED_TO_RESPOND;
+    }
+
+    /**
+     * Decides whether a failed attempt is tried again: only requests which
+     * the device did not answer are, as long as retries are left and the
+     * device's retry budget allows it.
+     *
+     * @param attempt the number of the attempt which failed, from 0
+     * @param cause why it failed
+     * @return {@code true} to try again
+     */
+    private boolean retry(final int attempt, final Exception cause) {
+        if (!(cause instanceof ModbusIOException) || attempt >= retries) {
+            return false;
+        }
+        boolean granted = getRetryBudget().tryAcquire();
+        metrics.retried(granted);
+        getDeviceMetrics().retried(granted);
+        return granted;
+    }
+
+    /**
+     * Runs a single blocking transaction over a connection already leased
+     * from the pool.
+     *
+     * @param connection the connection
+     * @param request the request
+     * @return the response
+     * @throws ModbusException if the transaction fails
+     */
+    private ModbusResponse transact(final AbstractMasterConnectionWrapper<?> connection, final ModbusRequest request) throws ModbusException {
+        ModbusTransaction transaction = connection.createTransaction(timeout);
+        transaction.setRequest(request);
+        transaction.execute();
+        return transaction.getResponse();
+    }
+
+    /**
+     * Sends a request to the modbus device over a pooled connection and waits
+     * for the response.  A request which the device does not answer is
+     * retried over a fresh connection.
+     *
+     * @param request the request
+     * @return the response
+     * @throws Exception if the transaction fails
+     */
+    public ModbusResponse execute(final ModbusRequest request) throws Exception {
+        for (int attempt = 0;; attempt++) {
+            awaitTurn(request);
+            try {
+                AbstractMasterConnectionWrapper<?> connection;
+                try {
+                    connection = borrowConnection();
+                } catch (Exception ex) {
+                    cancelProbes(request);
+                    throw ex;
+                }
+                long started = beginTransaction(request);
+                try {
+                    ModbusResponse response = transact(connection, request);
+                    endTransaction(request, started, response, null, true);
+                    releaseConnection(connection);
+                    return response;
+                } catch (ModbusIOException ex) {
+                    invalidateConnection(connection);
+                    boolean again = retry(attempt, ex);
+                    endTransaction(request, started, null, ex, !again);
+                    if (!again) {
+                        throw ex;
+                    }
+                } catch (Exception ex) {
+                    releaseConnection(connection);
+                    endTransaction(request, started, null, ex, true);
+                    throw ex;
+                }
+            } finally {
+                finishTurn(request);
+            }
+            if (retryDelay > 0) {
+                Thread.sleep(retryDelay);
+            }
+        }
+    }
+
+    /**
+     * Sends a request to the modbus device over a pooled connection without
+     * waiting for the response, if the connection supports it.  The pooled
+     * connection is handed back before the callback is invoked.  Blocking
+     * connections invoke the callback on the calling thread before this
+     * returns, unless the request is retried.  Otherwise the callback runs on
+     * one of the component's worker threads, never on an event loop, so it
+     * may block or make further requests.  Retries wait out the retry delay
+     * on the component's retry thread and then run on a worker thread.
+     *
+     * @param request the request
+     * @param callback notified when the transaction completes or fails
+     * @throws Exception if no connection is available, or the connection
+     * refuses the request, in which case the callback is not invoked
+     */
+    public void execute(final ModbusRequest request, final TransactionCallback callback) throws Exception {
+        execute(request, callback, 0, Thread.currentThread());
+    }
+
+    /**
+     * Makes one attempt at an asynchronous request.
+     *
+     * @param request the request
+     * @param callback notified when the request completes or finally fails
+     * @param attempt the number of the attempt, from 0
+     * @param caller the thread which made the first attempt
+     * @throws Exception if no connection is available, or the connection
+     * refuses the request, in which case the callback is not invoked
+     */
+    private void execute(final ModbusRequest request, final TransactionCallback callback, final int attempt, final Thread caller) throws Exception {
+        awaitTurn(request);
+        final AbstractMasterConnectionWrapper<?> connection;
+        try {
+            connection = borrowConnection();
+        } catch (Exception ex) {
+            cancelProbes(request);
+            finishTurn(request);
+            throw ex;
+        }
+        final long started = beginTransaction(request);
+        final AtomicBoolean handedBack = new AtomicBoolean();
+        TransactionCallback outcome = new TransactionCallback() {
+
+            public void completed(final ModbusResponse response) {
+                if (!handedBack.compareAndSet(false, true)) {
+                    return;
+                }
+                endTransaction(request, started, response, null, true);
+                releaseConnection(connection);
+                finishTurn(request);
+                deliver(caller, new Runnable() {
+
+                    public void run() {
+                        callback.completed(response);
+                    }
+                });
+            }
+
+            public void failed(final ModbusException cause) {
+                if (!handedBack.compareAndSet(false, true)) {
+                    return;
+                }
+                boolean again = retry(attempt, cause);
+                endTransaction(request, started, null, cause, !again);
+                if (cause instanceof ModbusIOException) {
+                    invalidateConnection(connection);
+                } else {
+                    releaseConnection(connection);
+                }
+                finishTurn(request);
+                if (again) {
+                    try {
+                        component.retryLater(new DeferredTask() {
+
+                            public void run() {
+                                try {
+                                    execute(request, callback, attempt + 1, caller);
+                                } catch (ModbusException ex) {
+                                    fail(ex);
+                                } catch (Exception ex) {
+                                    fail(new ModbusIOException(String.valueOf(ex.getMessage())));
+                                }
+                            }
+
+                            public void abandon() {
+                                fail(new ModbusIOException("Component is stopping"));
+                            }
+                        }, retryDelay);
+                    } catch (RejectedExecutionException ex) {
+                        fail(new ModbusIOException("Component is stopping"));
+                    }
+                } else {
+                    fail(cause);
+                }
+            }
+
+            private void fail(final ModbusException cause) {
+                deliver(caller, new Runnable() {
+
+                    public void run() {
+                        callback.failed(cause);
+                    }
+                });
+            }
+        };
+        try {
+            connection.execute(request, timeout, outcome);
+        } catch (RuntimeException ex) {
+            if (handedBack.compareAndSet(false, true)) {
+                //the connection gave up without invoking the callback, so
+                //nothing else will hand it back
+                invalidateConnection(connection);
+                endTransaction(request, started, null, ex, true);
+                finishTurn(request);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs an asynchronous request's callback.  A callback which comes back
+     * on the calling thread runs straight away; one which comes back on any
+     * other thread is handed to a worker thread.
+     *
+     * @param caller the thread which made the request
+     * @param completion the callback
+     */
+    private void deliver(final Thread caller, final Runnable completion) {
+        if (Thread.currentThread() == caller) {
+            completion.run();
+            return;
+        }
+        try {
+            component.getWorkerExecutor().execute(completion);
+        } catch (RejectedExecutionException ex) {
+            //the component is stopping; nothing else will run the callback
+            completion.run();
+        }
+    }
+
+    /**
+     * Gets the process image of this endpoint's {@code tcp-server} address,
+     * creating it if necessary.
+     *
+     * @return the process image
+     */
+    public ModbusServer getServer() {
+        return component.getServer(getDeviceKey(), imageSize);
+    }
+
+    /**
+     * Gets the address a {@code tcp-server} endpoint listens on.
+     *
+     * @return the address
+     */
+    InetAddress getServerAddress() {
+        return resolveHostAddress(modbusURI);
+    }
+
+    /**
+     * Gets the port a {@code tcp-server} endpoint listens on.
+     *
+     * @return the port
+     */
+    int getServerPort() {
+        int port = modbusURI.getPort();
+        if (port == -1) {
+            port = Modbus.DEFAULT_PORT;
+        }
+        return port;
+    }
+
+    /**
+     * Gets the component's event loops.
+     *
+     * @return the event loops
+     * @throws IOException if the event loops cannot be created
+     */
+    NioEventLoopGroup getEventLoopGroup() throws IOException {
+        return component.getEventLoopGroup();
+    }
+
+    /**
+     * Gets the component's worker threads, which run routes handed over by
+     * the event loops.
+     *
+     * @return the worker executor
+     */
+    ExecutorService getWorkerExecutor() {
+        return component.getWorkerExecutor();
+    }
+
+    /**
+     * Gets the component's read coalescer.
+     *
+     * @return the read coalescer
+     */
+    protected ReadCoalescer getReadCoalescer() {
+        return component.getReadCoalescer();
+    }
+
+    /**
+     * Gets the component's connection pool.
+     *
+     * @return the connection pool
+     */
+    protected MasterConnectionPool getConnectionPool() {
+        return component.getConnectionPool();
+    }
+
+    /**
+     * Creates the Modbus connection.
+     *
+     * @return the connection
+     */
+    protected AbstractMasterConnectionWrapper createConnection() {
+        AbstractMasterConnectionWrapper result = null;
+        InetAddress addr = resolveHostAddress(modbusURI);
+        if (isTCP(modbusURI)) {
+            if (nio) {
+                result = new NioTCPMasterConnectionWrapper(createNioTCPMasterConnection(addr));
+            } else if (maxInFlight > 1 || gateway) {
+                result = new PipelinedTCPMasterConnectionWrapper(createPipelinedTCPMasterConnection(addr));
+            } else {
+                result = new TCPMasterConnectionWrapper(createTCPMasterConnection(addr));
+            }
+        } else if (isUDP(modbusURI)) {
+            result = new UDPMasterConnectionWrapper(createUDPMasterConnection(addr));
+        } else if (isRTUOverTCP(modbusURI)) {
+            result = new RTUOverTCPMasterConnectionWrapper(createRTUOverTCPMasterConnection(addr));
+        } else {
+            throw new ResolveEndpointFailedException(modbusURI.toString());
+        }
+        result.setTimeout(timeout);
+        // requests are retried over a fresh connection by the endpoint
+        result.setRetries(0);
+        int port = modbusURI.getPort();
+        if (port == -1) {
+            port = Modbus.DEFAULT_PORT;
+        }
+        result.setPort(port);
+        return result;
+    }
+
+    /**
+     * Creates a new TCP master connection.
+     *
+     * @param addr the address of the modbus device
+     * @return a new TCP master connection
+     */
+    protected TCPMasterConnection createTCPMasterConnection(final InetAddress addr) {
+        return new TCPMasterConnection(addr);
+    }
+
+    /**
+     * Creates a new pipelined TCP master connection.
+     *
+     * @param addr the address of the modbus device
+     * @return a new pipelined TCP master connection
+     */
+    protected PipelinedTCPMasterConnection createPipelinedTCPMasterConnection(final InetAddress addr) {
+        return new PipelinedTCPMasterConnection(addr, maxInFlight);
+    }
+
+    /**
+     * Creates a new non-blocking TCP master connection on one of the
+     * component's event loops.
+     *
+     * @param addr the address of the modbus device
+     * @return a new non-blocking TCP master connection
+     */
+    protected NioTCPMasterConnection createNioTCPMasterConnection(final InetAddress addr) {
+        try {
+            return new NioTCPMasterConnection(addr, component.getEventLoopGroup().next(), Math.max(1, maxInFlight));
+        } catch (IOException ex) {
+            throw new RuntimeCamelException(ex);
+        }
+    }
+
+    /**
+     * Creates a new UDP master connection.
+     *
+     * @param addr the address of the modbus device
+     * @return a new UDP master connection
+     */
+    protected UDPMasterConnection createUDPMasterConnection(final InetAddress addr) {
+        return new UDPMasterConnection(addr);
+    }
+
+    /**
+     * Creates a new RTU over TCP master connection.
+     *
+     * @param addr the address of the terminal server
+     * @return a new RTU over TCP master connection
+     */
+    protected RTUOverTCPMasterConnection createRTUOverTCPMasterConnection(final InetAddress addr) {
+        RTUOverTCPMasterConnection result = new RTUOverTCPMasterConnection(addr);
+        result.setBaudRate(baudRate);
+        return result;
+    }
+
+    /**
+     * Determines if a URI represents a TCP connection.
+     *
+     * @param uri the URI to check
+     * @return {@code true} if the URI scheme is {@code tcp}, otherwise
+     * {@code false}.
+     */
+    public static boolean isTCP(final URI uri) {
+        return "tcp".equalsIgnoreCase(uri.getScheme());
+    }
+
+    /**
+     * Determines if a URI represents a Modbus/TCP server.
+     *
+     * @param uri the URI to check
+     * @return {@code true} if the URI scheme is {@code tcp-server},
+     * otherwise {@code false}.
+     */
+    public static boolean isTCPServer(final URI uri) {
+        return "tcp-server".equalsIgnoreCase(uri.getScheme());
+    }
+
+    /**
+     * Determines if a URI represents a UDP connection.
+     *
+     * @param uri the URI to check
+     * @return {@code true} if the URI scheme is {@code udp}, otherwise
+     * {@code false}.
+     */
+    public static boolean isUDP(final URI uri) {
+        return "udp".equalsIgnoreCase(uri.getScheme());
+    }
+
+    /**
+     * Determines if a URI represents RTU frames carried over TCP by a
+     * terminal server.
+     *
+     * @param uri the URI to check
+     * @return {@code true} if the URI scheme is {@code rtutcp}, otherwise
+     * {@code false}.
+     */
+    public static boolean isRTUOverTCP(final URI uri) {
+        return "rtutcp".equalsIgnoreCase(uri.getScheme());
     }
 
     /**
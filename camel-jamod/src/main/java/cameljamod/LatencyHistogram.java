@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds, with log-linear
+ * buckets in the manner of HdrHistogram.  Latencies below 16&micro;s have a
+ * bucket each; above that every power of two is split into eight buckets,
+ * so percentiles are within 12.5% of the true value, from a fixed 2KB of
+ * memory however many latencies are recorded.
+ *
+ * @author Steven Swor
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets below the first power of two which is split.
+     */
+    private static final int LINEAR_BUCKETS = 16;
+
+    /**
+     * log2 of the number of buckets per power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The first power of two which is split into buckets.
+     */
+    private static final int FIRST_EXPONENT = 4;
+
+    /**
+     * The largest power of two tracked.  Longer latencies, beyond half an
+     * hour, land in the last bucket.
+     */
+    private static final int LAST_EXPONENT = 31;
+
+    /**
+     * The counts, by bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + (LAST_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS);
+
+    /**
+     * The number of latencies recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of the latencies recorded, in microseconds.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The longest latency recorded, in microseconds.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(final long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long previous;
+        while (micros > (previous = max.get()) && !max.compareAndSet(previous, micros)) {
+            // lost a race with another thread; try again
+        }
+    }
+
+    /**
+     * Gets the number of latencies recorded.
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the mean latency.
+     * @return the mean latency, in microseconds, or 0 if none was recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * Gets the longest latency recorded.
+     * @return the longest latency, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the latency which a given percentage of the recorded latencies
+     * did not exceed.
+     * @param percentile the percentage, from 0 to 100
+     * @return the highest latency in that percentile's bucket, in
+     * microseconds, but never more than the longest latency recorded; 0 if
+     * none was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long n = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every latency recorded.  Latencies recorded concurrently may
+     * be partly forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    /**
+     * Gets the bucket of a latency.
+     * @param micros the latency, in microseconds
+     * @return the index of its bucket
+     */
+    static int indexOf(final long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > LAST_EXPONENT) {
+            return LINEAR_BUCKETS + (LAST_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the highest latency which falls into a bucket.
+     * @param index the index of the bucket
+     * @return the highest latency of the bucket, in microseconds
+     */
+    static long highestValueOf(final int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + subBucket) * width + width - 1;
+    }
+}
@@ -15,9 +15,11 @@
  */
 package cameljamod;
 
-import cameljamod.net.AbstractMasterConnectionWrapper;
+import cameljamod.ReadCoalescer.ReadRange;
+import cameljamod.ReadCoalescer.Scan;
+import cameljamod.net.CircuitOpenException;
 import java.util.Arrays;
-import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.ModbusIOException;
 import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ModbusResponse;
 import net.wimpi.modbus.procimg.InputRegister;
@@ -65,6 +67,49 @@ public abstract class ModbusPollingConsumer<RequestType extends ModbusRequest, R
      */
     private int slaveId = 0;
 
+    /**
+     * Share reads with other consumers of the same device.
+     */
+    private boolean coalesce;
+
+    /**
+     * The read registered with the component's read coalescer while the
+     * consumer is started.
+     */
+    private RequestType coalescedRequest;
+
+    /**
+     * The range of the coalesced read.
+     */
+    private ReadRange coalescedRange;
+
+    /**
+     * Send a message when the polled unit is cut off or comes back.
+     */
+    private boolean statusMessages;
+
+    /**
+     * Reports the polled unit's status while the consumer is started, if
+     * status messages are wanted.
+     */
+    private UnitStatusReporter statusReporter;
+
+    /**
+     * When the previous poll started, in {@link System#nanoTime()} units.
+     */
+    private long lastPollStarted;
+
+    /**
+     * The raw values of the previous poll, for allocation-free change
+     * detection.
+     */
+    private final RawValueBuffer lastRawValues = new RawValueBuffer();
+
+    /**
+     * Stretches the polling interval while values hold still.
+     */
+    private final AdaptiveDelay adaptiveDelay = new AdaptiveDelay();
+
     /**
      * Creates a new ModbusPollingConsumer.
      *
@@ -151,30 +196,292 @@ public abstract class ModbusPollingConsumer<RequestType extends ModbusRequest, R
 		this.slaveId = slaveId;
 	}
 
+    /**
+     * Determines whether reads are shared with other consumers of the same
+     * device.
+     * @return {@code true} if reads are shared
+     */
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Sets whether reads are shared with other consumers of the same device.
+     * @param coalesce {@code true} to share reads
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Determines whether a message is sent when the polled unit is cut off or
+     * comes back.
+     * @return {@code true} if status messages are sent
+     */
+    public boolean isStatusMessages() {
+        return statusMessages;
+    }
+
+    /**
+     * Sets whether a message is sent when the polled unit is cut off or comes
+     * back.  Status messages have no body, and carry the
+     * {@link JamodEndpoint#STATUS_HEADER} and
+     * {@link JamodEndpoint#UNIT_ID_HEADER} headers.
+     * @param statusMessages {@code true} to send status messages
+     */
+    public void setStatusMessages(boolean statusMessages) {
+        this.statusMessages = statusMessages;
+    }
+
+    /**
+     * Gets the shortest adaptive polling interval.
+     * @return the shortest interval, in milliseconds, or 0 to use the delay
+     */
+    public long getMinDelay() {
+        return adaptiveDelay.getMinDelay();
+    }
+
+    /**
+     * Sets the shortest adaptive polling interval.
+     * @param minDelay the shortest interval, in milliseconds, or 0 to use the
+     * delay
+     */
+    public void setMinDelay(long minDelay) {
+        adaptiveDelay.setMinDelay(minDelay);
+    }
+
+    /**
+     * Gets the longest adaptive polling interval.
+     * @return the longest interval, in milliseconds, or 0 if the interval is
+     * fixed
+     */
+    public long getMaxDelay() {
+        return adaptiveDelay.getMaxDelay();
+    }
+
+    /**
+     * Sets the longest adaptive polling interval.  When set, the consumer
+     * polls every {@code minDelay} milliseconds while values change and
+     * doubles the interval, up to this one, for every poll which finds
+     * nothing changed.
+     * @param maxDelay the longest interval, in milliseconds, or 0 to poll at
+     * a fixed interval
+     */
+    public void setMaxDelay(long maxDelay) {
+        adaptiveDelay.setMaxDelay(maxDelay);
+    }
+
+    /**
+     * Gets the current polling interval.
+     * @return the current interval, in milliseconds
+     */
+    public long getCurrentDelay() {
+        return adaptiveDelay.isEnabled() ? adaptiveDelay.getInterval() : getDelay();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        setDelay(adaptiveDelay.start(getDelay()));
+        statusReporter = statusMessages ? new UnitStatusReporter(endpoint, slaveId) : null;
+        if (coalesce) {
+            coalescedRequest = createRequest();
+            coalescedRequest.setUnitID(slaveId);
+            coalescedRange = ReadRange.of(coalescedRequest);
+            lastPollStarted = System.nanoTime() - getDelay() * 1000000L;
+            endpoint.getReadCoalescer().register(endpoint.getDeviceKey(), coalescedRequest);
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (coalescedRequest != null) {
+            endpoint.getReadCoalescer().unregister(endpoint.getDeviceKey(), coalescedRequest);
+            coalescedRequest = null;
+        }
+    }
+
     @Override
     protected int poll() throws Exception {
+        if (adaptiveDelay.isEnabled() && !adaptiveDelay.isDue(System.nanoTime())) {
+            return 0;
+        }
+        ResponseType response = null;
+        Scan scan = null;
+        try {
+            if (coalescedRequest != null) {
+                //share a scan with the device's other consumers; the slice is only built if it is sent
+                long notBefore = lastPollStarted;
+                lastPollStarted = System.nanoTime();
+                scan = endpoint.getReadCoalescer().scan(endpoint, coalescedRequest, notBefore);
+                scan.check(coalescedRange);
+            } else {
+                //create a request and execute it over a pooled connection
+                RequestType request = createRequest();
+                request.setUnitID(slaveId);
+                response = (ResponseType) endpoint.execute(request);
+            }
+        } catch (CircuitOpenException ex) {
+            //the device is down; skip polls quietly until its circuit breaker lets a probe through
+            pollFailed();
+            return reportStatus();
+        } catch (ModbusIOException ex) {
+            pollFailed();
+            reportStatus();
+            throw ex;
+        } catch (Exception ex) {
+            pollFailed();
+            throw ex;
+        }
+        return reportStatus() + (scan != null ? processScan(scan) : processResponse(response));
+    }
+
+    /**
+     * Backs the adaptive interval off after a poll which read nothing.
+     */
+    private void pollFailed() {
+        if (adaptiveDelay.isEnabled()) {
+            adaptiveDelay.failed(System.nanoTime());
+        }
+    }
+
+    /**
+     * Sends a status message if the polled unit was cut off or came back
+     * since the previous poll.
+     * @return the number of messages sent
+     * @throws Exception if the message cannot be processed
+     */
+    private int reportStatus() throws Exception {
+        return statusReporter == null ? 0 : statusReporter.report(getProcessor());
+    }
+
+    /**
+     * Sends a message for a polled response, unless only changes are wanted
+     * and nothing has changed.  No camel objects are created until a message
+     * is actually sent.  With an adaptive interval, whether anything changed
+     * also decides when the next poll is due.
+     * @param response the polled response
+     * @return the number of messages sent
+     * @throws Exception if the message cannot be processed
+     */
+    int processResponse(final ResponseType response) throws Exception {
+        boolean changed = !isChangesOnly() && !adaptiveDelay.isEnabled() || responseHasChanged(response);
+        return polled(changed) ? send(response) : 0;
+    }
+
+    /**
+     * Sends a message for this consumer's range of a shared scan, unless
+     * only changes are wanted and nothing has changed.  Changes are judged
+     * on the scan's raw values, and the range is only sliced into a response
+     * when a message is actually sent.
+     * @param scan the scan, which read every block this consumer's range
+     * needs
+     * @return the number of messages sent
+     * @throws Exception if the message cannot be processed
+     */
+    int processScan(final Scan scan) throws Exception {
+        boolean changed = !isChangesOnly() && !adaptiveDelay.isEnabled() || scanHasChanged(scan, coalescedRange);
+        return polled(changed) ? send((ResponseType) scan.slice(coalescedRange)) : 0;
+    }
+
+    /**
+     * Records the outcome of a poll.
+     * @param changed whether or not the poll found anything changed
+     * @return whether or not to send a message for the poll
+     */
+    private boolean polled(final boolean changed) {
+        if (adaptiveDelay.isEnabled()) {
+            adaptiveDelay.polled(System.nanoTime(), changed);
+        }
+        if (isChangesOnly() && !changed) {
+            endpoint.polled(false);
+            return false;
+        }
+        endpoint.polled(true);
+        return true;
+    }
+
+    /**
+     * Sends a message for a polled response.
+     * @param response the polled response
+     * @return the number of messages sent
+     * @throws Exception if the message cannot be processed
+     */
+    private int send(final ResponseType response) throws Exception {
         Exchange exchange = endpoint.createExchange();
-        AbstractMasterConnectionWrapper connectionWrapper = endpoint.getConnection();
-        //create a transaction and execute
-        RequestType request = createRequest();
-        request.setUnitID(slaveId);
-        ModbusTransaction transaction = connectionWrapper.createTransaction();
-        transaction.setRequest(request);
-        transaction.execute();
-        ResponseType response = (ResponseType) transaction.getResponse();
+        Message message = exchange.getIn();
+        message.setBody(createBody(response));
+        getProcessor().process(exchange);
+        return 1;
+    }
+
+    /**
+     * Creates the body of a message for a polled response.  This
+     * implementation uses {@link #getBodyFromResponse};
+     * subclasses may override it to offer other representations.
+     * @param response the polled response
+     * @return the message body
+     */
+    protected Object createBody(final ResponseType response) {
+        return getBodyFromResponse(response);
+    }
+
+    /**
+     * Determines if a response differs from the previous poll, and remembers
+     * it for the next comparison.  This implementation compares bodies with
+     * {@link #valueHasChanged(Object, Object)}.  The built-in consumers
+     * override it to compare raw values in place, so that polls which find
+     * nothing changed create no garbage.
+     * @param response the response
+     * @return whether or not the response differs from the previous poll
+     */
+    protected boolean responseHasChanged(final ResponseType response) {
         BodyType currentValue = getBodyFromResponse(response);
         BodyType tmp = lastPolledValue;
         lastPolledValue = currentValue;
-        if (!isChangesOnly() || valueHasChanged(tmp, currentValue)) {
-            Message message = exchange.getIn();
-            message.setBody(currentValue);
-            getProcessor().process(exchange);
-            return 1;
-        }else{
-            return 0;
+        return valueHasChanged(tmp, currentValue);
+    }
+
+    /**
+     * Determines if this consumer's range of a shared scan differs from the
+     * previous poll, and remembers it for the next comparison.  This
+     * implementation slices the range into a response and passes it to
+     * {@link #responseHasChanged(ModbusResponse)}; the built-in consumers
+     * override it to compare the scan's raw values in place.
+     * @param scan the scan
+     * @param range this consumer's range
+     * @return whether or not the range differs from the previous poll
+     * @throws Exception if the range cannot be sliced
+     */
+    boolean scanHasChanged(final Scan scan, final ReadRange range) throws Exception {
+        return responseHasChanged((ResponseType) scan.slice(range));
+    }
+
+    /**
+     * Compares a range of a shared scan against the raw values of the
+     * previous poll, and remembers them for the next comparison.
+     * @param scan the scan
+     * @param range this consumer's range
+     * @return whether or not any value differs from the previous poll
+     */
+    final boolean rawValuesHaveChanged(final Scan scan, final ReadRange range) {
+        RawValueBuffer last = getLastRawValues();
+        boolean changed = last.resize(range.count);
+        for (int i = 0; i < range.count; i++) {
+            changed |= last.set(i, scan.getValue(range, i));
         }
+        return changed;
     }
-    
+
+    /**
+     * Gets the raw values of the previous poll.
+     * @return the raw values of the previous poll
+     */
+    RawValueBuffer getLastRawValues() {
+        return lastRawValues;
+    }
+
     /**
      * Determines if a polled value has changed.
      * @param oldValue the old value.
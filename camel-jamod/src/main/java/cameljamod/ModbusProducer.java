@@ -15,18 +15,23 @@
  */
 package cameljamod;
 
-import cameljamod.net.AbstractMasterConnectionWrapper;
-import net.wimpi.modbus.io.ModbusTransaction;
+import cameljamod.net.TransactionCallback;
+import net.wimpi.modbus.ModbusException;
 import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ModbusResponse;
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.Exchange;
-import org.apache.camel.impl.DefaultProducer;
+import org.apache.camel.impl.DefaultAsyncProducer;
 
 /**
+ * Writes the message body to the modbus device.  Over a non-blocking
+ * connection the write completes asynchronously, so no Camel thread waits
+ * for the device's response; over a blocking connection the write completes
+ * before {@link #process(Exchange, AsyncCallback)} returns.
  *
  * @author Steven Swor
  */
-public abstract class ModbusProducer<RequestType extends ModbusRequest, ResponseType extends ModbusResponse, DataType> extends DefaultProducer {
+public abstract class ModbusProducer<RequestType extends ModbusRequest, ResponseType extends ModbusResponse, DataType> extends DefaultAsyncProducer {
 
     private final JamodEndpoint endpoint;
     /**
@@ -80,20 +85,132 @@ public abstract class ModbusProducer<RequestType extends ModbusRequest, Response
 		this.slaveId = slaveId;
 	}    
 
-    @Override
-    public void process(Exchange exchange) throws Exception {
-        DataType data = exchange.getIn().getBody(getDataTypeClass());
-        RequestType request = createRequest(data);
-        request.setUnitID(slaveId);
-        AbstractMasterConnectionWrapper connectionWrapper = endpoint.getConnection();
-        ModbusTransaction transaction = connectionWrapper.createTransaction();
-        transaction.setRequest(request);
-        transaction.execute();
-        ResponseType response = (ResponseType) transaction.getResponse();
-        exchange.getOut().setBody(response);
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        RequestType request;
+        try {
+            DataType data = getData(exchange);
+            request = createRequest(data);
+            request.setUnitID(slaveId);
+        } catch (Exception ex) {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+        WriteCallback writeCallback = new WriteCallback(exchange, callback);
+        try {
+            endpoint.execute(request, writeCallback);
+        } catch (Exception ex) {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+        return writeCallback.returned();
+    }
+
+    /**
+     * Gets the data to write from an exchange.  This implementation converts
+     * the body of the in message to {@link #getDataTypeClass()}.
+     * @param exchange the exchange
+     * @return the data to write
+     */
+    protected DataType getData(final Exchange exchange) {
+        return exchange.getIn().getBody(getDataTypeClass());
     }
 
     protected abstract Class<DataType> getDataTypeClass();
 
     protected abstract RequestType createRequest(DataType data);
+
+    /**
+     * Creates the body of the out message from the device's response.  This
+     * implementation uses the response itself.
+     * @param response the response
+     * @return the out message body
+     */
+    protected Object createOutBody(final ResponseType response) {
+        return response;
+    }
+
+    /**
+     * Completes the exchange when the write finishes, and tells Camel whether
+     * it finished synchronously, on the thread which called
+     * {@link #process(Exchange, AsyncCallback)} before it returned, or
+     * asynchronously on another thread.
+     */
+    private final class WriteCallback implements TransactionCallback {
+
+        /**
+         * The exchange.
+         */
+        private final Exchange exchange;
+
+        /**
+         * Camel's callback.
+         */
+        private final AsyncCallback callback;
+
+        /**
+         * The thread which called {@code process}.
+         */
+        private final Thread caller = Thread.currentThread();
+
+        /**
+         * Whether or not the write finished before {@code process} returned,
+         * on the same thread.
+         */
+        private boolean finishedSynchronously = false;
+
+        /**
+         * Whether or not {@code process} has returned.
+         */
+        private boolean processReturned = false;
+
+        WriteCallback(final Exchange exchange, final AsyncCallback callback) {
+            this.exchange = exchange;
+            this.callback = callback;
+        }
+
+        public void completed(final ModbusResponse response) {
+            exchange.getOut().setBody(createOutBody((ResponseType) response));
+            finish();
+        }
+
+        public void failed(final ModbusException cause) {
+            exchange.setException(cause);
+            finish();
+        }
+
+        /**
+         * Notifies Camel, unless the write finished on the calling thread
+         * before {@code process} returned, in which case it will report the
+         * synchronous completion itself.  A write which finishes on another
+         * thread is always asynchronous, even if it beats {@code process}.
+         */
+        private void finish() {
+            synchronized (this) {
+                if (!processReturned && Thread.currentThread() == caller) {
+                    finishedSynchronously = true;
+                    return;
+                }
+            }
+            callback.done(false);
+        }
+
+        /**
+         * Called as {@code process} returns.
+         * @return {@code true} if the write already finished on the calling
+         * thread, in which case Camel's callback has been notified
+         * synchronously
+         */
+        boolean returned() {
+            synchronized (this) {
+                processReturned = true;
+                if (!finishedSynchronously) {
+                    return false;
+                }
+            }
+            callback.done(true);
+            return true;
+        }
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.PrimitiveProcessImage;
+import cameljamod.net.ProcessImageRequestHandler;
+import java.text.MessageFormat;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.util.BitVector;
+
+/**
+ * The process image behind one {@code tcp-server} address.
+ *
+ * <p>Producers on the address write into the image, and the address's
+ * consumer serves clients from it.  All endpoints of a component with the
+ * same server address share one image, so a route can feed values which
+ * another route's consumer serves.</p>
+ *
+ * <p>The image is a {@link PrimitiveProcessImage}, so each write lands
+ * atomically and clients reading concurrently never see half of it.</p>
+ *
+ * @author Steven Swor
+ */
+public class ModbusServer {
+
+    /**
+     * The process image.
+     */
+    private final PrimitiveProcessImage image;
+
+    /**
+     * Answers requests from the process image.
+     */
+    private final ProcessImageRequestHandler imageHandler;
+
+    /**
+     * Whether or not a consumer is serving the image.
+     */
+    private boolean bound = false;
+
+    /**
+     * Creates a new ModbusServer.
+     * @param size the number of coils, discrete inputs, input registers and
+     * holding registers in the image
+     */
+    public ModbusServer(final int size) {
+        image = new PrimitiveProcessImage(size);
+        imageHandler = new ProcessImageRequestHandler(image);
+    }
+
+    /**
+     * Gets the process image.
+     * @return the process image
+     */
+    public ProcessImage getProcessImage() {
+        return image;
+    }
+
+    /**
+     * Answers a request from the process image.
+     * @param request the request
+     * @return the response
+     */
+    public ModbusResponse serve(final ModbusRequest request) {
+        return imageHandler.createResponse(request);
+    }
+
+    /**
+     * Writes holding registers.
+     * @param reference the first address
+     * @param values the values
+     */
+    public void writeRegisters(final int reference, final int[] values) {
+        checkRange(reference, values.length, image.getRegisterCount());
+        image.writeRegisters(reference, values, 0, values.length);
+    }
+
+    /**
+     * Writes input registers.
+     * @param reference the first address
+     * @param values the values
+     */
+    public void writeInputRegisters(final int reference, final int[] values) {
+        checkRange(reference, values.length, image.getInputRegisterCount());
+        image.writeInputRegisters(reference, values, 0, values.length);
+    }
+
+    /**
+     * Writes coils.
+     * @param reference the first address
+     * @param values the values
+     */
+    public void writeCoils(final int reference, final BitVector values) {
+        checkRange(reference, values.size(), image.getDigitalOutCount());
+        image.writeCoils(reference, toBooleans(values), 0, values.size());
+    }
+
+    /**
+     * Writes discrete inputs.
+     * @param reference the first address
+     * @param values the values
+     */
+    public void writeDiscreteInputs(final int reference, final BitVector values) {
+        checkRange(reference, values.size(), image.getDigitalInCount());
+        image.writeDiscreteInputs(reference, toBooleans(values), 0, values.size());
+    }
+
+    /**
+     * Unpacks a bit vector.
+     * @param values the bit vector
+     * @return the bits
+     */
+    private static boolean[] toBooleans(final BitVector values) {
+        boolean[] result = new boolean[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.getBit(i);
+        }
+        return result;
+    }
+
+    /**
+     * Claims the image for a consumer.
+     * @throws IllegalStateException if another consumer is serving the image
+     */
+    synchronized void bind() {
+        if (bound) {
+            throw new IllegalStateException("Another consumer is already serving this address");
+        }
+        bound = true;
+    }
+
+    /**
+     * Releases the image when its consumer stops.
+     */
+    synchronized void unbind() {
+        bound = false;
+    }
+
+    /**
+     * Checks that a range lies within a table.
+     * @param reference the first address
+     * @param count the number of addresses
+     * @param size the number of addresses in the table
+     */
+    private static void checkRange(final int reference, final int count, final int size) {
+        if (reference < 0 || reference + count > size) {
+            throw new IllegalArgumentException(MessageFormat.format("Addresses {0} to {1} are outside the process image of {2} addresses", String.valueOf(reference), String.valueOf(reference + count - 1), String.valueOf(size)));
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.net.NioTCPSlaveListener;
+import cameljamod.net.SlaveRequestHandler;
+import cameljamod.net.SlaveResponder;
+import java.text.MessageFormat;
+import java.util.Locale;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePattern;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultConsumer;
+
+/**
+ * A camel consumer which acts as a Modbus/TCP slave.
+ *
+ * <p>The consumer listens with a {@link NioTCPSlaveListener} on the
+ * component's event loops, so a few threads serve any number of clients.  In
+ * {@code image} mode, requests are answered from the address's
+ * {@link ModbusServer} process image, which producers on the same address
+ * keep up to date, and every write a client makes is sent to the route after
+ * it has been applied.  In {@code exchange} mode, every request is sent to
+ * the route, which answers with a {@link ModbusResponse} or with the values
+ * to read; an unchanged body is answered from the process image.</p>
+ *
+ * <p>Requests are decoded, and answered from the process image, on the
+ * event loop's thread of the client's connection.  Exchanges are processed on
+ * the component's worker threads, so a route which blocks holds up only the
+ * requests it is answering.</p>
+ *
+ * @author Steven Swor
+ */
+public class ModbusServerConsumer extends DefaultConsumer implements SlaveRequestHandler {
+
+    /**
+     * How requests are answered.
+     */
+    private enum Mode {
+
+        /**
+         * Requests are answered from the process image.
+         */
+        IMAGE,
+        /**
+         * Requests are answered by the route.
+         */
+        EXCHANGE
+    }
+
+    /**
+     * The endpoint.
+     */
+    private final JamodEndpoint endpoint;
+
+    /**
+     * How requests are answered.
+     */
+    private Mode mode = Mode.IMAGE;
+
+    /**
+     * The largest number of clients connected at once, or 0 for no limit.
+     */
+    private int maxConnections = 0;
+
+    /**
+     * The process image, while the consumer is started.
+     */
+    private ModbusServer server;
+
+    /**
+     * The listener, while the consumer is started.
+     */
+    private NioTCPSlaveListener listener;
+
+    /**
+     * Creates a new ModbusServerConsumer.
+     *
+     * @param endpoint the endpoint
+     * @param processor the processor
+     */
+    public ModbusServerConsumer(final JamodEndpoint endpoint, final Processor processor) {
+        super(endpoint, processor);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Gets how requests are answered.
+     * @return {@code image} or {@code exchange}
+     */
+    public String getMode() {
+        return mode.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Sets how requests are answered.
+     * @param mode {@code image} to answer from the process image and send
+     * client writes to the route, or {@code exchange} to send every request
+     * to the route
+     */
+    public void setMode(String mode) {
+        try {
+            this.mode = Mode.valueOf(mode.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported server mode: {0}", mode), ex);
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Gets the listener.
+     * @return the listener, or {@code null} if the consumer is not started
+     */
+    public NioTCPSlaveListener getListener() {
+        return listener;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        ModbusServer s = endpoint.getServer();
+        s.bind();
+        try {
+            NioTCPSlaveListener l = new NioTCPSlaveListener(endpoint.getServerAddress(), endpoint.getServerPort(), endpoint.getEventLoopGroup(), this);
+            l.setMaxConnections(maxConnections);
+            l.start();
+            listener = l;
+            server = s;
+        } catch (Exception ex) {
+            s.unbind();
+            throw ex;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (listener != null) {
+            listener.close();
+            listener = null;
+        }
+        if (server != null) {
+            server.unbind();
+            server = null;
+        }
+        super.doStop();
+    }
+
+    public void handle(final ModbusRequest request, final SlaveResponder responder) {
+        final ModbusServer s = server;
+        if (s == null) {
+            responder.respond(new ExceptionResponse(request.getFunctionCode(), NioTCPSlaveListener.SLAVE_DEVICE_FAILURE));
+            return;
+        }
+        if (mode == Mode.IMAGE) {
+            ModbusResponse response = s.serve(request);
+            responder.respond(response);
+            if (isWrite(request) && !(response instanceof ExceptionResponse)) {
+                endpoint.getWorkerExecutor().execute(new Runnable() {
+
+                    public void run() {
+                        process(endpoint.createExchange(ExchangePattern.InOnly), request, null, null);
+                    }
+                });
+            }
+        } else {
+            endpoint.getWorkerExecutor().execute(new Runnable() {
+
+                public void run() {
+                    process(endpoint.createExchange(ExchangePattern.InOut), request, s, responder);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends a request to the route.
+     * @param exchange the exchange
+     * @param request the request
+     * @param s the process image to answer unchanged bodies from
+     * @param responder answers the request, or {@code null} if the client
+     * has already been answered
+     */
+    private void process(final Exchange exchange, final ModbusRequest request, final ModbusServer s, final SlaveResponder responder) {
+        Message in = exchange.getIn();
+        in.setBody(request);
+        in.setHeader(JamodEndpoint.UNIT_ID_HEADER, Integer.valueOf(request.getUnitID()));
+        in.setHeader(JamodEndpoint.FUNCTION_CODE_HEADER, Integer.valueOf(request.getFunctionCode()));
+        int reference = getReference(request);
+        if (reference >= 0) {
+            in.setHeader(JamodEndpoint.REFERENCE_ADDRESS_HEADER, Integer.valueOf(reference));
+            in.setHeader(JamodEndpoint.COUNT_HEADER, Integer.valueOf(getCount(request)));
+        }
+        getAsyncProcessor().process(exchange, new AsyncCallback() {
+
+            public void done(boolean doneSync) {
+                if (responder != null) {
+                    responder.respond(createResponse(exchange, request, s));
+                }
+                if (exchange.getException() != null) {
+                    getExceptionHandler().handleException("Error processing Modbus request", exchange, exchange.getException());
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the response to a request from the exchange the route
+     * processed.
+     * @param exchange the exchange
+     * @param request the request
+     * @param s the process image to answer unchanged bodies from
+     * @return the response
+     */
+    private ModbusResponse createResponse(final Exchange exchange, final ModbusRequest request, final ModbusServer s) {
+        int functionCode = request.getFunctionCode();
+        if (exchange.getException() != null) {
+            return new ExceptionResponse(functionCode, NioTCPSlaveListener.SLAVE_DEVICE_FAILURE);
+        }
+        Message message = exchange.hasOut() ? exchange.getOut() : exchange.getIn();
+        Object body = message.getBody();
+        if (body instanceof ModbusResponse) {
+            return (ModbusResponse) body;
+        } else if (body == null || body == request) {
+            return s.serve(request);
+        }
+        try {
+            switch (functionCode) {
+                case Modbus.READ_MULTIPLE_REGISTERS:
+                    return new ReadMultipleRegistersResponse(message.getMandatoryBody(Register[].class));
+                case Modbus.READ_INPUT_REGISTERS:
+                    return new ReadInputRegistersResponse(message.getMandatoryBody(InputRegister[].class));
+                case Modbus.READ_COILS: {
+                    BitVector bits = message.getMandatoryBody(BitVector.class);
+                    ReadCoilsResponse response = new ReadCoilsResponse(bits.size());
+                    for (int i = 0; i < bits.size(); i++) {
+                        response.setCoilStatus(i, bits.getBit(i));
+                    }
+                    return response;
+                }
+                case Modbus.READ_INPUT_DISCRETES: {
+                    BitVector bits = message.getMandatoryBody(BitVector.class);
+                    ReadInputDiscretesResponse response = new ReadInputDiscretesResponse(bits.size());
+                    for (int i = 0; i < bits.size(); i++) {
+                        response.setDiscreteStatus(i, bits.getBit(i));
+                    }
+                    return response;
+                }
+                default:
+                    return s.serve(request);
+            }
+        } catch (Exception ex) {
+            getExceptionHandler().handleException("Cannot answer Modbus request from the message body", exchange, ex);
+            return new ExceptionResponse(functionCode, NioTCPSlaveListener.SLAVE_DEVICE_FAILURE);
+        }
+    }
+
+    /**
+     * Determines if a request writes to the process image.
+     * @param request the request
+     * @return whether or not the request is a write
+     */
+    private static boolean isWrite(final ModbusRequest request) {
+        return request instanceof WriteCoilRequest
+                || request instanceof WriteSingleRegisterRequest
+                || request instanceof WriteMultipleCoilsRequest
+                || request instanceof WriteMultipleRegistersRequest
+                || request instanceof ReadWriteMultipleRegistersRequest;
+    }
+
+    /**
+     * Gets the first address of a request.
+     * @param request the request
+     * @return the first address, or -1 if the request has none
+     */
+    private static int getReference(final ModbusRequest request) {
+        if (request instanceof ReadCoilsRequest) {
+            return ((ReadCoilsRequest) request).getReference();
+        } else if (request instanceof ReadInputDiscretesRequest) {
+            return ((ReadInputDiscretesRequest) request).getReference();
+        } else if (request instanceof ReadMultipleRegistersRequest) {
+            return ((ReadMultipleRegistersRequest) request).getReference();
+        } else if (request instanceof ReadInputRegistersRequest) {
+            return ((ReadInputRegistersRequest) request).getReference();
+        } else if (request instanceof WriteCoilRequest) {
+            return ((WriteCoilRequest) request).getReference();
+        } else if (request instanceof WriteSingleRegisterRequest) {
+            return ((WriteSingleRegisterRequest) request).getReference();
+        } else if (request instanceof WriteMultipleCoilsRequest) {
+            return ((WriteMultipleCoilsRequest) request).getReference();
+        } else if (request instanceof WriteMultipleRegistersRequest) {
+            return ((WriteMultipleRegistersRequest) request).getReference();
+        } else if (request instanceof ReadWriteMultipleRegistersRequest) {
+            return ((ReadWriteMultipleRegistersRequest) request).getWriteReference();
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of addresses of a request.
+     * @param request the request
+     * @return the number of addresses
+     */
+    private static int getCount(final ModbusRequest request) {
+        if (request instanceof ReadCoilsRequest) {
+            return ((ReadCoilsRequest) request).getBitCount();
+        } else if (request instanceof ReadInputDiscretesRequest) {
+            return ((ReadInputDiscretesRequest) request).getBitCount();
+        } else if (request instanceof ReadMultipleRegistersRequest) {
+            return ((ReadMultipleRegistersRequest) request).getWordCount();
+        } else if (request instanceof ReadInputRegistersRequest) {
+            return ((ReadInputRegistersRequest) request).getWordCount();
+        } else if (request instanceof WriteMultipleCoilsRequest) {
+            return ((WriteMultipleCoilsRequest) request).getBitCount();
+        } else if (request instanceof WriteMultipleRegistersRequest) {
+            return ((WriteMultipleRegistersRequest) request).getWordCount();
+        } else if (request instanceof ReadWriteMultipleRegistersRequest) {
+            return ((ReadWriteMultipleRegistersRequest) request).getWriteCount();
+        }
+        return 1;
+    }
+}
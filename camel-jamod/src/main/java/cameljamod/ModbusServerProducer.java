@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.text.MessageFormat;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultProducer;
+
+/**
+ * Writes the message body into the process image of a {@code tcp-server}
+ * address, for its consumer to serve.  Unlike a master, the producer may
+ * write all four tables: {@code coils} and {@code discreteInputs} take a
+ * {@link BitVector}, {@code registers} and {@code inputRegisters} take
+ * anything which converts to {@code int[]}.
+ *
+ * @author Steven Swor
+ */
+public class ModbusServerProducer extends DefaultProducer {
+
+    /**
+     * The endpoint.
+     */
+    private final JamodEndpoint endpoint;
+
+    /**
+     * The table to write.
+     */
+    private final String dataType;
+
+    /**
+     * The reference address of the first value to write.
+     */
+    private int referenceAddress;
+
+    /**
+     * Creates a new ModbusServerProducer.
+     *
+     * @param endpoint the endpoint
+     * @param dataType the table to write: {@code coils},
+     * {@code discreteInputs}, {@code registers} or {@code inputRegisters}
+     */
+    public ModbusServerProducer(final JamodEndpoint endpoint, final String dataType) {
+        super(endpoint);
+        this.endpoint = endpoint;
+        if (!"coils".equalsIgnoreCase(dataType) && !"discreteInputs".equalsIgnoreCase(dataType)
+                && !"registers".equalsIgnoreCase(dataType) && !"inputRegisters".equalsIgnoreCase(dataType)) {
+            throw new IllegalArgumentException(MessageFormat.format("Unsupported data type: {0}", dataType));
+        }
+        this.dataType = dataType;
+    }
+
+    public String getDataType() {
+        return dataType;
+    }
+
+    public int getReferenceAddress() {
+        return referenceAddress;
+    }
+
+    public void setReferenceAddress(int referenceAddress) {
+        this.referenceAddress = referenceAddress;
+    }
+
+    public void process(final Exchange exchange) throws Exception {
+        Message in = exchange.getIn();
+        ModbusServer server = endpoint.getServer();
+        if ("coils".equalsIgnoreCase(dataType)) {
+            server.writeCoils(referenceAddress, in.getMandatoryBody(BitVector.class));
+        } else if ("discreteInputs".equalsIgnoreCase(dataType)) {
+            server.writeDiscreteInputs(referenceAddress, in.getMandatoryBody(BitVector.class));
+        } else if ("registers".equalsIgnoreCase(dataType)) {
+            server.writeRegisters(referenceAddress, in.getMandatoryBody(int[].class));
+        } else {
+            server.writeInputRegisters(referenceAddress, in.getMandatoryBody(int[].class));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+/**
+ * Remembers the raw values of the previous poll in a reusable primitive
+ * array, so a new response can be compared against them in place without
+ * creating any objects.
+ *
+ * @author Steven Swor
+ */
+final class RawValueBuffer {
+
+    /**
+     * The values of the previous poll.  Only the first {@link #length} are
+     * meaningful.
+     */
+    private int[] values = new int[0];
+
+    /**
+     * The number of values in the previous poll, or -1 before the first poll.
+     */
+    private int length = -1;
+
+    /**
+     * Starts comparing a new poll.
+     * @param newLength the number of values in the new poll
+     * @return {@code true} if the number of values differs from the previous
+     * poll, or there was no previous poll
+     */
+    boolean resize(final int newLength) {
+        if (newLength == length) {
+            return false;
+        }
+        if (values.length < newLength) {
+            values = new int[newLength];
+        }
+        length = newLength;
+        return true;
+    }
+
+    /**
+     * Compares one value against the previous poll and remembers it.
+     * @param index the index of the value
+     * @param value the new value
+     * @return {@code true} if the value differs from the previous poll
+     */
+    boolean set(final int index, final int value) {
+        if (values[index] == value) {
+            return false;
+        }
+        values[index] = value;
+        return true;
+    }
+
+    /**
+     * Forgets the previous poll, so the next one counts as a change.
+     */
+    void reset() {
+        length = -1;
+    }
+}
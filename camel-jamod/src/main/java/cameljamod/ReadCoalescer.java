@@ -0,0 +1,706 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.CircuitOpenException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleInputRegister;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * Merges the reads of polling consumers which share a device, slave and
+ * function code into as few requests as possible.
+ *
+ * <p>Consumers register the range they read when they start.  Ranges are
+ * grouped by device, slave ID and function code, and each group plans the
+ * fewest blocks which cover all of its ranges, joining ranges separated by no
+ * more than the gap tolerance and never exceeding the protocol's limit of
+ * 125 registers or 2000 bits per request.</p>
+ *
+ * <p>When a consumer polls, it takes its slice from the group's latest scan
+ * if that scan started after the consumer's previous poll.  Otherwise the
+ * consumer performs a new scan of every block on behalf of the whole group,
+ * and other consumers arriving in the meantime wait for it.  Consumers polling
+ * at the same rate therefore share one scan per interval.</p>
+ *
+ * @author Steven Swor
+ */
+public class ReadCoalescer {
+
+    /**
+     * The most registers one request may read.
+     */
+    public static final int MAX_REGISTERS = 125;
+
+    /**
+     * The most coils or discrete inputs one request may read.
+     */
+    public static final int MAX_BITS = 2000;
+
+    /**
+     * The groups, by device, slave ID and function code.
+     */
+    private final Map<String, ScanGroup> groups = new HashMap<String, ScanGroup>();
+
+    /**
+     * The largest number of unrequested addresses which may be read to join
+     * two ranges.
+     */
+    private volatile int gapTolerance = 0;
+
+    /**
+     * Gets the largest number of unrequested addresses which may be read to
+     * join two ranges.
+     * @return the gap tolerance
+     */
+    public int getGapTolerance() {
+        return gapTolerance;
+    }
+
+    /**
+     * Sets the largest number of unrequested addresses which may be read to
+     * join two ranges.  Only set this above 0 if the device allows reading
+     * the addresses in between.
+     * @param gapTolerance the gap tolerance
+     */
+    public void setGapTolerance(final int gapTolerance) {
+        this.gapTolerance = gapTolerance;
+        synchronized (groups) {
+            for (ScanGroup group : groups.values()) {
+                group.replan();
+            }
+        }
+    }
+
+    /**
+     * Registers a read.
+     * @param deviceKey the device key
+     * @param request the consumer's read request
+     */
+    public void register(final String deviceKey, final ModbusRequest request) {
+        ReadRange range = ReadRange.of(request);
+        String key = groupKey(deviceKey, request.getUnitID(), range.functionCode);
+        synchronized (groups) {
+            ScanGroup group = groups.get(key);
+            if (group == null) {
+                group = new ScanGroup(range.functionCode, request.getUnitID());
+                groups.put(key, group);
+            }
+            group.add(range);
+        }
+    }
+
+    /**
+     * Unregisters a read.
+     * @param deviceKey the device key
+     * @param request the consumer's read request
+     */
+    public void unregister(final String deviceKey, final ModbusRequest request) {
+        ReadRange range = ReadRange.of(request);
+        String key = groupKey(deviceKey, request.getUnitID(), range.functionCode);
+        synchronized (groups) {
+            ScanGroup group = groups.get(key);
+            if (group != null && group.remove(range)) {
+                groups.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Reads a registered range, sharing a scan with the rest of its group
+     * where possible.
+     * @param endpoint the endpoint to execute requests through, if a new scan
+     * is needed
+     * @param request the consumer's read request
+     * @param notBefore the result must come from a scan started after this
+     * time, in {@link System#nanoTime()} units
+     * @return a response containing only the requested range
+     * @throws Exception if the block containing the range could not be read
+     */
+    public ModbusResponse read(final JamodEndpoint endpoint, final ModbusRequest request, final long notBefore) throws Exception {
+        return scan(endpoint, request, notBefore).slice(ReadRange.of(request));
+    }
+
+    /**
+     * Gets the scan holding a registered range, sharing it with the rest of
+     * its group where possible, without building a response.
+     * @param endpoint the endpoint to execute requests through, if a new scan
+     * is needed
+     * @param request the consumer's read request
+     * @param notBefore the result must come from a scan started after this
+     * time, in {@link System#nanoTime()} units
+     * @return the scan, which may have failed to read some blocks
+     * @throws InterruptedException if interrupted while waiting for another
+     * consumer's scan
+     */
+    Scan scan(final JamodEndpoint endpoint, final ModbusRequest request, final long notBefore) throws InterruptedException {
+        ReadRange range = ReadRange.of(request);
+        ScanGroup group;
+        synchronized (groups) {
+            group = groups.get(groupKey(endpoint.getDeviceKey(), request.getUnitID(), range.functionCode));
+        }
+        if (group == null) {
+            throw new IllegalStateException(MessageFormat.format("Read of {0} was not registered", range));
+        }
+        return group.acquire(endpoint, notBefore);
+    }
+
+    /**
+     * Gets the number of requests one scan of a group performs.
+     * @param deviceKey the device key
+     * @param unitId the slave ID
+     * @param functionCode the function code
+     * @return the number of requests, or 0 if the group does not exist
+     */
+    public int getBlockCount(final String deviceKey, final int unitId, final int functionCode) {
+        synchronized (groups) {
+            ScanGroup group = groups.get(groupKey(deviceKey, unitId, functionCode));
+            return group == null ? 0 : group.getPlan().size();
+        }
+    }
+
+    /**
+     * Builds the key of a group.
+     * @param deviceKey the device key
+     * @param unitId the slave ID
+     * @param functionCode the function code
+     * @return the group key
+     */
+    private static String groupKey(final String deviceKey, final int unitId, final int functionCode) {
+        return deviceKey + "/" + unitId + "/" + functionCode;
+    }
+
+    /**
+     * Plans the fewest blocks which cover a set of ranges.
+     * @param ranges the ranges
+     * @param maxLength the most addresses one block may cover
+     * @param gapTolerance the largest gap which may be read to join ranges
+     * @return the blocks, in address order
+     */
+    static List<ReadRange> plan(final List<ReadRange> ranges, final int maxLength, final int gapTolerance) {
+        List<ReadRange> sorted = new ArrayList<ReadRange>(ranges);
+        Collections.sort(sorted, new Comparator<ReadRange>() {
+
+            public int compare(final ReadRange o1, final ReadRange o2) {
+                return o1.start < o2.start ? -1 : (o1.start == o2.start ? 0 : 1);
+            }
+        });
+        List<ReadRange> blocks = new ArrayList<ReadRange>();
+        int start = -1;
+        int end = -1;
+        int functionCode = 0;
+        for (ReadRange range : sorted) {
+            functionCode = range.functionCode;
+            int rangeEnd = range.start + range.count;
+            if (start >= 0 && range.start <= end + gapTolerance) {
+                end = Math.max(end, rangeEnd);
+                continue;
+            }
+            if (start >= 0) {
+                split(blocks, functionCode, start, end, maxLength);
+            }
+            start = range.start;
+            end = rangeEnd;
+        }
+        if (start >= 0) {
+            split(blocks, functionCode, start, end, maxLength);
+        }
+        return blocks;
+    }
+
+    /**
+     * Adds a block, split into pieces no longer than the limit.
+     * @param blocks the blocks
+     * @param functionCode the function code
+     * @param start the first address
+     * @param end one past the last address
+     * @param maxLength the most addresses one block may cover
+     */
+    private static void split(final List<ReadRange> blocks, final int functionCode, final int start, final int end, final int maxLength) {
+        for (int s = start; s < end; s += maxLength) {
+            blocks.add(new ReadRange(functionCode, s, Math.min(maxLength, end - s)));
+        }
+    }
+
+    /**
+     * A contiguous range of addresses read with one function code.
+     */
+    static final class ReadRange {
+
+        /**
+         * The function code.
+         */
+        final int functionCode;
+
+        /**
+         * The first address.
+         */
+        final int start;
+
+        /**
+         * The number of addresses.
+         */
+        final int count;
+
+        ReadRange(final int functionCode, final int start, final int count) {
+            this.functionCode = functionCode;
+            this.start = start;
+            this.count = count;
+        }
+
+        /**
+         * Describes the range a read request covers.
+         * @param request the request
+         * @return the range
+         */
+        static ReadRange of(final ModbusRequest request) {
+            if (request instanceof ReadMultipleRegistersRequest) {
+                ReadMultipleRegistersRequest r = (ReadMultipleRegistersRequest) request;
+                return new ReadRange(Modbus.READ_MULTIPLE_REGISTERS, r.getReference(), r.getWordCount());
+            } else if (request instanceof ReadInputRegistersRequest) {
+                ReadInputRegistersRequest r = (ReadInputRegistersRequest) request;
+                return new ReadRange(Modbus.READ_INPUT_REGISTERS, r.getReference(), r.getWordCount());
+            } else if (request instanceof ReadCoilsRequest) {
+                ReadCoilsRequest r = (ReadCoilsRequest) request;
+                return new ReadRange(Modbus.READ_COILS, r.getReference(), r.getBitCount());
+            } else if (request instanceof ReadInputDiscretesRequest) {
+                ReadInputDiscretesRequest r = (ReadInputDiscretesRequest) request;
+                return new ReadRange(Modbus.READ_INPUT_DISCRETES, r.getReference(), r.getBitCount());
+            }
+            throw new IllegalArgumentException(MessageFormat.format("Cannot coalesce function code {0}", String.valueOf(request.getFunctionCode())));
+        }
+
+        /**
+         * Determines if the range reads bits rather than registers.
+         * @return whether or not the range reads bits
+         */
+        boolean isBits() {
+            return functionCode == Modbus.READ_COILS || functionCode == Modbus.READ_INPUT_DISCRETES;
+        }
+
+        /**
+         * Creates the request which reads this range.
+         * @param unitId the slave ID
+         * @return the request
+         */
+        ModbusRequest createRequest(final int unitId) {
+            ModbusRequest request;
+            switch (functionCode) {
+                case Modbus.READ_MULTIPLE_REGISTERS:
+                    request = new ReadMultipleRegistersRequest(start, count);
+                    break;
+                case Modbus.READ_INPUT_REGISTERS:
+                    request = new ReadInputRegistersRequest(start, count);
+                    break;
+                case Modbus.READ_COILS:
+                    request = new ReadCoilsRequest(start, count);
+                    break;
+                default:
+                    request = new ReadInputDiscretesRequest(start, count);
+                    break;
+            }
+            request.setUnitID(unitId);
+            return request;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof ReadRange)) {
+                return false;
+            }
+            ReadRange other = (ReadRange) obj;
+            return functionCode == other.functionCode && start == other.start && count == other.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return (functionCode * 31 + start) * 31 + count;
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format("fc {0} [{1}, {2})", String.valueOf(functionCode), String.valueOf(start), String.valueOf(start + count));
+        }
+    }
+
+    /**
+     * The consumers of one device, slave ID and function code.
+     */
+    private final class ScanGroup {
+
+        /**
+         * The function code.
+         */
+        private final int functionCode;
+
+        /**
+         * The slave ID.
+         */
+        private final int unitId;
+
+        /**
+         * The registered ranges.  A range registered twice appears twice.
+         */
+        private final List<ReadRange> ranges = new ArrayList<ReadRange>();
+
+        /**
+         * The blocks one scan reads.
+         */
+        private List<ReadRange> plan = Collections.emptyList();
+
+        /**
+         * The latest scan.
+         */
+        private Scan latest;
+
+        /**
+         * Whether or not a scan is in progress.
+         */
+        private boolean scanning = false;
+
+        ScanGroup(final int functionCode, final int unitId) {
+            this.functionCode = functionCode;
+            this.unitId = unitId;
+        }
+
+        synchronized void add(final ReadRange range) {
+            ranges.add(range);
+            replan();
+        }
+
+        /**
+         * Removes a range.
+         * @param range the range
+         * @return {@code true} if the group is now empty
+         */
+        synchronized boolean remove(final ReadRange range) {
+            ranges.remove(range);
+            replan();
+            return ranges.isEmpty();
+        }
+
+        synchronized void replan() {
+            boolean bits = functionCode == Modbus.READ_COILS || functionCode == Modbus.READ_INPUT_DISCRETES;
+            plan = plan(ranges, bits ? MAX_BITS : MAX_REGISTERS, gapTolerance);
+            latest = null;
+        }
+
+        synchronized List<ReadRange> getPlan() {
+            return plan;
+        }
+
+        /**
+         * Gets a scan started after a given time, performing one if necessary.
+         * @param endpoint the endpoint to execute requests through
+         * @param notBefore the scan must have started after this time
+         * @return the scan
+         * @throws InterruptedException if interrupted while waiting for
+         * another consumer's scan
+         */
+        Scan acquire(final JamodEndpoint endpoint, final long notBefore) throws InterruptedException {
+            List<ReadRange> blocks;
+            synchronized (this) {
+                while (true) {
+                    if (latest != null && latest.startedAt - notBefore > 0) {
+                        return latest;
+                    }
+                    if (!scanning) {
+                        break;
+                    }
+                    wait();
+                }
+                scanning = true;
+                blocks = plan;
+            }
+            Scan scan = new Scan(blocks);
+            try {
+                scan.execute(endpoint, unitId);
+            } finally {
+                synchronized (this) {
+                    scanning = false;
+                    if (blocks == plan) {
+                        latest = scan;
+                    }
+                    notifyAll();
+                }
+            }
+            return scan;
+        }
+    }
+
+    /**
+     * The result of reading a list of blocks once.
+     */
+    static final class Scan {
+
+        /**
+         * When the scan started, in {@link System#nanoTime()} units.
+         */
+        private final long startedAt = System.nanoTime();
+
+        /**
+         * The blocks read.
+         */
+        private final List<ReadRange> blocks;
+
+        /**
+         * The register values of each block, or {@code null} for bit blocks.
+         */
+        private final int[][] words;
+
+        /**
+         * The bit values of each block, or {@code null} for register blocks.
+         */
+        private final boolean[][] bits;
+
+        /**
+         * Why each block could not be read, or {@code null} if it was read.
+         */
+        private final Exception[] failures;
+
+        Scan(final List<ReadRange> blocks) {
+            this.blocks = blocks;
+            this.words = new int[blocks.size()][];
+            this.bits = new boolean[blocks.size()][];
+            this.failures = new Exception[blocks.size()];
+        }
+
+        /**
+         * Reads every block, one after another.  A block which the slave
+         * refuses does not stop the others, but one which goes unanswered
+         * fails the rest of the scan too, so that a dead slave costs one
+         * timeout per scan rather than one per block.
+         * @param endpoint the endpoint to execute requests through
+         * @param unitId the slave ID
+         */
+        void execute(final JamodEndpoint endpoint, final int unitId) {
+            for (int i = 0; i < blocks.size(); i++) {
+                try {
+                    store(i, endpoint.execute(blocks.get(i).createRequest(unitId)));
+                } catch (ModbusIOException ex) {
+                    Arrays.fill(failures, i, failures.length, ex);
+                    return;
+                } catch (Exception ex) {
+                    failures[i] = ex;
+                }
+            }
+        }
+
+        /**
+         * Gets why the scan could not read every block.
+         * @return a {@link CircuitOpenException} if the slave was cut off,
+         * else the first failure, or {@code null} if every block was read
+         */
+        Exception getFailure() {
+            Exception result = null;
+            for (Exception failure : failures) {
+                if (failure instanceof CircuitOpenException) {
+                    return failure;
+                }
+                if (result == null) {
+                    result = failure;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Remembers the values read for a block.
+         * @param i the index of the block
+         * @param response the response
+         * @throws ModbusException if the response does not match the block
+         */
+        private void store(final int i, final ModbusResponse response) throws ModbusException {
+            ReadRange block = blocks.get(i);
+            if (response instanceof ReadMultipleRegistersResponse) {
+                ReadMultipleRegistersResponse r = (ReadMultipleRegistersResponse) response;
+                words[i] = new int[block.count];
+                for (int j = 0; j < block.count; j++) {
+                    words[i][j] = r.getRegisterValue(j);
+                }
+            } else if (response instanceof ReadInputRegistersResponse) {
+                ReadInputRegistersResponse r = (ReadInputRegistersResponse) response;
+                words[i] = new int[block.count];
+                for (int j = 0; j < block.count; j++) {
+                    words[i][j] = r.getRegisterValue(j);
+                }
+            } else if (response instanceof ReadCoilsResponse) {
+                ReadCoilsResponse r = (ReadCoilsResponse) response;
+                bits[i] = new boolean[block.count];
+                for (int j = 0; j < block.count; j++) {
+                    bits[i][j] = r.getCoilStatus(j);
+                }
+            } else if (response instanceof ReadInputDiscretesResponse) {
+                ReadInputDiscretesResponse r = (ReadInputDiscretesResponse) response;
+                bits[i] = new boolean[block.count];
+                for (int j = 0; j < block.count; j++) {
+                    bits[i][j] = r.getDiscreteStatus(j);
+                }
+            } else {
+                throw new ModbusException(MessageFormat.format("Unexpected response to {0}", block));
+            }
+        }
+
+        /**
+         * Gets the number of addresses read.
+         * @return the number of registers or bits in all blocks
+         */
+        int getValueCount() {
+            int count = 0;
+            for (ReadRange block : blocks) {
+                count += block.count;
+            }
+            return count;
+        }
+
+        /**
+         * Compares every value read against a previous scan, and remembers
+         * them for the next comparison.  Every block must have been read.
+         * @param last the values of the previous scan
+         * @param offset where this scan's values start in the buffer
+         * @return whether or not any value differs from the previous scan
+         */
+        boolean compareAndStore(final RawValueBuffer last, final int offset) {
+            boolean changed = false;
+            int index = offset;
+            for (int i = 0; i < blocks.size(); i++) {
+                int count = blocks.get(i).count;
+                for (int j = 0; j < count; j++) {
+                    int value = words[i] != null ? words[i][j] : (bits[i][j] ? 1 : 0);
+                    changed |= last.set(index++, value);
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Throws the failure of any block a range needs.
+         * @param range the range
+         * @throws Exception if a block the range needs could not be read
+         */
+        void check(final ReadRange range) throws Exception {
+            for (int i = 0; i < blocks.size(); i++) {
+                ReadRange block = blocks.get(i);
+                if (failures[i] != null && block.functionCode == range.functionCode
+                        && block.start < range.start + range.count && range.start < block.start + block.count) {
+                    throw failures[i];
+                }
+            }
+        }
+
+        /**
+         * Gets one raw value of a range, without building a response.  The
+         * blocks holding the range must have been read.
+         * @param range the range
+         * @param index the index of the value within the range
+         * @return the register value, or 1 or 0 for a bit
+         */
+        int getValue(final ReadRange range, final int index) {
+            int address = range.start + index;
+            for (int i = 0; i < blocks.size(); i++) {
+                ReadRange block = blocks.get(i);
+                if (block.functionCode == range.functionCode && address >= block.start && address < block.start + block.count) {
+                    return words[i] != null ? words[i][address - block.start] : (bits[i][address - block.start] ? 1 : 0);
+                }
+            }
+            throw new IllegalStateException(MessageFormat.format("Read of {0} was not registered", range));
+        }
+
+        /**
+         * Builds a response containing one range.
+         * @param range the range
+         * @return the response
+         * @throws Exception if a block the range needs could not be read
+         */
+        ModbusResponse slice(final ReadRange range) throws Exception {
+            int[] sliceWords = range.isBits() ? null : new int[range.count];
+            boolean[] sliceBits = range.isBits() ? new boolean[range.count] : null;
+            int covered = 0;
+            for (int i = 0; i < blocks.size(); i++) {
+                ReadRange block = blocks.get(i);
+                int from = Math.max(block.start, range.start);
+                int to = Math.min(block.start + block.count, range.start + range.count);
+                if (block.functionCode != range.functionCode || from >= to) {
+                    continue;
+                }
+                if (failures[i] != null) {
+                    throw failures[i];
+                }
+                if (sliceWords != null) {
+                    System.arraycopy(words[i], from - block.start, sliceWords, from - range.start, to - from);
+                } else {
+                    System.arraycopy(bits[i], from - block.start, sliceBits, from - range.start, to - from);
+                }
+                covered += to - from;
+            }
+            if (covered < range.count) {
+                throw new IllegalStateException(MessageFormat.format("Read of {0} was not registered", range));
+            }
+            switch (range.functionCode) {
+                case Modbus.READ_MULTIPLE_REGISTERS: {
+                    Register[] registers = new Register[range.count];
+                    for (int i = 0; i < registers.length; i++) {
+                        registers[i] = new SimpleRegister(sliceWords[i]);
+                    }
+                    return new ReadMultipleRegistersResponse(registers);
+                }
+                case Modbus.READ_INPUT_REGISTERS: {
+                    InputRegister[] registers = new InputRegister[range.count];
+                    for (int i = 0; i < registers.length; i++) {
+                        registers[i] = new SimpleInputRegister(sliceWords[i]);
+                    }
+                    return new ReadInputRegistersResponse(registers);
+                }
+                case Modbus.READ_COILS: {
+                    ReadCoilsResponse response = new ReadCoilsResponse(range.count);
+                    for (int i = 0; i < range.count; i++) {
+                        response.setCoilStatus(i, sliceBits[i]);
+                    }
+                    return response;
+                }
+                default: {
+                    ReadInputDiscretesResponse response = new ReadInputDiscretesResponse(range.count);
+                    for (int i = 0; i < range.count; i++) {
+                        response.setDiscreteStatus(i, sliceBits[i]);
+                    }
+                    return response;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * Writes the message body to a block of holding registers and reads another
+ * block back in the same transaction, using the Read/Write Multiple
+ * Registers function.  The registers read become the body of the out
+ * message.
+ *
+ * @author Steven Swor
+ */
+public class ReadWriteRegistersProducer extends ModbusProducer<ReadWriteMultipleRegistersRequest, ReadWriteMultipleRegistersResponse, Register[]> {
+
+    /**
+     * The reference address of the first register to read.
+     */
+    private int readReference;
+
+    /**
+     * The number of registers to read.
+     */
+    private int readCount = 1;
+
+    /**
+     * Whether or not connections which cannot carry function code 23 may send
+     * a separate write and read instead.
+     */
+    private boolean splitReadWrite = false;
+
+    public ReadWriteRegistersProducer(JamodEndpoint endpoint) {
+        super(endpoint);
+    }
+
+    /**
+     * Gets the reference address of the first register to read.
+     *
+     * @return the reference address of the first register to read
+     */
+    public int getReadReference() {
+        return readReference;
+    }
+
+    /**
+     * Sets the reference address of the first register to read.
+     *
+     * @param readReference the reference address of the first register to
+     * read
+     */
+    public void setReadReference(int readReference) {
+        this.readReference = readReference;
+    }
+
+    /**
+     * Gets the number of registers to read.
+     *
+     * @return the number of registers to read
+     */
+    public int getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Sets the number of registers to read.
+     *
+     * @param readCount the number of registers to read
+     * @throws IllegalArgumentException if the count does not fit in one
+     * request
+     */
+    public void setReadCount(int readCount) {
+        if (readCount < 1 || readCount > ReadWriteMultipleRegistersRequest.MAX_READ_COUNT) {
+            throw new IllegalArgumentException("Read count must be between 1 and " + ReadWriteMultipleRegistersRequest.MAX_READ_COUNT + ": " + readCount);
+        }
+        this.readCount = readCount;
+    }
+
+    /**
+     * Determines if connections which cannot carry function code 23 may send
+     * a separate write and read instead.
+     *
+     * @return whether or not requests may be split
+     */
+    public boolean isSplitReadWrite() {
+        return splitReadWrite;
+    }
+
+    /**
+     * Sets whether connections which cannot carry function code 23 may send
+     * a separate write and read instead, which is not atomic.
+     *
+     * @param splitReadWrite whether or not requests may be split
+     */
+    public void setSplitReadWrite(boolean splitReadWrite) {
+        this.splitReadWrite = splitReadWrite;
+    }
+
+    @Override
+    protected Class<Register[]> getDataTypeClass() {
+        return Register[].class;
+    }
+
+    @Override
+    protected ReadWriteMultipleRegistersRequest createRequest(Register[] data) {
+        if (data.length < 1 || data.length > ReadWriteMultipleRegistersRequest.MAX_WRITE_COUNT) {
+            throw new IllegalArgumentException("Write count must be between 1 and " + ReadWriteMultipleRegistersRequest.MAX_WRITE_COUNT + ": " + data.length);
+        }
+        ReadWriteMultipleRegistersRequest request = new ReadWriteMultipleRegistersRequest(readReference, readCount, getReferenceAddress(), data);
+        request.setSplittable(splitReadWrite);
+        return request;
+    }
+
+    @Override
+    protected Object createOutBody(ReadWriteMultipleRegistersResponse response) {
+        return response.getRegisters();
+    }
+}
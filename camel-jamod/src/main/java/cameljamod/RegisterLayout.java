@@ -0,0 +1,575 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes how a block of registers is made up of typed values, so that they
+ * can be decoded and encoded in one pass over the raw register values.
+ *
+ * <p>A layout is written as comma-separated fields of the form
+ * {@code offset:type[:order][:name]}, for example
+ * {@code 0:float32:CDAB:temperature,2:int32,4:string10:serial}.  The offset
+ * counts registers from the endpoint's reference address.  The types are
+ * {@code int16}, {@code uint16}, {@code int32}, {@code uint32},
+ * {@code float32}, {@code int64}, {@code float64} and {@code stringN}, a
+ * string of {@code N} single-byte characters.  The order gives the position
+ * of each byte in the registers, where {@code A} is the most significant; it
+ * defaults to big-endian ({@code AB}, {@code ABCD} or {@code ABCDEFGH}), and
+ * for strings applies to each register ({@code AB} or {@code BA}).  Fields
+ * without a name are named after their offset.</p>
+ *
+ * <p>The spec is parsed once into flat arrays of offsets, widths and byte
+ * positions, so decoding does no parsing and creates nothing but the
+ * values it returns.</p>
+ *
+ * @author Steven Swor
+ */
+public final class RegisterLayout {
+
+    /**
+     * Field type of a signed 16-bit integer.
+     */
+    static final int INT16 = 0;
+
+    /**
+     * Field type of an unsigned 16-bit integer.
+     */
+    static final int UINT16 = 1;
+
+    /**
+     * Field type of a signed 32-bit integer.
+     */
+    static final int INT32 = 2;
+
+    /**
+     * Field type of an unsigned 32-bit integer.
+     */
+    static final int UINT32 = 3;
+
+    /**
+     * Field type of a 32-bit float.
+     */
+    static final int FLOAT32 = 4;
+
+    /**
+     * Field type of a signed 64-bit integer.
+     */
+    static final int INT64 = 5;
+
+    /**
+     * Field type of a 64-bit float.
+     */
+    static final int FLOAT64 = 6;
+
+    /**
+     * Field type of a string.
+     */
+    static final int STRING = 7;
+
+    /**
+     * The layout as written.
+     */
+    private final String spec;
+
+    /**
+     * The field names.
+     */
+    private final String[] names;
+
+    /**
+     * The field types.
+     */
+    private final int[] types;
+
+    /**
+     * The offset of each field, in registers.
+     */
+    private final int[] offsets;
+
+    /**
+     * The width of each field, in bytes.
+     */
+    private final int[] widths;
+
+    /**
+     * For each field, the position in the registers of each byte of the
+     * value, most significant first.  For strings, the positions of the two
+     * bytes within each register.
+     */
+    private final int[][] positions;
+
+    /**
+     * The number of registers spanned by the layout, from offset 0.
+     */
+    private final int wordCount;
+
+    /**
+     * Whether or not every register in the span belongs to some field.
+     */
+    private final boolean contiguous;
+
+    private RegisterLayout(final String spec, final String[] names, final int[] types, final int[] offsets, final int[] widths, final int[][] positions) {
+        this.spec = spec;
+        this.names = names;
+        this.types = types;
+        this.offsets = offsets;
+        this.widths = widths;
+        this.positions = positions;
+        int span = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            span = Math.max(span, offsets[i] + (widths[i] + 1) / 2);
+        }
+        this.wordCount = span;
+        boolean[] covered = new boolean[span];
+        for (int i = 0; i < offsets.length; i++) {
+            for (int w = 0; w < (widths[i] + 1) / 2; w++) {
+                covered[offsets[i] + w] = true;
+            }
+        }
+        boolean allCovered = true;
+        for (boolean c : covered) {
+            allCovered &= c;
+        }
+        this.contiguous = allCovered;
+    }
+
+    /**
+     * Parses a layout.
+     * @param spec the layout, as described above
+     * @return the layout
+     * @throws IllegalArgumentException if the layout cannot be parsed
+     */
+    public static RegisterLayout parse(final String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            throw new IllegalArgumentException("Empty register layout");
+        }
+        String[] fields = spec.split(",");
+        String[] names = new String[fields.length];
+        int[] types = new int[fields.length];
+        int[] offsets = new int[fields.length];
+        int[] widths = new int[fields.length];
+        int[][] positions = new int[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            String[] parts = fields[i].trim().split(":");
+            if (parts.length < 2 || parts.length > 4) {
+                throw new IllegalArgumentException(MessageFormat.format("Expected offset:type[:order][:name] but got {0}", fields[i]));
+            }
+            try {
+                offsets[i] = Integer.parseInt(parts[0].trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(MessageFormat.format("Bad offset in register layout field {0}", fields[i]), ex);
+            }
+            if (offsets[i] < 0) {
+                throw new IllegalArgumentException(MessageFormat.format("Bad offset in register layout field {0}", fields[i]));
+            }
+            String type = parts[1].trim().toLowerCase(Locale.ENGLISH);
+            if (type.startsWith("string")) {
+                types[i] = STRING;
+                try {
+                    widths[i] = Integer.parseInt(type.substring("string".length()));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(MessageFormat.format("Bad string length in register layout field {0}", fields[i]), ex);
+                }
+                if (widths[i] <= 0) {
+                    throw new IllegalArgumentException(MessageFormat.format("Bad string length in register layout field {0}", fields[i]));
+                }
+            } else {
+                types[i] = typeFromName(type, fields[i]);
+                widths[i] = widthOf(types[i]);
+            }
+            int orderLength = types[i] == STRING ? 2 : widths[i];
+            String order = null;
+            String name = null;
+            if (parts.length == 4) {
+                order = parts[2].trim();
+                name = parts[3].trim();
+            } else if (parts.length == 3) {
+                String part = parts[2].trim();
+                if (isOrder(part, orderLength)) {
+                    order = part;
+                } else {
+                    name = part;
+                }
+            }
+            if (order == null) {
+                order = "ABCDEFGH".substring(0, orderLength);
+            } else if (!isOrder(order, orderLength)) {
+                throw new IllegalArgumentException(MessageFormat.format("Bad byte order in register layout field {0}", fields[i]));
+            }
+            positions[i] = new int[orderLength];
+            for (int p = 0; p < orderLength; p++) {
+                positions[i][order.charAt(p) - 'A'] = p;
+            }
+            names[i] = name == null || name.length() == 0 ? String.valueOf(offsets[i]) : name;
+            for (int j = 0; j < i; j++) {
+                if (names[j].equals(names[i])) {
+                    throw new IllegalArgumentException(MessageFormat.format("Duplicate field name {0} in register layout", names[i]));
+                }
+            }
+        }
+        return new RegisterLayout(spec, names, types, offsets, widths, positions);
+    }
+
+    /**
+     * Gets the field type with the given name.
+     * @param type the type name
+     * @param field the field, for error messages
+     * @return the field type
+     */
+    private static int typeFromName(final String type, final String field) {
+        if ("int16".equals(type)) {
+            return INT16;
+        } else if ("uint16".equals(type)) {
+            return UINT16;
+        } else if ("int32".equals(type)) {
+            return INT32;
+        } else if ("uint32".equals(type)) {
+            return UINT32;
+        } else if ("float32".equals(type)) {
+            return FLOAT32;
+        } else if ("int64".equals(type)) {
+            return INT64;
+        } else if ("float64".equals(type)) {
+            return FLOAT64;
+        }
+        throw new IllegalArgumentException(MessageFormat.format("Unsupported type in register layout field {0}", field));
+    }
+
+    /**
+     * Gets the width of a numeric field type.
+     * @param type the field type
+     * @return the width, in bytes
+     */
+    private static int widthOf(final int type) {
+        switch (type) {
+            case INT16:
+            case UINT16:
+                return 2;
+            case INT64:
+            case FLOAT64:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Determines whether a string is a byte order of the given length: a
+     * permutation of the first {@code length} letters.
+     * @param order the string
+     * @param length the number of bytes
+     * @return whether or not the string is such a byte order
+     */
+    private static boolean isOrder(final String order, final int length) {
+        if (order.length() != length) {
+            return false;
+        }
+        int seen = 0;
+        for (int i = 0; i < length; i++) {
+            int letter = order.charAt(i) - 'A';
+            if (letter < 0 || letter >= length || (seen & (1 << letter)) != 0) {
+                return false;
+            }
+            seen |= 1 << letter;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of registers spanned by the layout, counting from
+     * offset 0.
+     * @return the number of registers
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * Determines whether every register in the layout's span belongs to some
+     * field.  Only such layouts can be written, since a write covers the
+     * whole span.
+     * @return whether or not the layout has no gaps
+     */
+    public boolean isContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Gets the number of fields.
+     * @return the number of fields
+     */
+    public int getFieldCount() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of a field.
+     * @param field the index of the field
+     * @return the name of the field
+     */
+    public String getName(final int field) {
+        return names[field];
+    }
+
+    /**
+     * Gets the index of a named field.
+     * @param name the name of the field
+     * @return the index of the field, or -1 if there is no such field
+     */
+    public int indexOf(final String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets a byte of the registers.
+     * @param words the raw register values
+     * @param position the position of the byte, counting from the first
+     * register's high byte
+     * @return the byte
+     */
+    private static int byteAt(final int[] words, final int position) {
+        int word = words[position >> 1];
+        return (position & 1) == 0 ? (word >> 8) & 0xff : word & 0xff;
+    }
+
+    /**
+     * Decodes the raw bits of a numeric field.
+     * @param field the index of the field
+     * @param words the raw register values, from offset 0
+     * @return the bits of the field, right-aligned
+     */
+    long bits(final int field, final int[] words) {
+        int base = offsets[field] << 1;
+        int[] order = positions[field];
+        long bits = 0;
+        for (int k = 0; k < order.length; k++) {
+            bits = (bits << 8) | byteAt(words, base + order[k]);
+        }
+        return bits;
+    }
+
+    /**
+     * Decodes a numeric field as a {@code long}.
+     * @param field the index of the field
+     * @param words the raw register values, from offset 0
+     * @return the value of the field
+     */
+    long decodeLong(final int field, final int[] words) {
+        long bits = bits(field, words);
+        switch (types[field]) {
+            case INT16:
+                return (short) bits;
+            case INT32:
+                return (int) bits;
+            case FLOAT32:
+                return (long) Float.intBitsToFloat((int) bits);
+            case FLOAT64:
+                return (long) Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * Decodes a numeric field as a {@code double}.
+     * @param field the index of the field
+     * @param words the raw register values, from offset 0
+     * @return the value of the field
+     */
+    double decodeDouble(final int field, final int[] words) {
+        switch (types[field]) {
+            case FLOAT32:
+                return Float.intBitsToFloat((int) bits(field, words));
+            case FLOAT64:
+                return Double.longBitsToDouble(bits(field, words));
+            default:
+                return decodeLong(field, words);
+        }
+    }
+
+    /**
+     * Decodes a string field.  Trailing NUL characters and spaces are
+     * dropped.
+     * @param field the index of the field
+     * @param words the raw register values, from offset 0
+     * @return the value of the field
+     */
+    String decodeString(final int field, final int[] words) {
+        int base = offsets[field] << 1;
+        int[] order = positions[field];
+        int length = widths[field];
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) byteAt(words, base + (i & ~1) + order[i & 1]);
+        }
+        while (length > 0 && (chars[length - 1] == 0 || chars[length - 1] == ' ')) {
+            length--;
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Decodes a field into its natural type: {@link Integer} for 16-bit and
+     * signed 32-bit integers, {@link Long} for unsigned 32-bit and 64-bit
+     * integers, {@link Float}, {@link Double} or {@link String}.
+     * @param field the index of the field
+     * @param words the raw register values, from offset 0
+     * @return the value of the field
+     */
+    Object decode(final int field, final int[] words) {
+        switch (types[field]) {
+            case INT16:
+            case UINT16:
+            case INT32:
+                return Integer.valueOf((int) decodeLong(field, words));
+            case FLOAT32:
+                return Float.valueOf(Float.intBitsToFloat((int) bits(field, words)));
+            case FLOAT64:
+                return Double.valueOf(Double.longBitsToDouble(bits(field, words)));
+            case STRING:
+                return decodeString(field, words);
+            default:
+                return Long.valueOf(decodeLong(field, words));
+        }
+    }
+
+    /**
+     * Decodes every field into a map, in layout order.
+     * @param words the raw register values, from offset 0
+     * @return the values, by field name
+     * @throws IllegalArgumentException if there are too few registers
+     */
+    public Map<String, Object> decode(final int[] words) {
+        checkLength(words.length);
+        Map<String, Object> result = new LinkedHashMap<String, Object>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            result.put(names[i], decode(i, words));
+        }
+        return result;
+    }
+
+    /**
+     * Checks that enough registers were read to decode every field.
+     * @param length the number of registers
+     * @throws IllegalArgumentException if there are too few registers
+     */
+    void checkLength(final int length) {
+        if (length < wordCount) {
+            throw new IllegalArgumentException(MessageFormat.format("Register layout {0} needs {1} registers but only {2} were read", spec, wordCount, length));
+        }
+    }
+
+    /**
+     * Encodes values into raw register values.
+     * @param values the values, by field name.  Numeric fields take any
+     * {@link Number}; string fields take any object, using its string form.
+     * @return the raw register values, from offset 0
+     * @throws IllegalArgumentException if a value is missing, or the layout
+     * has gaps
+     */
+    public int[] encode(final Map<String, ?> values) {
+        if (!contiguous) {
+            throw new IllegalArgumentException(MessageFormat.format("Register layout {0} has gaps and cannot be written", spec));
+        }
+        int[] words = new int[wordCount];
+        for (int i = 0; i < names.length; i++) {
+            Object value = values.get(names[i]);
+            if (value == null) {
+                throw new IllegalArgumentException(MessageFormat.format("No value for register layout field {0}", names[i]));
+            }
+            if (types[i] == STRING) {
+                encodeString(i, value.toString(), words);
+            } else if (value instanceof Number) {
+                encodeNumber(i, (Number) value, words);
+            } else {
+                throw new IllegalArgumentException(MessageFormat.format("Register layout field {0} needs a number but got {1}", names[i], value));
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Stores a byte into the registers.
+     * @param words the raw register values
+     * @param position the position of the byte
+     * @param value the byte
+     */
+    private static void putByte(final int[] words, final int position, final int value) {
+        int index = position >> 1;
+        if ((position & 1) == 0) {
+            words[index] = (words[index] & 0x00ff) | ((value & 0xff) << 8);
+        } else {
+            words[index] = (words[index] & 0xff00) | (value & 0xff);
+        }
+    }
+
+    /**
+     * Encodes a numeric field.
+     * @param field the index of the field
+     * @param value the value
+     * @param words the raw register values
+     */
+    private void encodeNumber(final int field, final Number value, final int[] words) {
+        long bits;
+        switch (types[field]) {
+            case FLOAT32:
+                bits = Float.floatToIntBits(value.floatValue());
+                break;
+            case FLOAT64:
+                bits = Double.doubleToLongBits(value.doubleValue());
+                break;
+            default:
+                bits = value.longValue();
+        }
+        int base = offsets[field] << 1;
+        int[] order = positions[field];
+        for (int k = order.length - 1; k >= 0; k--) {
+            putByte(words, base + order[k], (int) bits);
+            bits >>>= 8;
+        }
+    }
+
+    /**
+     * Encodes a string field, padding it with NUL characters.
+     * @param field the index of the field
+     * @param value the value
+     * @param words the raw register values
+     */
+    private void encodeString(final int field, final String value, final int[] words) {
+        int base = offsets[field] << 1;
+        int[] order = positions[field];
+        int length = (widths[field] + 1) & ~1;
+        for (int i = 0; i < length; i++) {
+            int c = i < value.length() && i < widths[field] ? value.charAt(i) : 0;
+            putByte(words, base + (i & ~1) + order[i & 1], c);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
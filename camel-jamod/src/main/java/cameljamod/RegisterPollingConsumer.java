@@ -26,7 +26,7 @@ import org.apache.camel.Processor;
  *
  * @author Steven Swor
  */
-public class RegisterPollingConsumer extends ModbusPollingConsumer<ReadMultipleRegistersRequest, ReadMultipleRegistersResponse, Register> {
+public class RegisterPollingConsumer extends AbstractRegisterPollingConsumer<ReadMultipleRegistersRequest, ReadMultipleRegistersResponse, Register> {
 
     /**
      * Creates a new DiscreteInputsPollingConsumer.
@@ -58,4 +58,14 @@ public class RegisterPollingConsumer extends ModbusPollingConsumer<ReadMultipleR
         }
         return !Arrays.equals(oldValue.toBytes(), newValue.toBytes());
     }
+
+    @Override
+    protected int getWordCount(final ReadMultipleRegistersResponse response) {
+        return response.getWordCount();
+    }
+
+    @Override
+    protected int getWordValue(final ReadMultipleRegistersResponse response, final int index) {
+        return response.getRegisterValue(index);
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.text.MessageFormat;
+import java.util.Map;
+
+/**
+ * The registers of one poll, read through a {@link RegisterLayout}.  The
+ * record holds only the raw register values; fields are decoded when they
+ * are asked for, so reading a numeric field through one of the primitive
+ * getters creates no objects.
+ *
+ * @author Steven Swor
+ */
+public final class RegisterRecord {
+
+    /**
+     * The layout.
+     */
+    private final RegisterLayout layout;
+
+    /**
+     * The raw register values, from the layout's offset 0.
+     */
+    private final int[] words;
+
+    /**
+     * Creates a new RegisterRecord.
+     * @param layout the layout
+     * @param words the raw register values, from the layout's offset 0.  The
+     * record keeps the array, so it must not be changed afterwards.
+     * @throws IllegalArgumentException if there are too few registers for the
+     * layout
+     */
+    public RegisterRecord(final RegisterLayout layout, final int[] words) {
+        layout.checkLength(words.length);
+        this.layout = layout;
+        this.words = words;
+    }
+
+    public RegisterLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Gets the index of a named field.
+     * @param name the name of the field
+     * @return the index of the field
+     * @throws IllegalArgumentException if there is no such field
+     */
+    private int field(final String name) {
+        int field = layout.indexOf(name);
+        if (field < 0) {
+            throw new IllegalArgumentException(MessageFormat.format("No field {0} in register layout {1}", name, layout));
+        }
+        return field;
+    }
+
+    /**
+     * Gets a numeric field as an {@code int}.
+     * @param name the name of the field
+     * @return the value of the field, truncated to an {@code int}
+     */
+    public int getInt(final String name) {
+        return (int) layout.decodeLong(field(name), words);
+    }
+
+    /**
+     * Gets a numeric field as a {@code long}.
+     * @param name the name of the field
+     * @return the value of the field
+     */
+    public long getLong(final String name) {
+        return layout.decodeLong(field(name), words);
+    }
+
+    /**
+     * Gets a numeric field as a {@code float}.
+     * @param name the name of the field
+     * @return the value of the field
+     */
+    public float getFloat(final String name) {
+        return (float) layout.decodeDouble(field(name), words);
+    }
+
+    /**
+     * Gets a numeric field as a {@code double}.
+     * @param name the name of the field
+     * @return the value of the field
+     */
+    public double getDouble(final String name) {
+        return layout.decodeDouble(field(name), words);
+    }
+
+    /**
+     * Gets a string field.
+     * @param name the name of the field
+     * @return the value of the field
+     */
+    public String getString(final String name) {
+        return layout.decodeString(field(name), words);
+    }
+
+    /**
+     * Gets a field in its natural type.
+     * @param name the name of the field
+     * @return the value of the field
+     * @see RegisterLayout#decode(int[])
+     */
+    public Object get(final String name) {
+        return layout.decode(field(name), words);
+    }
+
+    /**
+     * Decodes every field into a map.
+     * @return the values, by field name
+     */
+    public Map<String, Object> toMap() {
+        return layout.decode(words);
+    }
+
+    /**
+     * Gets the raw register values.
+     * @return a copy of the raw register values
+     */
+    public int[] getWords() {
+        int[] result = new int[words.length];
+        System.arraycopy(words, 0, result, 0, words.length);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
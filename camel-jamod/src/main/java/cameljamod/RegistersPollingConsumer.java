@@ -25,7 +25,7 @@ import org.apache.camel.Processor;
  *
  * @author Steven Swor
  */
-public class RegistersPollingConsumer extends ModbusPollingConsumer<ReadMultipleRegistersRequest, ReadMultipleRegistersResponse, Register[]> {
+public class RegistersPollingConsumer extends AbstractRegisterPollingConsumer<ReadMultipleRegistersRequest, ReadMultipleRegistersResponse, Register[]> {
 
     /**
      * Creates a new DiscreteInputsPollingConsumer.
@@ -46,4 +46,14 @@ public class RegistersPollingConsumer extends ModbusPollingConsumer<ReadMultiple
     protected Register[] getBodyFromResponse(ReadMultipleRegistersResponse response) {
         return response.getRegisters();
     }
+
+    @Override
+    protected int getWordCount(final ReadMultipleRegistersResponse response) {
+        return response.getWordCount();
+    }
+
+    @Override
+    protected int getWordValue(final ReadMultipleRegistersResponse response, final int index) {
+        return response.getRegisterValue(index);
+    }
 }
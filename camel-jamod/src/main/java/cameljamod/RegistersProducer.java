@@ -15,9 +15,11 @@
  */
 package cameljamod;
 
+import java.util.Map;
 import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
 import net.wimpi.modbus.msg.WriteMultipleRegistersResponse;
 import net.wimpi.modbus.procimg.Register;
+import org.apache.camel.Exchange;
 
 /**
  *
@@ -25,10 +27,59 @@ import net.wimpi.modbus.procimg.Register;
  */
 public class RegistersProducer extends ModbusProducer<WriteMultipleRegistersRequest, WriteMultipleRegistersResponse, Register[]> {
 
+    /**
+     * How typed values are encoded into registers, or {@code null}.
+     */
+    private RegisterLayout layout = null;
+
     public RegistersProducer(JamodEndpoint endpoint) {
         super(endpoint);
     }
 
+    /**
+     * Gets how typed values are encoded into registers.
+     * @return the layout, or {@code null}
+     */
+    public String getLayout() {
+        return layout == null ? null : layout.toString();
+    }
+
+    /**
+     * Sets how typed values are encoded into registers.  With a layout, the
+     * body may be a {@link RegisterRecord} or a map of values by field name,
+     * and the write covers every register in the layout.
+     * @param layout the layout, as described by {@link RegisterLayout}, or
+     * {@code null} for none
+     * @throws IllegalArgumentException if the layout has gaps
+     */
+    public void setLayout(String layout) {
+        if (layout == null) {
+            this.layout = null;
+            return;
+        }
+        RegisterLayout parsed = RegisterLayout.parse(layout);
+        if (!parsed.isContiguous()) {
+            throw new IllegalArgumentException("Register layouts for writing must not have gaps: " + layout);
+        }
+        this.layout = parsed;
+    }
+
+    @Override
+    protected Register[] getData(final Exchange exchange) {
+        if (layout == null) {
+            return super.getData(exchange);
+        }
+        Object body = exchange.getIn().getBody();
+        if (body instanceof RegisterRecord) {
+            return JamodConverter.toRegisterArray(((RegisterRecord) body).getWords());
+        }
+        Map<?, ?> values = exchange.getIn().getBody(Map.class);
+        if (values == null) {
+            throw new IllegalArgumentException("Expected a map of values for register layout " + layout);
+        }
+        return JamodConverter.toRegisterArray(layout.encode((Map<String, ?>) values));
+    }
+
     @Override
     protected Class<Register[]> getDataTypeClass() {
         return Register[].class;
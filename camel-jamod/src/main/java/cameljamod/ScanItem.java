@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.text.MessageFormat;
+import net.wimpi.modbus.Modbus;
+
+/**
+ * One read in a scan list: a data type, a reference address and a count,
+ * and the name under which its value appears in the snapshot.
+ *
+ * <p>Items can be written as {@code [name=]dataType/reference[/count]}, for
+ * example {@code temperature=inputRegisters/100/2}, where the data type is
+ * {@code coils}, {@code discreteInputs}, {@code registers} or
+ * {@code inputRegisters}.  Items without a name are named
+ * {@code dataType/reference}.</p>
+ *
+ * @author Steven Swor
+ */
+public class ScanItem {
+
+    /**
+     * The name of the item in the snapshot.
+     */
+    private String name;
+
+    /**
+     * The data type.
+     */
+    private String dataType;
+
+    /**
+     * The reference address.
+     */
+    private int referenceAddress;
+
+    /**
+     * The number of registers or bits.
+     */
+    private int count = 1;
+
+    /**
+     * The slave ID, or -1 to use the consumer's.
+     */
+    private int slaveId = -1;
+
+    public ScanItem() {
+    }
+
+    public ScanItem(final String name, final String dataType, final int referenceAddress, final int count) {
+        this.name = name;
+        this.dataType = dataType;
+        this.referenceAddress = referenceAddress;
+        this.count = count;
+    }
+
+    /**
+     * Parses an item.
+     * @param spec the item, as {@code [name=]dataType/reference[/count]}
+     * @return the item
+     * @throws IllegalArgumentException if the item cannot be parsed
+     */
+    public static ScanItem parse(final String spec) {
+        String trimmed = spec.trim();
+        String itemName = null;
+        int equals = trimmed.indexOf('=');
+        if (equals >= 0) {
+            itemName = trimmed.substring(0, equals).trim();
+            trimmed = trimmed.substring(equals + 1).trim();
+        }
+        String[] parts = trimmed.split("/");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException(MessageFormat.format("Expected [name=]dataType/reference[/count] but got {0}", spec));
+        }
+        ScanItem item = new ScanItem();
+        item.setName(itemName);
+        item.setDataType(parts[0]);
+        try {
+            item.setReferenceAddress(Integer.parseInt(parts[1]));
+            if (parts.length == 3) {
+                item.setCount(Integer.parseInt(parts[2]));
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(MessageFormat.format("Expected [name=]dataType/reference[/count] but got {0}", spec), ex);
+        }
+        item.getFunctionCode();
+        return item;
+    }
+
+    /**
+     * Gets the name of the item in the snapshot.
+     * @return the name, which defaults to {@code dataType/reference}
+     */
+    public String getName() {
+        if (name == null || name.length() == 0) {
+            return dataType + "/" + referenceAddress;
+        }
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDataType() {
+        return dataType;
+    }
+
+    /**
+     * Sets the data type.
+     * @param dataType {@code coils}, {@code discreteInputs},
+     * {@code registers} or {@code inputRegisters}
+     */
+    public void setDataType(String dataType) {
+        this.dataType = dataType;
+    }
+
+    public int getReferenceAddress() {
+        return referenceAddress;
+    }
+
+    public void setReferenceAddress(int referenceAddress) {
+        this.referenceAddress = referenceAddress;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Gets the slave ID.
+     * @return the slave ID, or -1 to use the consumer's
+     */
+    public int getSlaveId() {
+        return slaveId;
+    }
+
+    public void setSlaveId(int slaveId) {
+        this.slaveId = slaveId;
+    }
+
+    /**
+     * Gets the function code which reads this item.
+     * @return the function code
+     * @throws IllegalArgumentException if the data type is not supported
+     */
+    int getFunctionCode() {
+        if ("coils".equalsIgnoreCase(dataType)) {
+            return Modbus.READ_COILS;
+        } else if ("discreteInputs".equalsIgnoreCase(dataType)) {
+            return Modbus.READ_INPUT_DISCRETES;
+        } else if ("registers".equalsIgnoreCase(dataType)) {
+            return Modbus.READ_MULTIPLE_REGISTERS;
+        } else if ("inputRegisters".equalsIgnoreCase(dataType)) {
+            return Modbus.READ_INPUT_REGISTERS;
+        }
+        throw new IllegalArgumentException(MessageFormat.format("Unsupported data type: {0}", dataType));
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "=" + dataType + "/" + referenceAddress + "/" + count;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.ReadCoalescer.ReadRange;
+import cameljamod.ReadCoalescer.Scan;
+import cameljamod.net.CircuitOpenException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultScheduledPollConsumer;
+
+/**
+ * A camel consumer which reads a whole list of items from a modbus device
+ * every polling interval, and sends them together as one snapshot.
+ *
+ * <p>When the consumer starts, the items are grouped by slave ID and function
+ * code, and the items of each group are merged into as few requests as the
+ * protocol allows.  Every poll then runs those requests back to back, in
+ * slave, function code and address order, over one pooled connection.  The
+ * message body is a map from item name to value, in the order of the scan
+ * list, holding the same types the single-item consumers send:
+ * {@code Register[]}, {@code InputRegister[]} or {@code BitVector}.  The
+ * items of a slave which is cut off are left out of the snapshot.</p>
+ *
+ * @author Steven Swor
+ */
+public class ScanListPollingConsumer extends DefaultScheduledPollConsumer {
+
+    /**
+     * The endpoint.
+     */
+    private final JamodEndpoint endpoint;
+
+    /**
+     * The items to read.
+     */
+    private List<ScanItem> scanList = Collections.emptyList();
+
+    /**
+     * The slave ID of items which do not have their own.
+     */
+    private int slaveId = 0;
+
+    /**
+     * Only send messages when some value changes.
+     */
+    private boolean changesOnly = false;
+
+    /**
+     * The blocks to read, by slave ID, planned when the consumer starts.
+     */
+    private Map<Integer, List<ReadRange>> plan = null;
+
+    /**
+     * The range of each item.
+     */
+    private ReadRange[] itemRanges = null;
+
+    /**
+     * The slave ID of each item.
+     */
+    private int[] itemSlaveIds = null;
+
+    /**
+     * The values of the previous poll, for change detection.
+     */
+    private final RawValueBuffer lastRawValues = new RawValueBuffer();
+
+    /**
+     * The slave IDs left out of the previous poll, for change detection.
+     */
+    private Set<Integer> lastSkipped = Collections.emptySet();
+
+    /**
+     * Stretches the polling interval while values hold still.
+     */
+    private final AdaptiveDelay adaptiveDelay = new AdaptiveDelay();
+
+    /**
+     * Send a message when a scanned unit is cut off or comes back.
+     */
+    private boolean statusMessages = false;
+
+    /**
+     * Reports the scanned units' status while the consumer is started, if
+     * status messages are wanted.
+     */
+    private UnitStatusReporter statusReporter = null;
+
+    /**
+     * Creates a new ScanListPollingConsumer.
+     *
+     * @param endpoint the endpoint
+     * @param processor the processor
+     */
+    public ScanListPollingConsumer(final JamodEndpoint endpoint, final Processor processor) {
+        super(endpoint, processor);
+        this.endpoint = endpoint;
+    }
+
+    public List<ScanItem> getScanList() {
+        return scanList;
+    }
+
+    public void setScanList(List<ScanItem> scanList) {
+        this.scanList = scanList;
+    }
+
+    public int getSlaveId() {
+        return slaveId;
+    }
+
+    public void setSlaveId(int slaveId) {
+        this.slaveId = slaveId;
+    }
+
+    public boolean isChangesOnly() {
+        return changesOnly;
+    }
+
+    public void setChangesOnly(boolean changesOnly) {
+        this.changesOnly = changesOnly;
+    }
+
+    public boolean isStatusMessages() {
+        return statusMessages;
+    }
+
+    public void setStatusMessages(boolean statusMessages) {
+        this.statusMessages = statusMessages;
+    }
+
+    public long getMinDelay() {
+        return adaptiveDelay.getMinDelay();
+    }
+
+    public void setMinDelay(long minDelay) {
+        adaptiveDelay.setMinDelay(minDelay);
+    }
+
+    public long getMaxDelay() {
+        return adaptiveDelay.getMaxDelay();
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        adaptiveDelay.setMaxDelay(maxDelay);
+    }
+
+    /**
+     * Gets the current polling interval.
+     * @return the current interval, in milliseconds
+     */
+    public long getCurrentDelay() {
+        return adaptiveDelay.isEnabled() ? adaptiveDelay.getInterval() : getDelay();
+    }
+
+    /**
+     * Gets the number of requests one poll performs.
+     * @return the number of requests, or 0 if the consumer has not started
+     */
+    public int getBlockCount() {
+        if (plan == null) {
+            return 0;
+        }
+        int count = 0;
+        for (List<ReadRange> blocks : plan.values()) {
+            count += blocks.size();
+        }
+        return count;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (scanList.isEmpty()) {
+            throw new IllegalArgumentException("The scan list is empty");
+        }
+        int gapTolerance = endpoint.getReadCoalescer().getGapTolerance();
+        // group the items by slave ID and function code; TreeMaps keep the groups in bus order
+        Map<Integer, Map<Integer, List<ReadRange>>> groups = new TreeMap<Integer, Map<Integer, List<ReadRange>>>();
+        itemRanges = new ReadRange[scanList.size()];
+        itemSlaveIds = new int[scanList.size()];
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < scanList.size(); i++) {
+            ScanItem item = scanList.get(i);
+            if (!names.add(item.getName())) {
+                throw new IllegalArgumentException(MessageFormat.format("Duplicate scan list item name: {0}", item.getName()));
+            }
+            itemRanges[i] = new ReadRange(item.getFunctionCode(), item.getReferenceAddress(), item.getCount());
+            itemSlaveIds[i] = item.getSlaveId() < 0 ? slaveId : item.getSlaveId();
+            Map<Integer, List<ReadRange>> byFunctionCode = groups.get(Integer.valueOf(itemSlaveIds[i]));
+            if (byFunctionCode == null) {
+                byFunctionCode = new TreeMap<Integer, List<ReadRange>>();
+                groups.put(Integer.valueOf(itemSlaveIds[i]), byFunctionCode);
+            }
+            List<ReadRange> ranges = byFunctionCode.get(Integer.valueOf(itemRanges[i].functionCode));
+            if (ranges == null) {
+                ranges = new ArrayList<ReadRange>();
+                byFunctionCode.put(Integer.valueOf(itemRanges[i].functionCode), ranges);
+            }
+            ranges.add(itemRanges[i]);
+        }
+        plan = new TreeMap<Integer, List<ReadRange>>();
+        for (Map.Entry<Integer, Map<Integer, List<ReadRange>>> group : groups.entrySet()) {
+            List<ReadRange> blocks = new ArrayList<ReadRange>();
+            for (List<ReadRange> ranges : group.getValue().values()) {
+                int max = ranges.get(0).isBits() ? ReadCoalescer.MAX_BITS : ReadCoalescer.MAX_REGISTERS;
+                blocks.addAll(ReadCoalescer.plan(ranges, max, gapTolerance));
+            }
+            plan.put(group.getKey(), blocks);
+        }
+        lastRawValues.reset();
+        lastSkipped = Collections.emptySet();
+        statusReporter = null;
+        if (statusMessages) {
+            int[] units = new int[plan.size()];
+            int i = 0;
+            for (Integer unit : plan.keySet()) {
+                units[i++] = unit.intValue();
+            }
+            statusReporter = new UnitStatusReporter(endpoint, units);
+        }
+        setDelay(adaptiveDelay.start(getDelay()));
+        super.doStart();
+    }
+
+    @Override
+    protected int poll() throws Exception {
+        if (adaptiveDelay.isEnabled() && !adaptiveDelay.isDue(System.nanoTime())) {
+            return 0;
+        }
+        Map<Integer, Scan> scans = new TreeMap<Integer, Scan>();
+        for (Map.Entry<Integer, List<ReadRange>> entry : plan.entrySet()) {
+            Scan scan = new Scan(entry.getValue());
+            scan.execute(endpoint, entry.getKey().intValue());
+            scans.put(entry.getKey(), scan);
+        }
+        int sent = statusReporter == null ? 0 : statusReporter.report(getProcessor());
+        // a slave which is cut off is left out; any other failed block fails the whole snapshot
+        Set<Integer> skipped = new HashSet<Integer>();
+        for (Map.Entry<Integer, Scan> entry : scans.entrySet()) {
+            Exception failure = entry.getValue().getFailure();
+            if (failure instanceof CircuitOpenException) {
+                skipped.add(entry.getKey());
+            } else if (failure != null) {
+                pollFailed();
+                throw failure;
+            }
+        }
+        if (skipped.size() == scans.size()) {
+            //the device is down; skip polls quietly until its circuit breaker lets a probe through
+            pollFailed();
+            return sent;
+        }
+        boolean changed = !changesOnly && !adaptiveDelay.isEnabled() || hasChanged(scans, skipped);
+        if (adaptiveDelay.isEnabled()) {
+            adaptiveDelay.polled(System.nanoTime(), changed);
+        }
+        if (changesOnly && !changed) {
+            endpoint.polled(false);
+            return sent;
+        }
+        endpoint.polled(true);
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>(scanList.size() * 2);
+        for (int i = 0; i < itemRanges.length; i++) {
+            Integer unit = Integer.valueOf(itemSlaveIds[i]);
+            if (!skipped.contains(unit)) {
+                snapshot.put(scanList.get(i).getName(), getValue(scans.get(unit).slice(itemRanges[i])));
+            }
+        }
+        Exchange exchange = endpoint.createExchange();
+        exchange.getIn().setBody(snapshot);
+        getProcessor().process(exchange);
+        return sent + 1;
+    }
+
+    /**
+     * Backs the adaptive interval off after a poll which sent nothing.
+     */
+    private void pollFailed() {
+        if (adaptiveDelay.isEnabled()) {
+            adaptiveDelay.failed(System.nanoTime());
+        }
+    }
+
+    /**
+     * Determines if any value differs from the previous poll, or if a
+     * different set of slaves was left out.
+     * @param scans the scans of this poll
+     * @param skipped the slave IDs left out of this poll
+     * @return whether or not any value changed
+     */
+    private boolean hasChanged(final Map<Integer, Scan> scans, final Set<Integer> skipped) {
+        int length = 0;
+        for (Scan scan : scans.values()) {
+            length += scan.getValueCount();
+        }
+        boolean changed = lastRawValues.resize(length) | !skipped.equals(lastSkipped);
+        lastSkipped = skipped;
+        int offset = 0;
+        for (Map.Entry<Integer, Scan> entry : scans.entrySet()) {
+            if (!skipped.contains(entry.getKey())) {
+                changed |= entry.getValue().compareAndStore(lastRawValues, offset);
+            }
+            offset += entry.getValue().getValueCount();
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the value of an item from its response.
+     * @param response the response
+     * @return the value
+     */
+    private static Object getValue(final ModbusResponse response) {
+        if (response instanceof ReadMultipleRegistersResponse) {
+            return ((ReadMultipleRegistersResponse) response).getRegisters();
+        } else if (response instanceof ReadInputRegistersResponse) {
+            return ((ReadInputRegistersResponse) response).getRegisters();
+        } else if (response instanceof ReadCoilsResponse) {
+            return ((ReadCoilsResponse) response).getCoils();
+        }
+        return ((ReadInputDiscretesResponse) response).getDiscretes();
+    }
+}
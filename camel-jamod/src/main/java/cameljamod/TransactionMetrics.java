@@ -0,0 +1,365 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.ModbusTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedOperation;
+import org.apache.camel.api.management.ManagedResource;
+
+/**
+ * Counts the transactions of an endpoint or a device, and how long they
+ * took.  Every endpoint keeps its own metrics and also adds to those of its
+ * device; the component registers both as MBeans when Camel's JMX
+ * management is enabled.  The getters take no locks, so they are also cheap
+ * to sample from other metrics registries.
+ *
+ * <p>Byte counts cover the unit identifier and the Modbus PDU, but not the
+ * transport's framing.</p>
+ *
+ * @author Steven Swor
+ */
+@ManagedResource(description = "Modbus transaction metrics")
+public class TransactionMetrics {
+
+    /**
+     * The fewest answered transactions on which a timeout is suggested.
+     */
+    static final int MIN_SAMPLES_FOR_TIMEOUT = 100;
+
+    /**
+     * How many times the 99th percentile latency a suggested timeout is.
+     */
+    static final int TIMEOUT_MARGIN = 3;
+
+    /**
+     * The shortest suggested timeout, in milliseconds.
+     */
+    static final long MIN_SUGGESTED_TIMEOUT = 50L;
+
+    /**
+     * Latencies of transactions which the device answered.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * The number of requests sent.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * The number of transactions which timed out.
+     */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * The number of transactions which failed without an answer from the
+     * device, other than timeouts.
+     */
+    private final AtomicLong ioFailures = new AtomicLong();
+
+    /**
+     * The number of exception responses, by exception code.
+     */
+    private final AtomicLongArray exceptions = new AtomicLongArray(256);
+
+    /**
+     * The number of bytes sent.
+     */
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * The number of bytes received.
+     */
+    private final AtomicLong bytesIn = new AtomicLong();
+
+    /**
+     * The number of transactions in progress.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The number of retries.
+     */
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * The number of retries refused by the device's retry budget.
+     */
+    private final AtomicLong deniedRetries = new AtomicLong();
+
+    /**
+     * The number of polls.
+     */
+    private final AtomicLong polls = new AtomicLong();
+
+    /**
+     * The number of polls which sent no message because nothing changed.
+     */
+    private final AtomicLong suppressedPolls = new AtomicLong();
+
+    /**
+     * Records a request about to be sent.
+     * @param request the request
+     */
+    public void begin(final ModbusRequest request) {
+        inFlight.incrementAndGet();
+        requests.incrementAndGet();
+        bytesOut.addAndGet(request.getDataLength());
+    }
+
+    /**
+     * Records a transaction which the device answered.
+     * @param response the response
+     * @param nanos how long the transaction took, in nanoseconds
+     */
+    public void completed(final ModbusResponse response, final long nanos) {
+        inFlight.decrementAndGet();
+        latency.record(nanos);
+        bytesIn.addAndGet(response.getDataLength());
+    }
+
+    /**
+     * Records a transaction which failed.  Exception responses count towards
+     * the latency, since the device answered them.
+     * @param cause why the transaction failed
+     * @param nanos how long the transaction took, in nanoseconds
+     */
+    public void failed(final Exception cause, final long nanos) {
+        inFlight.decrementAndGet();
+        if (cause instanceof ModbusSlaveException) {
+            exceptions.incrementAndGet(((ModbusSlaveException) cause).getType() & 0xff);
+            latency.record(nanos);
+            // function code, exception code and unit identifier
+            bytesIn.addAndGet(3);
+        } else if (cause instanceof ModbusTimeoutException) {
+            timeouts.incrementAndGet();
+        } else {
+            ioFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the decision to retry a failed transaction.
+     * @param granted whether the retry goes out, or was refused by the
+     * device's retry budget
+     */
+    public void retried(final boolean granted) {
+        if (granted) {
+            retries.incrementAndGet();
+        } else {
+            deniedRetries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a poll.
+     * @param sent whether or not the poll sent a message
+     */
+    public void polled(final boolean sent) {
+        polls.incrementAndGet();
+        if (!sent) {
+            suppressedPolls.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the latencies of transactions which the device answered.
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @ManagedAttribute(description = "Requests sent")
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    @ManagedAttribute(description = "Transactions in progress")
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    @ManagedAttribute(description = "Transactions which timed out")
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @ManagedAttribute(description = "Transactions which failed without a response, other than timeouts")
+    public long getIOFailureCount() {
+        return ioFailures.get();
+    }
+
+    @ManagedAttribute(description = "Exception responses")
+    public long getExceptionResponseCount() {
+        long n = 0;
+        for (int i = 0; i < exceptions.length(); i++) {
+            n += exceptions.get(i);
+        }
+        return n;
+    }
+
+    /**
+     * Gets the number of exception responses with a given exception code.
+     * @param code the exception code
+     * @return the number of exception responses with that code
+     */
+    @ManagedOperation(description = "Exception responses with an exception code")
+    public long getExceptionResponseCount(final int code) {
+        return exceptions.get(code & 0xff);
+    }
+
+    /**
+     * Gets the number of exception responses by exception code.
+     * @return the counts of the exception codes seen, in code order
+     */
+    @ManagedAttribute(description = "Exception responses by exception code")
+    public Map<Integer, Long> getExceptionResponseCounts() {
+        Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (int i = 0; i < exceptions.length(); i++) {
+            long n = exceptions.get(i);
+            if (n > 0) {
+                result.put(Integer.valueOf(i), Long.valueOf(n));
+            }
+        }
+        return result;
+    }
+
+    @ManagedAttribute(description = "Transactions which were retried")
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @ManagedAttribute(description = "Retries refused by the device's retry budget")
+    public long getDeniedRetryCount() {
+        return deniedRetries.get();
+    }
+
+    @ManagedAttribute(description = "Bytes sent")
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @ManagedAttribute(description = "Bytes received")
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @ManagedAttribute(description = "Polls")
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    @ManagedAttribute(description = "Polls which sent no message because nothing changed")
+    public long getSuppressedPollCount() {
+        return suppressedPolls.get();
+    }
+
+    /**
+     * Gets the share of polls which sent no message because nothing
+     * changed.
+     * @return the share of suppressed polls, from 0 to 1
+     */
+    @ManagedAttribute(description = "Share of polls which sent no message because nothing changed")
+    public double getSuppressionRatio() {
+        long n = polls.get();
+        return n == 0 ? 0 : (double) suppressedPolls.get() / n;
+    }
+
+    @ManagedAttribute(description = "Mean latency in milliseconds")
+    public double getMeanLatency() {
+        return latency.getMean() / 1000.0;
+    }
+
+    @ManagedAttribute(description = "Median latency in milliseconds")
+    public double getLatency50() {
+        return getLatencyPercentile(50);
+    }
+
+    @ManagedAttribute(description = "95th percentile latency in milliseconds")
+    public double getLatency95() {
+        return getLatencyPercentile(95);
+    }
+
+    @ManagedAttribute(description = "99th percentile latency in milliseconds")
+    public double getLatency99() {
+        return getLatencyPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99.9th percentile latency in milliseconds")
+    public double getLatency999() {
+        return getLatencyPercentile(99.9);
+    }
+
+    @ManagedAttribute(description = "Longest latency in milliseconds")
+    public double getMaxLatency() {
+        return latency.getMax() / 1000.0;
+    }
+
+    /**
+     * Suggests a timeout from the latencies seen so far: a few times the
+     * 99th percentile, so that slow answers are waited for but lost ones are
+     * given up on long before a generous fixed timeout would.
+     * @return the suggested timeout, in milliseconds, or 0 until enough
+     * transactions were answered
+     */
+    @ManagedAttribute(description = "Timeout in milliseconds suggested by the 99th percentile latency, or 0 until enough transactions were answered")
+    public long getSuggestedTimeout() {
+        if (latency.getCount() < MIN_SAMPLES_FOR_TIMEOUT) {
+            return 0L;
+        }
+        return Math.max(MIN_SUGGESTED_TIMEOUT, (long) Math.ceil(getLatency99() * TIMEOUT_MARGIN));
+    }
+
+    /**
+     * Gets a latency percentile.
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency, in milliseconds
+     */
+    @ManagedOperation(description = "Latency percentile in milliseconds")
+    public double getLatencyPercentile(final double percentile) {
+        return latency.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    /**
+     * Resets every count except the transactions in progress.
+     */
+    @ManagedOperation(description = "Reset the metrics")
+    public void reset() {
+        latency.reset();
+        requests.set(0L);
+        timeouts.set(0L);
+        ioFailures.set(0L);
+        for (int i = 0; i < exceptions.length(); i++) {
+            exceptions.set(i, 0L);
+        }
+        bytesOut.set(0L);
+        bytesIn.set(0L);
+        retries.set(0L);
+        deniedRetries.set(0L);
+        polls.set(0L);
+        suppressedPolls.set(0L);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+/**
+ * Sends a status message whenever one of a consumer's units is cut off or
+ * comes back.
+ *
+ * <p>Availability follows the circuit breaker of the whole device, and
+ * behind a gateway that of each unit as well.  Units start out available, so the first
+ * message a consumer sends about a unit reports it down.  Changes are picked
+ * up when the consumer polls, on the consumer's own thread.</p>
+ *
+ * @author Steven Swor
+ */
+class UnitStatusReporter {
+
+    /**
+     * The endpoint.
+     */
+    private final JamodEndpoint endpoint;
+
+    /**
+     * The units watched.
+     */
+    private final int[] units;
+
+    /**
+     * Whether each unit was down when last reported.
+     */
+    private final boolean[] down;
+
+    /**
+     * Creates a new UnitStatusReporter.
+     * @param endpoint the endpoint
+     * @param units the units to watch
+     */
+    UnitStatusReporter(final JamodEndpoint endpoint, final int... units) {
+        this.endpoint = endpoint;
+        this.units = units.clone();
+        this.down = new boolean[units.length];
+    }
+
+    /**
+     * Sends a status message for every unit whose availability changed since
+     * the last call.
+     * @param processor the processor to send the messages to
+     * @return the number of messages sent
+     * @throws Exception if a message cannot be processed
+     */
+    int report(final Processor processor) throws Exception {
+        int sent = 0;
+        for (int i = 0; i < units.length; i++) {
+            boolean nowDown = !endpoint.isAvailable(units[i]);
+            if (nowDown == down[i]) {
+                continue;
+            }
+            down[i] = nowDown;
+            Exchange exchange = endpoint.createExchange();
+            Message message = exchange.getIn();
+            message.setHeader(JamodEndpoint.UNIT_ID_HEADER, Integer.valueOf(units[i]));
+            message.setHeader(JamodEndpoint.STATUS_HEADER, nowDown ? JamodEndpoint.STATUS_DOWN : JamodEndpoint.STATUS_UP);
+            processor.process(exchange);
+            sent++;
+        }
+        return sent;
+    }
+}
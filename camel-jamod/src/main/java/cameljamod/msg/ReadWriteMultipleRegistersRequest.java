@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.procimg.IllegalAddressException;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * A Read/Write Multiple Registers request (function code 23), which writes
+ * one block of holding registers and then reads another in a single
+ * transaction.
+ *
+ * <p>Jamod's own transports cannot decode the response, so the request only
+ * travels as one transaction over connections which decode frames
+ * themselves.  Other connections fail it unless it is
+ * {@link #setSplittable(boolean) splittable}, in which case they carry it as
+ * a write followed by a read; see {@link #createWriteRequest()} and
+ * {@link #createReadRequest()}.</p>
+ *
+ * @author Steven Swor
+ */
+public final class ReadWriteMultipleRegistersRequest extends ModbusRequest {
+
+    /**
+     * The function code.
+     */
+    public static final int READ_WRITE_MULTIPLE_REGISTERS = 23;
+
+    /**
+     * The largest number of registers one request may read.
+     */
+    public static final int MAX_READ_COUNT = 125;
+
+    /**
+     * The largest number of registers one request may write.
+     */
+    public static final int MAX_WRITE_COUNT = 121;
+
+    /**
+     * The first register to read.
+     */
+    private int readReference;
+
+    /**
+     * The number of registers to read.
+     */
+    private int readCount;
+
+    /**
+     * The first register to write.
+     */
+    private int writeReference;
+
+    /**
+     * The registers to write.
+     */
+    private Register[] registers;
+
+    /**
+     * Whether or not the request may be sent as a separate write and read.
+     */
+    private boolean splittable = false;
+
+    /**
+     * Creates a new, empty request, for decoding.
+     */
+    public ReadWriteMultipleRegistersRequest() {
+        setFunctionCode(READ_WRITE_MULTIPLE_REGISTERS);
+        registers = new Register[0];
+        setDataLength(9);
+    }
+
+    /**
+     * Creates a new ReadWriteMultipleRegistersRequest.
+     * @param readReference the first register to read
+     * @param readCount the number of registers to read
+     * @param writeReference the first register to write
+     * @param registers the registers to write
+     */
+    public ReadWriteMultipleRegistersRequest(final int readReference, final int readCount, final int writeReference, final Register[] registers) {
+        setFunctionCode(READ_WRITE_MULTIPLE_REGISTERS);
+        this.readReference = readReference;
+        this.readCount = readCount;
+        this.writeReference = writeReference;
+        this.registers = registers;
+        setDataLength(9 + registers.length * 2);
+    }
+
+    public int getReadReference() {
+        return readReference;
+    }
+
+    public int getReadCount() {
+        return readCount;
+    }
+
+    public int getWriteReference() {
+        return writeReference;
+    }
+
+    public int getWriteCount() {
+        return registers.length;
+    }
+
+    public Register[] getRegisters() {
+        return registers;
+    }
+
+    public int getRegisterValue(final int index) {
+        return registers[index].toUnsignedShort();
+    }
+
+    /**
+     * Determines if connections which cannot carry function code 23 may send
+     * the request as a separate write and read.
+     * @return whether or not the request may be split
+     */
+    public boolean isSplittable() {
+        return splittable;
+    }
+
+    /**
+     * Sets whether connections which cannot carry function code 23 may send
+     * the request as a separate write and read.  Off by default, because
+     * the two are not atomic: another master may change the registers in
+     * between, and the write stands even if the read fails.
+     * @param splittable whether or not the request may be split
+     */
+    public void setSplittable(final boolean splittable) {
+        this.splittable = splittable;
+    }
+
+    /**
+     * Creates the write half of the request, for connections which cannot
+     * carry function code 23.
+     * @return the write request
+     */
+    public ModbusRequest createWriteRequest() {
+        ModbusRequest request = new WriteMultipleRegistersRequest(writeReference, registers);
+        request.setUnitID(getUnitID());
+        return request;
+    }
+
+    /**
+     * Creates the read half of the request, for connections which cannot
+     * carry function code 23.
+     * @return the read request
+     */
+    public ModbusRequest createReadRequest() {
+        ModbusRequest request = new ReadMultipleRegistersRequest(readReference, readCount);
+        request.setUnitID(getUnitID());
+        return request;
+    }
+
+    /**
+     * Serves the request from the {@link ModbusCoupler}'s process image, as
+     * jamod's own requests do: the registers are written first, and then the
+     * read registers are copied into the response.
+     * @return the response, or an exception response if either range is
+     * outside the process image or there is no process image
+     */
+    public ModbusResponse createResponse() {
+        ProcessImage image = ModbusCoupler.getReference().getProcessImage();
+        if (image == null) {
+            return createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+        }
+        Register[] values;
+        try {
+            Register[] written = image.getRegisterRange(writeReference, registers.length);
+            Register[] read = image.getRegisterRange(readReference, readCount);
+            for (int i = 0; i < written.length; i++) {
+                written[i].setValue(getRegisterValue(i));
+            }
+            values = new Register[read.length];
+            for (int i = 0; i < read.length; i++) {
+                values[i] = new SimpleRegister(read[i].getValue());
+            }
+        } catch (IllegalAddressException ex) {
+            return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }
+        ReadWriteMultipleRegistersResponse response = new ReadWriteMultipleRegistersResponse(values);
+        if (isHeadless()) {
+            response.setHeadless();
+        } else {
+            response.setTransactionID(getTransactionID());
+            response.setProtocolID(getProtocolID());
+        }
+        response.setUnitID(getUnitID());
+        return response;
+    }
+
+    public void writeData(final DataOutput out) throws IOException {
+        out.writeShort(readReference);
+        out.writeShort(readCount);
+        out.writeShort(writeReference);
+        out.writeShort(registers.length);
+        out.writeByte(registers.length * 2);
+        for (Register register : registers) {
+            out.write(register.toBytes());
+        }
+    }
+
+    public void readData(final DataInput in) throws IOException {
+        readReference = in.readUnsignedShort();
+        readCount = in.readUnsignedShort();
+        writeReference = in.readUnsignedShort();
+        int writeCount = in.readUnsignedShort();
+        int byteCount = in.readUnsignedByte();
+        if (byteCount != writeCount * 2) {
+            throw new IOException("Byte count does not match write count");
+        }
+        registers = new Register[writeCount];
+        for (int i = 0; i < writeCount; i++) {
+            registers[i] = new SimpleRegister(in.readUnsignedShort());
+        }
+        setDataLength(9 + byteCount);
+    }
+}
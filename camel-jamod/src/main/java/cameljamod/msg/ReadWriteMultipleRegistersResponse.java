@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * The response to a {@link ReadWriteMultipleRegistersRequest}, holding the
+ * registers read.
+ *
+ * @author Steven Swor
+ */
+public final class ReadWriteMultipleRegistersResponse extends ModbusResponse {
+
+    /**
+     * The registers read.
+     */
+    private Register[] registers;
+
+    /**
+     * Creates a new, empty response, for decoding.
+     */
+    public ReadWriteMultipleRegistersResponse() {
+        this(new Register[0]);
+    }
+
+    /**
+     * Creates a new ReadWriteMultipleRegistersResponse.
+     * @param registers the registers read
+     */
+    public ReadWriteMultipleRegistersResponse(final Register[] registers) {
+        setFunctionCode(ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS);
+        this.registers = registers;
+        setDataLength(1 + registers.length * 2);
+    }
+
+    public int getWordCount() {
+        return registers.length;
+    }
+
+    public Register[] getRegisters() {
+        return registers;
+    }
+
+    public int getRegisterValue(final int index) {
+        return registers[index].toUnsignedShort();
+    }
+
+    public void writeData(final DataOutput out) throws IOException {
+        out.writeByte(registers.length * 2);
+        for (Register register : registers) {
+            out.write(register.toBytes());
+        }
+    }
+
+    public void readData(final DataInput in) throws IOException {
+        int byteCount = in.readUnsignedByte();
+        registers = new Register[byteCount / 2];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = new SimpleRegister(in.readUnsignedShort());
+        }
+        setDataLength(1 + byteCount);
+    }
+}
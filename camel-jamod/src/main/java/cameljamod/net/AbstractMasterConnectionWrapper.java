@@ -16,9 +16,16 @@
 
 package cameljamod.net;
 
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
 import java.net.InetAddress;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
 import net.wimpi.modbus.io.ModbusTransaction;
 import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
 
 /**
  * Parent class for Modbus master connections.  This exists because the master
@@ -34,6 +41,11 @@ public abstract class AbstractMasterConnectionWrapper<T> {
      */
     private final T masterConnection;
     
+    /**
+     * The number of times a transaction is retried.
+     */
+    private int retries = Modbus.DEFAULT_RETRIES;
+    
     /**
      * Creates a new AbstractMasterConnectionWrapper.
      * @param masterConnection the underlying modbus connection
@@ -103,6 +115,24 @@ public abstract class AbstractMasterConnectionWrapper<T> {
      */
     public abstract void setTimeout(final int timeout);
     
+    /**
+     * Gets the number of times the connection's transactions are retried.
+     * @return the number of retries
+     */
+    public int getRetries() {
+        return retries;
+    }
+    
+    /**
+     * Sets the number of times the connection's transactions are retried
+     * before they fail.  Callers which retry on a fresh connection themselves
+     * set this to 0.
+     * @param retries the number of retries
+     */
+    public void setRetries(final int retries) {
+        this.retries = retries;
+    }
+    
     /**
      * Determines if the connection is connected.
      * @return wheter or not the connection is connected.
@@ -110,8 +140,134 @@ public abstract class AbstractMasterConnectionWrapper<T> {
     public abstract boolean isConnected();
     
     /**
-     * Creates a new transaction.
+     * Determines if the connection can still be used.  Pools call this before
+     * handing out an idle connection.
+     * @return whether or not the connection can still be used
+     */
+    public boolean isValid() {
+        return isConnected();
+    }
+    
+    /**
+     * Determines if the connection can carry transactions for several threads
+     * at once.  Pools share a multiplexed connection between all of a
+     * device's users instead of leasing it exclusively.
+     * @return whether or not the connection is multiplexed
+     */
+    public boolean isMultiplexed() {
+        return false;
+    }
+    
+    /**
+     * Determines if the connection can carry a
+     * {@link ReadWriteMultipleRegistersRequest} as one transaction.  Jamod's
+     * transports cannot decode its response, so connections built on them
+     * fail it, or carry it as a write followed by a read if it is
+     * {@link ReadWriteMultipleRegistersRequest#isSplittable() splittable}.
+     * @return whether or not function code 23 is sent as is
+     */
+    public boolean supportsReadWriteMultipleRegisters() {
+        return false;
+    }
+    
+    /**
+     * Creates a new transaction which is retried {@link #getRetries()} times.
      * @return a new transaction
      */
     public abstract ModbusTransaction createTransaction();
+
+    /**
+     * Creates a transaction which waits no longer than a given time for its
+     * response.  The default implementation applies the timeout to the
+     * connection, which suits connections leased by one borrower at a time.
+     * Multiplexed connections override this to time each transaction on its
+     * own.
+     * @param timeout the timeout, in milliseconds
+     * @return the transaction
+     */
+    public ModbusTransaction createTransaction(final int timeout) {
+        if (getTimeout() != timeout) {
+            setTimeout(timeout);
+        }
+        return createTransaction();
+    }
+
+    /**
+     * Executes a request and reports the outcome to a callback, using the
+     * connection's timeout.
+     * @param request the request
+     * @param callback notified when the transaction completes or fails
+     * @see #execute(ModbusRequest, int, TransactionCallback)
+     */
+    public void execute(final ModbusRequest request, final TransactionCallback callback) {
+        execute(request, getTimeout(), callback);
+    }
+
+    /**
+     * Executes a request and reports the outcome to a callback.  The default
+     * implementation runs a blocking transaction on the calling thread, so the
+     * callback has been invoked by the time this returns.  Non-blocking
+     * connections override this to return immediately.
+     * @param request the request
+     * @param timeout how long to wait for the response, in milliseconds
+     * @param callback notified when the transaction completes or fails
+     */
+    public void execute(final ModbusRequest request, final int timeout, final TransactionCallback callback) {
+        ModbusResponse response;
+        try {
+            if (request instanceof ReadWriteMultipleRegistersRequest && !supportsReadWriteMultipleRegisters()) {
+                response = executeSplit((ReadWriteMultipleRegistersRequest) request, timeout);
+            } else {
+                response = execute(request, timeout);
+            }
+        } catch (ModbusException ex) {
+            callback.failed(ex);
+            return;
+        }
+        callback.completed(response);
+    }
+
+    /**
+     * Carries a Read/Write Multiple Registers request as a write followed by
+     * a read, if the request allows it.  A read which fails after the write
+     * succeeded is reported as a plain {@link ModbusException}, not an I/O
+     * failure, so that it is not retried and the registers are not written
+     * twice.
+     * @param readWrite the request
+     * @param timeout how long to wait for each response, in milliseconds
+     * @return the response
+     * @throws ModbusException if the request may not be split, or either
+     * half fails
+     */
+    private ModbusResponse executeSplit(final ReadWriteMultipleRegistersRequest readWrite, final int timeout) throws ModbusException {
+        if (!readWrite.isSplittable()) {
+            throw new ModbusException("Read/Write Multiple Registers needs a connection which decodes frames itself, or splitReadWrite=true");
+        }
+        execute(readWrite.createWriteRequest(), timeout);
+        ReadMultipleRegistersResponse read;
+        try {
+            read = (ReadMultipleRegistersResponse) execute(readWrite.createReadRequest(), timeout);
+        } catch (ModbusException ex) {
+            ModbusException failure = new ModbusException("Registers were written, but reading them back failed: " + ex.getMessage());
+            failure.initCause(ex);
+            throw failure;
+        }
+        ModbusResponse response = new ReadWriteMultipleRegistersResponse(read.getRegisters());
+        response.setUnitID(read.getUnitID());
+        return response;
+    }
+
+    /**
+     * Runs a blocking transaction on the calling thread.
+     * @param request the request
+     * @param timeout how long to wait for the response, in milliseconds
+     * @return the response
+     * @throws ModbusException if the transaction fails
+     */
+    private ModbusResponse execute(final ModbusRequest request, final int timeout) throws ModbusException {
+        ModbusTransaction transaction = createTransaction(timeout);
+        transaction.setRequest(request);
+        transaction.execute();
+        return transaction.getResponse();
+    }
 }
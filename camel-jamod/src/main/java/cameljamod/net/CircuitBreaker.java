@@ -0,0 +1,301 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.text.MessageFormat;
+import java.util.Random;
+
+/**
+ * Tracks the health of one device and stops sending it requests while it is
+ * down.
+ *
+ * <p>Every request to a device first asks the breaker for permission.  After
+ * {@link #getFailureThreshold()} transactions in a row fail without an answer
+ * from the device, the breaker opens and refuses every request with a
+ * {@link CircuitOpenException}, so that a dead link costs neither connect
+ * attempts nor blocked threads.  Once the backoff delay has passed, one
+ * request is let through as a probe (the half-open state): if it succeeds
+ * the breaker closes again, otherwise it reopens with twice the delay, up to
+ * {@link #getMaxBackoff()}.  Delays are jittered so that the devices of a
+ * remote site which dropped together are not all probed at once.</p>
+ *
+ * <p>Exception responses count as successes, since the device answered.
+ * Only a run of consecutive failures opens the breaker, so a single silent
+ * unit behind a gateway cannot cut off the gateway's other units.</p>
+ *
+ * @author Steven Swor
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a breaker.
+     */
+    public static enum State {
+
+        /**
+         * Requests flow normally.
+         */
+        CLOSED,
+        /**
+         * Requests are refused until the backoff delay has passed.
+         */
+        OPEN,
+        /**
+         * A probe is on its way; other requests are refused until it
+         * finishes.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The default number of consecutive failures which opens the breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default delay before the first probe, in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000L;
+
+    /**
+     * The default longest delay between probes, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 60000L;
+
+    /**
+     * The device, for messages.
+     */
+    private final String device;
+
+    /**
+     * Jitters the delays.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The number of consecutive failures which opens the breaker, or 0 to
+     * never open it.
+     */
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /**
+     * The delay before the first probe, in milliseconds.
+     */
+    private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+
+    /**
+     * The longest delay between probes, in milliseconds.
+     */
+    private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    /**
+     * The current state.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The number of failures since the last success.
+     */
+    private int consecutiveFailures = 0;
+
+    /**
+     * The number of times the breaker opened since it was last closed.
+     */
+    private int attempts = 0;
+
+    /**
+     * When the next probe may go out, in {@link System#nanoTime()} units.
+     */
+    private long retryAt;
+
+    /**
+     * The number of times the breaker opened.
+     */
+    private long openCount = 0;
+
+    /**
+     * The number of requests refused.
+     */
+    private long rejectedCount = 0;
+
+    /**
+     * Creates a new CircuitBreaker.
+     * @param device the device, for messages
+     */
+    public CircuitBreaker(final String device) {
+        this.device = device;
+    }
+
+    /**
+     * Gets the number of consecutive failures which opens the breaker.
+     * @return the failure threshold, or 0 if the breaker never opens
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures which opens the breaker.
+     * @param failureThreshold the failure threshold, or 0 to never open
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Gets the delay before the first probe.
+     * @return the delay, in milliseconds
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Sets the delay before the first probe.
+     * @param initialBackoff the delay, in milliseconds
+     */
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Gets the longest delay between probes.
+     * @return the delay, in milliseconds
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Sets the longest delay between probes.
+     * @param maxBackoff the delay, in milliseconds
+     */
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Asks permission to send a request.
+     * @return {@code true} if the request is the probe, which must be handed
+     * back with {@link #cancelProbe()} if it is not sent after all
+     * @throws CircuitOpenException if the device is considered down
+     */
+    public boolean acquire() throws CircuitOpenException {
+        return acquire(System.nanoTime());
+    }
+
+    /**
+     * Asks permission to send a request at a given time.
+     * @param now the time, in {@link System#nanoTime()} units
+     * @return {@code true} if the request is the probe
+     * @throws CircuitOpenException if the device is considered down
+     */
+    synchronized boolean acquire(final long now) throws CircuitOpenException {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        if (now - retryAt >= 0) {
+            // let one probe through; if it never reports back, the next
+            // request after another delay probes again
+            state = State.HALF_OPEN;
+            retryAt = now + backoff() * 1000000L;
+            return true;
+        }
+        rejectedCount++;
+        throw new CircuitOpenException(MessageFormat.format("{0} is down; next attempt in {1}ms", device, String.valueOf((retryAt - now) / 1000000L)));
+    }
+
+    /**
+     * Hands back a probe which was never sent, so that the next request
+     * probes straight away rather than after another delay.
+     */
+    public void cancelProbe() {
+        cancelProbe(System.nanoTime());
+    }
+
+    /**
+     * Hands back a probe which was never sent at a given time.
+     * @param now the time, in {@link System#nanoTime()} units
+     */
+    synchronized void cancelProbe(final long now) {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            retryAt = now;
+        }
+    }
+
+    /**
+     * Records a transaction which the device answered.
+     */
+    public synchronized void succeeded() {
+        consecutiveFailures = 0;
+        attempts = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a transaction which failed without an answer.
+     */
+    public void failed() {
+        failed(System.nanoTime());
+    }
+
+    /**
+     * Records a transaction which failed without an answer at a given time.
+     * @param now the time, in {@link System#nanoTime()} units
+     */
+    synchronized void failed(final long now) {
+        consecutiveFailures++;
+        int threshold = failureThreshold;
+        if (state == State.HALF_OPEN || threshold > 0 && state == State.CLOSED && consecutiveFailures >= threshold) {
+            state = State.OPEN;
+            attempts++;
+            openCount++;
+            retryAt = now + backoff() * 1000000L;
+        }
+    }
+
+    /**
+     * Gets the delay before the next probe: the initial backoff, doubled
+     * for every failed probe and capped, of which a random half is taken
+     * off.
+     * @return the delay, in milliseconds
+     */
+    private long backoff() {
+        long delay = initialBackoff;
+        for (int i = 1; i < attempts && delay < maxBackoff; i++) {
+            delay *= 2;
+        }
+        delay = Math.max(1L, Math.min(delay, maxBackoff));
+        return delay - (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Thrown instead of sending a request to a device which a
+ * {@link CircuitBreaker} considers down.
+ *
+ * @author Steven Swor
+ */
+public class CircuitOpenException extends ModbusIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new CircuitOpenException.
+     * @param message the detail message
+     */
+    public CircuitOpenException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import java.io.DataInputStream;
+import java.io.IOException;
+import net.wimpi.modbus.io.BytesInputStream;
+import net.wimpi.modbus.io.BytesOutputStream;
+import net.wimpi.modbus.msg.IllegalFunctionRequest;
+import net.wimpi.modbus.msg.ModbusMessageImpl;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Encodes and decodes Modbus/TCP frames (MBAP header followed by the PDU).
+ *
+ * <p>The MBAP header is seven bytes: a two-byte transaction identifier, a
+ * two-byte protocol identifier (always zero), a two-byte length covering the
+ * rest of the frame, and the one-byte unit identifier.</p>
+ *
+ * @author Steven Swor
+ */
+public final class MBAPCodec {
+
+    /**
+     * The length of the MBAP header, including the unit identifier.
+     */
+    public static final int HEADER_LENGTH = 7;
+
+    /**
+     * The largest possible Modbus/TCP frame.
+     */
+    public static final int MAX_FRAME_LENGTH = 260;
+
+    private MBAPCodec() {
+    }
+
+    /**
+     * Encodes a request or response as a Modbus/TCP frame.
+     * @param message the request or response
+     * @param transactionId the transaction identifier to put in the header
+     * @return the frame
+     * @throws IOException if the message cannot be encoded
+     */
+    public static byte[] encode(final ModbusMessageImpl message, final int transactionId) throws IOException {
+        BytesOutputStream out = new BytesOutputStream(MAX_FRAME_LENGTH);
+        out.writeShort(transactionId);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeByte(message.getUnitID());
+        out.writeByte(message.getFunctionCode());
+        message.writeData(out);
+        int frameLength = out.size();
+        byte[] frame = new byte[frameLength];
+        System.arraycopy(out.getBuffer(), 0, frame, 0, frameLength);
+        int length = frameLength - 6;
+        frame[4] = (byte) (length >> 8);
+        frame[5] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Reads one complete frame from a stream.
+     * @param in the stream
+     * @return the frame, including its MBAP header
+     * @throws IOException if the stream ends or the frame is malformed
+     */
+    public static byte[] readFrame(final DataInputStream in) throws IOException {
+        byte[] header = new byte[6];
+        in.readFully(header);
+        int protocolId = getProtocolId(header, 0);
+        if (protocolId != 0) {
+            throw new IOException("Invalid MBAP protocol identifier: " + protocolId);
+        }
+        int length = getLength(header, 0);
+        if (length < 2 || length + 6 > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid MBAP length: " + length);
+        }
+        byte[] frame = new byte[6 + length];
+        System.arraycopy(header, 0, frame, 0, 6);
+        in.readFully(frame, 6, length);
+        return frame;
+    }
+
+    /**
+     * Gets the transaction identifier from a frame.
+     * @param frame the frame
+     * @param offset the offset of the frame's first byte
+     * @return the transaction identifier
+     */
+    public static int getTransactionId(final byte[] frame, final int offset) {
+        return ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff);
+    }
+
+    /**
+     * Gets the protocol identifier from a frame.  It is zero for Modbus.
+     * @param frame the frame
+     * @param offset the offset of the frame's first byte
+     * @return the protocol identifier
+     */
+    public static int getProtocolId(final byte[] frame, final int offset) {
+        return ((frame[offset + 2] & 0xff) << 8) | (frame[offset + 3] & 0xff);
+    }
+
+    /**
+     * Gets the MBAP length field from a frame.  This is the number of bytes
+     * which follow the length field.
+     * @param frame the frame
+     * @param offset the offset of the frame's first byte
+     * @return the MBAP length field
+     */
+    public static int getLength(final byte[] frame, final int offset) {
+        return ((frame[offset + 4] & 0xff) << 8) | (frame[offset + 5] & 0xff);
+    }
+
+    /**
+     * Decodes a response frame.
+     * @param frame the frame, including its MBAP header
+     * @param length the number of bytes in the frame
+     * @return the response
+     * @throws IOException if the frame cannot be decoded
+     */
+    public static ModbusResponse decodeResponse(final byte[] frame, final int length) throws IOException {
+        if (length <= HEADER_LENGTH) {
+            throw new IOException("Truncated Modbus/TCP frame");
+        }
+        ModbusResponse response = createResponse(frame[HEADER_LENGTH] & 0xff);
+        BytesInputStream in = new BytesInputStream(length);
+        in.reset(frame, length);
+        try {
+            response.readFrom(in);
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed Modbus/TCP response: " + ex);
+        }
+        return response;
+    }
+
+    /**
+     * Decodes a request frame.
+     * @param frame the frame, including its MBAP header
+     * @param length the number of bytes in the frame
+     * @return the request
+     * @throws IOException if the frame cannot be decoded
+     */
+    public static ModbusRequest decodeRequest(final byte[] frame, final int length) throws IOException {
+        if (length <= HEADER_LENGTH) {
+            throw new IOException("Truncated Modbus/TCP frame");
+        }
+        ModbusRequest request = createRequest(frame[HEADER_LENGTH] & 0xff);
+        BytesInputStream in = new BytesInputStream(length);
+        in.reset(frame, length);
+        try {
+            request.readFrom(in);
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed Modbus/TCP request: " + ex);
+        }
+        return request;
+    }
+
+    /**
+     * Creates an empty response to decode into.  Unlike Jamod, this knows
+     * the messages of {@link cameljamod.msg}.
+     * @param functionCode the function code
+     * @return the response
+     */
+    static ModbusResponse createResponse(final int functionCode) {
+        if (functionCode == ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS) {
+            return new ReadWriteMultipleRegistersResponse();
+        }
+        return ModbusResponse.createModbusResponse(functionCode);
+    }
+
+    /**
+     * Tells whether {@link #decodeRequest(byte[], int)} knows a function.
+     * @param functionCode the function code
+     * @return {@code true} if requests with the function code can be decoded
+     */
+    static boolean isSupported(final int functionCode) {
+        return !(createRequest(functionCode) instanceof IllegalFunctionRequest);
+    }
+
+    /**
+     * Creates an empty request to decode into.  Unlike Jamod, this knows the
+     * messages of {@link cameljamod.msg}.
+     * @param functionCode the function code
+     * @return the request
+     */
+    static ModbusRequest createRequest(final int functionCode) {
+        if (functionCode == ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS) {
+            return new ReadWriteMultipleRegistersRequest();
+        }
+        return ModbusRequest.createModbusRequest(functionCode);
+    }
+}
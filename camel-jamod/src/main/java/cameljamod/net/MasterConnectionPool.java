@@ -0,0 +1,542 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Pool of Modbus master connections, keyed by device.
+ *
+ * <p>Each device (typically identified by {@code protocol://host:port}) gets
+ * at most {@link #getMaxConnectionsPerDevice()} open connections, no matter
+ * how many endpoints talk to it.  Connections are leased exclusively through
+ * {@link #borrow(String, MasterConnectionFactory)} and must be handed back
+ * through {@link #release(String, AbstractMasterConnectionWrapper)} or, if
+ * they are known to be broken, {@link #invalidate(String,
+ * AbstractMasterConnectionWrapper)}.</p>
+ *
+ * <p>{@linkplain AbstractMasterConnectionWrapper#isMultiplexed() Multiplexed}
+ * connections are the exception: the first one created for a device is
+ * shared by every borrower until it sits idle long enough to be evicted.</p>
+ *
+ * <p>Every connection is handed back to the device pool which created it,
+ * even after {@link #close()}, so that connections still leased when the pool
+ * is closed are closed as soon as they are released.</p>
+ *
+ * @author Steven Swor
+ */
+public class MasterConnectionPool {
+
+    /**
+     * The default maximum number of connections per device.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_DEVICE = 4;
+
+    /**
+     * The default idle timeout, in milliseconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+
+    /**
+     * The default borrow timeout, in milliseconds.
+     */
+    public static final long DEFAULT_BORROW_TIMEOUT = 5000L;
+
+    /**
+     * How often a waiting borrower checks whether a shared connection has
+     * been created, in milliseconds.
+     */
+    private static final long SHARED_POLL_INTERVAL = 50L;
+
+    /**
+     * The per-device pools.
+     */
+    private final ConcurrentMap<String, DevicePool> devices = new ConcurrentHashMap<String, DevicePool>();
+
+    /**
+     * The device pool which created each open connection.
+     */
+    private final ConcurrentMap<AbstractMasterConnectionWrapper<?>, DevicePool> owners = new ConcurrentHashMap<AbstractMasterConnectionWrapper<?>, DevicePool>();
+
+    /**
+     * The maximum number of connections per device.
+     */
+    private volatile int maxConnectionsPerDevice = DEFAULT_MAX_CONNECTIONS_PER_DEVICE;
+
+    /**
+     * How long a connection may sit idle before it is evicted.
+     */
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * How long to wait for a connection when a device's pool is exhausted.
+     */
+    private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+    /**
+     * Whether or not to validate idle connections before handing them out.
+     */
+    private volatile boolean validateOnBorrow = true;
+
+    /**
+     * Gets the maximum number of connections per device.
+     * @return the maximum number of connections per device
+     */
+    public int getMaxConnectionsPerDevice() {
+        return maxConnectionsPerDevice;
+    }
+
+    /**
+     * Sets the maximum number of connections per device.  This only affects
+     * devices which have not been used yet.
+     * @param maxConnectionsPerDevice the maximum number of connections per
+     * device
+     */
+    public void setMaxConnectionsPerDevice(int maxConnectionsPerDevice) {
+        if (maxConnectionsPerDevice < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerDevice must be at least 1");
+        }
+        this.maxConnectionsPerDevice = maxConnectionsPerDevice;
+    }
+
+    /**
+     * Gets the idle timeout.
+     * @return the idle timeout, in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the idle timeout.
+     * @param idleTimeout the idle timeout, in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets the borrow timeout.
+     * @return the borrow timeout, in milliseconds
+     */
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Sets the borrow timeout.
+     * @param borrowTimeout the borrow timeout, in milliseconds
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * Determines whether idle connections are validated before being handed
+     * out.
+     * @return {@code true} if idle connections are validated on borrow
+     */
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    /**
+     * Sets whether idle connections are validated before being handed out.
+     * @param validateOnBorrow {@code true} to validate idle connections on
+     * borrow
+     */
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    /**
+     * Leases a connection to a device.  Idle connections are reused when
+     * possible; otherwise a new connection is created with the factory.
+     * @param key the device key
+     * @param factory creates new connections for the device
+     * @return a leased connection
+     * @throws ModbusIOException if no connection becomes available within the
+     * borrow timeout
+     * @throws InterruptedException if interrupted while waiting for a
+     * connection
+     */
+    public AbstractMasterConnectionWrapper<?> borrow(final String key, final MasterConnectionFactory factory) throws ModbusIOException, InterruptedException {
+        DevicePool pool = getDevicePool(key);
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+        AbstractMasterConnectionWrapper<?> shared = pool.leaseShared();
+        while (shared == null && !pool.permits.tryAcquire(Math.min(SHARED_POLL_INTERVAL, Math.max(0L, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new ModbusIOException(MessageFormat.format("No connection to {0} became available within {1}ms", key, String.valueOf(borrowTimeout)));
+            }
+            shared = pool.leaseShared();
+        }
+        if (shared != null) {
+            return shared;
+        }
+        try {
+            AbstractMasterConnectionWrapper<?> connection;
+            while ((connection = pool.pollIdle()) != null) {
+                if (!validateOnBorrow || connection.isValid()) {
+                    return connection;
+                }
+                discard(connection);
+            }
+            connection = factory.createConnection();
+            owners.put(connection, pool);
+            if (connection.isMultiplexed()) {
+                AbstractMasterConnectionWrapper<?> winner = pool.installShared(connection);
+                if (winner != connection) {
+                    discard(connection);
+                    pool.permits.release();
+                }
+                return winner;
+            }
+            return connection;
+        } catch (RuntimeException ex) {
+            pool.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a leased connection to the pool.
+     * @param key the device key
+     * @param connection the connection
+     */
+    public void release(final String key, final AbstractMasterConnectionWrapper<?> connection) {
+        DevicePool pool = getOwner(key, connection);
+        if (pool.releaseShared(connection)) {
+            retireShared(pool, connection);
+            return;
+        }
+        if (!connection.isConnected() || !pool.offerIdle(connection)) {
+            discard(connection);
+        }
+        pool.permits.release();
+    }
+
+    /**
+     * Closes a leased connection and frees its slot in the pool.  Use this
+     * instead of {@link #release(String, AbstractMasterConnectionWrapper)}
+     * when a connection is known to be broken.  Multiplexed connections
+     * recover on their own and are simply released, since closing them would
+     * fail every other transaction in flight.
+     * @param key the device key
+     * @param connection the connection
+     */
+    public void invalidate(final String key, final AbstractMasterConnectionWrapper<?> connection) {
+        DevicePool pool = getOwner(key, connection);
+        if (pool.releaseShared(connection)) {
+            retireShared(pool, connection);
+            return;
+        }
+        try {
+            discard(connection);
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * Closes connections which have been idle for longer than the idle
+     * timeout.
+     * @return the number of connections closed
+     */
+    public int evictIdleConnections() {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        int evicted = 0;
+        for (DevicePool pool : devices.values()) {
+            evicted += discard(pool.evictIdleSince(cutoff));
+        }
+        return evicted;
+    }
+
+    /**
+     * Gets the number of idle connections to a device.
+     * @param key the device key
+     * @return the number of idle connections to the device
+     */
+    public int getIdleCount(final String key) {
+        DevicePool pool = devices.get(key);
+        return pool == null ? 0 : pool.idleCount();
+    }
+
+    /**
+     * Gets the number of leased connections to a device.  A shared connection
+     * counts as leased only while somebody is using it.
+     * @param key the device key
+     * @return the number of leased connections to the device
+     */
+    public int getActiveCount(final String key) {
+        DevicePool pool = devices.get(key);
+        return pool == null ? 0 : pool.activeCount();
+    }
+
+    /**
+     * Closes all idle connections, including shared connections nobody is
+     * using, and forgets all devices.  Connections which are still leased,
+     * shared or not, are closed when they are released.
+     */
+    public void close() {
+        for (Map.Entry<String, DevicePool> entry : devices.entrySet()) {
+            devices.remove(entry.getKey(), entry.getValue());
+            discard(entry.getValue().close());
+        }
+    }
+
+    /**
+     * Finds the device pool which created a connection.
+     * @param key the device key, for connections the pool does not know
+     * @param connection the connection
+     * @return the device's pool
+     */
+    private DevicePool getOwner(final String key, final AbstractMasterConnectionWrapper<?> connection) {
+        DevicePool pool = owners.get(connection);
+        return pool != null ? pool : getDevicePool(key);
+    }
+
+    /**
+     * Closes the shared connection of a closed device pool once its last
+     * borrower has released it.
+     * @param pool the device pool
+     * @param connection the released shared connection
+     */
+    private void retireShared(final DevicePool pool, final AbstractMasterConnectionWrapper<?> connection) {
+        if (pool.closed && pool.retireShared(connection)) {
+            discard(connection);
+        }
+    }
+
+    /**
+     * Closes a connection and forgets which pool created it.
+     * @param connection the connection
+     */
+    private void discard(final AbstractMasterConnectionWrapper<?> connection) {
+        owners.remove(connection);
+        connection.close();
+    }
+
+    /**
+     * Closes connections and forgets which pool created them.
+     * @param connections the connections
+     * @return the number of connections closed
+     */
+    private int discard(final List<AbstractMasterConnectionWrapper<?>> connections) {
+        for (AbstractMasterConnectionWrapper<?> connection : connections) {
+            discard(connection);
+        }
+        return connections.size();
+    }
+
+    /**
+     * Gets or creates the pool for a device.
+     * @param key the device key
+     * @return the device's pool
+     */
+    private DevicePool getDevicePool(final String key) {
+        DevicePool pool = devices.get(key);
+        if (pool == null) {
+            DevicePool newPool = new DevicePool(maxConnectionsPerDevice);
+            pool = devices.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * The connections to a single device.
+     */
+    private static final class DevicePool {
+
+        /**
+         * The maximum number of connections.
+         */
+        private final int size;
+
+        /**
+         * One permit per connection which may be leased.
+         */
+        private final Semaphore permits;
+
+        /**
+         * Idle connections, most recently used first.
+         */
+        private final LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+
+        /**
+         * The multiplexed connection shared by all borrowers, if any.  It
+         * holds one permit for as long as it is installed.
+         */
+        private AbstractMasterConnectionWrapper<?> shared;
+
+        /**
+         * The number of borrowers currently using the shared connection.
+         */
+        private int sharedLeases;
+
+        /**
+         * When the shared connection last became unused.
+         */
+        private long sharedIdleSince;
+
+        /**
+         * Whether or not the pool has been closed.  A closed pool keeps no
+         * idle connections.
+         */
+        private volatile boolean closed;
+
+        DevicePool(final int size) {
+            this.size = size;
+            this.permits = new Semaphore(size, true);
+        }
+
+        synchronized AbstractMasterConnectionWrapper<?> pollIdle() {
+            IdleConnection entry = idle.poll();
+            return entry == null ? null : entry.connection;
+        }
+
+        /**
+         * Keeps a connection for reuse.
+         * @param connection the connection
+         * @return {@code false} if the pool is closed, and the connection
+         * must be closed instead
+         */
+        synchronized boolean offerIdle(final AbstractMasterConnectionWrapper<?> connection) {
+            if (closed) {
+                return false;
+            }
+            idle.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+            return true;
+        }
+
+        synchronized int idleCount() {
+            int count = idle.size();
+            if (shared != null && sharedLeases == 0) {
+                count++;
+            }
+            return count;
+        }
+
+        synchronized int activeCount() {
+            // an installed shared connection holds its permit even when
+            // nobody is using it
+            int count = size - permits.availablePermits();
+            if (shared != null && sharedLeases == 0) {
+                count--;
+            }
+            return count;
+        }
+
+        synchronized AbstractMasterConnectionWrapper<?> leaseShared() {
+            if (shared != null) {
+                sharedLeases++;
+            }
+            return shared;
+        }
+
+        synchronized AbstractMasterConnectionWrapper<?> installShared(final AbstractMasterConnectionWrapper<?> connection) {
+            if (shared == null) {
+                shared = connection;
+            }
+            sharedLeases++;
+            return shared;
+        }
+
+        synchronized boolean releaseShared(final AbstractMasterConnectionWrapper<?> connection) {
+            if (shared == null || shared != connection) {
+                return false;
+            }
+            if (--sharedLeases == 0) {
+                sharedIdleSince = System.currentTimeMillis();
+            }
+            return true;
+        }
+
+        /**
+         * Takes the shared connection out of a closed pool once nobody is
+         * using it.
+         * @param connection the released shared connection
+         * @return {@code true} if the connection must now be closed
+         */
+        synchronized boolean retireShared(final AbstractMasterConnectionWrapper<?> connection) {
+            if (!closed || shared != connection || sharedLeases > 0) {
+                return false;
+            }
+            shared = null;
+            permits.release();
+            return true;
+        }
+
+        /**
+         * Takes out the connections which have been idle since a given time.
+         * @param cutoff the time, in milliseconds
+         * @return the connections, which the caller must close
+         */
+        synchronized List<AbstractMasterConnectionWrapper<?>> evictIdleSince(final long cutoff) {
+            List<AbstractMasterConnectionWrapper<?>> expired = new LinkedList<AbstractMasterConnectionWrapper<?>>();
+            if (shared != null && sharedLeases == 0 && sharedIdleSince <= cutoff) {
+                expired.add(shared);
+                shared = null;
+                permits.release();
+            }
+            Iterator<IdleConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                IdleConnection entry = it.next();
+                if (entry.idleSince <= cutoff) {
+                    it.remove();
+                    expired.add(entry.connection);
+                }
+            }
+            return expired;
+        }
+
+        /**
+         * Closes the pool, taking out every connection nobody is using.
+         * @return the connections, which the caller must close
+         */
+        synchronized List<AbstractMasterConnectionWrapper<?>> close() {
+            closed = true;
+            return evictIdleSince(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * An idle connection and the time it was returned to the pool.
+     */
+    private static final class IdleConnection {
+
+        private final AbstractMasterConnectionWrapper<?> connection;
+
+        private final long idleSince;
+
+        IdleConnection(final AbstractMasterConnectionWrapper<?> connection, final long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Thrown when a device does not answer a request in time.  Jamod's blocking
+ * transports report timeouts as plain {@link ModbusIOException}s, so only
+ * the connections of this package tell them apart.
+ *
+ * @author Steven Swor
+ */
+public class ModbusTimeoutException extends ModbusIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new ModbusTimeoutException.
+     * @param message the detail message
+     */
+    public ModbusTimeoutException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Something registered with a {@link NioEventLoop}'s selector.  Selection
+ * keys carry their handler as the attachment, and both methods run on the
+ * loop's thread.
+ *
+ * @author Steven Swor
+ */
+interface NioChannelHandler {
+
+    /**
+     * Handles readiness reported by the selector.
+     * @param key the selection key
+     */
+    void handleReady(SelectionKey key);
+
+    /**
+     * Closes the channel.
+     * @param reason why the channel closed
+     */
+    void closeNow(String reason);
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread which drives any number of {@link NioTCPMasterConnection}s,
+ * and the server side's {@link NioTCPSlaveListener}s and their clients,
+ * through one {@link Selector}.
+ *
+ * <p>All socket I/O for the channels registered with the loop, and all
+ * changes to their state, happen on the loop's thread.  Other threads hand
+ * work to the loop with {@link #execute(Runnable)}.  The loop also wakes up
+ * periodically so its connections can time out transactions.</p>
+ *
+ * @author Steven Swor
+ */
+public class NioEventLoop implements Runnable {
+
+    /**
+     * How often the loop checks for timed out transactions, in milliseconds.
+     */
+    static final long TICK_INTERVAL = 20L;
+
+    /**
+     * The name of the loop's thread.
+     */
+    private final String name;
+
+    /**
+     * The selector.
+     */
+    private final Selector selector;
+
+    /**
+     * Work handed to the loop by other threads.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The connections which need timeout checks.  Only touched on the loop's
+     * thread.
+     */
+    private final Set<NioTCPMasterConnection> connections = new HashSet<NioTCPMasterConnection>();
+
+    /**
+     * The loop's thread.
+     */
+    private volatile Thread thread;
+
+    /**
+     * Whether or not the loop is running.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Creates a new NioEventLoop.
+     * @param name the name of the loop's thread
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioEventLoop(final String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop's thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the loop and closes every connection registered with it.
+     */
+    public void close() {
+        execute(new Runnable() {
+
+            public void run() {
+                for (NioTCPMasterConnection connection : new HashSet<NioTCPMasterConnection>(connections)) {
+                    connection.closeNow("Event loop closed");
+                }
+                for (SelectionKey key : new HashSet<SelectionKey>(selector.keys())) {
+                    if (key.isValid()) {
+                        ((NioChannelHandler) key.attachment()).closeNow("Event loop closed");
+                    }
+                }
+                running = false;
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the loop's thread.
+     * @param task the task
+     */
+    public void execute(final Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Determines if the calling thread is the loop's thread.
+     * @return whether or not the calling thread is the loop's thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Determines if the loop is running.
+     * @return whether or not the loop is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the loop's selector.  Must only be used on the loop's thread.
+     * @return the selector
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Starts checking a connection for timeouts.  Must only be called on the
+     * loop's thread.
+     * @param connection the connection
+     */
+    void track(final NioTCPMasterConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Stops checking a connection for timeouts.  Must only be called on the
+     * loop's thread.
+     * @param connection the connection
+     */
+    void untrack(final NioTCPMasterConnection connection) {
+        connections.remove(connection);
+    }
+
+    public void run() {
+        long nextTick = System.currentTimeMillis() + TICK_INTERVAL;
+        try {
+            while (running) {
+                long wait = nextTick - System.currentTimeMillis();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioChannelHandler handler = (NioChannelHandler) key.attachment();
+                    try {
+                        handler.handleReady(key);
+                    } catch (RuntimeException ex) {
+                        handler.closeNow(String.valueOf(ex.getMessage()));
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        //a misbehaving callback must not stop the loop
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    for (NioTCPMasterConnection connection : new HashSet<NioTCPMasterConnection>(connections)) {
+                        connection.checkTimeouts(now);
+                    }
+                    nextTick = now + TICK_INTERVAL;
+                }
+            }
+        } catch (IOException ex) {
+            running = false;
+            for (NioTCPMasterConnection connection : new HashSet<NioTCPMasterConnection>(connections)) {
+                connection.closeNow(ex.getMessage());
+            }
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                //trap
+            }
+        }
+    }
+}
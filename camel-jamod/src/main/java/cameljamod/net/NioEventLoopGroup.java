@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link NioEventLoop}s which new connections are spread
+ * across round-robin.
+ *
+ * @author Steven Swor
+ */
+public class NioEventLoopGroup {
+
+    /**
+     * The loops.
+     */
+    private final NioEventLoop[] loops;
+
+    /**
+     * Picks the loop for the next connection.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates and starts a new NioEventLoopGroup.
+     * @param size the number of loops
+     * @param name the prefix for the loops' thread names
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioEventLoopGroup(final int size, final String name) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        loops = new NioEventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new NioEventLoop(name + "-" + i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Gets the loop for the next connection.
+     * @return the loop
+     */
+    public NioEventLoop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Gets the number of loops.
+     * @return the number of loops
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Stops every loop and closes their connections.
+     */
+    public void close() {
+        for (NioEventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
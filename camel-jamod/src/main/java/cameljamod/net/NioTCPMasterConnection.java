@@ -0,0 +1,645 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A non-blocking Modbus/TCP master connection driven by a
+ * {@link NioEventLoop}.
+ *
+ * <p>{@link #submit(ModbusRequest, TransactionCallback)} never blocks: the
+ * request is queued and the event loop writes it as soon as the socket is
+ * connected and a transaction slot is free.  Responses are read from a
+ * reusable buffer, matched to their requests by MBAP transaction identifier
+ * and handed to the request's callback on the event loop's thread.  The
+ * event loop also fails transactions which time out, so a connection never
+ * needs a thread of its own.</p>
+ *
+ * @author Steven Swor
+ */
+public class NioTCPMasterConnection implements NioChannelHandler {
+
+    /**
+     * The socket is closed.
+     */
+    private static final int CLOSED = 0;
+
+    /**
+     * The socket is connecting.
+     */
+    private static final int CONNECTING = 1;
+
+    /**
+     * The socket is connected.
+     */
+    private static final int CONNECTED = 2;
+
+    /**
+     * The size of the read buffer.  Several responses fit at once.
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * The event loop which performs this connection's I/O.
+     */
+    private final NioEventLoop eventLoop;
+
+    /**
+     * The transactions in flight.
+     */
+    private final TransactionTable transactions;
+
+    /**
+     * The maximum number of transactions in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Requests waiting to be written.
+     */
+    private final ConcurrentLinkedQueue<QueuedRequest> backlog = new ConcurrentLinkedQueue<QueuedRequest>();
+
+    /**
+     * Whether or not a flush of the backlog is already scheduled on the event
+     * loop.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    /**
+     * Writes the backlog.
+     */
+    private final Runnable flushTask = new Runnable() {
+
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * The address of the device.
+     */
+    private volatile InetAddress address;
+
+    /**
+     * The port of the device.
+     */
+    private volatile int port = Modbus.DEFAULT_PORT;
+
+    /**
+     * The timeout, in milliseconds.
+     */
+    private volatile int timeout = Modbus.DEFAULT_TIMEOUT;
+
+    /**
+     * The connection state.  Only changed on the event loop's thread.
+     */
+    private volatile int state = CLOSED;
+
+    /**
+     * Why the connection last closed.
+     */
+    private volatile String lastError = "Not connected";
+
+    /**
+     * The socket channel.  Only used on the event loop's thread.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The channel's selection key.  Only used on the event loop's thread.
+     */
+    private SelectionKey key;
+
+    /**
+     * Bytes read but not yet framed.  Only used on the event loop's thread.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Frames waiting for the socket to accept them.  Only used on the event
+     * loop's thread.
+     */
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    /**
+     * When the current connection attempt times out.  Only used on the event
+     * loop's thread.
+     */
+    private long connectDeadline;
+
+    /**
+     * Threads waiting in {@link #connect()}.  Only used on the event loop's
+     * thread.
+     */
+    private final List<CountDownLatch> connectWaiters = new ArrayList<CountDownLatch>();
+
+    /**
+     * Creates a new NioTCPMasterConnection.
+     * @param address the address of the device
+     * @param eventLoop the event loop which performs the connection's I/O
+     * @param maxInFlight the maximum number of transactions in flight
+     */
+    public NioTCPMasterConnection(final InetAddress address, final NioEventLoop eventLoop, final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.address = address;
+        this.eventLoop = eventLoop;
+        this.maxInFlight = maxInFlight;
+        this.transactions = new TransactionTable(maxInFlight);
+    }
+
+    /**
+     * Connects to the device, waiting up to the timeout for the connection
+     * to be established.  Calling this is optional, since submitting a
+     * request connects automatically.
+     * @throws Exception if the connection cannot be established
+     */
+    public void connect() throws Exception {
+        if (state == CONNECTED) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        eventLoop.execute(new Runnable() {
+
+            public void run() {
+                if (state == CONNECTED) {
+                    latch.countDown();
+                } else {
+                    connectWaiters.add(latch);
+                    open();
+                }
+            }
+        });
+        if (!latch.await(timeout + NioEventLoop.TICK_INTERVAL * 2, TimeUnit.MILLISECONDS)) {
+            throw new ModbusIOException(MessageFormat.format("Timed out connecting to {0}:{1}", address.getHostAddress(), String.valueOf(port)));
+        }
+        if (state != CONNECTED) {
+            throw new ModbusIOException(lastError);
+        }
+    }
+
+    /**
+     * Closes the socket and fails every outstanding transaction.  The close
+     * happens asynchronously on the event loop's thread.
+     */
+    public void close() {
+        eventLoop.execute(new Runnable() {
+
+            public void run() {
+                closeNow("Connection closed");
+            }
+        });
+    }
+
+    /**
+     * Queues a request without waiting for it to be sent.  The callback is
+     * always invoked exactly once: with the response, or with the reason the
+     * request failed or timed out.
+     * @param request the request
+     * @param callback notified when the transaction completes or fails
+     */
+    public void submit(final ModbusRequest request, final TransactionCallback callback) {
+        submit(request, timeout, callback);
+    }
+
+    /**
+     * Queues a request with its own timeout, independently of the other
+     * requests sharing the connection.
+     * @param request the request
+     * @param timeout how long to wait for the request to be sent, and then
+     * for its response, in milliseconds
+     * @param callback notified when the transaction completes or fails
+     */
+    public void submit(final ModbusRequest request, final int timeout, final TransactionCallback callback) {
+        if (!eventLoop.isRunning()) {
+            callback.failed(new ModbusIOException("Event loop is not running"));
+            return;
+        }
+        backlog.add(new QueuedRequest(request, callback, timeout));
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(flushTask);
+        }
+        if (!eventLoop.isRunning()) {
+            // the loop stopped after the check above, so nothing will flush
+            // or fail what was just queued
+            failBacklog("Event loop is not running");
+        }
+    }
+
+    /**
+     * Fails every request still waiting to be sent.  Safe to call from any
+     * thread once the event loop has stopped.
+     * @param reason the reason
+     */
+    private void failBacklog(final String reason) {
+        ModbusIOException cause = new ModbusIOException(reason);
+        QueuedRequest queued;
+        while ((queued = backlog.poll()) != null) {
+            queued.callback.failed(cause);
+        }
+    }
+
+    /**
+     * Starts connecting if the socket is closed.  Runs on the event loop's
+     * thread.
+     */
+    private void open() {
+        if (state != CLOSED) {
+            return;
+        }
+        try {
+            SocketChannel ch = SocketChannel.open();
+            channel = ch;
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            state = CONNECTING;
+            connectDeadline = System.currentTimeMillis() + timeout;
+            eventLoop.track(this);
+            if (ch.connect(new InetSocketAddress(address, port))) {
+                key = ch.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+                connected();
+            } else {
+                key = ch.register(eventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException ex) {
+            closeNow(String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Marks the connection as established.  Runs on the event loop's thread.
+     */
+    private void connected() {
+        state = CONNECTED;
+        readBuffer.clear();
+        for (CountDownLatch latch : connectWaiters) {
+            latch.countDown();
+        }
+        connectWaiters.clear();
+        dispatch();
+    }
+
+    /**
+     * Writes as much of the backlog as the free transaction slots allow.
+     * Runs on the event loop's thread.
+     */
+    private void dispatch() {
+        flushScheduled.set(false);
+        if (backlog.isEmpty()) {
+            return;
+        }
+        if (!eventLoop.isRunning()) {
+            failBacklog("Event loop is not running");
+            return;
+        }
+        if (state == CLOSED) {
+            open();
+            return;
+        }
+        if (state != CONNECTED) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        QueuedRequest queued;
+        while ((queued = backlog.peek()) != null) {
+            PendingTransaction pending = transactions.tryRegister(queued.request, queued.callback);
+            if (pending == null) {
+                break;
+            }
+            backlog.poll();
+            queued.request.setTransactionID(pending.getTransactionId());
+            pending.setDeadline(now + queued.timeout);
+            try {
+                writeQueue.add(ByteBuffer.wrap(MBAPCodec.encode(queued.request, pending.getTransactionId())));
+            } catch (IOException ex) {
+                transactions.abandon(pending);
+                pending.fail(new ModbusIOException(ex.getMessage()));
+            }
+        }
+        try {
+            flushWrites();
+        } catch (IOException ex) {
+            closeNow(String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Writes queued frames until the socket stops accepting them.  Runs on the
+     * event loop's thread.
+     * @throws IOException if the write fails
+     */
+    private void flushWrites() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.getFirst();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.removeFirst();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Handles readiness reported by the selector.  Runs on the event loop's
+     * thread.
+     * @param readyKey the selection key
+     */
+    public void handleReady(final SelectionKey readyKey) {
+        if (readyKey != key || !readyKey.isValid()) {
+            return;
+        }
+        try {
+            if (readyKey.isConnectable()) {
+                if (channel.finishConnect()) {
+                    readyKey.interestOps(SelectionKey.OP_READ);
+                    connected();
+                }
+                return;
+            }
+            if (readyKey.isReadable()) {
+                read();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flushWrites();
+            }
+        } catch (IOException ex) {
+            closeNow(String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Reads whatever the socket has and completes every transaction whose
+     * response has fully arrived.  Runs on the event loop's thread.
+     * @throws IOException if the read fails
+     */
+    private void read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            closeNow("Connection closed by device");
+            return;
+        }
+        readBuffer.flip();
+        byte[] buffer = readBuffer.array();
+        boolean freed = false;
+        while (readBuffer.remaining() >= 6) {
+            int protocolId = MBAPCodec.getProtocolId(buffer, readBuffer.position());
+            if (protocolId != 0) {
+                closeNow("Invalid MBAP protocol identifier: " + protocolId);
+                return;
+            }
+            int length = MBAPCodec.getLength(buffer, readBuffer.position());
+            if (length < 2 || length + 6 > MBAPCodec.MAX_FRAME_LENGTH) {
+                closeNow("Invalid MBAP length: " + length);
+                return;
+            }
+            if (readBuffer.remaining() < length + 6) {
+                break;
+            }
+            byte[] frame = new byte[length + 6];
+            readBuffer.get(frame);
+            PendingTransaction pending = transactions.remove(MBAPCodec.getTransactionId(frame, 0));
+            if (pending != null) {
+                freed = true;
+                deliver(pending, frame);
+            }
+        }
+        readBuffer.compact();
+        if (freed && state == CONNECTED) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Decodes a response and hands it to its transaction.
+     * @param pending the transaction
+     * @param frame the response frame
+     */
+    private static void deliver(final PendingTransaction pending, final byte[] frame) {
+        ModbusResponse response;
+        try {
+            response = MBAPCodec.decodeResponse(frame, frame.length);
+        } catch (IOException ex) {
+            pending.fail(new ModbusIOException(ex.getMessage()));
+            return;
+        }
+        if (response instanceof ExceptionResponse) {
+            pending.fail(new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode()));
+        } else {
+            pending.complete(response);
+        }
+    }
+
+    /**
+     * Fails transactions which have waited too long.  Runs on the event
+     * loop's thread.
+     * @param now the current time, in milliseconds since the epoch
+     */
+    void checkTimeouts(final long now) {
+        if (state == CONNECTING && now >= connectDeadline) {
+            closeNow(MessageFormat.format("Timed out connecting to {0}:{1}", address.getHostAddress(), String.valueOf(port)));
+            return;
+        }
+        List<PendingTransaction> expired = transactions.expire(now);
+        for (PendingTransaction pending : expired) {
+            pending.fail(new ModbusTimeoutException("Timed out waiting for response to transaction " + pending.getTransactionId()));
+        }
+        // requests have their own timeouts, so a short one may be queued
+        // behind a long one
+        for (QueuedRequest queued : backlog) {
+            if (queued.deadline <= now && backlog.remove(queued)) {
+                queued.callback.failed(new ModbusTimeoutException("Timed out waiting for a free transaction slot"));
+            }
+        }
+        if (!expired.isEmpty() && state == CONNECTED) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Closes the socket and fails every outstanding transaction.  Runs on the
+     * event loop's thread.
+     * @param reason why the connection closed
+     */
+    public void closeNow(final String reason) {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                //trap
+            }
+            channel = null;
+        }
+        writeQueue.clear();
+        lastError = reason;
+        state = CLOSED;
+        eventLoop.untrack(this);
+        for (CountDownLatch latch : connectWaiters) {
+            latch.countDown();
+        }
+        connectWaiters.clear();
+        List<QueuedRequest> abandoned = new ArrayList<QueuedRequest>();
+        QueuedRequest queued;
+        while ((queued = backlog.poll()) != null) {
+            abandoned.add(queued);
+        }
+        ModbusIOException cause = new ModbusIOException(reason);
+        transactions.failAll(cause);
+        for (QueuedRequest request : abandoned) {
+            request.callback.failed(cause);
+        }
+    }
+
+    /**
+     * Gets the number of transactions in flight.
+     * @return the number of transactions in flight
+     */
+    public int getInFlightCount() {
+        return transactions.size();
+    }
+
+    /**
+     * Gets the maximum number of transactions in flight.
+     * @return the maximum number of transactions in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Gets the event loop which performs this connection's I/O.
+     * @return the event loop
+     */
+    public NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Determines if the connection is connected.
+     * @return whether or not the connection is connected
+     */
+    public boolean isConnected() {
+        return state == CONNECTED;
+    }
+
+    /**
+     * Gets the address of the device.
+     * @return the address of the device
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets the address of the device.  Takes effect on the next connect.
+     * @param address the address of the device
+     */
+    public void setAddress(final InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Gets the port of the device.
+     * @return the port of the device
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port of the device.  Takes effect on the next connect.
+     * @param port the port of the device
+     */
+    public void setPort(final int port) {
+        this.port = port;
+    }
+
+    /**
+     * Gets the timeout.
+     * @return the timeout, in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long to wait for a connection, a free transaction slot, or a
+     * response.
+     * @param timeout the timeout, in milliseconds
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * A request waiting to be written.
+     */
+    private static final class QueuedRequest {
+
+        /**
+         * The request.
+         */
+        private final ModbusRequest request;
+
+        /**
+         * Notified when the transaction completes or fails.
+         */
+        private final TransactionCallback callback;
+
+        /**
+         * How long to wait to be written, and then for the response, in
+         * milliseconds.
+         */
+        private final int timeout;
+
+        /**
+         * When the request gives up waiting to be written.
+         */
+        private final long deadline;
+
+        QueuedRequest(final ModbusRequest request, final TransactionCallback callback, final int timeout) {
+            this.request = request;
+            this.callback = callback;
+            this.timeout = timeout;
+            this.deadline = System.currentTimeMillis() + timeout;
+        }
+    }
+}
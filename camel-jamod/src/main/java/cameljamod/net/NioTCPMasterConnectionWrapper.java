@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import java.net.InetAddress;
+import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.msg.ModbusRequest;
+
+/**
+ * Wraps a {@link NioTCPMasterConnection}.
+ * 
+ * @author Steven Swor
+ */
+public class NioTCPMasterConnectionWrapper extends AbstractMasterConnectionWrapper<NioTCPMasterConnection> {
+
+    public NioTCPMasterConnectionWrapper(NioTCPMasterConnection masterConnection) {
+        super(masterConnection);
+    }
+
+    @Override
+    public void close() {
+        getMasterConnection().close();
+    }
+
+    @Override
+    public void connect() throws Exception {
+        getMasterConnection().connect();
+    }
+
+    @Override
+    public InetAddress getAddress() {
+        return getMasterConnection().getAddress();
+    }
+
+    /**
+     * Non-blocking connections do not have a blocking transport.
+     * @return {@code null}
+     */
+    @Override
+    public ModbusTransport getModbusTransport() {
+        return null;
+    }
+
+    @Override
+    public int getPort() {
+        return getMasterConnection().getPort();
+    }
+
+    @Override
+    public int getTimeout() {
+        return getMasterConnection().getTimeout();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return getMasterConnection().isConnected();
+    }
+
+    @Override
+    public void setAddress(InetAddress address) {
+        getMasterConnection().setAddress(address);
+    }
+
+    @Override
+    public void setPort(int port) {
+        getMasterConnection().setPort(port);
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        getMasterConnection().setTimeout(timeout);
+    }
+
+    @Override
+    public ModbusTransaction createTransaction() {
+        ModbusTransaction transaction = new NioTCPTransaction(getMasterConnection());
+        transaction.setRetries(getRetries());
+        return transaction;
+    }
+
+    @Override
+    public ModbusTransaction createTransaction(final int timeout) {
+        NioTCPTransaction transaction = new NioTCPTransaction(getMasterConnection());
+        transaction.setRetries(getRetries());
+        transaction.setTimeout(timeout);
+        return transaction;
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsReadWriteMultipleRegisters() {
+        return true;
+    }
+
+    /**
+     * Queues the request on the connection's event loop and returns
+     * immediately.
+     * @param request the request
+     * @param timeout how long to wait for the response, in milliseconds
+     * @param callback notified when the transaction completes or fails
+     */
+    @Override
+    public void execute(final ModbusRequest request, final int timeout, final TransactionCallback callback) {
+        getMasterConnection().submit(request, timeout, callback);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * One client of a {@link NioTCPSlaveListener}, driven by a
+ * {@link NioEventLoop}.
+ *
+ * <p>Requests are read from a reusable buffer and handed to the listener's
+ * {@link SlaveRequestHandler}.  A client may pipeline requests; up to
+ * {@link #MAX_PENDING_REQUESTS} are handled at once, and the connection stops
+ * reading while that many are unanswered or while the client is not reading
+ * its responses.</p>
+ *
+ * @author Steven Swor
+ */
+final class NioTCPSlaveConnection implements NioChannelHandler {
+
+    /**
+     * The size of the read buffer.  Several requests fit at once.
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * The number of requests from one client which may be unanswered at
+     * once.
+     */
+    static final int MAX_PENDING_REQUESTS = 16;
+
+    /**
+     * The listener which accepted the connection.
+     */
+    private final NioTCPSlaveListener listener;
+
+    /**
+     * The event loop which drives the connection.
+     */
+    private final NioEventLoop eventLoop;
+
+    /**
+     * The socket channel.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Bytes read from the client which have not been handled yet.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Responses waiting to be written.  Only touched on the event loop's
+     * thread.
+     */
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    /**
+     * The selection key, once registered.
+     */
+    private SelectionKey key;
+
+    /**
+     * The number of requests handed to the handler and not yet answered.
+     * Only touched on the event loop's thread.
+     */
+    private int pendingRequests = 0;
+
+    /**
+     * Whether or not the read buffer is being drained, so that responses sent
+     * by the handler itself do not drain it again.
+     */
+    private boolean handling = false;
+
+    /**
+     * Whether or not the connection has closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new NioTCPSlaveConnection.
+     * @param listener the listener which accepted the connection
+     * @param eventLoop the event loop which drives the connection
+     * @param channel the non-blocking socket channel
+     */
+    NioTCPSlaveConnection(final NioTCPSlaveListener listener, final NioEventLoop eventLoop, final SocketChannel channel) {
+        this.listener = listener;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+    }
+
+    /**
+     * Registers the connection with its event loop.
+     */
+    void register() {
+        eventLoop.execute(new Runnable() {
+
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                try {
+                    key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, NioTCPSlaveConnection.this);
+                } catch (IOException ex) {
+                    closeNow(String.valueOf(ex.getMessage()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the connection.  The close happens asynchronously on the event
+     * loop's thread.
+     */
+    void close() {
+        eventLoop.execute(new Runnable() {
+
+            public void run() {
+                closeNow("Listener closed");
+            }
+        });
+    }
+
+    /**
+     * Determines if the connection has closed.
+     * @return whether or not the connection has closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    public void handleReady(final SelectionKey readyKey) {
+        if (readyKey != key || !readyKey.isValid()) {
+            return;
+        }
+        try {
+            if (readyKey.isReadable()) {
+                if (channel.read(readBuffer) < 0) {
+                    closeNow("Connection closed by client");
+                    return;
+                }
+                handleRequests();
+            }
+            if (!closed && readyKey.isWritable()) {
+                flushWrites();
+            }
+        } catch (IOException ex) {
+            closeNow(String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Hands every complete request in the read buffer to the handler, until
+     * too many are unanswered.  Runs on the event loop's thread.
+     */
+    private void handleRequests() {
+        handling = true;
+        readBuffer.flip();
+        byte[] buffer = readBuffer.array();
+        while (!closed && pendingRequests < MAX_PENDING_REQUESTS && readBuffer.remaining() >= 6) {
+            int protocolId = MBAPCodec.getProtocolId(buffer, readBuffer.position());
+            if (protocolId != 0) {
+                closeNow("Invalid MBAP protocol identifier: " + protocolId);
+                break;
+            }
+            int length = MBAPCodec.getLength(buffer, readBuffer.position());
+            if (length < 2 || length + 6 > MBAPCodec.MAX_FRAME_LENGTH) {
+                closeNow("Invalid MBAP length: " + length);
+                break;
+            }
+            if (readBuffer.remaining() < length + 6) {
+                break;
+            }
+            byte[] frame = new byte[length + 6];
+            readBuffer.get(frame);
+            handleRequest(frame);
+        }
+        readBuffer.compact();
+        handling = false;
+        updateInterest();
+    }
+
+    /**
+     * Decodes a request and hands it to the handler.  Requests for functions
+     * the codec does not know are answered with an illegal function
+     * exception without troubling the handler.  Runs on the event loop's
+     * thread.
+     * @param frame the request frame
+     */
+    private void handleRequest(final byte[] frame) {
+        int functionCode = frame[MBAPCodec.HEADER_LENGTH] & 0xff;
+        Responder responder = new Responder(MBAPCodec.getTransactionId(frame, 0), frame[MBAPCodec.HEADER_LENGTH - 1] & 0xff, functionCode);
+        pendingRequests++;
+        if (!MBAPCodec.isSupported(functionCode)) {
+            responder.respond(new ExceptionResponse(functionCode, Modbus.ILLEGAL_FUNCTION_EXCEPTION));
+            return;
+        }
+        ModbusRequest request;
+        try {
+            request = MBAPCodec.decodeRequest(frame, frame.length);
+        } catch (IOException ex) {
+            responder.respond(new ExceptionResponse(functionCode, Modbus.ILLEGAL_VALUE_EXCEPTION));
+            return;
+        }
+        try {
+            listener.getHandler().handle(request, responder);
+        } catch (RuntimeException ex) {
+            if (!responder.responded.get()) {
+                responder.respond(new ExceptionResponse(functionCode, NioTCPSlaveListener.SLAVE_DEVICE_FAILURE));
+            }
+        }
+    }
+
+    /**
+     * Queues a response and writes as much as the socket accepts.  Runs on
+     * the event loop's thread.
+     * @param responder the request being answered
+     * @param response the response
+     */
+    private void send(final Responder responder, final ModbusResponse response) {
+        if (closed) {
+            return;
+        }
+        pendingRequests--;
+        response.setUnitID(responder.unitId);
+        try {
+            byte[] reply = MBAPCodec.encode(response, responder.transactionId);
+            if (reply[MBAPCodec.HEADER_LENGTH] == 0) {
+                // some jamod responses never set their function code
+                reply[MBAPCodec.HEADER_LENGTH] = (byte) responder.functionCode;
+            }
+            writeQueue.add(ByteBuffer.wrap(reply));
+            flushWrites();
+        } catch (IOException ex) {
+            closeNow(String.valueOf(ex.getMessage()));
+            return;
+        }
+        if (!handling && readBuffer.position() > 0) {
+            // requests held back while too many were unanswered
+            handleRequests();
+        }
+    }
+
+    /**
+     * Writes queued responses until the socket stops accepting them.  Runs
+     * on the event loop's thread.
+     * @throws IOException if the write fails
+     */
+    private void flushWrites() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.getFirst();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            writeQueue.removeFirst();
+        }
+        updateInterest();
+    }
+
+    /**
+     * Reads only while the client is keeping up, and writes only while
+     * responses are waiting.  Runs on the event loop's thread.
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (writeQueue.isEmpty() && pendingRequests < MAX_PENDING_REQUESTS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    public void closeNow(final String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            //trap
+        }
+        writeQueue.clear();
+        listener.connectionClosed(this);
+    }
+
+    /**
+     * Answers one request.
+     */
+    private final class Responder implements SlaveResponder {
+
+        /**
+         * The request's transaction identifier.
+         */
+        private final int transactionId;
+
+        /**
+         * The request's unit identifier.
+         */
+        private final int unitId;
+
+        /**
+         * The request's function code.
+         */
+        private final int functionCode;
+
+        /**
+         * Whether or not the request has been answered.
+         */
+        private final AtomicBoolean responded = new AtomicBoolean();
+
+        Responder(final int transactionId, final int unitId, final int functionCode) {
+            this.transactionId = transactionId;
+            this.unitId = unitId;
+            this.functionCode = functionCode;
+        }
+
+        public void respond(final ModbusResponse response) {
+            if (!responded.compareAndSet(false, true)) {
+                throw new IllegalStateException("The request has already been answered");
+            }
+            if (eventLoop.inEventLoop()) {
+                send(this, response);
+            } else {
+                eventLoop.execute(new Runnable() {
+
+                    public void run() {
+                        send(Responder.this, response);
+                    }
+                });
+            }
+        }
+    }
+}
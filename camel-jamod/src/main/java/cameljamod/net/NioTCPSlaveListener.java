@@ -0,0 +1,272 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A non-blocking Modbus/TCP server driven by a {@link NioEventLoopGroup}.
+ *
+ * <p>Unlike jamod's {@code ModbusTCPListener}, which needs a thread for every
+ * client, the listener accepts clients on one event loop and spreads them
+ * across the group, so a handful of threads can serve thousands of clients.
+ * Every request is handed to a {@link SlaveRequestHandler}, which may answer
+ * it at once or later from another thread.</p>
+ *
+ * @author Steven Swor
+ */
+public class NioTCPSlaveListener implements NioChannelHandler {
+
+    /**
+     * The Modbus exception code for a failure while handling a request.
+     */
+    public static final int SLAVE_DEVICE_FAILURE = 4;
+
+    /**
+     * The number of pending connections the operating system may queue.
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * The address to listen on.
+     */
+    private final InetAddress address;
+
+    /**
+     * The event loops which drive the listener and its clients.
+     */
+    private final NioEventLoopGroup eventLoopGroup;
+
+    /**
+     * Answers the clients' requests.
+     */
+    private final SlaveRequestHandler handler;
+
+    /**
+     * The connected clients.
+     */
+    private final ConcurrentMap<NioTCPSlaveConnection, Boolean> connections = new ConcurrentHashMap<NioTCPSlaveConnection, Boolean>();
+
+    /**
+     * The port to listen on.
+     */
+    private int port;
+
+    /**
+     * The largest number of clients connected at once, or 0 for no limit.
+     */
+    private int maxConnections = 0;
+
+    /**
+     * The server socket channel, while listening.
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * The event loop which accepts clients.
+     */
+    private NioEventLoop acceptLoop;
+
+    /**
+     * The selection key, once registered.
+     */
+    private SelectionKey key;
+
+    /**
+     * Whether or not the listener is listening.
+     */
+    private volatile boolean listening = false;
+
+    /**
+     * Creates a new NioTCPSlaveListener.
+     * @param address the address to listen on
+     * @param port the port to listen on, or 0 for any free port
+     * @param eventLoopGroup the event loops which drive the listener and its
+     * clients
+     * @param handler answers the clients' requests
+     */
+    public NioTCPSlaveListener(final InetAddress address, final int port, final NioEventLoopGroup eventLoopGroup, final SlaveRequestHandler handler) {
+        this.address = address;
+        this.port = port;
+        this.eventLoopGroup = eventLoopGroup;
+        this.handler = handler;
+    }
+
+    /**
+     * Gets the port.
+     * @return the port, which is the one actually bound once listening
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the largest number of clients connected at once.
+     * @return the largest number of clients, or 0 for no limit
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the largest number of clients connected at once.  Further clients
+     * are disconnected as soon as they are accepted.
+     * @param maxConnections the largest number of clients, or 0 for no limit
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Gets the number of connected clients.
+     * @return the number of connected clients
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Determines if the listener is listening.
+     * @return whether or not the listener is listening
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Gets the handler which answers the clients' requests.
+     * @return the handler
+     */
+    SlaveRequestHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Binds the server socket and starts accepting clients.
+     * @throws IOException if the server socket cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (listening) {
+            return;
+        }
+        final ServerSocketChannel ch = ServerSocketChannel.open();
+        try {
+            ch.configureBlocking(false);
+            ch.socket().setReuseAddress(true);
+            ch.socket().bind(new InetSocketAddress(address, port), BACKLOG);
+        } catch (IOException ex) {
+            ch.close();
+            throw ex;
+        }
+        serverChannel = ch;
+        port = ch.socket().getLocalPort();
+        listening = true;
+        acceptLoop = eventLoopGroup.next();
+        acceptLoop.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    key = ch.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT, NioTCPSlaveListener.this);
+                } catch (IOException ex) {
+                    closeNow(String.valueOf(ex.getMessage()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops accepting clients and disconnects the connected ones.  The close
+     * happens asynchronously on the event loops' threads.
+     */
+    public synchronized void close() {
+        if (!listening) {
+            return;
+        }
+        acceptLoop.execute(new Runnable() {
+
+            public void run() {
+                closeNow("Listener closed");
+            }
+        });
+        for (NioTCPSlaveConnection connection : connections.keySet()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Accepts every pending client.  Runs on the accepting event loop's
+     * thread.
+     * @param readyKey the selection key
+     */
+    public void handleReady(final SelectionKey readyKey) {
+        if (readyKey != key || !readyKey.isValid() || !readyKey.isAcceptable()) {
+            return;
+        }
+        SocketChannel client;
+        try {
+            while ((client = serverChannel.accept()) != null) {
+                if (maxConnections > 0 && connections.size() >= maxConnections) {
+                    client.close();
+                    continue;
+                }
+                try {
+                    client.configureBlocking(false);
+                    client.socket().setTcpNoDelay(true);
+                } catch (IOException ex) {
+                    client.close();
+                    continue;
+                }
+                NioTCPSlaveConnection connection = new NioTCPSlaveConnection(this, eventLoopGroup.next(), client);
+                connections.put(connection, Boolean.TRUE);
+                connection.register();
+            }
+        } catch (IOException ex) {
+            //the client went away before it was accepted, or no descriptors are left; try again on the next select
+        }
+    }
+
+    /**
+     * Closes the server socket.  Runs on the accepting event loop's thread.
+     * @param reason why the listener closed
+     */
+    public void closeNow(final String reason) {
+        listening = false;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException ex) {
+            //trap
+        }
+    }
+
+    /**
+     * Forgets a client which disconnected.
+     * @param connection the client's connection
+     */
+    void connectionClosed(final NioTCPSlaveConnection connection) {
+        connections.remove(connection);
+    }
+}
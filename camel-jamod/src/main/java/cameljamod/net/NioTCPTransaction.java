@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A blocking transaction executed over a {@link NioTCPMasterConnection}, for
+ * callers which need the {@link ModbusTransaction} interface.  Callers which
+ * can handle the response asynchronously should use
+ * {@link NioTCPMasterConnection#submit(ModbusRequest, TransactionCallback)}
+ * instead.
+ *
+ * @author Steven Swor
+ */
+public class NioTCPTransaction implements ModbusTransaction {
+
+    /**
+     * The connection.
+     */
+    private final NioTCPMasterConnection connection;
+
+    /**
+     * The request.
+     */
+    private ModbusRequest request;
+
+    /**
+     * The response.
+     */
+    private ModbusResponse response;
+
+    /**
+     * The number of times to retry after an I/O failure.
+     */
+    private int retries = Modbus.DEFAULT_RETRIES;
+
+    /**
+     * How long to wait for the response, in milliseconds, or 0 to use the
+     * connection's timeout.
+     */
+    private int timeout = 0;
+
+    /**
+     * Kept for compatibility with {@link ModbusTransaction}.
+     */
+    private boolean checkingValidity = false;
+
+    /**
+     * Creates a new NioTCPTransaction.
+     * @param connection the connection
+     */
+    public NioTCPTransaction(final NioTCPMasterConnection connection) {
+        this.connection = connection;
+    }
+
+    public void setRequest(final ModbusRequest request) {
+        this.request = request;
+    }
+
+    public ModbusRequest getRequest() {
+        return request;
+    }
+
+    public ModbusResponse getResponse() {
+        return response;
+    }
+
+    public int getTransactionID() {
+        return request == null ? 0 : request.getTransactionID();
+    }
+
+    public void setRetries(final int retries) {
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Gets how long the transaction waits for its response.
+     * @return the timeout, in milliseconds, or 0 if the connection's timeout
+     * applies
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long the transaction waits for its response, independently of
+     * the other transactions sharing the connection.
+     * @param timeout the timeout, in milliseconds, or 0 to use the
+     * connection's timeout
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setCheckingValidity(final boolean checkingValidity) {
+        this.checkingValidity = checkingValidity;
+    }
+
+    public boolean isCheckingValidity() {
+        return checkingValidity;
+    }
+
+    public void execute() throws ModbusException {
+        if (request == null) {
+            throw new ModbusException("Assertion failed, transaction not executable");
+        }
+        try {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    response = executeOnce();
+                    return;
+                } catch (ModbusIOException ex) {
+                    if (attempt >= retries) {
+                        throw ex;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Thread executing transaction was interrupted.");
+        }
+    }
+
+    /**
+     * Submits the request once and waits for its outcome.
+     * @return the response
+     * @throws ModbusException if the attempt fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private ModbusResponse executeOnce() throws ModbusException, InterruptedException {
+        BlockingCallback callback = new BlockingCallback();
+        int wait = timeout > 0 ? timeout : connection.getTimeout();
+        connection.submit(request, wait, callback);
+        // the event loop enforces the timeout; this only guards against a
+        // loop which has died
+        long limit = 2L * wait + NioEventLoop.TICK_INTERVAL * 4;
+        if (!callback.latch.await(limit, TimeUnit.MILLISECONDS)) {
+            throw new ModbusTimeoutException("Timed out waiting for response");
+        }
+        if (callback.failure != null) {
+            throw callback.failure;
+        }
+        return callback.response;
+    }
+
+    /**
+     * Lets the calling thread wait for a callback.
+     */
+    private static final class BlockingCallback implements TransactionCallback {
+
+        /**
+         * Released when the callback is invoked.
+         */
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        /**
+         * The response.
+         */
+        private volatile ModbusResponse response;
+
+        /**
+         * The reason the transaction failed.
+         */
+        private volatile ModbusException failure;
+
+        public void completed(final ModbusResponse response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        public void failed(final ModbusException cause) {
+            this.failure = cause;
+            latch.countDown();
+        }
+    }
+}
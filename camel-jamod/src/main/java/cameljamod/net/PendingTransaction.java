@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A request which has been sent and is waiting for its response.
+ *
+ * @author Steven Swor
+ */
+public final class PendingTransaction {
+
+    /**
+     * The MBAP transaction identifier.
+     */
+    private final int transactionId;
+
+    /**
+     * The request.
+     */
+    private final ModbusRequest request;
+
+    /**
+     * Released when the transaction completes or fails.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Guards against completing the transaction twice.
+     */
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * The response.
+     */
+    private volatile ModbusResponse response;
+
+    /**
+     * The reason the transaction failed.
+     */
+    private volatile ModbusException failure;
+
+    /**
+     * Notified when the transaction completes or fails, if not {@code null}.
+     */
+    private final TransactionCallback callback;
+
+    /**
+     * When the transaction times out, in milliseconds since the epoch.  Only
+     * used by connections which enforce timeouts themselves.
+     */
+    private volatile long deadline = Long.MAX_VALUE;
+
+    /**
+     * Creates a new PendingTransaction.
+     * @param transactionId the MBAP transaction identifier
+     * @param request the request
+     */
+    PendingTransaction(final int transactionId, final ModbusRequest request) {
+        this(transactionId, request, null);
+    }
+
+    /**
+     * Creates a new PendingTransaction.
+     * @param transactionId the MBAP transaction identifier
+     * @param request the request
+     * @param callback notified when the transaction completes or fails
+     */
+    PendingTransaction(final int transactionId, final ModbusRequest request, final TransactionCallback callback) {
+        this.transactionId = transactionId;
+        this.request = request;
+        this.callback = callback;
+    }
+
+    /**
+     * Gets the MBAP transaction identifier.
+     * @return the MBAP transaction identifier
+     */
+    public int getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Gets the request.
+     * @return the request
+     */
+    public ModbusRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Determines if the transaction has completed or failed.
+     * @return whether or not the transaction has completed or failed
+     */
+    public boolean isDone() {
+        return finished.get();
+    }
+
+    /**
+     * Gets when the transaction times out.
+     * @return when the transaction times out, in milliseconds since the epoch
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets when the transaction times out.
+     * @param deadline when the transaction times out, in milliseconds since
+     * the epoch
+     */
+    void setDeadline(final long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Completes the transaction.
+     * @param response the response
+     * @return {@code false} if the transaction was already done
+     */
+    boolean complete(final ModbusResponse response) {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        this.response = response;
+        done.countDown();
+        if (callback != null) {
+            callback.completed(response);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the transaction.
+     * @param failure the reason the transaction failed
+     * @return {@code false} if the transaction was already done
+     */
+    boolean fail(final ModbusException failure) {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        this.failure = failure;
+        done.countDown();
+        if (callback != null) {
+            callback.failed(failure);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the response.
+     * @param timeout how long to wait, in milliseconds
+     * @return the response
+     * @throws ModbusException if the transaction failed or timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ModbusResponse await(final long timeout) throws ModbusException, InterruptedException {
+        if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+            fail(new ModbusTimeoutException("Timed out waiting for response to transaction " + transactionId));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return response;
+    }
+}
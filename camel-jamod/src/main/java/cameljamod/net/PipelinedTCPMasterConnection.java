@@ -0,0 +1,493 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A Modbus/TCP master connection which keeps several requests in flight at
+ * once.
+ *
+ * <p>Requests are written as soon as a transaction slot is free, and a
+ * dedicated reader thread matches each response to its request by MBAP
+ * transaction identifier, so responses may arrive in any order.  Many
+ * threads may share one connection.</p>
+ *
+ * <p>Requests {@link #submit(ModbusRequest, int, TransactionCallback)
+ * submitted} with a callback do not wait for their responses.  A watchdog
+ * thread, started with the first of them, fails those which are not answered
+ * in time.</p>
+ *
+ * @author Steven Swor
+ */
+public class PipelinedTCPMasterConnection {
+
+    /**
+     * How often the watchdog checks for timed out transactions, in
+     * milliseconds.
+     */
+    static final long TICK_INTERVAL = 20L;
+
+    /**
+     * The address of the device.
+     */
+    private InetAddress address;
+
+    /**
+     * The port of the device.
+     */
+    private int port = Modbus.DEFAULT_PORT;
+
+    /**
+     * The timeout, in milliseconds.
+     */
+    private int timeout = Modbus.DEFAULT_TIMEOUT;
+
+    /**
+     * The transactions in flight.
+     */
+    private final TransactionTable transactions;
+
+    /**
+     * The maximum number of transactions in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Serializes writes to the socket.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The socket.
+     */
+    private Socket socket;
+
+    /**
+     * The socket's buffered output stream.
+     */
+    private OutputStream output;
+
+    /**
+     * Whether or not the connection is connected.
+     */
+    private volatile boolean connected = false;
+
+    /**
+     * The watchdog thread, or {@code null} if it is not running.
+     */
+    private Thread watchdog;
+
+    /**
+     * Creates a new PipelinedTCPMasterConnection.
+     * @param address the address of the device
+     * @param maxInFlight the maximum number of transactions in flight
+     */
+    public PipelinedTCPMasterConnection(final InetAddress address, final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.address = address;
+        this.maxInFlight = maxInFlight;
+        this.transactions = new TransactionTable(maxInFlight);
+    }
+
+    /**
+     * Opens the socket and starts the reader thread.
+     * @throws Exception if the socket cannot be opened
+     */
+    public synchronized void connect() throws Exception {
+        if (connected) {
+            return;
+        }
+        Socket newSocket = new Socket();
+        newSocket.connect(new InetSocketAddress(address, port), timeout);
+        newSocket.setTcpNoDelay(true);
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+        socket = newSocket;
+        output = new BufferedOutputStream(newSocket.getOutputStream());
+        connected = true;
+        final Socket readerSocket = newSocket;
+        Thread reader = new Thread(new Runnable() {
+
+            public void run() {
+                readResponses(readerSocket, input);
+            }
+        }, "JamodPipelinedReader-" + address.getHostAddress() + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Closes the socket and fails every transaction in flight.
+     */
+    public void close() {
+        Socket oldSocket;
+        synchronized (this) {
+            oldSocket = socket;
+            socket = null;
+            connected = false;
+        }
+        closeQuietly(oldSocket);
+        transactions.failAll(new ModbusIOException("Connection closed"));
+    }
+
+    /**
+     * Sends a request without waiting for its response.  Blocks if too many
+     * transactions are already in flight.
+     * @param request the request
+     * @return the pending transaction
+     * @throws ModbusException if the request cannot be sent
+     * @throws InterruptedException if interrupted while waiting for a free
+     * transaction slot
+     */
+    public PendingTransaction send(final ModbusRequest request) throws ModbusException, InterruptedException {
+        return send(request, timeout);
+    }
+
+    /**
+     * Sends a request without waiting for its response, waiting no longer
+     * than a given time for a free transaction slot.
+     * @param request the request
+     * @param timeout how long to wait for a free transaction slot, in
+     * milliseconds
+     * @return the pending transaction
+     * @throws ModbusException if the request cannot be sent
+     * @throws InterruptedException if interrupted while waiting for a free
+     * transaction slot
+     */
+    public PendingTransaction send(final ModbusRequest request, final int timeout) throws ModbusException, InterruptedException {
+        PendingTransaction pending = transactions.register(request, timeout);
+        write(request, pending);
+        return pending;
+    }
+
+    /**
+     * Sends a request and reports the outcome to a callback, connecting
+     * first if necessary.  Returns as soon as the request is written, unless
+     * too many transactions are already in flight, in which case it waits for
+     * a free transaction slot.  The callback is always invoked exactly once,
+     * on the calling thread if the request cannot be sent, otherwise on the
+     * reader or watchdog thread.
+     * @param request the request
+     * @param timeout how long to wait for a free transaction slot, and then
+     * for the response, in milliseconds
+     * @param callback notified when the transaction completes or fails
+     */
+    public void submit(final ModbusRequest request, final int timeout, final TransactionCallback callback) {
+        if (!connected) {
+            try {
+                connect();
+            } catch (Exception ex) {
+                callback.failed(new ModbusIOException("Connecting failed."));
+                return;
+            }
+        }
+        PendingTransaction pending;
+        try {
+            pending = transactions.register(request, timeout, new ResponseCallback(callback));
+        } catch (ModbusIOException ex) {
+            callback.failed(ex);
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            callback.failed(new ModbusIOException("Thread executing transaction was interrupted."));
+            return;
+        }
+        pending.setDeadline(System.currentTimeMillis() + timeout);
+        watchTimeouts();
+        try {
+            write(request, pending);
+        } catch (ModbusIOException ex) {
+            pending.fail(ex);
+        }
+    }
+
+    /**
+     * Writes a registered request to the socket.
+     * @param request the request
+     * @param pending the request's pending transaction
+     * @throws ModbusIOException if the request cannot be written, in which
+     * case the transaction is abandoned and the socket closed
+     */
+    private void write(final ModbusRequest request, final PendingTransaction pending) throws ModbusIOException {
+        request.setTransactionID(pending.getTransactionId());
+        try {
+            byte[] frame = MBAPCodec.encode(request, pending.getTransactionId());
+            synchronized (writeLock) {
+                OutputStream out = output;
+                if (!connected || out == null) {
+                    throw new IOException("Not connected");
+                }
+                out.write(frame);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            transactions.abandon(pending);
+            close();
+            throw new ModbusIOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts the watchdog thread if it is not already running.
+     */
+    private synchronized void watchTimeouts() {
+        if (watchdog != null) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+
+            public void run() {
+                checkTimeouts();
+            }
+        }, "JamodPipelinedWatchdog-" + address.getHostAddress() + ":" + port);
+        t.setDaemon(true);
+        watchdog = t;
+        t.start();
+    }
+
+    /**
+     * Fails submitted transactions whose deadlines have passed, until the
+     * connection closes.  Closing fails whatever is still in flight, so the
+     * watchdog is started again by the next submission.  Runs on the
+     * watchdog thread.
+     */
+    private void checkTimeouts() {
+        try {
+            while (true) {
+                Thread.sleep(TICK_INTERVAL);
+                synchronized (this) {
+                    if (!connected) {
+                        watchdog = null;
+                        return;
+                    }
+                }
+                List<PendingTransaction> expired = transactions.expire(System.currentTimeMillis());
+                for (PendingTransaction pending : expired) {
+                    try {
+                        pending.fail(new ModbusTimeoutException("Timed out waiting for response to transaction " + pending.getTransactionId()));
+                    } catch (RuntimeException ex) {
+                        //a misbehaving callback must not stop the watchdog
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            synchronized (this) {
+                watchdog = null;
+            }
+        }
+    }
+
+    /**
+     * Gives up on a transaction, e.g. because it timed out.  A late response
+     * to it will be discarded.
+     * @param pending the pending transaction
+     */
+    public void abandon(final PendingTransaction pending) {
+        transactions.abandon(pending);
+    }
+
+    /**
+     * Reads responses until the socket closes.  A response which cannot be
+     * decoded fails its own transaction; anything else which goes wrong
+     * closes the socket and fails every transaction in flight, so that the
+     * connection never stays open without a reader.
+     * @param readerSocket the socket being read
+     * @param input the socket's input stream
+     */
+    private void readResponses(final Socket readerSocket, final DataInputStream input) {
+        try {
+            while (true) {
+                byte[] frame = MBAPCodec.readFrame(input);
+                PendingTransaction pending = transactions.remove(MBAPCodec.getTransactionId(frame, 0));
+                if (pending == null) {
+                    // late response to an abandoned transaction
+                    continue;
+                }
+                try {
+                    pending.complete(decodeResponse(frame));
+                } catch (IOException ex) {
+                    pending.fail(new ModbusIOException(ex.getMessage()));
+                } catch (RuntimeException ex) {
+                    pending.fail(new ModbusIOException("Malformed response: " + ex));
+                }
+            }
+        } catch (Throwable ex) {
+            boolean current;
+            synchronized (this) {
+                current = socket == readerSocket;
+                if (current) {
+                    socket = null;
+                    connected = false;
+                }
+            }
+            closeQuietly(readerSocket);
+            if (current) {
+                transactions.failAll(new ModbusIOException(String.valueOf(ex.getMessage())));
+            }
+            if (ex instanceof Error) {
+                throw (Error) ex;
+            }
+        }
+    }
+
+    /**
+     * Decodes a response frame.
+     * @param frame the frame, including its MBAP header
+     * @return the response
+     * @throws IOException if the frame cannot be decoded
+     */
+    ModbusResponse decodeResponse(final byte[] frame) throws IOException {
+        return MBAPCodec.decodeResponse(frame, frame.length);
+    }
+
+    /**
+     * Reports a submitted transaction's outcome, turning an exception
+     * response into a {@link ModbusSlaveException} as the blocking
+     * transactions do.
+     */
+    private static final class ResponseCallback implements TransactionCallback {
+
+        /**
+         * The submitter's callback.
+         */
+        private final TransactionCallback callback;
+
+        /**
+         * Creates a new ResponseCallback.
+         * @param callback the submitter's callback
+         */
+        ResponseCallback(final TransactionCallback callback) {
+            this.callback = callback;
+        }
+
+        public void completed(final ModbusResponse response) {
+            if (response instanceof ExceptionResponse) {
+                callback.failed(new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode()));
+            } else {
+                callback.completed(response);
+            }
+        }
+
+        public void failed(final ModbusException cause) {
+            callback.failed(cause);
+        }
+    }
+
+    /**
+     * Closes a socket, ignoring errors.
+     * @param s the socket
+     */
+    private static void closeQuietly(final Socket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                //trap
+            }
+        }
+    }
+
+    /**
+     * Gets the number of transactions in flight.
+     * @return the number of transactions in flight
+     */
+    public int getInFlightCount() {
+        return transactions.size();
+    }
+
+    /**
+     * Gets the maximum number of transactions in flight.
+     * @return the maximum number of transactions in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Determines if the connection is connected.
+     * @return whether or not the connection is connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Gets the address of the device.
+     * @return the address of the device
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets the address of the device.
+     * @param address the address of the device
+     */
+    public void setAddress(final InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Gets the port of the device.
+     * @return the port of the device
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port of the device.
+     * @param port the port of the device
+     */
+    public void setPort(final int port) {
+        this.port = port;
+    }
+
+    /**
+     * Gets the timeout.
+     * @return the timeout, in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the timeout, which applies to connecting, waiting for a free
+     * transaction slot, and waiting for each response.
+     * @param timeout the timeout, in milliseconds
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+}
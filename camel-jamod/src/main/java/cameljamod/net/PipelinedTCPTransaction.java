@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A transaction executed over a {@link PipelinedTCPMasterConnection}.  Other
+ * transactions may be in flight on the same connection at the same time.
+ *
+ * @author Steven Swor
+ */
+public class PipelinedTCPTransaction implements ModbusTransaction {
+
+    /**
+     * The connection.
+     */
+    private final PipelinedTCPMasterConnection connection;
+
+    /**
+     * The request.
+     */
+    private ModbusRequest request;
+
+    /**
+     * The response.
+     */
+    private ModbusResponse response;
+
+    /**
+     * The transaction identifier of the last attempt.
+     */
+    private int transactionId;
+
+    /**
+     * The number of times to retry after an I/O failure.
+     */
+    private int retries = Modbus.DEFAULT_RETRIES;
+
+    /**
+     * How long to wait for the response, in milliseconds, or 0 to use the
+     * connection's timeout.
+     */
+    private int timeout = 0;
+
+    /**
+     * Kept for compatibility with {@link ModbusTransaction}.
+     */
+    private boolean checkingValidity = false;
+
+    /**
+     * Creates a new PipelinedTCPTransaction.
+     * @param connection the connection
+     */
+    public PipelinedTCPTransaction(final PipelinedTCPMasterConnection connection) {
+        this.connection = connection;
+    }
+
+    public void setRequest(final ModbusRequest request) {
+        this.request = request;
+    }
+
+    public ModbusRequest getRequest() {
+        return request;
+    }
+
+    public ModbusResponse getResponse() {
+        return response;
+    }
+
+    public int getTransactionID() {
+        return transactionId;
+    }
+
+    public void setRetries(final int retries) {
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Gets how long the transaction waits for its response.
+     * @return the timeout, in milliseconds, or 0 if the connection's timeout
+     * applies
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long the transaction waits for its response, independently of
+     * the other transactions sharing the connection.
+     * @param timeout the timeout, in milliseconds, or 0 to use the
+     * connection's timeout
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setCheckingValidity(final boolean checkingValidity) {
+        this.checkingValidity = checkingValidity;
+    }
+
+    public boolean isCheckingValidity() {
+        return checkingValidity;
+    }
+
+    public void execute() throws ModbusException {
+        if (request == null) {
+            throw new ModbusException("Assertion failed, transaction not executable");
+        }
+        try {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    response = executeOnce();
+                    break;
+                } catch (ModbusIOException ex) {
+                    if (attempt >= retries) {
+                        throw ex;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Thread executing transaction was interrupted.");
+        }
+        if (response instanceof ExceptionResponse) {
+            throw new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode());
+        }
+    }
+
+    /**
+     * Sends the request once and waits for its response.
+     * @return the response
+     * @throws ModbusException if the attempt fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private ModbusResponse executeOnce() throws ModbusException, InterruptedException {
+        if (!connection.isConnected()) {
+            try {
+                connection.connect();
+            } catch (Exception ex) {
+                throw new ModbusIOException("Connecting failed.");
+            }
+        }
+        int wait = timeout > 0 ? timeout : connection.getTimeout();
+        PendingTransaction pending = connection.send(request, wait);
+        transactionId = pending.getTransactionId();
+        try {
+            return pending.await(wait);
+        } finally {
+            connection.abandon(pending);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.wimpi.modbus.procimg.DigitalIn;
+import net.wimpi.modbus.procimg.DigitalOut;
+import net.wimpi.modbus.procimg.IllegalAddressException;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * A process image held in flat primitive arrays.
+ *
+ * <p>jamod's {@code SimpleProcessImage} keeps an object per value in
+ * synchronized vectors, so every client read takes a lock per value and a
+ * full image is hundreds of thousands of objects.  Here registers are one
+ * array of words and coils and discrete inputs are bitsets of longs.  Each
+ * table is split into stripes of {@value #STRIPE_SIZE} values guarded by
+ * sequence locks: writers take the stripes they touch, while readers take no
+ * lock at all and simply retry if a writer changed a stripe under them.  A
+ * bulk read therefore always sees one consistent snapshot, even across
+ * stripes, and readers never block each other or the writers.</p>
+ *
+ * <p>The {@link ProcessImage} methods return lightweight views onto the
+ * arrays for jamod's benefit; the bulk methods are the fast path.</p>
+ *
+ * @author Steven Swor
+ */
+public class PrimitiveProcessImage implements ProcessImage {
+
+    /**
+     * The number of values guarded by one sequence lock.
+     */
+    static final int STRIPE_SIZE = 64;
+
+    /**
+     * The coils.
+     */
+    private final BitTable coils;
+
+    /**
+     * The discrete inputs.
+     */
+    private final BitTable discreteInputs;
+
+    /**
+     * The input registers.
+     */
+    private final WordTable inputRegisters;
+
+    /**
+     * The holding registers.
+     */
+    private final WordTable registers;
+
+    /**
+     * Creates a new PrimitiveProcessImage with the same number of values in
+     * every table.
+     * @param size the number of coils, discrete inputs, input registers and
+     * holding registers
+     */
+    public PrimitiveProcessImage(final int size) {
+        this(size, size, size, size);
+    }
+
+    /**
+     * Creates a new PrimitiveProcessImage.
+     * @param coilCount the number of coils
+     * @param discreteInputCount the number of discrete inputs
+     * @param inputRegisterCount the number of input registers
+     * @param registerCount the number of holding registers
+     */
+    public PrimitiveProcessImage(final int coilCount, final int discreteInputCount, final int inputRegisterCount, final int registerCount) {
+        coils = new BitTable(coilCount);
+        discreteInputs = new BitTable(discreteInputCount);
+        inputRegisters = new WordTable(inputRegisterCount);
+        registers = new WordTable(registerCount);
+    }
+
+    /**
+     * Reads holding registers as one snapshot.
+     * @param reference the first address
+     * @param values receives the unsigned register values
+     * @param offset where to put the first value
+     * @param count the number of registers
+     */
+    public void readRegisters(final int reference, final int[] values, final int offset, final int count) {
+        registers.read(reference, values, offset, count);
+    }
+
+    /**
+     * Writes holding registers atomically.
+     * @param reference the first address
+     * @param values the values, of which the low 16 bits are kept
+     * @param offset where the first value is
+     * @param count the number of registers
+     */
+    public void writeRegisters(final int reference, final int[] values, final int offset, final int count) {
+        registers.write(reference, values, offset, count);
+    }
+
+    /**
+     * Reads input registers as one snapshot.
+     * @param reference the first address
+     * @param values receives the unsigned register values
+     * @param offset where to put the first value
+     * @param count the number of registers
+     */
+    public void readInputRegisters(final int reference, final int[] values, final int offset, final int count) {
+        inputRegisters.read(reference, values, offset, count);
+    }
+
+    /**
+     * Writes input registers atomically.
+     * @param reference the first address
+     * @param values the values, of which the low 16 bits are kept
+     * @param offset where the first value is
+     * @param count the number of registers
+     */
+    public void writeInputRegisters(final int reference, final int[] values, final int offset, final int count) {
+        inputRegisters.write(reference, values, offset, count);
+    }
+
+    /**
+     * Reads coils as one snapshot.
+     * @param reference the first address
+     * @param values receives the coil states
+     * @param offset where to put the first state
+     * @param count the number of coils
+     */
+    public void readCoils(final int reference, final boolean[] values, final int offset, final int count) {
+        coils.read(reference, values, offset, count);
+    }
+
+    /**
+     * Writes coils atomically.
+     * @param reference the first address
+     * @param values the coil states
+     * @param offset where the first state is
+     * @param count the number of coils
+     */
+    public void writeCoils(final int reference, final boolean[] values, final int offset, final int count) {
+        coils.write(reference, values, offset, count);
+    }
+
+    /**
+     * Reads discrete inputs as one snapshot.
+     * @param reference the first address
+     * @param values receives the input states
+     * @param offset where to put the first state
+     * @param count the number of inputs
+     */
+    public void readDiscreteInputs(final int reference, final boolean[] values, final int offset, final int count) {
+        discreteInputs.read(reference, values, offset, count);
+    }
+
+    /**
+     * Writes discrete inputs atomically.
+     * @param reference the first address
+     * @param values the input states
+     * @param offset where the first state is
+     * @param count the number of inputs
+     */
+    public void writeDiscreteInputs(final int reference, final boolean[] values, final int offset, final int count) {
+        discreteInputs.write(reference, values, offset, count);
+    }
+
+    public DigitalOut[] getDigitalOutRange(final int offset, final int count) throws IllegalAddressException {
+        coils.check(offset, count);
+        DigitalOut[] result = new DigitalOut[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new Bit(coils, offset + i);
+        }
+        return result;
+    }
+
+    public DigitalOut getDigitalOut(final int ref) throws IllegalAddressException {
+        coils.check(ref, 1);
+        return new Bit(coils, ref);
+    }
+
+    public int getDigitalOutCount() {
+        return coils.size;
+    }
+
+    public DigitalIn[] getDigitalInRange(final int offset, final int count) throws IllegalAddressException {
+        discreteInputs.check(offset, count);
+        DigitalIn[] result = new DigitalIn[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new Bit(discreteInputs, offset + i);
+        }
+        return result;
+    }
+
+    public DigitalIn getDigitalIn(final int ref) throws IllegalAddressException {
+        discreteInputs.check(ref, 1);
+        return new Bit(discreteInputs, ref);
+    }
+
+    public int getDigitalInCount() {
+        return discreteInputs.size;
+    }
+
+    public InputRegister[] getInputRegisterRange(final int offset, final int count) throws IllegalAddressException {
+        inputRegisters.check(offset, count);
+        InputRegister[] result = new InputRegister[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new Word(inputRegisters, offset + i);
+        }
+        return result;
+    }
+
+    public InputRegister getInputRegister(final int ref) throws IllegalAddressException {
+        inputRegisters.check(ref, 1);
+        return new Word(inputRegisters, ref);
+    }
+
+    public int getInputRegisterCount() {
+        return inputRegisters.size;
+    }
+
+    public Register[] getRegisterRange(final int offset, final int count) throws IllegalAddressException {
+        registers.check(offset, count);
+        Register[] result = new Register[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new Word(registers, offset + i);
+        }
+        return result;
+    }
+
+    public Register getRegister(final int ref) throws IllegalAddressException {
+        registers.check(ref, 1);
+        return new Word(registers, ref);
+    }
+
+    public int getRegisterCount() {
+        return registers.size;
+    }
+
+    /**
+     * Sequence locks over the stripes of a table.  A stripe's version is odd
+     * while a writer holds it and goes up by two with every write.
+     */
+    private abstract static class Table {
+
+        /**
+         * The number of values in the table.
+         */
+        final int size;
+
+        /**
+         * The version of each stripe.
+         */
+        private final AtomicIntegerArray versions;
+
+        Table(final int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("size must not be negative");
+            }
+            this.size = size;
+            this.versions = new AtomicIntegerArray((size + STRIPE_SIZE - 1) / STRIPE_SIZE);
+        }
+
+        /**
+         * Checks that a range lies within the table.
+         * @param reference the first address
+         * @param count the number of values
+         * @throws IllegalAddressException if the range is outside the table
+         */
+        final void check(final int reference, final int count) {
+            if (reference < 0 || count < 0 || reference + count > size) {
+                throw new IllegalAddressException(MessageFormat.format("Addresses {0} to {1} are outside the process image of {2} addresses", String.valueOf(reference), String.valueOf(reference + count - 1), String.valueOf(size)));
+            }
+        }
+
+        /**
+         * Waits until no writer holds any stripe of a range.
+         * @param first the first stripe
+         * @param last the last stripe
+         * @return the sum of the stripes' versions, to hand to
+         * {@link #validate(int, int, long)}
+         */
+        final long readBegin(final int first, final int last) {
+            for (int spins = 0;; spins++) {
+                long sum = 0;
+                boolean writing = false;
+                for (int s = first; s <= last; s++) {
+                    int version = versions.get(s);
+                    if ((version & 1) != 0) {
+                        writing = true;
+                        break;
+                    }
+                    sum += version;
+                }
+                if (!writing) {
+                    return sum;
+                }
+                backOff(spins);
+            }
+        }
+
+        /**
+         * Determines if no writer touched a range since
+         * {@link #readBegin(int, int)}.  Versions only grow, so the sum only
+         * stays the same if no stripe changed.
+         * @param first the first stripe
+         * @param last the last stripe
+         * @param begin what {@link #readBegin(int, int)} returned
+         * @return whether or not what was read is a consistent snapshot
+         */
+        final boolean validate(final int first, final int last, final long begin) {
+            long sum = 0;
+            for (int s = first; s <= last; s++) {
+                sum += versions.get(s);
+            }
+            return sum == begin;
+        }
+
+        /**
+         * Takes the stripes of a range for writing, in ascending order so
+         * that writers never deadlock.
+         * @param first the first stripe
+         * @param last the last stripe
+         */
+        final void lock(final int first, final int last) {
+            for (int s = first; s <= last; s++) {
+                for (int spins = 0;; spins++) {
+                    int version = versions.get(s);
+                    if ((version & 1) == 0 && versions.compareAndSet(s, version, version + 1)) {
+                        break;
+                    }
+                    backOff(spins);
+                }
+            }
+        }
+
+        /**
+         * Releases the stripes of a range.
+         * @param first the first stripe
+         * @param last the last stripe
+         */
+        final void unlock(final int first, final int last) {
+            for (int s = first; s <= last; s++) {
+                versions.incrementAndGet(s);
+            }
+        }
+
+        /**
+         * Spins briefly, then yields, while a stripe is busy.
+         * @param spins how many times the caller has already waited
+         */
+        private static void backOff(final int spins) {
+            if (spins > 100) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * A table of 16-bit registers.
+     */
+    private static final class WordTable extends Table {
+
+        /**
+         * The register values.
+         */
+        private final AtomicIntegerArray words;
+
+        WordTable(final int size) {
+            super(size);
+            words = new AtomicIntegerArray(size);
+        }
+
+        void read(final int reference, final int[] values, final int offset, final int count) {
+            check(reference, count);
+            if (count == 0) {
+                return;
+            }
+            int first = reference / STRIPE_SIZE;
+            int last = (reference + count - 1) / STRIPE_SIZE;
+            long begin;
+            do {
+                begin = readBegin(first, last);
+                for (int i = 0; i < count; i++) {
+                    values[offset + i] = words.get(reference + i);
+                }
+            } while (!validate(first, last, begin));
+        }
+
+        void write(final int reference, final int[] values, final int offset, final int count) {
+            check(reference, count);
+            if (count == 0) {
+                return;
+            }
+            int first = reference / STRIPE_SIZE;
+            int last = (reference + count - 1) / STRIPE_SIZE;
+            lock(first, last);
+            try {
+                for (int i = 0; i < count; i++) {
+                    words.set(reference + i, values[offset + i] & 0xffff);
+                }
+            } finally {
+                unlock(first, last);
+            }
+        }
+
+        int get(final int ref) {
+            return words.get(ref);
+        }
+
+        void set(final int ref, final int value) {
+            int stripe = ref / STRIPE_SIZE;
+            lock(stripe, stripe);
+            try {
+                words.set(ref, value & 0xffff);
+            } finally {
+                unlock(stripe, stripe);
+            }
+        }
+    }
+
+    /**
+     * A table of bits.
+     */
+    private static final class BitTable extends Table {
+
+        /**
+         * The bits, 64 to a word.
+         */
+        private final AtomicLongArray bits;
+
+        BitTable(final int size) {
+            super(size);
+            bits = new AtomicLongArray((size + 63) / 64);
+        }
+
+        void read(final int reference, final boolean[] values, final int offset, final int count) {
+            check(reference, count);
+            if (count == 0) {
+                return;
+            }
+            int first = reference / STRIPE_SIZE;
+            int last = (reference + count - 1) / STRIPE_SIZE;
+            long begin;
+            do {
+                begin = readBegin(first, last);
+                for (int i = 0; i < count; i++) {
+                    int ref = reference + i;
+                    values[offset + i] = (bits.get(ref >>> 6) & (1L << ref)) != 0;
+                }
+            } while (!validate(first, last, begin));
+        }
+
+        void write(final int reference, final boolean[] values, final int offset, final int count) {
+            check(reference, count);
+            if (count == 0) {
+                return;
+            }
+            int first = reference / STRIPE_SIZE;
+            int last = (reference + count - 1) / STRIPE_SIZE;
+            lock(first, last);
+            try {
+                for (int i = 0; i < count; i++) {
+                    store(reference + i, values[offset + i]);
+                }
+            } finally {
+                unlock(first, last);
+            }
+        }
+
+        boolean get(final int ref) {
+            return (bits.get(ref >>> 6) & (1L << ref)) != 0;
+        }
+
+        void set(final int ref, final boolean value) {
+            int stripe = ref / STRIPE_SIZE;
+            lock(stripe, stripe);
+            try {
+                store(ref, value);
+            } finally {
+                unlock(stripe, stripe);
+            }
+        }
+
+        /**
+         * Stores one bit.  The caller holds the bit's stripe, and a stripe
+         * never shares a word with another stripe, so no other writer can
+         * touch the word.
+         * @param ref the address
+         * @param value the bit
+         */
+        private void store(final int ref, final boolean value) {
+            int index = ref >>> 6;
+            long word = bits.get(index);
+            bits.set(index, value ? word | (1L << ref) : word & ~(1L << ref));
+        }
+    }
+
+    /**
+     * A view of one register.
+     */
+    private static final class Word implements Register {
+
+        /**
+         * The table.
+         */
+        private final WordTable table;
+
+        /**
+         * The address.
+         */
+        private final int ref;
+
+        Word(final WordTable table, final int ref) {
+            this.table = table;
+            this.ref = ref;
+        }
+
+        public int getValue() {
+            return table.get(ref);
+        }
+
+        public int toUnsignedShort() {
+            return table.get(ref);
+        }
+
+        public short toShort() {
+            return (short) table.get(ref);
+        }
+
+        public byte[] toBytes() {
+            int value = table.get(ref);
+            return new byte[]{(byte) (value >> 8), (byte) value};
+        }
+
+        public void setValue(final int v) {
+            table.set(ref, v);
+        }
+
+        public void setValue(final short s) {
+            table.set(ref, s);
+        }
+
+        public void setValue(final byte[] bytes) {
+            table.set(ref, ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff));
+        }
+    }
+
+    /**
+     * A view of one coil or discrete input.
+     */
+    private static final class Bit implements DigitalOut, DigitalIn {
+
+        /**
+         * The table.
+         */
+        private final BitTable table;
+
+        /**
+         * The address.
+         */
+        private final int ref;
+
+        Bit(final BitTable table, final int ref) {
+            this.table = table;
+            this.ref = ref;
+        }
+
+        public boolean isSet() {
+            return table.get(ref);
+        }
+
+        public void set(final boolean b) {
+            table.set(ref, b);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteCoilResponse;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterResponse;
+import net.wimpi.modbus.procimg.DigitalIn;
+import net.wimpi.modbus.procimg.DigitalOut;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleInputRegister;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * Answers requests from a process image, the way a simple Modbus slave does.
+ *
+ * <p>jamod's own requests answer themselves from the process image of the
+ * global {@code ModbusCoupler}, so every slave in a JVM would share one
+ * image.  This handler answers from an image of its own.  Reads and writes of
+ * coils and holding registers and reads of discrete inputs and input
+ * registers are supported; other function codes are refused with an illegal
+ * function exception.</p>
+ *
+ * <p>A {@link PrimitiveProcessImage} is served through its bulk methods, so
+ * that every read is one consistent snapshot and every write lands at once,
+ * without a view object per value.</p>
+ *
+ * @author Steven Swor
+ */
+public class ProcessImageRequestHandler implements SlaveRequestHandler {
+
+    /**
+     * The largest number of registers one request may read.
+     */
+    private static final int MAX_READ_REGISTERS = 125;
+
+    /**
+     * The largest number of registers one request may write.
+     */
+    private static final int MAX_WRITE_REGISTERS = 123;
+
+    /**
+     * The largest number of coils one request may write.
+     */
+    private static final int MAX_WRITE_COILS = 1968;
+
+    /**
+     * The process image.
+     */
+    private final ProcessImage image;
+
+    /**
+     * The process image, if it is a {@link PrimitiveProcessImage}.
+     */
+    private final PrimitiveProcessImage primitiveImage;
+
+    /**
+     * Creates a new ProcessImageRequestHandler.
+     * @param image the process image
+     */
+    public ProcessImageRequestHandler(final ProcessImage image) {
+        this.image = image;
+        this.primitiveImage = image instanceof PrimitiveProcessImage ? (PrimitiveProcessImage) image : null;
+    }
+
+    public void handle(final ModbusRequest request, final SlaveResponder responder) {
+        responder.respond(createResponse(request));
+    }
+
+    /**
+     * Answers a request from the process image.
+     * @param request the request
+     * @return the response, which is an {@link ExceptionResponse} if the
+     * request cannot be served
+     */
+    public ModbusResponse createResponse(final ModbusRequest request) {
+        int functionCode = request.getFunctionCode();
+        switch (functionCode) {
+            case Modbus.READ_COILS: {
+                ReadCoilsRequest read = (ReadCoilsRequest) request;
+                int error = check(read.getReference(), read.getBitCount(), Modbus.MAX_BITS, image.getDigitalOutCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                if (primitiveImage != null) {
+                    boolean[] states = new boolean[read.getBitCount()];
+                    primitiveImage.readCoils(read.getReference(), states, 0, states.length);
+                    ReadCoilsResponse response = new ReadCoilsResponse(states.length);
+                    for (int i = 0; i < states.length; i++) {
+                        response.setCoilStatus(i, states[i]);
+                    }
+                    return response;
+                }
+                DigitalOut[] coils = image.getDigitalOutRange(read.getReference(), read.getBitCount());
+                ReadCoilsResponse response = new ReadCoilsResponse(coils.length);
+                for (int i = 0; i < coils.length; i++) {
+                    response.setCoilStatus(i, coils[i].isSet());
+                }
+                return response;
+            }
+            case Modbus.READ_INPUT_DISCRETES: {
+                ReadInputDiscretesRequest read = (ReadInputDiscretesRequest) request;
+                int error = check(read.getReference(), read.getBitCount(), Modbus.MAX_BITS, image.getDigitalInCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                if (primitiveImage != null) {
+                    boolean[] states = new boolean[read.getBitCount()];
+                    primitiveImage.readDiscreteInputs(read.getReference(), states, 0, states.length);
+                    ReadInputDiscretesResponse response = new ReadInputDiscretesResponse(states.length);
+                    for (int i = 0; i < states.length; i++) {
+                        response.setDiscreteStatus(i, states[i]);
+                    }
+                    return response;
+                }
+                DigitalIn[] inputs = image.getDigitalInRange(read.getReference(), read.getBitCount());
+                ReadInputDiscretesResponse response = new ReadInputDiscretesResponse(inputs.length);
+                for (int i = 0; i < inputs.length; i++) {
+                    response.setDiscreteStatus(i, inputs[i].isSet());
+                }
+                return response;
+            }
+            case Modbus.READ_MULTIPLE_REGISTERS: {
+                ReadMultipleRegistersRequest read = (ReadMultipleRegistersRequest) request;
+                int error = check(read.getReference(), read.getWordCount(), MAX_READ_REGISTERS, image.getRegisterCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                if (primitiveImage != null) {
+                    int[] words = new int[read.getWordCount()];
+                    primitiveImage.readRegisters(read.getReference(), words, 0, words.length);
+                    Register[] values = new Register[words.length];
+                    for (int i = 0; i < words.length; i++) {
+                        values[i] = new SimpleRegister(words[i]);
+                    }
+                    return new ReadMultipleRegistersResponse(values);
+                }
+                Register[] registers = image.getRegisterRange(read.getReference(), read.getWordCount());
+                // copy, so that the response holds one consistent snapshot
+                Register[] values = new Register[registers.length];
+                for (int i = 0; i < registers.length; i++) {
+                    values[i] = new SimpleRegister(registers[i].getValue());
+                }
+                return new ReadMultipleRegistersResponse(values);
+            }
+            case Modbus.READ_INPUT_REGISTERS: {
+                ReadInputRegistersRequest read = (ReadInputRegistersRequest) request;
+                int error = check(read.getReference(), read.getWordCount(), MAX_READ_REGISTERS, image.getInputRegisterCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                if (primitiveImage != null) {
+                    int[] words = new int[read.getWordCount()];
+                    primitiveImage.readInputRegisters(read.getReference(), words, 0, words.length);
+                    InputRegister[] values = new InputRegister[words.length];
+                    for (int i = 0; i < words.length; i++) {
+                        values[i] = new SimpleInputRegister(words[i]);
+                    }
+                    return new ReadInputRegistersResponse(values);
+                }
+                InputRegister[] registers = image.getInputRegisterRange(read.getReference(), read.getWordCount());
+                InputRegister[] values = new InputRegister[registers.length];
+                for (int i = 0; i < registers.length; i++) {
+                    values[i] = new SimpleInputRegister(registers[i].getValue());
+                }
+                return new ReadInputRegistersResponse(values);
+            }
+            case Modbus.WRITE_COIL: {
+                WriteCoilRequest write = (WriteCoilRequest) request;
+                int error = check(write.getReference(), 1, 1, image.getDigitalOutCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                image.getDigitalOut(write.getReference()).set(write.getCoil());
+                return new WriteCoilResponse(write.getReference(), write.getCoil());
+            }
+            case Modbus.WRITE_SINGLE_REGISTER: {
+                WriteSingleRegisterRequest write = (WriteSingleRegisterRequest) request;
+                int error = check(write.getReference(), 1, 1, image.getRegisterCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                int value = write.getRegister().toUnsignedShort();
+                image.getRegister(write.getReference()).setValue(value);
+                return new WriteSingleRegisterResponse(write.getReference(), value);
+            }
+            case Modbus.WRITE_MULTIPLE_COILS: {
+                WriteMultipleCoilsRequest write = (WriteMultipleCoilsRequest) request;
+                int error = check(write.getReference(), write.getBitCount(), MAX_WRITE_COILS, image.getDigitalOutCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                if (primitiveImage != null) {
+                    boolean[] states = new boolean[write.getBitCount()];
+                    for (int i = 0; i < states.length; i++) {
+                        states[i] = write.getCoilStatus(i);
+                    }
+                    primitiveImage.writeCoils(write.getReference(), states, 0, states.length);
+                    return new WriteMultipleCoilsResponse(write.getReference(), write.getBitCount());
+                }
+                DigitalOut[] coils = image.getDigitalOutRange(write.getReference(), write.getBitCount());
+                for (int i = 0; i < coils.length; i++) {
+                    coils[i].set(write.getCoilStatus(i));
+                }
+                return new WriteMultipleCoilsResponse(write.getReference(), write.getBitCount());
+            }
+            case Modbus.WRITE_MULTIPLE_REGISTERS: {
+                WriteMultipleRegistersRequest write = (WriteMultipleRegistersRequest) request;
+                int error = check(write.getReference(), write.getWordCount(), MAX_WRITE_REGISTERS, image.getRegisterCount());
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                if (primitiveImage != null) {
+                    int[] words = new int[write.getWordCount()];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = write.getRegisterValue(i);
+                    }
+                    primitiveImage.writeRegisters(write.getReference(), words, 0, words.length);
+                    return new WriteMultipleRegistersResponse(write.getReference(), write.getWordCount());
+                }
+                Register[] registers = image.getRegisterRange(write.getReference(), write.getWordCount());
+                for (int i = 0; i < registers.length; i++) {
+                    registers[i].setValue(write.getRegisterValue(i));
+                }
+                return new WriteMultipleRegistersResponse(write.getReference(), write.getWordCount());
+            }
+            case ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS: {
+                ReadWriteMultipleRegistersRequest readWrite = (ReadWriteMultipleRegistersRequest) request;
+                int error = check(readWrite.getWriteReference(), readWrite.getWriteCount(), ReadWriteMultipleRegistersRequest.MAX_WRITE_COUNT, image.getRegisterCount());
+                if (error == 0) {
+                    error = check(readWrite.getReadReference(), readWrite.getReadCount(), ReadWriteMultipleRegistersRequest.MAX_READ_COUNT, image.getRegisterCount());
+                }
+                if (error != 0) {
+                    return new ExceptionResponse(functionCode, error);
+                }
+                // the write happens before the read
+                if (primitiveImage != null) {
+                    int[] words = new int[readWrite.getWriteCount()];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = readWrite.getRegisterValue(i);
+                    }
+                    primitiveImage.writeRegisters(readWrite.getWriteReference(), words, 0, words.length);
+                    words = new int[readWrite.getReadCount()];
+                    primitiveImage.readRegisters(readWrite.getReadReference(), words, 0, words.length);
+                    Register[] values = new Register[words.length];
+                    for (int i = 0; i < words.length; i++) {
+                        values[i] = new SimpleRegister(words[i]);
+                    }
+                    return new ReadWriteMultipleRegistersResponse(values);
+                }
+                Register[] registers = image.getRegisterRange(readWrite.getWriteReference(), readWrite.getWriteCount());
+                for (int i = 0; i < registers.length; i++) {
+                    registers[i].setValue(readWrite.getRegisterValue(i));
+                }
+                registers = image.getRegisterRange(readWrite.getReadReference(), readWrite.getReadCount());
+                Register[] values = new Register[registers.length];
+                for (int i = 0; i < registers.length; i++) {
+                    values[i] = new SimpleRegister(registers[i].getValue());
+                }
+                return new ReadWriteMultipleRegistersResponse(values);
+            }
+            default:
+                return new ExceptionResponse(functionCode, Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+        }
+    }
+
+    /**
+     * Checks the range of a request.
+     * @param reference the first address
+     * @param count the number of addresses
+     * @param maxCount the largest number of addresses the function allows
+     * @param size the number of addresses in the table
+     * @return 0 if the range is valid, otherwise the exception code
+     */
+    private static int check(final int reference, final int count, final int maxCount, final int size) {
+        if (count < 1 || count > maxCount) {
+            return Modbus.ILLEGAL_VALUE_EXCEPTION;
+        }
+        if (reference < 0 || reference + count > size) {
+            return Modbus.ILLEGAL_ADDRESS_EXCEPTION;
+        }
+        return 0;
+    }
+}
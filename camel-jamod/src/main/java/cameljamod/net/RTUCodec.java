@@ -0,0 +1,280 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import java.io.DataInputStream;
+import java.io.IOException;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.io.BytesInputStream;
+import net.wimpi.modbus.io.BytesOutputStream;
+import net.wimpi.modbus.msg.ModbusMessageImpl;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Encodes and decodes Modbus RTU frames (unit identifier, PDU and CRC).
+ *
+ * <p>RTU frames carry no length.  On a serial line they are delimited by
+ * silence; once a terminal server has packed them into TCP segments the
+ * silence is gone, so frames are delimited by working out their length from
+ * the function code and byte count instead.  The CRC is the Modbus CRC-16,
+ * computed from a lookup table and sent low byte first.</p>
+ *
+ * @author Steven Swor
+ */
+public final class RTUCodec {
+
+    /**
+     * The largest possible RTU frame.
+     */
+    public static final int MAX_FRAME_LENGTH = 256;
+
+    /**
+     * The number of bits a character takes on the wire: start bit, eight
+     * data bits, parity or a second stop bit, and a stop bit.
+     */
+    static final int BITS_PER_CHARACTER = 11;
+
+    /**
+     * The CRC of every byte value.
+     */
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < CRC_TABLE.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xa001 : crc >>> 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private RTUCodec() {
+    }
+
+    /**
+     * Computes the Modbus CRC-16 of a range of bytes.
+     * @param data the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @return the CRC
+     */
+    public static int crc16(final byte[] data, final int offset, final int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    /**
+     * Encodes a request or response as an RTU frame.
+     * @param message the request or response
+     * @return the frame
+     * @throws IOException if the message cannot be encoded
+     */
+    public static byte[] encode(final ModbusMessageImpl message) throws IOException {
+        BytesOutputStream out = new BytesOutputStream(MAX_FRAME_LENGTH);
+        out.writeByte(message.getUnitID());
+        out.writeByte(message.getFunctionCode());
+        message.writeData(out);
+        int length = out.size();
+        byte[] frame = new byte[length + 2];
+        System.arraycopy(out.getBuffer(), 0, frame, 0, length);
+        int crc = crc16(frame, 0, length);
+        frame[length] = (byte) crc;
+        frame[length + 1] = (byte) (crc >> 8);
+        return frame;
+    }
+
+    /**
+     * Reads one complete response frame from a stream.
+     * @param in the stream
+     * @return the frame, including its CRC
+     * @throws IOException if the stream ends or the frame cannot be delimited
+     */
+    public static byte[] readResponse(final DataInputStream in) throws IOException {
+        byte[] head = new byte[3];
+        in.readFully(head);
+        return readRest(in, head, getResponseLength(head));
+    }
+
+    /**
+     * Works out the length of a response frame from its first three bytes:
+     * the unit identifier, the function code, and the byte count or first
+     * data byte.
+     * @param head the first three bytes of the frame
+     * @return the length of the frame, including its CRC
+     * @throws IOException if the function code's responses cannot be
+     * delimited
+     */
+    public static int getResponseLength(final byte[] head) throws IOException {
+        int functionCode = head[1] & 0xff;
+        if ((functionCode & 0x80) != 0) {
+            // unit, function code, exception code and CRC
+            return 5;
+        }
+        switch (functionCode) {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+            case Modbus.READ_MULTIPLE_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+            case ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS:
+                return 5 + (head[2] & 0xff);
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_SINGLE_REGISTER:
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                return 8;
+            default:
+                throw new IOException("Cannot delimit RTU response with function code " + functionCode);
+        }
+    }
+
+    /**
+     * Reads one complete request frame from a stream.
+     * @param in the stream
+     * @return the frame, including its CRC
+     * @throws IOException if the stream ends or the frame cannot be delimited
+     */
+    public static byte[] readRequest(final DataInputStream in) throws IOException {
+        byte[] head = new byte[2];
+        in.readFully(head);
+        int functionCode = head[1] & 0xff;
+        switch (functionCode) {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+            case Modbus.READ_MULTIPLE_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_SINGLE_REGISTER:
+                return readRest(in, head, 8);
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                return readCounted(in, head, 6);
+            case ReadWriteMultipleRegistersRequest.READ_WRITE_MULTIPLE_REGISTERS:
+                return readCounted(in, head, 10);
+            default:
+                throw new IOException("Cannot delimit RTU request with function code " + functionCode);
+        }
+    }
+
+    /**
+     * Reads the rest of a request whose length is given by a byte count.
+     * @param in the stream
+     * @param head the bytes read so far
+     * @param countOffset the offset of the byte count
+     * @return the frame
+     * @throws IOException if the stream ends
+     */
+    private static byte[] readCounted(final DataInputStream in, final byte[] head, final int countOffset) throws IOException {
+        byte[] fixed = readRest(in, head, countOffset + 1);
+        return readRest(in, fixed, countOffset + 1 + (fixed[countOffset] & 0xff) + 2);
+    }
+
+    /**
+     * Reads the rest of a frame of known length.
+     * @param in the stream
+     * @param head the bytes read so far
+     * @param length the length of the frame
+     * @return the frame
+     * @throws IOException if the stream ends or the length is impossible
+     */
+    private static byte[] readRest(final DataInputStream in, final byte[] head, final int length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid RTU frame length: " + length);
+        }
+        byte[] frame = new byte[length];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        in.readFully(frame, head.length, length - head.length);
+        return frame;
+    }
+
+    /**
+     * Decodes a response frame.
+     * @param frame the frame, including its CRC
+     * @param length the number of bytes in the frame
+     * @return the response
+     * @throws IOException if the frame is corrupt or cannot be decoded
+     */
+    public static ModbusResponse decodeResponse(final byte[] frame, final int length) throws IOException {
+        checkCRC(frame, length);
+        ModbusResponse response = MBAPCodec.createResponse(frame[1] & 0xff);
+        response.setHeadless();
+        BytesInputStream in = new BytesInputStream(length - 2);
+        in.reset(frame, length - 2);
+        response.readFrom(in);
+        return response;
+    }
+
+    /**
+     * Decodes a request frame.
+     * @param frame the frame, including its CRC
+     * @param length the number of bytes in the frame
+     * @return the request
+     * @throws IOException if the frame is corrupt or cannot be decoded
+     */
+    public static ModbusRequest decodeRequest(final byte[] frame, final int length) throws IOException {
+        checkCRC(frame, length);
+        ModbusRequest request = MBAPCodec.createRequest(frame[1] & 0xff);
+        request.setHeadless();
+        BytesInputStream in = new BytesInputStream(length - 2);
+        in.reset(frame, length - 2);
+        request.readFrom(in);
+        return request;
+    }
+
+    /**
+     * Checks a frame's CRC.
+     * @param frame the frame
+     * @param length the number of bytes in the frame
+     * @throws IOException if the frame is truncated or its CRC is wrong
+     */
+    private static void checkCRC(final byte[] frame, final int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("Truncated RTU frame");
+        }
+        int crc = (frame[length - 2] & 0xff) | ((frame[length - 1] & 0xff) << 8);
+        if (crc != crc16(frame, 0, length - 2)) {
+            throw new IOException("RTU frame failed its CRC check");
+        }
+    }
+
+    /**
+     * Gets how long a number of bytes takes on a serial line.
+     * @param bytes the number of bytes
+     * @param baudRate the line's speed, in bits per second
+     * @return the time, in nanoseconds
+     */
+    public static long getTransmissionNanos(final int bytes, final int baudRate) {
+        return (long) bytes * BITS_PER_CHARACTER * 1000000000L / baudRate;
+    }
+
+    /**
+     * Gets the silence which separates frames on a serial line: three and a
+     * half characters, or a fixed 1.75 ms above 19200 baud.
+     * @param baudRate the line's speed, in bits per second
+     * @return the silence, in nanoseconds
+     */
+    public static long getInterFrameNanos(final int baudRate) {
+        if (baudRate > 19200) {
+            return 1750000L;
+        }
+        return 7L * BITS_PER_CHARACTER * 1000000000L / (2L * baudRate);
+    }
+}
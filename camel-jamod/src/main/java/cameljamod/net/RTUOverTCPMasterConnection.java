@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A Modbus master connection which sends RTU frames over TCP, for serial
+ * devices behind transparent terminal servers.
+ *
+ * <p>RTU has no transaction identifiers, so the connection carries one
+ * transaction at a time, and gives up the socket when a response is late
+ * rather than risk matching it to the next request.  The serial line behind
+ * the terminal server sets the pace: each request waits out the inter-frame
+ * silence after the previous response, and the timeout is stretched by the
+ * time the request and response take on the line at
+ * {@link #getBaudRate()}.</p>
+ *
+ * @author Steven Swor
+ */
+public class RTUOverTCPMasterConnection {
+
+    /**
+     * The default speed of the serial line, in bits per second.
+     */
+    public static final int DEFAULT_BAUD_RATE = 9600;
+
+    /**
+     * The address of the terminal server.
+     */
+    private InetAddress address;
+
+    /**
+     * The port of the terminal server.
+     */
+    private int port = Modbus.DEFAULT_PORT;
+
+    /**
+     * The timeout, in milliseconds.
+     */
+    private int timeout = Modbus.DEFAULT_TIMEOUT;
+
+    /**
+     * The speed of the serial line, in bits per second.
+     */
+    private int baudRate = DEFAULT_BAUD_RATE;
+
+    /**
+     * The socket.
+     */
+    private Socket socket;
+
+    /**
+     * The socket's buffered input stream.
+     */
+    private InputStream input;
+
+    /**
+     * The socket's buffered output stream.
+     */
+    private OutputStream output;
+
+    /**
+     * Whether or not the connection is connected.
+     */
+    private volatile boolean connected = false;
+
+    /**
+     * When the last frame finished arriving, in {@link System#nanoTime()}
+     * units.
+     */
+    private long lastFrameAt = System.nanoTime();
+
+    /**
+     * Creates a new RTUOverTCPMasterConnection.
+     * @param address the address of the terminal server
+     */
+    public RTUOverTCPMasterConnection(final InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Opens the socket.
+     * @throws Exception if the socket cannot be opened
+     */
+    public synchronized void connect() throws Exception {
+        if (connected) {
+            return;
+        }
+        Socket newSocket = new Socket();
+        newSocket.connect(new InetSocketAddress(address, port), timeout);
+        newSocket.setTcpNoDelay(true);
+        socket = newSocket;
+        input = new BufferedInputStream(newSocket.getInputStream());
+        output = new BufferedOutputStream(newSocket.getOutputStream());
+        connected = true;
+    }
+
+    /**
+     * Closes the socket.
+     */
+    public synchronized void close() {
+        connected = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //trap
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response.  Other callers wait until
+     * the transaction is over.
+     * @param request the request
+     * @return the response
+     * @throws ModbusIOException if the request cannot be sent, or no valid
+     * response arrives in time
+     */
+    public synchronized ModbusResponse execute(final ModbusRequest request) throws ModbusIOException {
+        if (!connected) {
+            throw new ModbusIOException("Not connected");
+        }
+        try {
+            byte[] frame = RTUCodec.encode(request);
+            long silence = lastFrameAt + RTUCodec.getInterFrameNanos(baudRate) - System.nanoTime();
+            if (silence > 0) {
+                TimeUnit.NANOSECONDS.sleep(silence);
+            }
+            output.write(frame);
+            output.flush();
+            long deadline = System.nanoTime() + timeout * 1000000L + RTUCodec.getTransmissionNanos(frame.length, baudRate);
+            byte[] head = new byte[3];
+            readFully(head, 0, head.length, deadline);
+            int length = RTUCodec.getResponseLength(head);
+            byte[] reply = new byte[length];
+            System.arraycopy(head, 0, reply, 0, head.length);
+            readFully(reply, head.length, length - head.length, deadline + RTUCodec.getTransmissionNanos(length, baudRate));
+            lastFrameAt = System.nanoTime();
+            ModbusResponse response = RTUCodec.decodeResponse(reply, length);
+            if (response.getUnitID() != request.getUnitID() || (response.getFunctionCode() & 0x7f) != request.getFunctionCode()) {
+                throw new IOException("Response does not match the request");
+            }
+            return response;
+        } catch (SocketTimeoutException ex) {
+            close();
+            throw new ModbusTimeoutException("Timed out waiting for response");
+        } catch (IOException ex) {
+            close();
+            throw new ModbusIOException(ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Thread executing transaction was interrupted.");
+        }
+    }
+
+    /**
+     * Reads bytes from the socket until a deadline.
+     * @param buffer the buffer to fill
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @param deadline the deadline, in {@link System#nanoTime()} units
+     * @throws IOException if the socket closes or the deadline passes
+     */
+    private void readFully(final byte[] buffer, final int offset, final int length, final long deadline) throws IOException {
+        int done = 0;
+        while (done < length) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException();
+            }
+            socket.setSoTimeout((int) Math.max(1L, remaining / 1000000L));
+            int n = input.read(buffer, offset + done, length - done);
+            if (n < 0) {
+                throw new IOException("Connection closed by peer");
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Determines if the connection is connected.
+     * @return whether or not the connection is connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Gets the address of the terminal server.
+     * @return the address of the terminal server
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets the address of the terminal server.
+     * @param address the address of the terminal server
+     */
+    public void setAddress(final InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Gets the port of the terminal server.
+     * @return the port of the terminal server
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port of the terminal server.
+     * @param port the port of the terminal server
+     */
+    public void setPort(final int port) {
+        this.port = port;
+    }
+
+    /**
+     * Gets the timeout.
+     * @return the timeout, in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the timeout, which applies to connecting and to waiting for the
+     * device to answer once its request has crossed the serial line.
+     * @param timeout the timeout, in milliseconds
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Gets the speed of the serial line behind the terminal server.
+     * @return the speed, in bits per second
+     */
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * Sets the speed of the serial line behind the terminal server.
+     * @param baudRate the speed, in bits per second
+     */
+    public void setBaudRate(final int baudRate) {
+        if (baudRate < 1) {
+            throw new IllegalArgumentException("baudRate must be positive");
+        }
+        this.baudRate = baudRate;
+    }
+}
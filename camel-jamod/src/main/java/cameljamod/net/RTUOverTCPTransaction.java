@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A transaction executed over an {@link RTUOverTCPMasterConnection}.  RTU
+ * frames carry no transaction identifier, so {@link #getTransactionID()}
+ * is always 0.
+ *
+ * @author Steven Swor
+ */
+public class RTUOverTCPTransaction implements ModbusTransaction {
+
+    /**
+     * The connection.
+     */
+    private final RTUOverTCPMasterConnection connection;
+
+    /**
+     * The request.
+     */
+    private ModbusRequest request;
+
+    /**
+     * The response.
+     */
+    private ModbusResponse response;
+
+    /**
+     * The number of times to retry after an I/O failure.
+     */
+    private int retries = Modbus.DEFAULT_RETRIES;
+
+    /**
+     * Kept for compatibility with {@link ModbusTransaction}.
+     */
+    private boolean checkingValidity = false;
+
+    /**
+     * Creates a new RTUOverTCPTransaction.
+     * @param connection the connection
+     */
+    public RTUOverTCPTransaction(final RTUOverTCPMasterConnection connection) {
+        this.connection = connection;
+    }
+
+    public void setRequest(final ModbusRequest request) {
+        this.request = request;
+    }
+
+    public ModbusRequest getRequest() {
+        return request;
+    }
+
+    public ModbusResponse getResponse() {
+        return response;
+    }
+
+    public int getTransactionID() {
+        return 0;
+    }
+
+    public void setRetries(final int retries) {
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setCheckingValidity(final boolean checkingValidity) {
+        this.checkingValidity = checkingValidity;
+    }
+
+    public boolean isCheckingValidity() {
+        return checkingValidity;
+    }
+
+    public void execute() throws ModbusException {
+        if (request == null) {
+            throw new ModbusException("Assertion failed, transaction not executable");
+        }
+        for (int attempt = 0;; attempt++) {
+            try {
+                response = executeOnce();
+                break;
+            } catch (ModbusIOException ex) {
+                if (attempt >= retries) {
+                    throw ex;
+                }
+            }
+        }
+        if (response instanceof ExceptionResponse) {
+            throw new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode());
+        }
+    }
+
+    /**
+     * Sends the request once and waits for its response.
+     * @return the response
+     * @throws ModbusException if the attempt fails
+     */
+    private ModbusResponse executeOnce() throws ModbusException {
+        if (!connection.isConnected()) {
+            try {
+                connection.connect();
+            } catch (Exception ex) {
+                throw new ModbusIOException("Connecting failed.");
+            }
+        }
+        return connection.execute(request);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Paces the requests sent to one device.
+ *
+ * <p>Small gateways drop frames or time out when many routes talk to them at
+ * once, and a burst of writes can hold off polling for seconds.  Every
+ * request to a device first waits its turn here.  Turns are handed out no
+ * faster than {@link #getMaxRequestsPerSecond()}, evenly spaced, and in order
+ * of {@link Priority}: a waiting write always goes before a waiting alarm
+ * poll, which always goes before a waiting trend poll.  Within a priority,
+ * turns go round-robin between the sources of the requests (typically
+ * endpoints), so one busy route cannot starve another.</p>
+ *
+ * <p>With no rate set, requests never wait and the scheduler costs
+ * nothing.</p>
+ *
+ * @author Steven Swor
+ */
+public class RequestScheduler {
+
+    /**
+     * The classes of requests, most urgent first.
+     */
+    public static enum Priority {
+
+        /**
+         * Writes.
+         */
+        WRITE,
+        /**
+         * Polls of values which need attention quickly.
+         */
+        ALARM,
+        /**
+         * Ordinary polls.
+         */
+        POLL
+    }
+
+    /**
+     * The largest number of requests per second, or 0 for no limit.
+     */
+    private volatile double maxRequestsPerSecond = 0;
+
+    /**
+     * The waiting requests of each priority, by source, in round-robin
+     * order.
+     */
+    private final Map<Object, LinkedList<Object>>[] queues;
+
+    /**
+     * When the next turn may start, in {@link System#nanoTime()} units.
+     */
+    private long nextTurn = System.nanoTime();
+
+    /**
+     * The number of waiting requests.
+     */
+    private int waiting = 0;
+
+    /**
+     * Creates a new RequestScheduler with no rate limit.
+     */
+    @SuppressWarnings("unchecked")
+    public RequestScheduler() {
+        queues = new Map[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new LinkedHashMap<Object, LinkedList<Object>>();
+        }
+    }
+
+    /**
+     * Gets the largest number of requests per second.
+     * @return the largest number of requests per second, or 0 for no limit
+     */
+    public double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    /**
+     * Sets the largest number of requests per second.  The next turn may
+     * start at once.
+     * @param maxRequestsPerSecond the largest number of requests per second,
+     * or 0 for no limit
+     */
+    public synchronized void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        nextTurn = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of requests waiting for their turn.
+     * @return the number of waiting requests
+     */
+    public synchronized int getWaitingCount() {
+        return waiting;
+    }
+
+    /**
+     * Waits for a request's turn.
+     * @param priority the request's priority
+     * @param source what sent the request, for fair queuing between senders
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting, in which case the request gave up its place
+     */
+    public void acquire(final Priority priority, final Object source) throws InterruptedException {
+        if (maxRequestsPerSecond <= 0) {
+            return;
+        }
+        Object ticket = new Object();
+        synchronized (this) {
+            Map<Object, LinkedList<Object>> queue = queues[priority.ordinal()];
+            LinkedList<Object> tickets = queue.get(source);
+            if (tickets == null) {
+                tickets = new LinkedList<Object>();
+                queue.put(source, tickets);
+            }
+            tickets.add(ticket);
+            waiting++;
+            // the new request may go before the one waiting for the next turn
+            notifyAll();
+            boolean granted = false;
+            try {
+                while (true) {
+                    double rate = maxRequestsPerSecond;
+                    if (next() == ticket) {
+                        long now = System.nanoTime();
+                        long delay = rate <= 0 ? 0 : nextTurn - now;
+                        if (delay <= 0) {
+                            long spacing = rate <= 0 ? 0 : (long) (1000000000L / rate);
+                            nextTurn = Math.max(nextTurn, now) + spacing;
+                            granted = true;
+                            return;
+                        }
+                        wait(delay / 1000000L, (int) (delay % 1000000L));
+                    } else {
+                        wait();
+                    }
+                }
+            } finally {
+                remove(priority, source, ticket, granted);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Finds the request whose turn is next.
+     * @return the request's ticket, or {@code null} if none is waiting
+     */
+    private Object next() {
+        for (Map<Object, LinkedList<Object>> queue : queues) {
+            Iterator<LinkedList<Object>> sources = queue.values().iterator();
+            if (sources.hasNext()) {
+                return sources.next().getFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a request out of the queue.
+     * @param priority the request's priority
+     * @param source the request's source
+     * @param ticket the request's ticket
+     * @param granted {@code true} if the request got its turn, in which case
+     * its source moves to the back of the round-robin
+     */
+    private void remove(final Priority priority, final Object source, final Object ticket, final boolean granted) {
+        Map<Object, LinkedList<Object>> queue = queues[priority.ordinal()];
+        LinkedList<Object> tickets = queue.get(source);
+        tickets.remove(ticket);
+        waiting--;
+        if (granted || tickets.isEmpty()) {
+            queue.remove(source);
+            if (!tickets.isEmpty()) {
+                queue.put(source, tickets);
+            }
+        }
+    }
+}
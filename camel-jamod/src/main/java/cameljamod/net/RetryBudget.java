@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+/**
+ * Limits how often the requests to one device are retried.
+ *
+ * <p>Retries are paid for with tokens which refill at
+ * {@link #getMaxRetriesPerSecond()}, up to one second's worth (and at least
+ * one token).  When a link degrades, every request starts failing at once;
+ * without a budget each of them would be retried in full, multiplying the
+ * load on a device which is already struggling to answer.  With a budget,
+ * only a trickle of retries goes out and the remaining failures are reported
+ * straight away.</p>
+ *
+ * @author Steven Swor
+ */
+public class RetryBudget {
+
+    /**
+     * The largest number of retries per second, or 0 for no limit.
+     */
+    private volatile double maxRetriesPerSecond = 0;
+
+    /**
+     * The tokens left.
+     */
+    private double tokens = 0;
+
+    /**
+     * When the tokens were last refilled, in {@link System#nanoTime()} units.
+     */
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * The number of retries refused.
+     */
+    private long deniedCount = 0;
+
+    /**
+     * Gets the largest number of retries per second.
+     * @return the largest number of retries per second, or 0 for no limit
+     */
+    public double getMaxRetriesPerSecond() {
+        return maxRetriesPerSecond;
+    }
+
+    /**
+     * Sets the largest number of retries per second, and fills the budget.
+     * @param maxRetriesPerSecond the largest number of retries per second,
+     * or 0 for no limit
+     */
+    public synchronized void setMaxRetriesPerSecond(double maxRetriesPerSecond) {
+        this.maxRetriesPerSecond = maxRetriesPerSecond;
+        tokens = Math.max(1.0, maxRetriesPerSecond);
+        refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Asks permission to retry a request.
+     * @return {@code true} if the request may be retried
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Asks permission to retry a request at a given time.
+     * @param now the time, in {@link System#nanoTime()} units
+     * @return {@code true} if the request may be retried
+     */
+    synchronized boolean tryAcquire(final long now) {
+        double rate = maxRetriesPerSecond;
+        if (rate <= 0) {
+            return true;
+        }
+        tokens = Math.min(Math.max(1.0, rate), tokens + (now - refilledAt) / 1e9 * rate);
+        refilledAt = now;
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        deniedCount++;
+        return false;
+    }
+
+    public synchronized long getDeniedCount() {
+        return deniedCount;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import net.wimpi.modbus.msg.ModbusRequest;
+
+/**
+ * Answers the requests which clients send to a {@link NioTCPSlaveListener}.
+ *
+ * @author Steven Swor
+ */
+public interface SlaveRequestHandler {
+
+    /**
+     * Handles a request.  Runs on the event loop's thread of the client's
+     * connection, so implementations which block should hand the request to
+     * another thread and answer from there.
+     * @param request the request, with the unit identifier the client sent
+     * @param responder answers the request, exactly once, from any thread
+     */
+    void handle(ModbusRequest request, SlaveResponder responder);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Answers one request received by a {@link NioTCPSlaveListener}.
+ *
+ * @author Steven Swor
+ */
+public interface SlaveResponder {
+
+    /**
+     * Sends the response to the client.  The response's unit identifier and
+     * transaction identifier are taken from the request.  May be called from
+     * any thread.
+     * @param response the response
+     */
+    void respond(ModbusResponse response);
+}
@@ -85,7 +85,9 @@ public class TCPMasterConnectionWrapper extends AbstractMasterConnectionWrapper<
 
     @Override
     public ModbusTransaction createTransaction() {
-        return new ModbusTCPTransaction(getMasterConnection());
+        ModbusTransaction transaction = new ModbusTCPTransaction(getMasterConnection());
+        transaction.setRetries(getRetries());
+        return transaction;
     }
 
     
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Receives the outcome of a transaction executed asynchronously.  Exactly one
+ * of the methods is called, exactly once, possibly on an I/O thread, so
+ * implementations should return quickly.
+ *
+ * @author Steven Swor
+ */
+public interface TransactionCallback {
+
+    /**
+     * Called when the device answers the request.  Exception responses from
+     * the device are reported through {@link #failed(ModbusException)}
+     * instead.
+     * @param response the response
+     */
+    void completed(ModbusResponse response);
+
+    /**
+     * Called when the transaction fails.
+     * @param cause the reason the transaction failed
+     */
+    void failed(ModbusException cause);
+}
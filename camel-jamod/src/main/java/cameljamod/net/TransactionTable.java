@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cameljamod.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+
+/**
+ * Tracks the transactions in flight on a single connection and matches
+ * responses to them by MBAP transaction identifier.
+ *
+ * @author Steven Swor
+ */
+final class TransactionTable {
+
+    /**
+     * The largest MBAP transaction identifier.
+     */
+    private static final int MAX_TRANSACTION_ID = 0xffff;
+
+    /**
+     * One permit per transaction which may be in flight.
+     */
+    private final Semaphore slots;
+
+    /**
+     * The transactions in flight, by transaction identifier.
+     */
+    private final Map<Integer, PendingTransaction> inFlight = new HashMap<Integer, PendingTransaction>();
+
+    /**
+     * The most recently assigned transaction identifier.
+     */
+    private int lastTransactionId = 0;
+
+    /**
+     * Creates a new TransactionTable.
+     * @param maxInFlight the maximum number of transactions in flight
+     */
+    TransactionTable(final int maxInFlight) {
+        this.slots = new Semaphore(maxInFlight, true);
+    }
+
+    /**
+     * Assigns a transaction identifier to a request, waiting for a free slot
+     * if too many transactions are already in flight.
+     * @param request the request
+     * @param timeout how long to wait for a free slot, in milliseconds
+     * @return the pending transaction
+     * @throws ModbusIOException if no slot becomes free within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    PendingTransaction register(final ModbusRequest request, final long timeout) throws ModbusIOException, InterruptedException {
+        return register(request, timeout, null);
+    }
+
+    /**
+     * Assigns a transaction identifier to a request whose outcome is reported
+     * to a callback, waiting for a free slot if too many transactions are
+     * already in flight.
+     * @param request the request
+     * @param timeout how long to wait for a free slot, in milliseconds
+     * @param callback notified when the transaction completes or fails
+     * @return the pending transaction
+     * @throws ModbusIOException if no slot becomes free within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    PendingTransaction register(final ModbusRequest request, final long timeout, final TransactionCallback callback) throws ModbusIOException, InterruptedException {
+        if (!slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            throw new ModbusTimeoutException("Timed out waiting for a free transaction slot");
+        }
+        return assign(request, callback);
+    }
+
+    /**
+     * Assigns a transaction identifier to a request if a slot is free,
+     * without waiting.
+     * @param request the request
+     * @param callback notified when the transaction completes or fails
+     * @return the pending transaction, or {@code null} if too many
+     * transactions are already in flight
+     */
+    PendingTransaction tryRegister(final ModbusRequest request, final TransactionCallback callback) {
+        if (!slots.tryAcquire()) {
+            return null;
+        }
+        return assign(request, callback);
+    }
+
+    /**
+     * Assigns the next free transaction identifier.  The caller must already
+     * hold a slot.
+     * @param request the request
+     * @param callback notified when the transaction completes or fails
+     * @return the pending transaction
+     */
+    private synchronized PendingTransaction assign(final ModbusRequest request, final TransactionCallback callback) {
+        int id = lastTransactionId;
+        do {
+            id = id >= MAX_TRANSACTION_ID ? 1 : id + 1;
+        } while (inFlight.containsKey(Integer.valueOf(id)));
+        lastTransactionId = id;
+        PendingTransaction pending = new PendingTransaction(id, request, callback);
+        inFlight.put(Integer.valueOf(id), pending);
+        return pending;
+    }
+
+    /**
+     * Stops tracking every transaction whose deadline has passed.
+     * @param now the current time, in milliseconds since the epoch
+     * @return the expired transactions, which the caller should fail
+     */
+    List<PendingTransaction> expire(final long now) {
+        List<PendingTransaction> expired = null;
+        synchronized (this) {
+            Iterator<PendingTransaction> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                PendingTransaction pending = it.next();
+                if (pending.getDeadline() <= now) {
+                    if (expired == null) {
+                        expired = new ArrayList<PendingTransaction>();
+                    }
+                    expired.add(pending);
+                    it.remove();
+                }
+            }
+        }
+        if (expired == null) {
+            return Collections.emptyList();
+        }
+        slots.release(expired.size());
+        return expired;
+    }
+
+    /**
+     * Stops tracking a transaction, typically because its response arrived.
+     * @param transactionId the transaction identifier
+     * @return the pending transaction, or {@code null} if no transaction with
+     * that identifier is in flight
+     */
+    PendingTransaction remove(final int transactionId) {
+        PendingTransaction pending;
+        synchronized (this) {
+            pending = inFlight.remove(Integer.valueOf(transactionId));
+        }
+        if (pending != null) {
+            slots.release();
+        }
+        return pending;
+    }
+
+    /**
+     * Stops tracking a transaction which will not be completed, e.g. because
+     * it timed out.  A late response for it will be discarded.
+     * @param pending the pending transaction
+     */
+    void abandon(final PendingTransaction pending) {
+        synchronized (this) {
+            if (inFlight.get(Integer.valueOf(pending.getTransactionId())) != pending) {
+                return;
+            }
+            inFlight.remove(Integer.valueOf(pending.getTransactionId()));
+        }
+        slots.release();
+    }
+
+    /**
+     * Fails every transaction in flight.
+     * @param cause the reason the transactions failed
+     */
+    void failAll(final ModbusException cause) {
+        List<PendingTransaction> failed;
+        synchronized (this) {
+            failed = new ArrayList<PendingTransaction>(inFlight.values());
+            inFlight.clear();
+        }
+        slots.release(failed.size());
+        for (PendingTransaction pending : failed) {
+            pending.fail(cause);
+        }
+    }
+
+    /**
+     * Gets the number of transactions in flight.
+     * @return the number of transactions in flight
+     */
+    synchronized int size() {
+        return inFlight.size();
+    }
+}
@@ -17,18 +17,26 @@
 package cameljamod.net;
 
 import java.net.InetAddress;
+import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.io.ModbusTransaction;
 import net.wimpi.modbus.io.ModbusTransport;
 import net.wimpi.modbus.io.ModbusUDPTransaction;
 import net.wimpi.modbus.net.UDPMasterConnection;
 
 /**
- * Wraps a {@link net.wimpi.modbus.net.UDPMasterConnection}.
+ * Wraps a {@link net.wimpi.modbus.net.UDPMasterConnection}.  Jamod's UDP
+ * connection can only take a timeout while it is connected, so the wrapper
+ * holds on to the timeout and applies it whenever it can.
  * 
  * @author Steven Swor
  */
 public class UDPMasterConnectionWrapper extends AbstractMasterConnectionWrapper<UDPMasterConnection> {
 
+    /**
+     * The timeout, in milliseconds.
+     */
+    private int timeout = Modbus.DEFAULT_TIMEOUT;
+
     public UDPMasterConnectionWrapper(UDPMasterConnection masterConnection) {
         super(masterConnection);
     }
@@ -41,6 +49,7 @@ public class UDPMasterConnectionWrapper extends AbstractMasterConnectionWrapper<
     @Override
     public void connect() throws Exception {
         getMasterConnection().connect();
+        getMasterConnection().setTimeout(timeout);
     }
 
     @Override
@@ -60,7 +69,7 @@ public class UDPMasterConnectionWrapper extends AbstractMasterConnectionWrapper<
 
     @Override
     public int getTimeout() {
-        return getMasterConnection().getTimeout();
+        return timeout;
     }
 
     @Override
@@ -80,11 +89,20 @@ public class UDPMasterConnectionWrapper extends AbstractMasterConnectionWrapper<
 
     @Override
     public void setTimeout(int timeout) {
-        getMasterConnection().setTimeout(timeout);
+        this.timeout = timeout;
+        if (getMasterConnection().isConnected()) {
+            getMasterConnection().setTimeout(timeout);
+        }
     }
 
     @Override
     public ModbusTransaction createTransaction() {
-        return new ModbusUDPTransaction(getMasterConnection());
+        UDPMasterConnection connection = getMasterConnection();
+        if (connection.isConnected() && connection.getTimeout() != timeout) {
+            connection.setTimeout(timeout);
+        }
+        ModbusTransaction transaction = new ModbusUDPTransaction(connection);
+        transaction.setRetries(getRetries());
+        return transaction;
     }    
 }
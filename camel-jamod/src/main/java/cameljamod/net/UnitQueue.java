@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.text.MessageFormat;
+import java.util.LinkedList;
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Queues the requests to one unit behind a gateway.
+ *
+ * <p>The units behind a gateway share its connections, so a slave which
+ * stops answering would otherwise tie up every one of them with requests
+ * waiting to time out.  Requests to a unit first wait here, first come first
+ * served, until fewer than {@link #getMaxInFlight()} of the unit's requests
+ * are on their way; a silent unit can therefore only hold that many of the
+ * gateway's transaction slots, and the other units carry on through the
+ * rest.</p>
+ *
+ * @author Steven Swor
+ */
+public class UnitQueue {
+
+    /**
+     * The default number of requests to one unit on their way at once.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    /**
+     * The unit, for messages.
+     */
+    private final String unit;
+
+    /**
+     * The largest number of requests on their way at once.
+     */
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * The waiting requests, in order of arrival.
+     */
+    private final LinkedList<Object> waiting = new LinkedList<Object>();
+
+    /**
+     * The number of requests on their way.
+     */
+    private int inFlight = 0;
+
+    /**
+     * Creates a new UnitQueue.
+     * @param unit the unit, for messages
+     */
+    public UnitQueue(final String unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * Gets the largest number of requests on their way at once.
+     * @return the largest number of requests on their way at once
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the largest number of requests on their way at once.
+     * @param maxInFlight the largest number of requests on their way at once
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.maxInFlight = maxInFlight;
+        notifyAll();
+    }
+
+    /**
+     * Waits until a request may be sent to the unit.  Every successful call
+     * must be matched by a call to {@link #release()}.
+     * @param timeout how long to wait, in milliseconds
+     * @throws ModbusIOException if the unit's earlier requests are still on
+     * their way after the timeout
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting, in which case the request gave up its place
+     */
+    public void acquire(final long timeout) throws ModbusIOException, InterruptedException {
+        Object ticket = new Object();
+        synchronized (this) {
+            waiting.add(ticket);
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (waiting.getFirst() != ticket || inFlight >= maxInFlight) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new ModbusIOException(MessageFormat.format("Requests to {0} are still pending after {1}ms", unit, String.valueOf(timeout)));
+                    }
+                    wait(remaining);
+                }
+                inFlight++;
+            } finally {
+                waiting.remove(ticket);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reports that a request to the unit is over.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of requests waiting to be sent.
+     * @return the number of waiting requests
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Gets the number of requests on their way.
+     * @return the number of requests on their way
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+}
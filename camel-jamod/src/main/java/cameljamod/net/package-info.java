@@ -15,6 +15,6 @@
  */
 
 /**
- * Wrappers for Jamod master connections.
+ * Wrappers for Jamod master connections, and a non-blocking Modbus/TCP slave.
  */
 package cameljamod.net;
\ No newline at end of file
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AdaptiveDelay}.
+ *
+ * @author Steven Swor
+ */
+public class AdaptiveDelayTest {
+
+    /**
+     * One millisecond, in nanoseconds.
+     */
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testDisabled() {
+        AdaptiveDelay instance = new AdaptiveDelay();
+        assertFalse(instance.isEnabled());
+        assertEquals(500, instance.start(500));
+    }
+
+    @Test
+    public void testBackOffAndRecover() {
+        AdaptiveDelay instance = new AdaptiveDelay();
+        instance.setMinDelay(100);
+        instance.setMaxDelay(800);
+        assertTrue(instance.isEnabled());
+        assertEquals(100, instance.start(500));
+        assertTrue(instance.isDue(0));
+
+        instance.polled(0, true);
+        assertEquals(100, instance.getInterval());
+        assertTrue(instance.isDue(100 * MS));
+
+        instance.polled(100 * MS, false);
+        assertEquals(200, instance.getInterval());
+        assertFalse(instance.isDue(200 * MS));
+        assertTrue(instance.isDue(300 * MS));
+
+        long now = 300 * MS;
+        for (int i = 0; i < 5; i++) {
+            instance.polled(now, false);
+            now += instance.getInterval() * MS;
+        }
+        assertEquals(800, instance.getInterval());
+
+        instance.polled(now, true);
+        assertEquals(100, instance.getInterval());
+        assertTrue(instance.isDue(now + 100 * MS));
+    }
+
+    /**
+     * Failed polls back off like unchanged ones, and a change after the
+     * device comes back drops straight to the shortest interval.
+     */
+    @Test
+    public void testFailedPollsBackOff() {
+        AdaptiveDelay instance = new AdaptiveDelay();
+        instance.setMinDelay(100);
+        instance.setMaxDelay(400);
+        instance.start(100);
+        instance.failed(0);
+        assertEquals(100, instance.getInterval());
+        assertFalse(instance.isDue(0));
+        instance.failed(100 * MS);
+        assertEquals(200, instance.getInterval());
+        instance.failed(300 * MS);
+        instance.failed(700 * MS);
+        assertEquals(400, instance.getInterval());
+        assertFalse(instance.isDue(1000 * MS));
+        instance.polled(1100 * MS, true);
+        assertEquals(100, instance.getInterval());
+    }
+
+    @Test
+    public void testMinDelayDefaultsToDelay() {
+        AdaptiveDelay instance = new AdaptiveDelay();
+        instance.setMaxDelay(1000);
+        assertEquals(250, instance.start(250));
+        instance.polled(0, true);
+        instance.polled(0, false);
+        assertEquals(500, instance.getInterval());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.test.FakeModbusTCPDevice;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link BatchingWriteProducer}.
+ *
+ * @author Steven Swor
+ */
+public class BatchingWriteProducerTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The component.
+     */
+    private JamodComponent component;
+
+    /**
+     * The producer under test.
+     */
+    private BatchingWriteProducer producer;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (producer != null) {
+            producer.stop();
+        }
+        component.stop();
+        device.stop();
+    }
+
+    private BatchingWriteProducer createProducer(String path, String options) throws Exception {
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + path + options);
+        producer = (BatchingWriteProducer) endpoint.createProducer();
+        producer.start();
+        return producer;
+    }
+
+    private Exchange send(Object body, Integer address, final CountDownLatch done) {
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(body);
+        if (address != null) {
+            exchange.getIn().setHeader(JamodEndpoint.REFERENCE_ADDRESS_HEADER, address);
+        }
+        producer.process(exchange, new AsyncCallback() {
+
+            public void done(boolean doneSync) {
+                done.countDown();
+            }
+        });
+        return exchange;
+    }
+
+    /**
+     * Single-register writes are merged into as few requests as the protocol
+     * allows, split at gaps.
+     */
+    @Test(timeout = 10000)
+    public void testMergeRegisters() throws Exception {
+        createProducer("/registers/0", "?batchWindow=200&batchSize=10000");
+        CountDownLatch done = new CountDownLatch(299);
+        List<Exchange> exchanges = new ArrayList<Exchange>();
+        for (int address = 1000; address < 1300; address++) {
+            if (address != 1150) {
+                exchanges.add(send(Integer.valueOf(address * 2), Integer.valueOf(address), done));
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (Exchange exchange : exchanges) {
+            assertNull(exchange.getException());
+        }
+        // 150 and 149 contiguous registers, at most 123 to a request
+        assertEquals(4, device.getRequestCount());
+        assertEquals(2000, device.getRegister(1000));
+        assertEquals(2598, device.getRegister(1299));
+        assertEquals(1150, device.getRegister(1150));
+    }
+
+    /**
+     * Coils merge too, and a later write of the same address wins.
+     */
+    @Test(timeout = 10000)
+    public void testMergeCoils() throws Exception {
+        createProducer("/coils/10", "?batchWindow=200");
+        CountDownLatch done = new CountDownLatch(4);
+        send(Boolean.TRUE, null, done);
+        BitVector bits = new BitVector(2);
+        bits.setBit(0, true);
+        bits.setBit(1, true);
+        send(bits, Integer.valueOf(11), done);
+        send(Boolean.FALSE, Integer.valueOf(12), done);
+        send(Boolean.TRUE, Integer.valueOf(13), done);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, device.getRequestCount());
+        assertTrue(device.getCoil(10));
+        assertTrue(device.getCoil(11));
+        assertFalse(device.getCoil(12));
+        assertTrue(device.getCoil(13));
+    }
+
+    /**
+     * A full batch is sent without waiting for its window.
+     */
+    @Test(timeout = 10000)
+    public void testBatchSize() throws Exception {
+        createProducer("/registers/0", "?batchWindow=60000&batchSize=3");
+        CountDownLatch done = new CountDownLatch(2);
+        send(new int[]{1, 2}, Integer.valueOf(5), done);
+        send(Integer.valueOf(3), Integer.valueOf(7), done);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, device.getRequestCount());
+        assertEquals(3, device.getRegister(7));
+    }
+
+    /**
+     * Exchanges of a batch whose window closed complete on the component's
+     * worker threads, not on the thread timing the windows.
+     */
+    @Test(timeout = 10000)
+    public void testCompletesOnWorker() throws Exception {
+        createProducer("/registers/0", "?batchWindow=50");
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(Integer.valueOf(9));
+        producer.process(exchange, new AsyncCallback() {
+
+            public void done(boolean doneSync) {
+                thread[0] = Thread.currentThread().getName();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(exchange.getException());
+        assertTrue(thread[0], thread[0].contains("JamodWorker"));
+        assertEquals(9, device.getRegister(0));
+    }
+
+    /**
+     * A stopped producer rejects exchanges rather than failing on its
+     * missing executor.
+     */
+    @Test
+    public void testProcessAfterStop() throws Exception {
+        createProducer("/registers/0", "?batchWindow=10");
+        producer.stop();
+        CountDownLatch done = new CountDownLatch(1);
+        Exchange exchange = send(Integer.valueOf(1), null, done);
+        assertEquals(0, done.getCount());
+        assertTrue(exchange.getException() instanceof RejectedExecutionException);
+        assertEquals(0, device.getRequestCount());
+    }
+
+    @Test
+    public void testInvalidAddress() throws Exception {
+        createProducer("/registers/0", "?batchWindow=10");
+        CountDownLatch done = new CountDownLatch(1);
+        Exchange exchange = send(new int[]{1, 2}, Integer.valueOf(65535), done);
+        assertEquals(0, done.getCount());
+        assertTrue(exchange.getException() instanceof IllegalArgumentException);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Deadband}.
+ * @author Steven Swor
+ */
+public class DeadbandTest {
+
+    /**
+     * Polls a deadband.
+     * @param deadband the deadband
+     * @param registers the registers
+     * @return whether or not the registers changed by more than the deadband
+     */
+    private static boolean poll(final Deadband deadband, final int... registers) {
+        int[] words = deadband.words(registers.length);
+        System.arraycopy(registers, 0, words, 0, registers.length);
+        return deadband.exceeded(registers.length);
+    }
+
+    /**
+     * Tests the absolute deadband.
+     */
+    @Test
+    public void testDeadband() {
+        Deadband deadband = new Deadband();
+        assertFalse(deadband.isEnabled());
+        deadband.setDeadband(5);
+        assertTrue(deadband.isEnabled());
+        assertTrue(poll(deadband, 100, 200));
+        assertFalse(poll(deadband, 104, 195));
+        assertFalse(poll(deadband, 105, 200));
+        assertTrue(poll(deadband, 106, 200));
+        // compared against the values last sent, so drift adds up
+        assertFalse(poll(deadband, 110, 200));
+        assertTrue(poll(deadband, 112, 200));
+        assertTrue(poll(deadband, 112));
+    }
+
+    /**
+     * Tests the percentage deadband.
+     */
+    @Test
+    public void testDeadbandPercent() {
+        Deadband deadband = new Deadband();
+        deadband.setDeadbandPercent(10);
+        assertTrue(poll(deadband, 1000));
+        assertFalse(poll(deadband, 1100));
+        assertTrue(poll(deadband, 1101));
+        deadband.setDeadband(200);
+        assertFalse(poll(deadband, 1300));
+    }
+
+    /**
+     * Tests per-index thresholds.
+     */
+    @Test
+    public void testThresholds() {
+        Deadband deadband = new Deadband();
+        deadband.setThresholds("1:50, 3:2.5");
+        assertEquals("1:50, 3:2.5", deadband.getThresholds());
+        assertTrue(poll(deadband, 0, 0, 0, 0));
+        assertFalse(poll(deadband, 0, 50, 0, 2));
+        assertTrue(poll(deadband, 0, 0, 0, 3));
+        assertTrue(poll(deadband, 1, 0, 0, 3));
+        deadband.setThresholds(null);
+        assertFalse(deadband.isEnabled());
+    }
+
+    /**
+     * Tests that malformed thresholds are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedThresholds() {
+        new Deadband().setThresholds("1=50");
+    }
+
+    /**
+     * Tests signed 16-bit values.
+     */
+    @Test
+    public void testInt16() {
+        Deadband deadband = new Deadband();
+        deadband.setDeadband(5);
+        deadband.setValueType(Deadband.ValueType.fromName("int16"));
+        assertTrue(poll(deadband, 0xfffe));
+        assertFalse(poll(deadband, 2));
+    }
+
+    /**
+     * Tests 32-bit integer values.
+     */
+    @Test
+    public void testInt32() {
+        Deadband deadband = new Deadband();
+        deadband.setDeadband(0x10000);
+        deadband.setValueType(Deadband.ValueType.INT32);
+        assertTrue(poll(deadband, 0x0001, 0x0000));
+        // the low word alone changes a lot, the value only a little
+        assertFalse(poll(deadband, 0x0001, 0xffff));
+        assertTrue(poll(deadband, 0x0002, 0x0001));
+    }
+
+    /**
+     * Tests 32-bit float values.
+     */
+    @Test
+    public void testFloat32() {
+        Deadband deadband = new Deadband();
+        deadband.setThresholds("0:0.5");
+        deadband.setValueType(Deadband.ValueType.FLOAT32);
+        int bits = Float.floatToIntBits(20.0f);
+        assertTrue(poll(deadband, bits >>> 16, bits & 0xffff, 7));
+        bits = Float.floatToIntBits(20.4f);
+        assertFalse(poll(deadband, bits >>> 16, bits & 0xffff, 7));
+        // the trailing register has no threshold of its own
+        assertTrue(poll(deadband, bits >>> 16, bits & 0xffff, 8));
+        bits = Float.floatToIntBits(21.0f);
+        assertTrue(poll(deadband, bits >>> 16, bits & 0xffff, 8));
+    }
+
+    /**
+     * Tests that unknown value types are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownValueType() {
+        Deadband.ValueType.fromName("int64");
+    }
+}
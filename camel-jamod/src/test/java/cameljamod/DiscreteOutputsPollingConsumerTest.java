@@ -90,4 +90,18 @@ public class DiscreteOutputsPollingConsumerTest {
         ReadCoilsResponse response = new ReadCoilsResponse(8);
         assertArrayEquals(expected.getBytes(), instance.getBodyFromResponse(response).getBytes());
     }
+
+    /**
+     * Tests {@link DiscreteOutputsPollingConsumer#responseHasChanged(ReadCoilsResponse)}.
+     */
+    @Test
+    public void testResponseHasChanged() {
+        instance.getLastRawValues().reset();
+        ReadCoilsResponse response = new ReadCoilsResponse(8);
+        response.setCoilStatus(3, true);
+        assertTrue(instance.responseHasChanged(response));
+        assertFalse(instance.responseHasChanged(response));
+        response.setCoilStatus(3, false);
+        assertTrue(instance.responseHasChanged(response));
+    }
 }
@@ -80,4 +80,17 @@ public class JamodComponentConfigurationTest {
         //but it would be nice to see it used in the rest of the code (the enum for protocol, and data_type.)
         assertEquals(JamodComponentConfiguration.PROTOCOL.tcp, jamodConfig.getParameter("protocol"));
     }
+
+    /**
+     * Test of setUriString method with a tcp-server URI, of class
+     * JamodComponentConfiguration.
+     */
+    @Test
+    public void testTCPServerProtocol() throws Exception {
+        Component jamodComponent = new DefaultCamelContext().getComponent("jamod");
+        ComponentConfiguration jamodConfig = jamodComponent.createComponentConfiguration();
+        jamodConfig.setUriString("jamod:tcp-server://0.0.0.0:1502/inputRegisters/10");
+        assertEquals(JamodComponentConfiguration.PROTOCOL.tcp_server, jamodConfig.getParameter("protocol"));
+        assertEquals("jamod:tcp-server://0.0.0.0:1502/inputRegisters/10", jamodConfig.getBaseUri());
+    }
 }
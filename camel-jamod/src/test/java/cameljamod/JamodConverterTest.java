@@ -15,9 +15,11 @@
  */
 package cameljamod;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
 import net.wimpi.modbus.procimg.InputRegister;
 import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
 import net.wimpi.modbus.util.BitVector;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -113,4 +115,76 @@ public class JamodConverterTest {
         InputRegister register = JamodConverter.toInputRegisterArray(bytes)[0];
         assertArrayEquals(bytes, JamodConverter.toByteArray(register));
     }
+
+    /**
+     * Test of the primitive array conversions of class JamodConverter.
+     */
+    @Test
+    public void testPrimitiveArrays() {
+        byte[] bytes = generateRandomEvenNumberOfBytes(16);
+        short[] shorts = JamodConverter.toShortArray(bytes);
+        int[] ints = JamodConverter.toIntArray(bytes);
+        assertEquals(bytes.length / 2, shorts.length);
+        for (int i = 0; i < shorts.length; i++) {
+            assertEquals(ints[i], shorts[i] & 0xffff);
+        }
+        assertArrayEquals(bytes, JamodConverter.toByteArray(shorts));
+        assertArrayEquals(bytes, JamodConverter.toByteArray(ints));
+        Register[] registers = JamodConverter.toRegisterArray(bytes);
+        assertArrayEquals(shorts, JamodConverter.toShortArray(registers));
+        assertArrayEquals(ints, JamodConverter.toIntArray(registers));
+        assertArrayEquals(bytes, JamodConverter.toByteArray(JamodConverter.toRegisterArray(shorts)));
+        assertArrayEquals(bytes, JamodConverter.toByteArray(JamodConverter.toRegisterArray(ints)));
+        InputRegister[] inputRegisters = JamodConverter.toInputRegisterArray(ints);
+        assertArrayEquals(shorts, JamodConverter.toShortArray(inputRegisters));
+        assertArrayEquals(ints, JamodConverter.toIntArray(JamodConverter.toInputRegisterArray(shorts)));
+    }
+
+    /**
+     * Test of the byte buffer conversions of class JamodConverter.
+     */
+    @Test
+    public void testByteBuffer() {
+        Register[] registers = new Register[]{new SimpleRegister(0x1234), new SimpleRegister(0xabcd)};
+        ByteBuffer buffer = JamodConverter.toByteBuffer(registers);
+        assertEquals(0x1234, buffer.getShort(0));
+        assertEquals((short) 0xabcd, buffer.getShort(2));
+        Register[] results = JamodConverter.toRegisterArray(buffer);
+        assertEquals(0x1234, results[0].getValue());
+        assertEquals(0xabcd, results[1].getValue());
+        assertEquals(0, buffer.position());
+    }
+
+    /**
+     * Test that toString matches jamod's own string form of a BitVector,
+     * in both bit orders.
+     */
+    @Test
+    public void testToStringMatchesBitVector() {
+        for (int size = 0; size < 40; size++) {
+            for (int msb = 0; msb < 2; msb++) {
+                BitVector bitVector = new BitVector(size);
+                if (msb == 1) {
+                    bitVector.toggleAccess(false);
+                }
+                for (int i = 0; i < size; i++) {
+                    bitVector.setBit(i, random.nextBoolean());
+                }
+                assertEquals(bitVector.toString().trim(), JamodConverter.toString(bitVector));
+            }
+        }
+    }
+
+    /**
+     * Test of the register string forms of class JamodConverter.
+     */
+    @Test
+    public void testRegisterToString() {
+        Register[] registers = new Register[]{new SimpleRegister(0x1a2b), new SimpleRegister(0xff00), new SimpleRegister(0x0009)};
+        assertEquals("0x1A2B", JamodConverter.toString(registers[0]));
+        assertEquals("0xFF00", JamodConverter.toString((InputRegister) registers[1]));
+        assertEquals("0x1A2B 0xFF00 0x0009", JamodConverter.toString(registers));
+        assertEquals("0x1A2B 0xFF00 0x0009", JamodConverter.toString((InputRegister[]) registers));
+        assertEquals("", JamodConverter.toString(new Register[0]));
+    }
 }
@@ -16,17 +16,41 @@
 package cameljamod;
 
 import cameljamod.net.AbstractMasterConnectionWrapper;
+import cameljamod.net.CircuitBreaker;
+import cameljamod.net.CircuitOpenException;
+import cameljamod.net.NioTCPMasterConnectionWrapper;
+import cameljamod.net.PipelinedTCPMasterConnectionWrapper;
+import cameljamod.net.RTUOverTCPMasterConnectionWrapper;
 import cameljamod.net.TCPMasterConnectionWrapper;
+import cameljamod.net.TransactionCallback;
 import cameljamod.net.UDPMasterConnectionWrapper;
+import cameljamod.test.FakeModbusRTUDevice;
+import cameljamod.test.FakeModbusTCPDevice;
 import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
 import net.wimpi.modbus.net.TCPMasterConnection;
 import net.wimpi.modbus.net.UDPMasterConnection;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
 import org.apache.camel.Consumer;
 import org.apache.camel.Processor;
 import org.apache.camel.ResolveEndpointFailedException;
 import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
@@ -77,7 +101,7 @@ public class JamodEndpointTest {
         JamodComponent c = new JamodComponent();
         c.setCamelContext(new DefaultCamelContext());
         JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:tcp://localhost/coils/5");
-        ModbusProducer producer = endpoint.createProducer();
+        ModbusProducer producer = (ModbusProducer) endpoint.createProducer();
         assertNotNull(producer);
         assertTrue(producer instanceof DiscreteOutputsProducer);
         assertEquals(5, producer.getReferenceAddress());
@@ -88,7 +112,7 @@ public class JamodEndpointTest {
         JamodComponent c = new JamodComponent();
         c.setCamelContext(new DefaultCamelContext());
         JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:tcp://localhost/registers/5");
-        ModbusProducer producer = endpoint.createProducer();
+        ModbusProducer producer = (ModbusProducer) endpoint.createProducer();
         assertNotNull(producer);
         assertTrue(producer instanceof RegistersProducer);
         assertEquals(5, producer.getReferenceAddress());
@@ -147,13 +171,60 @@ public class JamodEndpointTest {
     }
 
     /**
-     * Test of getConnection method, of class JamodEndpoint.
+     * Test of borrowConnection and releaseConnection methods, of class
+     * JamodEndpoint.
      */
     @Test
-    public void testGetConnection() throws Exception {
-        AbstractMasterConnectionWrapper connection = getInstance().getConnection();
+    public void testBorrowConnection() throws Exception {
+        AbstractMasterConnectionWrapper connection = getInstance().borrowConnection();
         assertNotNull(connection);
         assertTrue(connection instanceof TCPMasterConnectionWrapper);
+        getInstance().releaseConnection(connection);
+    }
+
+    /**
+     * Test of getDeviceKey method, of class JamodEndpoint.
+     */
+    @Test
+    public void testGetDeviceKey() throws Exception {
+        assertEquals("tcp://localhost:1024", getInstance().getDeviceKey());
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint first = (JamodEndpoint) c.createEndpoint("jamod:tcp://localhost/coils/0");
+        JamodEndpoint second = (JamodEndpoint) c.createEndpoint("jamod:tcp://localhost:" + Modbus.DEFAULT_PORT + "/registers/5");
+        assertEquals(first.getDeviceKey(), second.getDeviceKey());
+    }
+
+    /**
+     * Tests that endpoints which talk to the same device over different
+     * transports each get their own kind of connection, whichever borrows
+     * first.
+     */
+    @Test
+    public void testConnectionKeySeparatesTransports() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        try {
+            JamodEndpoint pipelined = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:1502/registers/0?maxInFlight=4");
+            JamodEndpoint blocking = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:1502/registers/0");
+            JamodEndpoint nonBlocking = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:1502/registers/0?nio=true");
+            assertEquals(pipelined.getDeviceKey(), blocking.getDeviceKey());
+            assertEquals("tcp://127.0.0.1:1502", blocking.getConnectionKey());
+            assertEquals("tcp://127.0.0.1:1502?maxInFlight=4", pipelined.getConnectionKey());
+            assertEquals("tcp://127.0.0.1:1502?nio=true&maxInFlight=1", nonBlocking.getConnectionKey());
+
+            AbstractMasterConnectionWrapper first = pipelined.borrowConnection();
+            AbstractMasterConnectionWrapper second = blocking.borrowConnection();
+            AbstractMasterConnectionWrapper third = nonBlocking.borrowConnection();
+            assertTrue(first instanceof PipelinedTCPMasterConnectionWrapper);
+            assertTrue(second instanceof TCPMasterConnectionWrapper);
+            assertTrue(third instanceof NioTCPMasterConnectionWrapper);
+            pipelined.releaseConnection(first);
+            blocking.releaseConnection(second);
+            nonBlocking.releaseConnection(third);
+        } finally {
+            c.stop();
+        }
     }
 
     /**
@@ -196,6 +267,54 @@ public class JamodEndpointTest {
         assertTrue(wrapper instanceof UDPMasterConnectionWrapper);
     }
     
+    @Test
+    public void testCreateConnectionPipelined() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/registers/0?maxInFlight=4");
+        assertEquals(4, endpoint.getMaxInFlight());
+        AbstractMasterConnectionWrapper wrapper = endpoint.createConnection();
+        assertTrue(wrapper instanceof PipelinedTCPMasterConnectionWrapper);
+        assertTrue(wrapper.isMultiplexed());
+    }
+
+    @Test
+    public void testCreateConnectionNio() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        try {
+            JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/registers/0?nio=true&maxInFlight=2");
+            assertTrue(endpoint.isNio());
+            AbstractMasterConnectionWrapper wrapper = endpoint.createConnection();
+            assertTrue(wrapper instanceof NioTCPMasterConnectionWrapper);
+            assertEquals(2, ((NioTCPMasterConnectionWrapper) wrapper).getMasterConnection().getMaxInFlight());
+            assertTrue(wrapper.isMultiplexed());
+        } finally {
+            c.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRTUOverTCP() throws Exception {
+        FakeModbusRTUDevice device = new FakeModbusRTUDevice();
+        device.start();
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        try {
+            JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:rtutcp://127.0.0.1:" + device.getPort() + "/registers/0?baudRate=19200");
+            assertEquals(19200, endpoint.getBaudRate());
+            AbstractMasterConnectionWrapper wrapper = endpoint.createConnection();
+            assertTrue(wrapper instanceof RTUOverTCPMasterConnectionWrapper);
+            assertFalse(wrapper.isMultiplexed());
+            wrapper.close();
+            ModbusResponse response = endpoint.execute(new ReadMultipleRegistersRequest(12, 1));
+            assertEquals(12, ((ReadMultipleRegistersResponse) response).getRegisterValue(0));
+        } finally {
+            c.stop();
+            device.stop();
+        }
+    }
+
     @Test(expected = ResolveEndpointFailedException.class)
     public void testCreateConnectionBadURL() throws Exception {
         JamodComponent c = new JamodComponent();
@@ -213,5 +332,398 @@ public class JamodEndpointTest {
         Consumer consumer = endpoint.createConsumer(new NoopProcessor());
         fail("Exception should have been thrown");
     }
-    
+
+    @Test
+    public void testCreateConsumerDeadband() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/inputRegisters/0?count=4&changesOnly=true&deadband=2.5&deadbandPercent=1&deadbandThresholds=1:10&deadbandType=float32&bodyType=intArray");
+        AbstractRegisterPollingConsumer consumer = (AbstractRegisterPollingConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals(2.5, consumer.getDeadband(), 0);
+        assertEquals(1, consumer.getDeadbandPercent(), 0);
+        assertEquals("1:10", consumer.getDeadbandThresholds());
+        assertEquals("float32", consumer.getDeadbandType());
+        assertEquals("intArray", consumer.getBodyType());
+    }
+
+    @Test
+    public void testCreateConsumerLayout() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/registers/0?layout=0:float32:CDAB:temperature,2:uint16:level");
+        AbstractRegisterPollingConsumer consumer = (AbstractRegisterPollingConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals("0:float32:CDAB:temperature,2:uint16:level", consumer.getLayout());
+        assertEquals("map", consumer.getBodyType());
+        assertEquals(3, consumer.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateConsumerLayoutSingleRegister() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/register/0?layout=0:float32:temperature");
+        endpoint.createConsumer(new NoopProcessor());
+    }
+
+    @Test
+    public void testCreateConsumerAdaptiveDelay() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/registers/0?minDelay=200&maxDelay=5000");
+        ModbusPollingConsumer consumer = (ModbusPollingConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals(200, consumer.getMinDelay());
+        assertEquals(5000, consumer.getMaxDelay());
+        endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/scan?scanList=registers/0/4&maxDelay=5000");
+        ScanListPollingConsumer scanConsumer = (ScanListPollingConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals(0, scanConsumer.getMinDelay());
+        assertEquals(5000, scanConsumer.getMaxDelay());
+    }
+
+    @Test
+    public void testRequestScheduling() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        c.setMaxRequestsPerSecond(10);
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost:1502/registers/0?priority=alarm");
+        assertEquals("alarm", endpoint.getPriority());
+        assertEquals(10, endpoint.getRequestScheduler().getMaxRequestsPerSecond(), 0);
+        JamodEndpoint other = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost:1503/registers/0?maxRequestsPerSecond=2.5");
+        assertEquals("poll", other.getPriority());
+        assertEquals(2.5, other.getRequestScheduler().getMaxRequestsPerSecond(), 0);
+        assertSame(c.getRequestScheduler("tcp://localhost:1503"), other.getRequestScheduler());
+        assertTrue(JamodEndpoint.isWrite(new WriteMultipleRegistersRequest(0, new Register[]{new SimpleRegister(1)})));
+        assertFalse(JamodEndpoint.isWrite(new ReadMultipleRegistersRequest(0, 1)));
+    }
+
+    /**
+     * Transactions count towards the endpoint's and the device's metrics,
+     * which are registered in JMX while started.
+     */
+    @Test(timeout = 10000)
+    public void testMetrics() throws Exception {
+        FakeModbusTCPDevice device = new FakeModbusTCPDevice();
+        device.start();
+        DefaultCamelContext context = new DefaultCamelContext();
+        JamodComponent c = new JamodComponent();
+        context.addComponent("jamod", c);
+        context.start();
+        try {
+            String uri = "jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/0";
+            JamodEndpoint endpoint = context.getEndpoint(uri, JamodEndpoint.class);
+            JamodEndpoint other = (JamodEndpoint) c.createEndpoint(uri + "?count=2");
+            endpoint.execute(new ReadMultipleRegistersRequest(0, 2));
+            other.execute(new ReadMultipleRegistersRequest(0, 2));
+            endpoint.polled(false);
+            assertEquals(1, endpoint.getMetrics().getRequestCount());
+            assertEquals(2, endpoint.getDeviceMetrics().getRequestCount());
+            assertSame(endpoint.getDeviceMetrics(), other.getDeviceMetrics());
+            assertEquals(1, endpoint.getDeviceMetrics().getSuppressedPollCount());
+            assertEquals(0, endpoint.getDeviceMetrics().getInFlightCount());
+            assertEquals(2, endpoint.getDeviceMetrics().getLatency().getCount());
+
+            MBeanServer server = context.getManagementStrategy().getManagementAgent().getMBeanServer();
+            Set<ObjectName> names = server.queryNames(new ObjectName("org.apache.camel:type=jamod,*"), null);
+            assertEquals(2, names.size());
+            ObjectName deviceName = null;
+            for (ObjectName name : names) {
+                if (name.getKeyProperty("endpoint") == null) {
+                    deviceName = name;
+                }
+            }
+            assertNotNull(deviceName);
+            assertEquals(Long.valueOf(2), server.getAttribute(deviceName, "RequestCount"));
+        } finally {
+            context.stop();
+            device.stop();
+        }
+    }
+
+    /**
+     * A device which cannot be reached is cut off, so that further requests
+     * fail at once instead of attempting to connect.
+     */
+    @Test(timeout = 10000)
+    public void testCircuitBreaker() throws Exception {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = socket.getLocalPort();
+        socket.close();
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:" + port + "/registers/0?failureThreshold=2&reconnectDelay=60000");
+        assertEquals(2, endpoint.getCircuitBreaker().getFailureThreshold());
+        assertEquals(60000, endpoint.getCircuitBreaker().getInitialBackoff());
+        assertEquals(CircuitBreaker.DEFAULT_MAX_BACKOFF, endpoint.getCircuitBreaker().getMaxBackoff());
+        for (int i = 0; i < 2; i++) {
+            try {
+                endpoint.execute(new ReadMultipleRegistersRequest(0, 1));
+                fail("Expected the connection to fail");
+            } catch (ModbusIOException ex) {
+                assertFalse(ex instanceof CircuitOpenException);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, endpoint.getCircuitBreaker().getState());
+        try {
+            endpoint.execute(new ReadMultipleRegistersRequest(0, 1));
+            fail("Expected the device to be cut off");
+        } catch (CircuitOpenException ex) {
+            // expected
+        }
+        // every attempt is a request, but the breaker only counts each request once
+        assertEquals(2 * (Modbus.DEFAULT_RETRIES + 1), endpoint.getDeviceMetrics().getRequestCount());
+        assertEquals(2 * Modbus.DEFAULT_RETRIES, endpoint.getDeviceMetrics().getRetryCount());
+        assertSame(c.getCircuitBreaker(endpoint.getDeviceKey()), endpoint.getCircuitBreaker());
+    }
+
+    /**
+     * A probe which cannot borrow a connection is handed back, so that the
+     * next request probes the device again rather than being refused.
+     */
+    @Test(timeout = 10000)
+    public void testCircuitBreakerProbeWithoutConnection() throws Exception {
+        FakeModbusTCPDevice device = new FakeModbusTCPDevice();
+        device.start();
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        c.setMaxConnectionsPerDevice(1);
+        c.setConnectionBorrowTimeout(50);
+        try {
+            JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/0?failureThreshold=1&reconnectDelay=50");
+            CircuitBreaker breaker = endpoint.getCircuitBreaker();
+            AbstractMasterConnectionWrapper<?> held = endpoint.borrowConnection();
+            breaker.failed();
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            Thread.sleep(100);
+            try {
+                endpoint.execute(new ReadMultipleRegistersRequest(0, 1));
+                fail("Expected no connection to be available");
+            } catch (ModbusIOException ex) {
+                assertFalse(ex instanceof CircuitOpenException);
+            }
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            endpoint.releaseConnection(held);
+            ModbusResponse response = endpoint.execute(new ReadMultipleRegistersRequest(5, 1));
+            assertEquals(5, ((ReadMultipleRegistersResponse) response).getRegisterValue(0));
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        } finally {
+            c.stop();
+            device.stop();
+        }
+    }
+
+    /**
+     * Requests which the device does not answer are retried over a fresh
+     * connection, within the device's retry budget.
+     */
+    @Test(timeout = 10000)
+    public void testRetries() throws Exception {
+        FakeModbusTCPDevice device = new FakeModbusTCPDevice();
+        device.addSilentUnit(1);
+        device.start();
+        DefaultCamelContext context = new DefaultCamelContext();
+        JamodComponent c = new JamodComponent();
+        context.addComponent("jamod", c);
+        context.start();
+        try {
+            JamodEndpoint endpoint = context.getEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/0?timeout=100&retries=2&retryDelay=10", JamodEndpoint.class);
+            assertEquals(100, endpoint.getTimeout());
+            assertEquals(100, endpoint.createConnection().getTimeout());
+            ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+            request.setUnitID(1);
+            try {
+                endpoint.execute(request);
+                fail("Expected the request to time out");
+            } catch (ModbusIOException ex) {
+                // expected
+            }
+            assertEquals(3, device.getRequestCount());
+            // jamod's blocking transport reports timeouts as plain I/O failures
+            assertEquals(3, endpoint.getMetrics().getIOFailureCount() + endpoint.getMetrics().getTimeoutCount());
+            assertEquals(2, endpoint.getMetrics().getRetryCount());
+            assertEquals(1, endpoint.getCircuitBreaker().getConsecutiveFailures());
+
+            final CountDownLatch failed = new CountDownLatch(1);
+            endpoint.execute(request, new TransactionCallback() {
+
+                public void completed(ModbusResponse response) {
+                }
+
+                public void failed(ModbusException cause) {
+                    failed.countDown();
+                }
+            });
+            assertTrue(failed.await(5, TimeUnit.SECONDS));
+            assertEquals(6, device.getRequestCount());
+            assertEquals(4, endpoint.getMetrics().getRetryCount());
+            assertEquals(2, endpoint.getCircuitBreaker().getConsecutiveFailures());
+        } finally {
+            context.stop();
+            device.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRetryBudget() throws Exception {
+        FakeModbusTCPDevice device = new FakeModbusTCPDevice();
+        device.addSilentUnit(1);
+        device.start();
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        try {
+            JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/0?timeout=100&retries=2&maxRetriesPerSecond=1");
+            ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+            request.setUnitID(1);
+            try {
+                endpoint.execute(request);
+                fail("Expected the request to time out");
+            } catch (ModbusIOException ex) {
+                // expected
+            }
+            assertEquals(2, device.getRequestCount());
+            assertEquals(1, endpoint.getMetrics().getRetryCount());
+            assertEquals(1, endpoint.getMetrics().getDeniedRetryCount());
+            assertSame(c.getRetryBudget(endpoint.getDeviceKey()), endpoint.getRetryBudget());
+        } finally {
+            c.stop();
+            device.stop();
+        }
+    }
+
+    /**
+     * Behind a gateway, a silent unit holds no more than its own share of the
+     * gateway's single connection, and is cut off on its own.
+     */
+    @Test(timeout = 10000)
+    public void testGateway() throws Exception {
+        FakeModbusTCPDevice device = new FakeModbusTCPDevice();
+        device.addSilentUnit(9);
+        device.start();
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        try {
+            String uri = "jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/0?gateway=true&maxInFlight=2&retries=0&failureThreshold=2&reconnectDelay=60000";
+            final JamodEndpoint dead = (JamodEndpoint) c.createEndpoint(uri + "&timeout=300");
+            JamodEndpoint live = (JamodEndpoint) c.createEndpoint(uri + "&timeout=2000");
+            assertTrue(dead.isGateway());
+            AbstractMasterConnectionWrapper wrapper = live.createConnection();
+            assertTrue(wrapper instanceof PipelinedTCPMasterConnectionWrapper);
+            wrapper.close();
+
+            final ReadMultipleRegistersRequest deadRequest = new ReadMultipleRegistersRequest(0, 1);
+            deadRequest.setUnitID(9);
+            Thread poller = new Thread(new Runnable() {
+
+                public void run() {
+                    for (int i = 0; i < 2; i++) {
+                        try {
+                            dead.execute(deadRequest);
+                        } catch (Exception ex) {
+                            // expected
+                        }
+                    }
+                }
+            });
+            poller.start();
+            while (dead.getUnitQueue(9).getInFlightCount() == 0) {
+                Thread.sleep(5);
+            }
+            ReadMultipleRegistersRequest liveRequest = new ReadMultipleRegistersRequest(5, 1);
+            liveRequest.setUnitID(1);
+            long started = System.currentTimeMillis();
+            assertEquals(5, ((ReadMultipleRegistersResponse) live.execute(liveRequest)).getRegisterValue(0));
+            assertTrue(System.currentTimeMillis() - started < 250);
+            poller.join();
+
+            // each unit is timed by its own endpoint
+            assertEquals(2, dead.getMetrics().getTimeoutCount());
+            assertEquals(Arrays.asList(9), live.getSkippedUnits());
+            assertEquals(CircuitBreaker.State.CLOSED, live.getCircuitBreaker().getState());
+            try {
+                dead.execute(deadRequest);
+                fail("Expected the unit to be skipped");
+            } catch (CircuitOpenException ex) {
+                // expected
+            }
+            live.execute(liveRequest);
+            assertEquals(4, device.getRequestCount());
+            assertEquals(1, device.getClientCount());
+        } finally {
+            c.stop();
+            device.stop();
+        }
+    }
+
+    /**
+     * A probe which the gateway's breaker hands to a request whose unit is
+     * cut off is handed back, rather than leaving the gateway half open.
+     */
+    @Test
+    public void testGatewayProbeHandedBack() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod:tcp://127.0.0.1:502/registers/0?gateway=true&failureThreshold=1&reconnectDelay=60000");
+        endpoint.getCircuitBreaker().setInitialBackoff(0);
+        endpoint.getCircuitBreaker().failed();
+        endpoint.getUnitCircuitBreaker(9).failed();
+        Thread.sleep(5);
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+        request.setUnitID(9);
+        try {
+            endpoint.execute(request);
+            fail("Expected the unit to be skipped");
+        } catch (CircuitOpenException ex) {
+            // expected
+        }
+        assertEquals(0, endpoint.getCircuitBreaker().getRejectedCount());
+        assertEquals(1, endpoint.getUnitCircuitBreaker(9).getRejectedCount());
+        assertEquals(CircuitBreaker.State.OPEN, endpoint.getCircuitBreaker().getState());
+        assertEquals(0, endpoint.getUnitQueue(9).getInFlightCount());
+        assertTrue(endpoint.getCircuitBreaker().acquire());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetPriorityWrite() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/registers/0");
+        endpoint.setPriority("write");
+    }
+
+    @Test
+    public void testCreateConsumerScanList() throws Exception {
+        SimpleRegistry registry = new SimpleRegistry();
+        registry.put("myList", Arrays.asList("level=registers/10/2", new ScanItem("alarm", "coils", 0, 8)));
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext(registry));
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/scan?scanList=#myList&delay=250&changesOnly=true&slaveId=2");
+        ScanListPollingConsumer consumer = (ScanListPollingConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals(2, consumer.getScanList().size());
+        assertEquals("level", consumer.getScanList().get(0).getName());
+        assertEquals("alarm", consumer.getScanList().get(1).getName());
+        assertEquals(250, consumer.getDelay());
+        assertTrue(consumer.isChangesOnly());
+        assertEquals(2, consumer.getSlaveId());
+
+        endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp://localhost/scan?scanList=registers/0/4,coils/8");
+        consumer = (ScanListPollingConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals(2, consumer.getScanList().size());
+        assertEquals("coils/8", consumer.getScanList().get(1).getName());
+    }
+
+    @Test
+    public void testCreateServerEndpoints() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp-server://0.0.0.0:1502?mode=exchange&maxConnections=500&imageSize=64");
+        ModbusServerConsumer consumer = (ModbusServerConsumer) endpoint.createConsumer(new NoopProcessor());
+        assertEquals("exchange", consumer.getMode());
+        assertEquals(500, consumer.getMaxConnections());
+        assertEquals(1502, endpoint.getServerPort());
+        assertEquals(64, endpoint.getServer().getProcessImage().getRegisterCount());
+
+        endpoint = (JamodEndpoint) c.createEndpoint("jamod://tcp-server://0.0.0.0:1502/inputRegisters/10");
+        ModbusServerProducer producer = (ModbusServerProducer) endpoint.createProducer();
+        assertEquals("inputRegisters", producer.getDataType());
+        assertEquals(10, producer.getReferenceAddress());
+        assertSame(((JamodEndpoint) consumer.getEndpoint()).getServer(), endpoint.getServer());
+    }
 }
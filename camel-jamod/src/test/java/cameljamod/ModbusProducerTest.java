@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.test.FakeModbusTCPDevice;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteMultipleCoilsResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ModbusProducer}.
+ *
+ * @author Steven Swor
+ */
+public class ModbusProducerTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The component.
+     */
+    private JamodComponent component;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        component.stop();
+        device.stop();
+    }
+
+    /**
+     * Records how Camel's callback was notified.
+     */
+    private static class RecordingAsyncCallback implements AsyncCallback {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicBoolean doneSync = new AtomicBoolean();
+
+        public void done(boolean sync) {
+            doneSync.set(sync);
+            latch.countDown();
+        }
+    }
+
+    private ModbusProducer createProducer(String path, String options) throws Exception {
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + path + options);
+        return (ModbusProducer) endpoint.createProducer();
+    }
+
+    /**
+     * Tests that a register write over a non-blocking connection completes
+     * asynchronously.
+     */
+    @Test
+    public void testAsyncRegistersWrite() throws Exception {
+        device.setBatchSize(2);
+        ModbusProducer producer = createProducer("/registers/40", "?nio=true&maxInFlight=2");
+        Exchange first = new DefaultExchange(component.getCamelContext());
+        first.getIn().setBody(new Register[]{new SimpleRegister(1234)});
+        Exchange second = new DefaultExchange(component.getCamelContext());
+        second.getIn().setBody(new Register[]{new SimpleRegister(5678)});
+        RecordingAsyncCallback firstCallback = new RecordingAsyncCallback();
+        RecordingAsyncCallback secondCallback = new RecordingAsyncCallback();
+        // the device holds the first response until the second request arrives
+        assertFalse(producer.process(first, firstCallback));
+        assertFalse(producer.process(second, secondCallback));
+        assertTrue(firstCallback.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(secondCallback.latch.await(5, TimeUnit.SECONDS));
+        assertFalse(firstCallback.doneSync.get());
+        assertNull(first.getException());
+        assertNull(second.getException());
+        assertTrue(first.getOut().getBody() instanceof WriteMultipleRegistersResponse);
+        assertEquals(2, device.getRequestCount());
+    }
+
+    /**
+     * Tests that a coil write over a non-blocking connection completes
+     * asynchronously.
+     */
+    @Test
+    public void testAsyncCoilsWrite() throws Exception {
+        ModbusProducer producer = createProducer("/coils/3", "?nio=true");
+        BitVector bits = new BitVector(2);
+        bits.setBit(1, true);
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(bits);
+        RecordingAsyncCallback callback = new RecordingAsyncCallback();
+        producer.process(exchange, callback);
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertNull(exchange.getException());
+        assertTrue(exchange.getOut().getBody() instanceof WriteMultipleCoilsResponse);
+        assertFalse(device.getCoil(3));
+        assertTrue(device.getCoil(4));
+    }
+
+    /**
+     * Tests that a write over a blocking connection completes synchronously.
+     */
+    @Test
+    public void testSyncRegistersWrite() throws Exception {
+        ModbusProducer producer = createProducer("/registers/7", "");
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(new Register[]{new SimpleRegister(99)});
+        RecordingAsyncCallback callback = new RecordingAsyncCallback();
+        assertTrue(producer.process(exchange, callback));
+        assertEquals(0, callback.latch.getCount());
+        assertTrue(callback.doneSync.get());
+        assertNull(exchange.getException());
+        assertEquals(99, device.getRegister(7));
+    }
+
+    /**
+     * Tests that a route may make a blocking request from a write's
+     * completion, which would deadlock if it ran on the event loop.
+     */
+    @Test
+    public void testBlockingRequestFromCompletion() throws Exception {
+        device.setRegister(5, 55);
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/7?nio=true&timeout=1000&retries=0");
+        ModbusProducer producer = (ModbusProducer) endpoint.createProducer();
+        final JamodEndpoint readEndpoint = endpoint;
+        final AtomicReference<Object> nested = new AtomicReference<Object>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(new Register[]{new SimpleRegister(99)});
+        producer.process(exchange, new AsyncCallback() {
+
+            public void done(boolean sync) {
+                try {
+                    nested.set(readEndpoint.execute(new ReadMultipleRegistersRequest(5, 1)));
+                } catch (Exception ex) {
+                    nested.set(ex);
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(exchange.getException());
+        assertTrue(String.valueOf(nested.get()), nested.get() instanceof ReadMultipleRegistersResponse);
+        assertEquals(55, ((ReadMultipleRegistersResponse) nested.get()).getRegisterValue(0));
+        assertEquals(99, device.getRegister(7));
+    }
+
+    /**
+     * Tests that a failed write sets the exchange's exception.
+     */
+    @Test
+    public void testAsyncWriteTimeout() throws Exception {
+        device.addSilentUnit(4);
+        ModbusProducer producer = createProducer("/registers/0", "?nio=true&slaveId=4");
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(new Register[]{new SimpleRegister(1)});
+        RecordingAsyncCallback callback = new RecordingAsyncCallback();
+        producer.process(exchange, callback);
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(exchange.getException() instanceof ModbusIOException);
+    }
+
+    /**
+     * Tests that a write waiting to be retried fails, rather than hanging,
+     * when the component stops.
+     */
+    @Test(timeout = 10000)
+    public void testStopWhileRetryPending() throws Exception {
+        device.addSilentUnit(4);
+        ModbusProducer producer = createProducer("/registers/0", "?nio=true&slaveId=4&timeout=100&retries=1&retryDelay=60000");
+        JamodEndpoint endpoint = (JamodEndpoint) producer.getEndpoint();
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(new Register[]{new SimpleRegister(1)});
+        RecordingAsyncCallback callback = new RecordingAsyncCallback();
+        producer.process(exchange, callback);
+        while (endpoint.getMetrics().getRetryCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, callback.latch.getCount());
+        component.stop();
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(exchange.getException() instanceof ModbusIOException);
+        assertEquals(1, device.getRequestCount());
+    }
+}
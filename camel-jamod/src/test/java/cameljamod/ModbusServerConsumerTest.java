@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.net.TCPMasterConnection;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ModbusServerConsumer} and
+ * {@link ModbusServerProducer}.
+ *
+ * @author Steven Swor
+ */
+public class ModbusServerConsumerTest {
+
+    /**
+     * The server's address.
+     */
+    private static final String SERVER = "jamod:tcp-server://127.0.0.1:0";
+
+    /**
+     * The camel context.
+     */
+    private CamelContext context;
+
+    /**
+     * A master connected to the server.
+     */
+    private TCPMasterConnection master;
+
+    /**
+     * Lets the route go on with requests for register 200.
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        if (master != null) {
+            master.close();
+        }
+        context.stop();
+    }
+
+    private void start(final String options) throws Exception {
+        context = new DefaultCamelContext();
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from(SERVER + options).routeId("server").process(new Processor() {
+
+                    public void process(Exchange exchange) throws Exception {
+                        ModbusRequest request = exchange.getIn().getBody(ModbusRequest.class);
+                        if (request instanceof ReadMultipleRegistersRequest && ((ReadMultipleRegistersRequest) request).getReference() == 100) {
+                            exchange.getIn().setBody(new int[]{7, 8, 9});
+                        } else if (request instanceof ReadMultipleRegistersRequest && ((ReadMultipleRegistersRequest) request).getReference() == 200) {
+                            release.await(10, TimeUnit.SECONDS);
+                        }
+                    }
+                }).to("mock:requests");
+            }
+        });
+        context.start();
+        ModbusServerConsumer consumer = (ModbusServerConsumer) context.getRoute("server").getConsumer();
+        master = new TCPMasterConnection(InetAddress.getByName("127.0.0.1"));
+        master.setPort(consumer.getListener().getPort());
+        master.connect();
+    }
+
+    private Object execute(ModbusRequest request) throws Exception {
+        ModbusTCPTransaction transaction = new ModbusTCPTransaction(master);
+        transaction.setRequest(request);
+        transaction.execute();
+        return transaction.getResponse();
+    }
+
+    /**
+     * Tests that clients read what producers write into the image.
+     */
+    @Test
+    public void testServesImageFedByProducers() throws Exception {
+        start("");
+        context.createProducerTemplate().sendBody(SERVER + "/registers/5", new int[]{42, 43});
+        context.createProducerTemplate().sendBody(SERVER + "/inputRegisters/0", new int[]{11});
+        BitVector bits = new BitVector(2);
+        bits.setBit(1, true);
+        context.createProducerTemplate().sendBody(SERVER + "/discreteInputs/8", bits);
+
+        ReadMultipleRegistersResponse registers = (ReadMultipleRegistersResponse) execute(new ReadMultipleRegistersRequest(5, 2));
+        assertEquals(42, registers.getRegisterValue(0));
+        assertEquals(43, registers.getRegisterValue(1));
+        assertEquals(11, ((ReadInputRegistersResponse) execute(new ReadInputRegistersRequest(0, 1))).getRegisterValue(0));
+        ReadInputDiscretesResponse inputs = (ReadInputDiscretesResponse) execute(new ReadInputDiscretesRequest(8, 2));
+        assertFalse(inputs.getDiscreteStatus(0));
+        assertTrue(inputs.getDiscreteStatus(1));
+    }
+
+    /**
+     * Tests that client writes update the image and are sent to the route,
+     * and that reads are not.
+     */
+    @Test
+    public void testClientWritesAreSentToRoute() throws Exception {
+        start("");
+        MockEndpoint requests = context.getEndpoint("mock:requests", MockEndpoint.class);
+        requests.expectedMessageCount(1);
+        requests.expectedHeaderReceived(JamodEndpoint.FUNCTION_CODE_HEADER, Integer.valueOf(Modbus.WRITE_SINGLE_REGISTER));
+        requests.expectedHeaderReceived(JamodEndpoint.REFERENCE_ADDRESS_HEADER, Integer.valueOf(3));
+        requests.expectedHeaderReceived(JamodEndpoint.COUNT_HEADER, Integer.valueOf(1));
+        execute(new ReadMultipleRegistersRequest(0, 1));
+        execute(new WriteSingleRegisterRequest(3, new SimpleRegister(99)));
+        requests.assertIsSatisfied();
+        ModbusServer server = ((JamodEndpoint) context.getEndpoint(SERVER)).getServer();
+        assertEquals(99, server.getProcessImage().getRegister(3).getValue());
+    }
+
+    /**
+     * Tests that the route answers requests in exchange mode, and that
+     * unchanged bodies are answered from the image.
+     */
+    @Test
+    public void testExchangeMode() throws Exception {
+        start("?mode=exchange");
+        MockEndpoint requests = context.getEndpoint("mock:requests", MockEndpoint.class);
+        requests.expectedMessageCount(2);
+        ReadMultipleRegistersResponse answered = (ReadMultipleRegistersResponse) execute(new ReadMultipleRegistersRequest(100, 3));
+        assertEquals(3, answered.getWordCount());
+        assertEquals(7, answered.getRegisterValue(0));
+        assertEquals(9, answered.getRegisterValue(2));
+        ReadMultipleRegistersResponse served = (ReadMultipleRegistersResponse) execute(new ReadMultipleRegistersRequest(0, 1));
+        assertEquals(0, served.getRegisterValue(0));
+        requests.assertIsSatisfied();
+    }
+
+    /**
+     * Tests that a route which blocks does not hold up the other clients on
+     * the same event loop.
+     */
+    @Test
+    public void testBlockingRouteDoesNotStallOtherClients() throws Exception {
+        start("?mode=exchange");
+        final int port = master.getPort();
+        final AtomicReference<Object> blocked = new AtomicReference<Object>();
+        Thread slowClient = new Thread(new Runnable() {
+
+            public void run() {
+                TCPMasterConnection other = new TCPMasterConnection(master.getAddress());
+                other.setPort(port);
+                try {
+                    other.connect();
+                    ModbusTCPTransaction transaction = new ModbusTCPTransaction(other);
+                    transaction.setRequest(new ReadMultipleRegistersRequest(200, 1));
+                    transaction.execute();
+                    blocked.set(transaction.getResponse());
+                } catch (Exception ex) {
+                    blocked.set(ex);
+                } finally {
+                    other.close();
+                }
+            }
+        });
+        slowClient.start();
+        MockEndpoint requests = context.getEndpoint("mock:requests", MockEndpoint.class);
+        // wait until the slow client's request is being routed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (context.getInflightRepository().size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long started = System.currentTimeMillis();
+        ReadMultipleRegistersResponse served = (ReadMultipleRegistersResponse) execute(new ReadMultipleRegistersRequest(0, 1));
+        assertEquals(0, served.getRegisterValue(0));
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        assertNull(blocked.get());
+        release.countDown();
+        slowClient.join(5000);
+        assertTrue(String.valueOf(blocked.get()), blocked.get() instanceof ReadMultipleRegistersResponse);
+        assertEquals(2, requests.getReceivedCounter());
+    }
+
+    /**
+     * Tests that requests outside the image are refused.
+     */
+    @Test
+    public void testIllegalAddress() throws Exception {
+        start("?imageSize=16");
+        ModbusTCPTransaction transaction = new ModbusTCPTransaction(master);
+        transaction.setRequest(new ReadMultipleRegistersRequest(15, 2));
+        try {
+            transaction.execute();
+            fail("Expected an exception response");
+        } catch (ModbusSlaveException ex) {
+            assertEquals(Modbus.ILLEGAL_ADDRESS_EXCEPTION, ex.getType());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RawValueBuffer}.
+ * @author Steven Swor
+ */
+public class RawValueBufferTest {
+
+    /**
+     * Tests that the first poll always counts as a change.
+     */
+    @Test
+    public void testFirstPollIsAChange() {
+        RawValueBuffer buffer = new RawValueBuffer();
+        assertTrue(buffer.resize(0));
+        assertFalse(buffer.resize(0));
+    }
+
+    /**
+     * Tests {@link RawValueBuffer#resize(int)} and
+     * {@link RawValueBuffer#set(int, int)}.
+     */
+    @Test
+    public void testResizeAndSet() {
+        RawValueBuffer buffer = new RawValueBuffer();
+        assertTrue(buffer.resize(2));
+        buffer.set(0, 5);
+        buffer.set(1, 6);
+        assertFalse(buffer.resize(2));
+        assertFalse(buffer.set(0, 5));
+        assertTrue(buffer.set(1, 7));
+        assertFalse(buffer.set(1, 7));
+        assertTrue(buffer.resize(4));
+        assertTrue(buffer.set(3, 1));
+    }
+
+    /**
+     * Tests {@link RawValueBuffer#reset()}.
+     */
+    @Test
+    public void testReset() {
+        RawValueBuffer buffer = new RawValueBuffer();
+        buffer.resize(1);
+        buffer.reset();
+        assertTrue(buffer.resize(1));
+    }
+}
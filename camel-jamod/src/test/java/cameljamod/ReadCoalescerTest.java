@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.ReadCoalescer.ReadRange;
+import cameljamod.ReadCoalescer.Scan;
+import cameljamod.test.FakeModbusTCPDevice;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ReadCoalescer}.
+ *
+ * @author Steven Swor
+ */
+public class ReadCoalescerTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The component.
+     */
+    private JamodComponent component;
+
+    /**
+     * An endpoint for the device.
+     */
+    private JamodEndpoint endpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+        endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        component.stop();
+        device.stop();
+    }
+
+    private static ReadRange range(int start, int count) {
+        return new ReadRange(Modbus.READ_MULTIPLE_REGISTERS, start, count);
+    }
+
+    /**
+     * Tests that adjacent and overlapping ranges are merged.
+     */
+    @Test
+    public void testPlanMergesAdjacentRanges() {
+        List<ReadRange> blocks = ReadCoalescer.plan(Arrays.asList(range(8, 8), range(0, 4), range(4, 4), range(2, 3)), ReadCoalescer.MAX_REGISTERS, 0);
+        assertEquals(Arrays.asList(range(0, 16)), blocks);
+    }
+
+    /**
+     * Tests that gaps are only bridged within the tolerance.
+     */
+    @Test
+    public void testPlanGapTolerance() {
+        List<ReadRange> ranges = Arrays.asList(range(0, 4), range(6, 2), range(20, 1));
+        assertEquals(Arrays.asList(range(0, 4), range(6, 2), range(20, 1)), ReadCoalescer.plan(ranges, ReadCoalescer.MAX_REGISTERS, 0));
+        assertEquals(Arrays.asList(range(0, 8), range(20, 1)), ReadCoalescer.plan(ranges, ReadCoalescer.MAX_REGISTERS, 2));
+        assertEquals(Arrays.asList(range(0, 21)), ReadCoalescer.plan(ranges, ReadCoalescer.MAX_REGISTERS, 12));
+    }
+
+    /**
+     * Tests that no block exceeds the protocol limit.
+     */
+    @Test
+    public void testPlanRespectsLimit() {
+        List<ReadRange> ranges = Arrays.asList(range(0, 100), range(100, 50), range(150, 300));
+        List<ReadRange> blocks = ReadCoalescer.plan(ranges, ReadCoalescer.MAX_REGISTERS, 0);
+        assertEquals(Arrays.asList(range(0, 125), range(125, 125), range(250, 125), range(375, 75)), blocks);
+    }
+
+    /**
+     * Tests that consumers polling in the same interval share one request.
+     */
+    @Test
+    public void testReadsShareScan() throws Exception {
+        ReadCoalescer coalescer = component.getReadCoalescer();
+        String key = endpoint.getDeviceKey();
+        ReadMultipleRegistersRequest first = new ReadMultipleRegistersRequest(0, 4);
+        ReadMultipleRegistersRequest second = new ReadMultipleRegistersRequest(4, 4);
+        ReadMultipleRegistersRequest third = new ReadMultipleRegistersRequest(8, 8);
+        coalescer.register(key, first);
+        coalescer.register(key, second);
+        coalescer.register(key, third);
+        assertEquals(1, coalescer.getBlockCount(key, 0, Modbus.READ_MULTIPLE_REGISTERS));
+
+        long before = System.nanoTime();
+        ReadMultipleRegistersResponse r1 = (ReadMultipleRegistersResponse) coalescer.read(endpoint, first, before);
+        ReadMultipleRegistersResponse r2 = (ReadMultipleRegistersResponse) coalescer.read(endpoint, second, before);
+        ReadMultipleRegistersResponse r3 = (ReadMultipleRegistersResponse) coalescer.read(endpoint, third, before);
+        assertEquals(1, device.getRequestCount());
+        assertEquals(4, r1.getWordCount());
+        assertEquals(3, r1.getRegisterValue(3));
+        assertEquals(4, r2.getRegisterValue(0));
+        assertEquals(8, r3.getWordCount());
+        assertEquals(15, r3.getRegisterValue(7));
+
+        // a consumer never sees the same scan twice
+        long afterFirstScan = System.nanoTime();
+        device.setRegister(1, 1000);
+        r1 = (ReadMultipleRegistersResponse) coalescer.read(endpoint, first, afterFirstScan);
+        assertEquals(2, device.getRequestCount());
+        assertEquals(1000, r1.getRegisterValue(1));
+
+        coalescer.unregister(key, second);
+        assertEquals(2, coalescer.getBlockCount(key, 0, Modbus.READ_MULTIPLE_REGISTERS));
+    }
+
+    /**
+     * Tests coalescing coil reads.
+     */
+    @Test
+    public void testCoils() throws Exception {
+        device.setCoil(3, true);
+        device.setCoil(10, true);
+        ReadCoalescer coalescer = component.getReadCoalescer();
+        String key = endpoint.getDeviceKey();
+        ReadCoilsRequest first = new ReadCoilsRequest(0, 5);
+        ReadCoilsRequest second = new ReadCoilsRequest(5, 8);
+        coalescer.register(key, first);
+        coalescer.register(key, second);
+        long before = System.nanoTime();
+        ReadCoilsResponse r1 = (ReadCoilsResponse) coalescer.read(endpoint, first, before);
+        ReadCoilsResponse r2 = (ReadCoilsResponse) coalescer.read(endpoint, second, before);
+        assertEquals(1, device.getRequestCount());
+        assertTrue(r1.getCoilStatus(3));
+        assertFalse(r1.getCoilStatus(4));
+        assertTrue(r2.getCoilStatus(5));
+        assertFalse(r2.getCoilStatus(0));
+    }
+
+    /**
+     * Tests coalescing through polling consumers.
+     */
+    @Test
+    public void testPollingConsumers() throws Exception {
+        String base = "jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/";
+        RegistersPollingConsumer[] consumers = new RegistersPollingConsumer[3];
+        int[] starts = new int[]{0, 4, 8};
+        for (int i = 0; i < consumers.length; i++) {
+            JamodEndpoint e = (JamodEndpoint) component.createEndpoint(base + starts[i] + "?count=4&coalesce=true&initialDelay=60000");
+            consumers[i] = (RegistersPollingConsumer) e.createConsumer(new NoopProcessor());
+            assertTrue(consumers[i].isCoalesce());
+            consumers[i].start();
+        }
+        try {
+            for (RegistersPollingConsumer consumer : consumers) {
+                assertEquals(1, consumer.poll());
+            }
+            assertEquals(1, device.getRequestCount());
+        } finally {
+            for (RegistersPollingConsumer consumer : consumers) {
+                consumer.stop();
+            }
+        }
+        assertEquals(0, component.getReadCoalescer().getBlockCount(endpoint.getDeviceKey(), 0, Modbus.READ_MULTIPLE_REGISTERS));
+    }
+
+    /**
+     * Tests that coalesced consumers which only want changes judge them on
+     * the scan's raw values, and slice nothing while nothing changes.
+     */
+    @Test
+    public void testPollingConsumersChangesOnly() throws Exception {
+        String base = "jamod:tcp://127.0.0.1:" + device.getPort() + "/registers/";
+        RegistersPollingConsumer first = (RegistersPollingConsumer) ((JamodEndpoint) component.createEndpoint(base + "0?count=4&coalesce=true&changesOnly=true&initialDelay=60000")).createConsumer(new NoopProcessor());
+        RegistersPollingConsumer second = (RegistersPollingConsumer) ((JamodEndpoint) component.createEndpoint(base + "4?count=4&coalesce=true&changesOnly=true&initialDelay=60000")).createConsumer(new NoopProcessor());
+        first.start();
+        second.start();
+        try {
+            assertEquals(1, first.poll());
+            assertEquals(1, second.poll());
+            assertEquals(0, first.poll());
+            assertEquals(0, second.poll());
+            device.setRegister(5, 42);
+            // a consumer may take a scan started before its previous poll finished
+            int sent = 0;
+            for (int i = 0; i < 2; i++) {
+                assertEquals(0, first.poll());
+                sent += second.poll();
+            }
+            assertEquals(1, sent);
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+            Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+            allocations.setThreadAllocatedMemoryEnabled(true);
+            ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 4);
+            Scan scan = component.getReadCoalescer().scan(endpoint, request, System.nanoTime() - 1000000000L);
+            // warm up, so that nothing is measured while classes are loading
+            for (int i = 0; i < 10000; i++) {
+                first.processScan(scan);
+            }
+            long threadId = Thread.currentThread().getId();
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            sent = 0;
+            for (int i = 0; i < 10000; i++) {
+                sent += first.processScan(scan);
+            }
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            assertEquals(0, sent);
+            // allow for the measurement itself, but not for a single response per poll
+            assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.test.FakeModbusTCPDevice;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ReadWriteRegistersProducer}.
+ *
+ * @author Steven Swor
+ */
+public class ReadWriteRegistersProducerTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The component.
+     */
+    private JamodComponent component;
+
+    /**
+     * The producer under test.
+     */
+    private ReadWriteRegistersProducer producer;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (producer != null) {
+            producer.stop();
+        }
+        component.stop();
+        device.stop();
+    }
+
+    private Exchange send(String options) throws Exception {
+        Exchange exchange = process(options);
+        assertNull(exchange.getException());
+        return exchange;
+    }
+
+    private Exchange process(String options) throws Exception {
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/readWriteRegisters/20" + options);
+        producer = (ReadWriteRegistersProducer) endpoint.createProducer();
+        producer.start();
+        Exchange exchange = new DefaultExchange(component.getCamelContext());
+        exchange.getIn().setBody(new Register[]{new SimpleRegister(200), new SimpleRegister(210)});
+        final boolean[] done = new boolean[1];
+        assertTrue(producer.process(exchange, new AsyncCallback() {
+
+            public void done(boolean doneSync) {
+                done[0] = true;
+            }
+        }) || waitFor(done));
+        return exchange;
+    }
+
+    private static boolean waitFor(boolean[] done) throws InterruptedException {
+        for (int i = 0; i < 500 && !done[0]; i++) {
+            Thread.sleep(10);
+        }
+        return done[0];
+    }
+
+    private void assertReadBack(Exchange exchange) {
+        Register[] read = exchange.getOut().getBody(Register[].class);
+        assertEquals(3, read.length);
+        assertEquals(19, read[0].getValue());
+        assertEquals(200, read[1].getValue());
+        assertEquals(210, read[2].getValue());
+        assertEquals(210, device.getRegister(21));
+    }
+
+    /**
+     * Over a non-blocking connection the write and the read travel in one
+     * request.
+     */
+    @Test(timeout = 10000)
+    public void testSingleRequest() throws Exception {
+        assertReadBack(send("?nio=true&readReference=19&count=3"));
+        assertEquals(1, device.getRequestCount());
+    }
+
+    /**
+     * Over a blocking connection the request is carried as a write followed
+     * by a read, if the endpoint allows it.
+     */
+    @Test(timeout = 10000)
+    public void testEmulated() throws Exception {
+        assertReadBack(send("?readReference=19&count=3&splitReadWrite=true"));
+        assertEquals(2, device.getRequestCount());
+    }
+
+    /**
+     * Over a blocking connection the request fails by default, rather than
+     * being split without the route asking for it.
+     */
+    @Test(timeout = 10000)
+    public void testNotSplitByDefault() throws Exception {
+        Exchange exchange = process("?readReference=19&count=3");
+        assertTrue(exchange.getException() instanceof ModbusException);
+        assertFalse(exchange.getException() instanceof ModbusIOException);
+        assertEquals(0, device.getRequestCount());
+        assertEquals(21, device.getRegister(21));
+    }
+
+    /**
+     * A read which fails after the write succeeded fails the exchange without
+     * being retried, so the registers are written only once.
+     */
+    @Test(timeout = 10000)
+    public void testEmulatedReadFails() throws Exception {
+        device.stop();
+        device = new FakeModbusTCPDevice() {
+
+            @Override
+            protected synchronized ModbusResponse respond(ModbusRequest request) {
+                if (request instanceof ReadMultipleRegistersRequest) {
+                    return new ExceptionResponse(request.getFunctionCode(), Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+                }
+                return super.respond(request);
+            }
+        };
+        device.start();
+        Exchange exchange = process("?readReference=19&count=3&splitReadWrite=true&retries=2");
+        assertTrue(exchange.getException() instanceof ModbusException);
+        assertFalse(exchange.getException() instanceof ModbusIOException);
+        assertTrue(exchange.getException().getCause() instanceof ModbusSlaveException);
+        assertEquals(210, device.getRegister(21));
+        assertEquals(2, device.getRequestCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetReadCountTooLarge() {
+        new ReadWriteRegistersProducer(null).setReadCount(126);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RegisterLayout}.
+ * @author Steven Swor
+ */
+public class RegisterLayoutTest {
+
+    /**
+     * Tests parsing a layout.
+     */
+    @Test
+    public void testParse() {
+        RegisterLayout layout = RegisterLayout.parse("0:float32:CDAB:temperature,2:int32,4:string5:BA:serial");
+        assertEquals(3, layout.getFieldCount());
+        assertEquals("temperature", layout.getName(0));
+        assertEquals("2", layout.getName(1));
+        assertEquals("serial", layout.getName(2));
+        assertEquals(2, layout.indexOf("serial"));
+        assertEquals(-1, layout.indexOf("pressure"));
+        assertEquals(7, layout.getWordCount());
+        assertTrue(layout.isContiguous());
+        assertFalse(RegisterLayout.parse("0:int16,2:int16").isContiguous());
+        assertEquals("0:int16:level", RegisterLayout.parse("0:int16:level").toString());
+    }
+
+    /**
+     * Tests decoding numbers in each byte order.
+     */
+    @Test
+    public void testDecodeNumbers() {
+        int bits = Float.floatToIntBits(21.5f);
+        long doubleBits = Double.doubleToLongBits(-3.25);
+        int[] words = new int[]{
+            bits & 0xffff, bits >>> 16,
+            0xfffe, 0xffff,
+            0xfffe, 0xffff,
+            0x3412,
+            (int) (doubleBits >>> 48), (int) (doubleBits >>> 32) & 0xffff, (int) (doubleBits >>> 16) & 0xffff, (int) doubleBits & 0xffff,
+            0x2211, 0x4433
+        };
+        RegisterLayout layout = RegisterLayout.parse("0:float32:CDAB:f,2:int32:ABCD:i,4:uint32:l,6:int16:BA:s,7:float64:d,11:int32:DCBA:r");
+        Map<String, Object> values = layout.decode(words);
+        assertEquals(Float.valueOf(21.5f), values.get("f"));
+        assertEquals(Integer.valueOf(0xfffeffff), values.get("i"));
+        assertEquals(Long.valueOf(0xfffeffffL), values.get("l"));
+        assertEquals(Integer.valueOf(0x1234), values.get("s"));
+        assertEquals(Double.valueOf(-3.25), values.get("d"));
+        assertEquals(Integer.valueOf(0x33441122), values.get("r"));
+    }
+
+    /**
+     * Tests decoding strings.
+     */
+    @Test
+    public void testDecodeStrings() {
+        int[] words = new int[]{('H' << 8) | 'i', ('!' << 8), ('i' << 8) | 'H', 0x2020};
+        RegisterLayout layout = RegisterLayout.parse("0:string3:a,2:string4:BA:b");
+        Map<String, Object> values = layout.decode(words);
+        assertEquals("Hi!", values.get("a"));
+        assertEquals("Hi", values.get("b"));
+    }
+
+    /**
+     * Tests that encoding reverses decoding.
+     */
+    @Test
+    public void testEncode() {
+        RegisterLayout layout = RegisterLayout.parse("0:float32:CDAB:f,2:int16:s,3:uint32:DCBA:u,5:string3:BA:n,7:float64:BADCFEHG:d");
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("f", Double.valueOf(1.5));
+        values.put("s", Integer.valueOf(-7));
+        values.put("u", Long.valueOf(4000000000L));
+        values.put("n", "abc");
+        values.put("d", Double.valueOf(Math.PI));
+        int[] words = layout.encode(values);
+        assertEquals(11, words.length);
+        Map<String, Object> decoded = layout.decode(words);
+        assertEquals(Float.valueOf(1.5f), decoded.get("f"));
+        assertEquals(Integer.valueOf(-7), decoded.get("s"));
+        assertEquals(Long.valueOf(4000000000L), decoded.get("u"));
+        assertEquals("abc", decoded.get("n"));
+        assertEquals(Double.valueOf(Math.PI), decoded.get("d"));
+    }
+
+    /**
+     * Tests that layouts with gaps cannot be encoded.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeWithGaps() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("0", Integer.valueOf(1));
+        values.put("2", Integer.valueOf(2));
+        RegisterLayout.parse("0:int16,2:int16").encode(values);
+    }
+
+    /**
+     * Tests that missing values cannot be encoded.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeMissingValue() {
+        RegisterLayout.parse("0:int16:a").encode(new HashMap<String, Object>());
+    }
+
+    /**
+     * Tests that decoding too few registers fails.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeTooShort() {
+        RegisterLayout.parse("0:int32").decode(new int[1]);
+    }
+
+    /**
+     * Tests that malformed layouts are rejected.
+     */
+    @Test
+    public void testParseMalformed() {
+        String[] specs = new String[]{"", "0", "x:int16", "-1:int16", "0:int24", "0:int32:ABCC:x", "0:int16:AB:a:b", "0:string", "0:int16:a,1:int16:a"};
+        for (String spec : specs) {
+            try {
+                RegisterLayout.parse(spec);
+                fail("Expected " + spec + " to be rejected");
+            } catch (IllegalArgumentException ex) {
+                //expected
+            }
+        }
+    }
+}
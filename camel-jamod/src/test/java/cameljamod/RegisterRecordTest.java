@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RegisterRecord}.
+ * @author Steven Swor
+ */
+public class RegisterRecordTest {
+
+    /**
+     * Tests the getters.
+     */
+    @Test
+    public void testGetters() {
+        int bits = Float.floatToIntBits(2.5f);
+        RegisterLayout layout = RegisterLayout.parse("0:float32:CDAB:f,2:int16:s,3:string2:n");
+        RegisterRecord record = new RegisterRecord(layout, new int[]{bits & 0xffff, bits >>> 16, 0xffff, ('o' << 8) | 'k'});
+        assertSame(layout, record.getLayout());
+        assertEquals(2.5f, record.getFloat("f"), 0);
+        assertEquals(2.5, record.getDouble("f"), 0);
+        assertEquals(2, record.getInt("f"));
+        assertEquals(-1, record.getInt("s"));
+        assertEquals(-1L, record.getLong("s"));
+        assertEquals("ok", record.getString("n"));
+        assertEquals(Integer.valueOf(-1), record.get("s"));
+        assertEquals(3, record.toMap().size());
+        assertEquals(4, record.getWords().length);
+    }
+
+    /**
+     * Tests that unknown fields are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownField() {
+        new RegisterRecord(RegisterLayout.parse("0:int16:a"), new int[1]).getInt("b");
+    }
+}
@@ -15,7 +15,11 @@
  */
 package cameljamod;
 
+import cameljamod.net.CircuitBreaker;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
@@ -27,6 +31,7 @@ import org.apache.camel.Processor;
 import org.apache.camel.impl.DefaultCamelContext;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -91,4 +96,207 @@ public class RegistersPollingConsumerTest {
         ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(registers);
         assertArrayEquals(registers, instance.getBodyFromResponse(response));
     }
+
+    /**
+     * Tests {@link RegistersPollingConsumer#responseHasChanged(ReadMultipleRegistersResponse)}.
+     */
+    @Test
+    public void testResponseHasChanged() {
+        instance.getLastRawValues().reset();
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1), new SimpleRegister(2)});
+        assertTrue(instance.responseHasChanged(response));
+        assertFalse(instance.responseHasChanged(response));
+        assertFalse(instance.responseHasChanged(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1), new SimpleRegister(2)})));
+        assertTrue(instance.responseHasChanged(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1), new SimpleRegister(3)})));
+        assertTrue(instance.responseHasChanged(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1)})));
+    }
+
+    /**
+     * Tests that {@link RegistersPollingConsumer#processResponse(ReadMultipleRegistersResponse)}
+     * only sends messages for changed values when only changes are wanted.
+     */
+    @Test
+    public void testProcessResponseChangesOnly() throws Exception {
+        instance.getLastRawValues().reset();
+        instance.setChangesOnly(true);
+        try {
+            ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1)});
+            assertEquals(1, instance.processResponse(response));
+            assertEquals(0, instance.processResponse(response));
+            assertEquals(1, instance.processResponse(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(2)})));
+        } finally {
+            instance.setChangesOnly(false);
+        }
+    }
+
+    /**
+     * Tests that the adaptive interval backs off while values hold still and
+     * snaps back when they change.
+     */
+    @Test
+    public void testProcessResponseAdaptiveDelay() throws Exception {
+        instance.getLastRawValues().reset();
+        instance.setDelay(100);
+        instance.setMaxDelay(1000);
+        try {
+            instance.doStart();
+            ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1)});
+            assertEquals(1, instance.processResponse(response));
+            assertEquals(100, instance.getCurrentDelay());
+            assertEquals(1, instance.processResponse(response));
+            assertEquals(200, instance.getCurrentDelay());
+            instance.processResponse(response);
+            instance.processResponse(response);
+            instance.processResponse(response);
+            assertEquals(1000, instance.getCurrentDelay());
+            instance.processResponse(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(2)}));
+            assertEquals(100, instance.getCurrentDelay());
+        } finally {
+            instance.doStop();
+            instance.setMaxDelay(0);
+        }
+    }
+
+    /**
+     * Tests that the adaptive interval backs off while the device is cut
+     * off, rather than polling it at the shortest interval.
+     */
+    @Test
+    public void testPollFailedAdaptiveDelay() throws Exception {
+        CircuitBreaker breaker = ((JamodEndpoint) instance.getEndpoint()).getCircuitBreaker();
+        instance.setDelay(100);
+        instance.setMaxDelay(1000);
+        try {
+            instance.doStart();
+            for (int i = 0; i < breaker.getFailureThreshold(); i++) {
+                breaker.failed();
+            }
+            assertEquals(0, instance.poll());
+            assertEquals(100, instance.getCurrentDelay());
+            Thread.sleep(60);
+            assertEquals(0, instance.poll());
+            assertEquals(200, instance.getCurrentDelay());
+        } finally {
+            breaker.succeeded();
+            instance.doStop();
+            instance.setMaxDelay(0);
+        }
+    }
+
+    /**
+     * Tests that processing an unchanged response allocates nothing.
+     */
+    @Test
+    public void testUnchangedResponseDoesNotAllocate() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        Register[] registers = new Register[16];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = new SimpleRegister(i);
+        }
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(registers);
+        instance.getLastRawValues().reset();
+        instance.setChangesOnly(true);
+        try {
+            assertEquals(1, instance.processResponse(response));
+            // warm up, so that nothing is measured while classes are loading
+            for (int i = 0; i < 10000; i++) {
+                instance.processResponse(response);
+            }
+            long threadId = Thread.currentThread().getId();
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            int sent = 0;
+            for (int i = 0; i < 10000; i++) {
+                sent += instance.processResponse(response);
+            }
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            assertEquals(0, sent);
+            // allow for the measurement itself, but not for a single object per poll
+            assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+        } finally {
+            instance.setChangesOnly(false);
+        }
+    }
+
+    /**
+     * Tests that changes within the deadband are not sent.
+     */
+    @Test
+    public void testResponseHasChangedWithDeadband() {
+        instance.setDeadband(10);
+        try {
+            assertTrue(instance.responseHasChanged(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(100)})));
+            assertFalse(instance.responseHasChanged(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(109)})));
+            assertTrue(instance.responseHasChanged(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(111)})));
+        } finally {
+            instance.setDeadband(0);
+        }
+    }
+
+    /**
+     * Tests {@link RegistersPollingConsumer#createBody(ReadMultipleRegistersResponse)}
+     * with each body type.
+     */
+    @Test
+    public void testCreateBody() {
+        Register[] registers = new Register[]{new SimpleRegister(1), new SimpleRegister(0xfffe)};
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(registers);
+        try {
+            assertSame(registers, instance.createBody(response));
+            instance.setBodyType("shortArray");
+            assertArrayEquals(new short[]{1, -2}, (short[]) instance.createBody(response));
+            instance.setBodyType("intArray");
+            assertArrayEquals(new int[]{1, 0xfffe}, (int[]) instance.createBody(response));
+            instance.setBodyType("byteBuffer");
+            ByteBuffer buffer = (ByteBuffer) instance.createBody(response);
+            assertEquals(4, buffer.remaining());
+            assertEquals(0xfffe, buffer.getShort(2) & 0xffff);
+        } finally {
+            instance.setBodyType("registers");
+        }
+    }
+
+    /**
+     * Tests that unknown body types are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetBodyTypeUnsupported() {
+        instance.setBodyType("floatArray");
+    }
+
+    /**
+     * Tests {@link RegistersPollingConsumer#createBody(ReadMultipleRegistersResponse)}
+     * with a layout.
+     */
+    @Test
+    public void testCreateBodyWithLayout() {
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(0xffff), new SimpleRegister(0xfffe)});
+        instance.setLayout("0:int32:total");
+        try {
+            instance.setBodyType("map");
+            assertEquals(Integer.valueOf(0xfffffffe), ((Map<?, ?>) instance.createBody(response)).get("total"));
+            instance.setBodyType("record");
+            assertEquals(0xfffffffe, ((RegisterRecord) instance.createBody(response)).getInt("total"));
+        } finally {
+            instance.setBodyType("registers");
+            instance.setLayout(null);
+        }
+    }
+
+    /**
+     * Tests that a count which leaves out part of the layout is rejected at
+     * start-up, rather than failing every poll.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDoStartCountSmallerThanLayout() throws Exception {
+        instance.setLayout("0:int32:total");
+        try {
+            instance.doStart();
+        } finally {
+            instance.setLayout(null);
+        }
+    }
 }
@@ -15,13 +15,18 @@
  */
 package cameljamod;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.procimg.SimpleRegister;
+import org.apache.camel.Exchange;
 import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import org.junit.Test;
 
 /**
@@ -53,4 +58,31 @@ public class RegistersProducerTest {
         WriteMultipleRegistersRequest request = producer.createRequest(registers);
         assertArrayEquals(registers, request.getRegisters());
     }
+
+    @Test
+    public void testGetDataWithLayout() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        RegistersProducer producer = (RegistersProducer) ((JamodEndpoint) c.createEndpoint("jamod:tcp://localhost/registers/0?layout=0:int32:CDAB:total,2:uint16:level")).createProducer();
+        assertEquals("0:int32:CDAB:total,2:uint16:level", producer.getLayout());
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("total", Integer.valueOf(0x12345678));
+        values.put("level", Integer.valueOf(9));
+        Exchange exchange = new DefaultExchange(c.getCamelContext());
+        exchange.getIn().setBody(values);
+        Register[] registers = producer.getData(exchange);
+        assertEquals(3, registers.length);
+        assertEquals(0x5678, registers[0].getValue());
+        assertEquals(0x1234, registers[1].getValue());
+        assertEquals(9, registers[2].getValue());
+        producer.setLayout(null);
+        assertNull(producer.getLayout());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetLayoutWithGaps() throws Exception {
+        JamodComponent c = new JamodComponent();
+        c.setCamelContext(new DefaultCamelContext());
+        new RegistersProducer((JamodEndpoint) c.createEndpoint("jamod:tcp://localhost/registers/0")).setLayout("0:int16,2:int16");
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import net.wimpi.modbus.Modbus;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ScanItem}.
+ *
+ * @author Steven Swor
+ */
+public class ScanItemTest {
+
+    @Test
+    public void testParse() {
+        ScanItem item = ScanItem.parse(" temperature = inputRegisters/100/2 ");
+        assertEquals("temperature", item.getName());
+        assertEquals("inputRegisters", item.getDataType());
+        assertEquals(100, item.getReferenceAddress());
+        assertEquals(2, item.getCount());
+        assertEquals(-1, item.getSlaveId());
+        assertEquals(Modbus.READ_INPUT_REGISTERS, item.getFunctionCode());
+    }
+
+    @Test
+    public void testParseDefaults() {
+        ScanItem item = ScanItem.parse("coils/7");
+        assertEquals("coils/7", item.getName());
+        assertEquals(1, item.getCount());
+        assertEquals(Modbus.READ_COILS, item.getFunctionCode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnsupportedDataType() {
+        ScanItem.parse("register/7");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMalformedReference() {
+        ScanItem.parse("registers/seven");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingReference() {
+        ScanItem.parse("registers");
+    }
+}
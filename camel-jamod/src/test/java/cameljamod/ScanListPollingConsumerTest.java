@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.ModbusTimeoutException;
+import cameljamod.test.FakeModbusTCPDevice;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.util.BitVector;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ScanListPollingConsumer}.
+ *
+ * @author Steven Swor
+ */
+public class ScanListPollingConsumerTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The component.
+     */
+    private JamodComponent component;
+
+    /**
+     * The bodies of the messages sent by the consumer.
+     */
+    private final List<Map<String, Object>> bodies = new ArrayList<Map<String, Object>>();
+
+    /**
+     * The consumer.
+     */
+    private ScanListPollingConsumer consumer;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/scan?scanList=registers/0");
+        consumer = new ScanListPollingConsumer(endpoint, new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+                bodies.add(exchange.getIn().getBody(Map.class));
+            }
+        });
+        consumer.setInitialDelay(60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        consumer.stop();
+        component.stop();
+        device.stop();
+    }
+
+    /**
+     * Tests that a snapshot holds every item, read with as few requests as
+     * possible.
+     */
+    @Test
+    public void testPoll() throws Exception {
+        device.setCoil(3, true);
+        consumer.setScanList(JamodEndpoint.toScanItems("level=registers/10/2,registers/12,registers/20/3,inputRegisters/5,coils/2/2"));
+        consumer.start();
+        assertEquals(4, consumer.getBlockCount());
+
+        int before = device.getRequestCount();
+        assertEquals(1, consumer.poll());
+        assertEquals(4, device.getRequestCount() - before);
+        assertEquals(1, bodies.size());
+        Map<String, Object> snapshot = bodies.get(0);
+        assertEquals(Arrays.asList("level", "registers/12", "registers/20", "inputRegisters/5", "coils/2"), new ArrayList<String>(snapshot.keySet()));
+        Register[] level = (Register[]) snapshot.get("level");
+        assertEquals(2, level.length);
+        assertEquals(10, level[0].getValue());
+        assertEquals(11, level[1].getValue());
+        assertEquals(12, ((Register[]) snapshot.get("registers/12"))[0].getValue());
+        assertEquals(22, ((Register[]) snapshot.get("registers/20"))[2].getValue());
+        assertEquals(5, ((InputRegister[]) snapshot.get("inputRegisters/5"))[0].getValue());
+        BitVector coils = (BitVector) snapshot.get("coils/2");
+        assertFalse(coils.getBit(0));
+        assertTrue(coils.getBit(1));
+    }
+
+    /**
+     * Tests that items of other slaves are read separately.
+     */
+    @Test
+    public void testPollPerSlave() throws Exception {
+        ScanItem other = new ScanItem("other", "registers", 2, 1);
+        other.setSlaveId(3);
+        List<ScanItem> items = JamodEndpoint.toScanItems("registers/0,registers/1");
+        items.add(other);
+        consumer.setScanList(items);
+        consumer.start();
+        assertEquals(2, consumer.getBlockCount());
+        assertEquals(1, consumer.poll());
+        assertEquals(2, ((Register[]) bodies.get(0).get("other"))[0].getValue());
+    }
+
+    /**
+     * Tests that unchanged snapshots are not sent when only changes are
+     * wanted.
+     */
+    @Test
+    public void testPollChangesOnly() throws Exception {
+        consumer.setScanList(JamodEndpoint.toScanItems("registers/0/2,coils/0"));
+        consumer.setChangesOnly(true);
+        consumer.start();
+        assertEquals(1, consumer.poll());
+        assertEquals(0, consumer.poll());
+        device.setCoil(0, true);
+        assertEquals(1, consumer.poll());
+        device.setRegister(1, 42);
+        assertEquals(1, consumer.poll());
+        assertEquals(0, consumer.poll());
+        assertEquals(42, ((Register[]) bodies.get(2).get("registers/0"))[1].getValue());
+    }
+
+    /**
+     * Tests that a silent unit behind a gateway costs one timeout per scan,
+     * is skipped once it is cut off, and is reported down and up again.
+     */
+    @Test
+    public void testPollSilentUnit() throws Exception {
+        device.addSilentUnit(9);
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/scan?scanList=registers/0&gateway=true&timeout=200&retries=0&failureThreshold=1&reconnectDelay=200");
+        final List<String> statuses = new ArrayList<String>();
+        ScanListPollingConsumer gatewayConsumer = new ScanListPollingConsumer(endpoint, new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+                Object status = exchange.getIn().getHeader(JamodEndpoint.STATUS_HEADER);
+                if (status != null) {
+                    statuses.add(exchange.getIn().getHeader(JamodEndpoint.UNIT_ID_HEADER) + " " + status);
+                }
+            }
+        });
+        gatewayConsumer.setInitialDelay(60000);
+        gatewayConsumer.setStatusMessages(true);
+        List<ScanItem> items = new ArrayList<ScanItem>();
+        for (String type : new String[]{"registers", "coils", "inputRegisters"}) {
+            ScanItem item = new ScanItem(type, type, 0, 1);
+            item.setSlaveId(9);
+            items.add(item);
+        }
+        gatewayConsumer.setScanList(items);
+        gatewayConsumer.start();
+        try {
+            assertEquals(3, gatewayConsumer.getBlockCount());
+            int before = device.getRequestCount();
+            try {
+                gatewayConsumer.poll();
+                fail("Expected the scan to time out");
+            } catch (ModbusTimeoutException ex) {
+                // expected
+            }
+            // the remaining blocks were not read
+            assertEquals(1, device.getRequestCount() - before);
+            assertEquals(Arrays.asList("9 " + JamodEndpoint.STATUS_DOWN), statuses);
+
+            // cut off: the poll fails fast without a request
+            assertEquals(0, gatewayConsumer.poll());
+            assertEquals(1, device.getRequestCount() - before);
+
+            device.removeSilentUnit(9);
+            Thread.sleep(300);
+            assertEquals(2, gatewayConsumer.poll());
+            assertEquals(Arrays.asList("9 " + JamodEndpoint.STATUS_DOWN, "9 " + JamodEndpoint.STATUS_UP), statuses);
+        } finally {
+            gatewayConsumer.stop();
+        }
+    }
+
+    /**
+     * Tests that the items of a unit which is cut off are left out of the
+     * snapshot, while the healthy unit's items are still sent, and only when
+     * something changed.
+     */
+    @Test
+    public void testPollUnitCutOff() throws Exception {
+        device.addSilentUnit(9);
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/scan?scanList=registers/0&gateway=true&timeout=200&retries=0&failureThreshold=1&reconnectDelay=200");
+        ScanListPollingConsumer gatewayConsumer = new ScanListPollingConsumer(endpoint, new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+                bodies.add(exchange.getIn().getBody(Map.class));
+            }
+        });
+        gatewayConsumer.setInitialDelay(60000);
+        gatewayConsumer.setChangesOnly(true);
+        ScanItem live = new ScanItem("live", "registers", 4, 1);
+        live.setSlaveId(1);
+        ScanItem dead = new ScanItem("dead", "registers", 5, 1);
+        dead.setSlaveId(9);
+        gatewayConsumer.setScanList(Arrays.asList(live, dead));
+        gatewayConsumer.start();
+        try {
+            try {
+                gatewayConsumer.poll();
+                fail("Expected the scan to time out");
+            } catch (ModbusTimeoutException ex) {
+                // expected
+            }
+            assertEquals(1, gatewayConsumer.poll());
+            assertEquals(Arrays.asList("live"), new ArrayList<String>(bodies.get(0).keySet()));
+            assertEquals(4, ((Register[]) bodies.get(0).get("live"))[0].getValue());
+            assertEquals(0, gatewayConsumer.poll());
+
+            device.removeSilentUnit(9);
+            Thread.sleep(300);
+            assertEquals(1, gatewayConsumer.poll());
+            assertEquals(Arrays.asList("live", "dead"), new ArrayList<String>(bodies.get(1).keySet()));
+            assertEquals(0, gatewayConsumer.poll());
+        } finally {
+            gatewayConsumer.stop();
+        }
+    }
+
+    /**
+     * Tests that the adaptive interval backs off while the device is cut
+     * off.
+     */
+    @Test
+    public void testPollCutOffAdaptiveDelay() throws Exception {
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1:" + device.getPort() + "/scan?scanList=registers/0&failureThreshold=1&reconnectDelay=60000");
+        ScanListPollingConsumer cutOff = new ScanListPollingConsumer(endpoint, new NoopProcessor());
+        cutOff.setInitialDelay(60000);
+        cutOff.setDelay(100);
+        cutOff.setMaxDelay(800);
+        cutOff.setScanList(JamodEndpoint.toScanItems("registers/0"));
+        cutOff.start();
+        try {
+            endpoint.getCircuitBreaker().failed();
+            int before = device.getRequestCount();
+            assertEquals(0, cutOff.poll());
+            assertEquals(100, cutOff.getCurrentDelay());
+            Thread.sleep(60);
+            assertEquals(0, cutOff.poll());
+            assertEquals(200, cutOff.getCurrentDelay());
+            assertEquals(before, device.getRequestCount());
+        } finally {
+            cutOff.stop();
+        }
+    }
+
+    /**
+     * Tests that item names must be unique.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateNames() throws Exception {
+        consumer.setScanList(JamodEndpoint.toScanItems("a=registers/0,a=coils/0"));
+        consumer.start();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.ModbusTimeoutException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link TransactionMetrics}.
+ *
+ * @author Steven Swor
+ */
+public class TransactionMetricsTest {
+
+    @Test
+    public void testTransactions() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 2);
+        for (int i = 0; i < 5; i++) {
+            metrics.begin(request);
+        }
+        assertEquals(5, metrics.getRequestCount());
+        assertEquals(5, metrics.getInFlightCount());
+        // unit identifier, function code, reference and count
+        assertEquals(5 * 6, metrics.getBytesOut());
+
+        metrics.completed(new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1), new SimpleRegister(2)}), 2000000L);
+        metrics.failed(new ModbusSlaveException(2), 1000000L);
+        metrics.failed(new ModbusSlaveException(2), 1000000L);
+        metrics.failed(new ModbusTimeoutException("Timed out"), 3000000000L);
+        metrics.failed(new ModbusIOException("Connection reset"), 5000L);
+        assertEquals(0, metrics.getInFlightCount());
+        assertEquals(1, metrics.getTimeoutCount());
+        assertEquals(1, metrics.getIOFailureCount());
+        assertEquals(2, metrics.getExceptionResponseCount());
+        assertEquals(2, metrics.getExceptionResponseCount(2));
+        assertEquals(Long.valueOf(2), metrics.getExceptionResponseCounts().get(Integer.valueOf(2)));
+        assertEquals(7 + 2 * 3, metrics.getBytesIn());
+        // only answered transactions count towards the latency
+        assertEquals(3, metrics.getLatency().getCount());
+        assertEquals(2.0, metrics.getMaxLatency(), 0.001);
+        assertEquals(1.0, metrics.getLatency50(), 0.125);
+
+        metrics.reset();
+        assertEquals(0, metrics.getRequestCount());
+        assertEquals(0, metrics.getExceptionResponseCount());
+        assertEquals(0, metrics.getMaxLatency(), 0);
+    }
+
+    @Test
+    public void testSuppressionRatio() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        assertEquals(0, metrics.getSuppressionRatio(), 0);
+        metrics.polled(true);
+        metrics.polled(false);
+        metrics.polled(false);
+        metrics.polled(false);
+        assertEquals(4, metrics.getPollCount());
+        assertEquals(3, metrics.getSuppressedPollCount());
+        assertEquals(0.75, metrics.getSuppressionRatio(), 0);
+    }
+
+    @Test
+    public void testRetries() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        metrics.retried(true);
+        metrics.retried(true);
+        metrics.retried(false);
+        assertEquals(2, metrics.getRetryCount());
+        assertEquals(1, metrics.getDeniedRetryCount());
+        metrics.reset();
+        assertEquals(0, metrics.getRetryCount());
+        assertEquals(0, metrics.getDeniedRetryCount());
+    }
+
+    /**
+     * Timeouts are only suggested once enough transactions were answered,
+     * and then follow the 99th percentile.
+     */
+    @Test
+    public void testSuggestedTimeout() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1)});
+        for (int i = 0; i < TransactionMetrics.MIN_SAMPLES_FOR_TIMEOUT - 1; i++) {
+            metrics.begin(request);
+            metrics.completed(response, 1000000L);
+        }
+        assertEquals(0, metrics.getSuggestedTimeout());
+        metrics.begin(request);
+        metrics.completed(response, 1000000L);
+        // fast devices get the floor
+        assertEquals(TransactionMetrics.MIN_SUGGESTED_TIMEOUT, metrics.getSuggestedTimeout());
+        for (int i = 0; i < 900; i++) {
+            metrics.begin(request);
+            metrics.completed(response, 100000000L);
+        }
+        long suggested = metrics.getSuggestedTimeout();
+        assertTrue(suggested >= 3 * 100 && suggested <= 3 * 110);
+    }
+}
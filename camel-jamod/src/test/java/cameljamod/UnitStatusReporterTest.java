@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod;
+
+import cameljamod.net.CircuitBreaker;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link UnitStatusReporter}.
+ *
+ * @author Steven Swor
+ */
+public class UnitStatusReporterTest {
+
+    /**
+     * Tests that a message is only sent when a unit's availability changes,
+     * and only for that unit.
+     */
+    @Test
+    public void testReport() throws Exception {
+        JamodComponent component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1/registers/0?gateway=true&failureThreshold=1&reconnectDelay=60000");
+        final List<String> statuses = new ArrayList<String>();
+        Processor processor = new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+                assertNull(exchange.getIn().getBody());
+                statuses.add(exchange.getIn().getHeader(JamodEndpoint.UNIT_ID_HEADER) + " " + exchange.getIn().getHeader(JamodEndpoint.STATUS_HEADER));
+            }
+        };
+        UnitStatusReporter reporter = new UnitStatusReporter(endpoint, 1, 9);
+        assertEquals(0, reporter.report(processor));
+
+        CircuitBreaker breaker = endpoint.getUnitCircuitBreaker(9);
+        breaker.failed();
+        assertFalse(endpoint.isAvailable(9));
+        assertTrue(endpoint.isAvailable(1));
+        assertEquals(1, reporter.report(processor));
+        assertEquals(0, reporter.report(processor));
+
+        breaker.succeeded();
+        assertEquals(1, reporter.report(processor));
+        assertEquals(2, statuses.size());
+        assertEquals("9 " + JamodEndpoint.STATUS_DOWN, statuses.get(0));
+        assertEquals("9 " + JamodEndpoint.STATUS_UP, statuses.get(1));
+    }
+
+    /**
+     * Tests that every unit is reported down while the gateway itself is cut
+     * off, even though none of the units' breakers has tripped.
+     */
+    @Test
+    public void testReportGatewayDown() throws Exception {
+        JamodComponent component = new JamodComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        JamodEndpoint endpoint = (JamodEndpoint) component.createEndpoint("jamod:tcp://127.0.0.1/registers/0?gateway=true&failureThreshold=1&reconnectDelay=60000");
+        final List<String> statuses = new ArrayList<String>();
+        Processor processor = new Processor() {
+
+            public void process(Exchange exchange) throws Exception {
+                statuses.add(exchange.getIn().getHeader(JamodEndpoint.UNIT_ID_HEADER) + " " + exchange.getIn().getHeader(JamodEndpoint.STATUS_HEADER));
+            }
+        };
+        UnitStatusReporter reporter = new UnitStatusReporter(endpoint, 1, 9);
+        assertEquals(0, reporter.report(processor));
+
+        CircuitBreaker breaker = endpoint.getCircuitBreaker();
+        breaker.failed();
+        assertEquals(CircuitBreaker.State.CLOSED, endpoint.getUnitCircuitBreaker(1).getState());
+        assertFalse(endpoint.isAvailable(1));
+        assertFalse(endpoint.isAvailable(9));
+        assertEquals(2, reporter.report(processor));
+
+        breaker.succeeded();
+        assertTrue(endpoint.isAvailable(1));
+        assertEquals(2, reporter.report(processor));
+        assertEquals(4, statuses.size());
+        assertEquals("1 " + JamodEndpoint.STATUS_DOWN, statuses.get(0));
+        assertEquals("9 " + JamodEndpoint.STATUS_DOWN, statuses.get(1));
+        assertEquals("1 " + JamodEndpoint.STATUS_UP, statuses.get(2));
+        assertEquals("9 " + JamodEndpoint.STATUS_UP, statuses.get(3));
+    }
+}
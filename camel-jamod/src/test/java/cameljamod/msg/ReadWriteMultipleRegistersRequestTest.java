@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.msg;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ReadWriteMultipleRegistersRequest}.
+ *
+ * @author Steven Swor
+ */
+public class ReadWriteMultipleRegistersRequestTest {
+
+    @After
+    public void tearDown() {
+        ModbusCoupler.getReference().setProcessImage(null);
+    }
+
+    /**
+     * Tests that the response is served from the coupler's process image,
+     * writing before reading.
+     */
+    @Test
+    public void testCreateResponse() {
+        SimpleProcessImage image = new SimpleProcessImage();
+        for (int i = 0; i < 4; i++) {
+            image.addRegister(new SimpleRegister(i));
+        }
+        ModbusCoupler.getReference().setProcessImage(image);
+        ReadWriteMultipleRegistersRequest request = new ReadWriteMultipleRegistersRequest(1, 2, 2, new Register[]{new SimpleRegister(42)});
+        request.setUnitID(3);
+        request.setTransactionID(7);
+        ModbusResponse response = request.createResponse();
+        assertTrue(response instanceof ReadWriteMultipleRegistersResponse);
+        ReadWriteMultipleRegistersResponse readWrite = (ReadWriteMultipleRegistersResponse) response;
+        assertEquals(2, readWrite.getWordCount());
+        assertEquals(1, readWrite.getRegisterValue(0));
+        assertEquals(42, readWrite.getRegisterValue(1));
+        assertEquals(42, image.getRegister(2).getValue());
+        assertEquals(3, response.getUnitID());
+        assertEquals(7, response.getTransactionID());
+    }
+
+    /**
+     * Tests that ranges outside the process image are refused without
+     * writing anything.
+     */
+    @Test
+    public void testCreateResponseIllegalAddress() {
+        SimpleProcessImage image = new SimpleProcessImage();
+        image.addRegister(new SimpleRegister(5));
+        ModbusCoupler.getReference().setProcessImage(image);
+        ReadWriteMultipleRegistersRequest request = new ReadWriteMultipleRegistersRequest(0, 2, 0, new Register[]{new SimpleRegister(42)});
+        ModbusResponse response = request.createResponse();
+        assertTrue(response instanceof ExceptionResponse);
+        assertEquals(Modbus.ILLEGAL_ADDRESS_EXCEPTION, ((ExceptionResponse) response).getExceptionCode());
+        assertEquals(5, image.getRegister(0).getValue());
+    }
+
+    /**
+     * Tests that the request is refused when there is no process image.
+     */
+    @Test
+    public void testCreateResponseWithoutProcessImage() {
+        ModbusCoupler.getReference().setProcessImage(null);
+        ModbusResponse response = new ReadWriteMultipleRegistersRequest(0, 1, 0, new Register[]{new SimpleRegister(1)}).createResponse();
+        assertEquals(Modbus.ILLEGAL_FUNCTION_EXCEPTION, ((ExceptionResponse) response).getExceptionCode());
+    }
+}
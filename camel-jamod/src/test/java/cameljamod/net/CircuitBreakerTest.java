@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ *
+ * @author Steven Swor
+ */
+public class CircuitBreakerTest {
+
+    private static final long MS = 1000000L;
+
+    private static void assertRejected(CircuitBreaker breaker, long now) {
+        try {
+            breaker.acquire(now);
+            fail("Expected the breaker to be open");
+        } catch (CircuitOpenException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("tcp://plc:502");
+        breaker.setFailureThreshold(3);
+        breaker.failed(0);
+        breaker.failed(0);
+        breaker.succeeded();
+        breaker.failed(0);
+        breaker.failed(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire(0);
+        breaker.failed(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+        assertRejected(breaker, 1);
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    /**
+     * After the delay one probe goes through; a failed probe doubles the
+     * delay and a successful one closes the breaker.
+     */
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("tcp://plc:502");
+        breaker.setFailureThreshold(1);
+        breaker.setInitialBackoff(1000);
+        breaker.setMaxBackoff(3000);
+        breaker.failed(0);
+        assertRejected(breaker, 499 * MS);
+        breaker.acquire(1000 * MS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // only one probe at a time
+        assertRejected(breaker, 1000 * MS);
+        breaker.failed(1000 * MS);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        // the second delay is between 1000 and 2000ms
+        assertRejected(breaker, 1999 * MS);
+        breaker.acquire(3000 * MS);
+        breaker.failed(3000 * MS);
+        // capped at 3000ms
+        assertRejected(breaker, 4499 * MS);
+        breaker.acquire(6000 * MS);
+        breaker.succeeded();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire(6000 * MS);
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    /**
+     * A probe which never reports back does not leave the device cut off.
+     */
+    @Test
+    public void testLostProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("tcp://plc:502");
+        breaker.setFailureThreshold(1);
+        breaker.setInitialBackoff(1000);
+        breaker.failed(0);
+        breaker.acquire(1000 * MS);
+        assertRejected(breaker, 1001 * MS);
+        breaker.acquire(2000 * MS);
+    }
+
+    /**
+     * A probe which is handed back lets the next request probe straight away.
+     */
+    @Test
+    public void testCancelProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("tcp://plc:502");
+        breaker.setFailureThreshold(1);
+        breaker.setInitialBackoff(1000);
+        breaker.failed(0);
+        assertTrue(breaker.acquire(1000 * MS));
+        breaker.cancelProbe(1001 * MS);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.acquire(1001 * MS));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.succeeded();
+        assertFalse(breaker.acquire(1002 * MS));
+        breaker.cancelProbe(1002 * MS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("tcp://plc:502");
+        breaker.setFailureThreshold(0);
+        for (int i = 0; i < 100; i++) {
+            breaker.failed(0);
+        }
+        breaker.acquire(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2012 Steven Swor.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MBAPCodec}.
+ *
+ * @author Steven Swor
+ */
+public class MBAPCodecTest {
+
+    /**
+     * Tests {@link MBAPCodec#encode(net.wimpi.modbus.msg.ModbusMessageImpl, int)}.
+     */
+    @Test
+    public void testEncodeRequest() throws Exception {
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(2, 3);
+        request.setUnitID(5);
+        byte[] frame = MBAPCodec.encode(request, 0x1234);
+        byte[] expected = new byte[]{0x12, 0x34, 0x00, 0x00, 0x00, 0x06, 0x05, 0x03, 0x00, 0x02, 0x00, 0x03};
+        assertArrayEquals(expected, frame);
+        assertEquals(0x1234, MBAPCodec.getTransactionId(frame, 0));
+        assertEquals(6, MBAPCodec.getLength(frame, 0));
+    }
+
+    /**
+     * Tests round-tripping a request through
+     * {@link MBAPCodec#readFrame(java.io.DataInputStream)} and
+     * {@link MBAPCodec#decodeRequest(byte[], int)}.
+     */
+    @Test
+    public void testReadFrameAndDecodeRequest() throws Exception {
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(10, 4);
+        request.setUnitID(7);
+        byte[] encoded = MBAPCodec.encode(request, 42);
+        byte[] frame = MBAPCodec.readFrame(new DataInputStream(new ByteArrayInputStream(encoded)));
+        assertArrayEquals(encoded, frame);
+        ModbusRequest decoded = MBAPCodec.decodeRequest(frame, frame.length);
+        assertTrue(decoded instanceof ReadMultipleRegistersRequest);
+        assertEquals(7, decoded.getUnitID());
+        assertEquals(10, ((ReadMultipleRegistersRequest) decoded).getReference());
+        assertEquals(4, ((ReadMultipleRegistersRequest) decoded).getWordCount());
+    }
+
+    /**
+     * Tests {@link MBAPCodec#decodeResponse(byte[], int)}.
+     */
+    @Test
+    public void testDecodeResponse() throws Exception {
+        ReadMultipleRegistersResponse response = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(1), new SimpleRegister(0xBEEF)});
+        response.setUnitID(3);
+        byte[] frame = MBAPCodec.encode(response, 9);
+        ModbusResponse decoded = MBAPCodec.decodeResponse(frame, frame.length);
+        assertTrue(decoded instanceof ReadMultipleRegistersResponse);
+        assertEquals(9, decoded.getTransactionID());
+        assertEquals(3, decoded.getUnitID());
+        assertEquals(1, ((ReadMultipleRegistersResponse) decoded).getRegisterValue(0));
+        assertEquals(0xBEEF, ((ReadMultipleRegistersResponse) decoded).getRegisterValue(1));
+    }
+
+    /**
+     * Tests round-tripping a Read/Write Multiple Registers request and
+     * response, which Jamod's own message factories do not know.
+     */
+    @Test
+    public void testReadWriteMultipleRegisters() throws Exception {
+        ReadWriteMultipleRegistersRequest request = new ReadWriteMultipleRegistersRequest(3, 2, 14, new Register[]{new SimpleRegister(0xFF)});
+        request.setUnitID(1);
+        byte[] frame = MBAPCodec.encode(request, 1);
+        byte[] expected = new byte[]{0x00, 0x01, 0x00, 0x00, 0x00, 0x0D, 0x01, 0x17, 0x00, 0x03, 0x00, 0x02, 0x00, 0x0E, 0x00, 0x01, 0x02, 0x00, (byte) 0xFF};
+        assertArrayEquals(expected, frame);
+        assertEquals(13, request.getDataLength());
+        ModbusRequest decodedRequest = MBAPCodec.decodeRequest(frame, frame.length);
+        assertTrue(decodedRequest instanceof ReadWriteMultipleRegistersRequest);
+        assertEquals(13, decodedRequest.getDataLength());
+        ReadWriteMultipleRegistersRequest readWrite = (ReadWriteMultipleRegistersRequest) decodedRequest;
+        assertEquals(3, readWrite.getReadReference());
+        assertEquals(2, readWrite.getReadCount());
+        assertEquals(14, readWrite.getWriteReference());
+        assertEquals(1, readWrite.getWriteCount());
+        assertEquals(0xFF, readWrite.getRegisterValue(0));
+
+        ReadWriteMultipleRegistersResponse response = new ReadWriteMultipleRegistersResponse(new Register[]{new SimpleRegister(7), new SimpleRegister(0xBEEF)});
+        response.setUnitID(1);
+        frame = MBAPCodec.encode(response, 1);
+        assertEquals(7, response.getDataLength());
+        assertEquals(7, MBAPCodec.getLength(frame, 0));
+        ModbusResponse decodedResponse = MBAPCodec.decodeResponse(frame, frame.length);
+        assertTrue(decodedResponse instanceof ReadWriteMultipleRegistersResponse);
+        assertEquals(7, decodedResponse.getDataLength());
+        assertEquals(2, ((ReadWriteMultipleRegistersResponse) decodedResponse).getWordCount());
+        assertEquals(7, ((ReadWriteMultipleRegistersResponse) decodedResponse).getRegisterValue(0));
+        assertEquals(0xBEEF, ((ReadWriteMultipleRegistersResponse) decodedResponse).getRegisterValue(1));
+    }
+
+    /**
+     * Tests {@link MBAPCodec#decodeResponse(byte[], int)} with an exception
+     * response.
+     */
+    @Test
+    public void testDecodeExceptionResponse() throws Exception {
+        byte[] frame = new byte[]{0x00, 0x01, 0x00, 0x00, 0x00, 0x03, 0x01, (byte) 0x83, 0x02};
+        ModbusResponse decoded = MBAPCodec.decodeResponse(frame, frame.length);
+        assertTrue(decoded instanceof ExceptionResponse);
+        assertEquals(2, ((ExceptionResponse) decoded).getExceptionCode());
+    }
+
+    /**
+     * Tests that {@link MBAPCodec#readFrame(java.io.DataInputStream)} rejects
+     * frames with an impossible length.
+     */
+    @Test(expected = IOException.class)
+    public void testReadFrameInvalidLength() throws Exception {
+        byte[] frame = new byte[]{0x00, 0x01, 0x00, 0x00, 0x01, 0x00, 0x01, 0x03};
+        MBAPCodec.readFrame(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    /**
+     * Tests that {@link MBAPCodec#readFrame(java.io.DataInputStream)} rejects
+     * frames of other protocols.
+     */
+    @Test(expected = IOException.class)
+    public void testReadFrameInvalidProtocolId() throws Exception {
+        byte[] frame = new byte[]{0x00, 0x01, 0x00, 0x01, 0x00, 0x03, 0x01, 0x03, 0x00};
+        MBAPCodec.readFrame(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+}
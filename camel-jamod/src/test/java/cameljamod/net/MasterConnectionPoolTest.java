@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2012 Steven Swor.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cameljamod.net;
+
+import net.wimpi.modbus.ModbusIOException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MasterConnectionPool}.
+ *
+ * @author Steven Swor
+ */
+public class MasterConnectionPoolTest {
+
+    private static final String KEY = "tcp://localhost:502";
+
+    /**
+     * Creates a factory which hands out mock connections.
+     *
+     * @param connected whether or not the mock connections report themselves
+     * as connected
+     * @return the factory
+     */
+    private static MasterConnectionFactory mockFactory(final boolean connected) {
+        return new MasterConnectionFactory() {
+
+            public AbstractMasterConnectionWrapper createConnection() {
+                AbstractMasterConnectionWrapper connection = mock(AbstractMasterConnectionWrapper.class);
+                when(connection.isConnected()).thenReturn(connected);
+                when(connection.isValid()).thenReturn(connected);
+                return connection;
+            }
+        };
+    }
+
+    /**
+     * Tests that released connections are reused.
+     */
+    @Test
+    public void testReleasedConnectionIsReused() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        MasterConnectionFactory factory = mockFactory(true);
+        AbstractMasterConnectionWrapper first = instance.borrow(KEY, factory);
+        assertEquals(1, instance.getActiveCount(KEY));
+        instance.release(KEY, first);
+        assertEquals(0, instance.getActiveCount(KEY));
+        assertEquals(1, instance.getIdleCount(KEY));
+        assertSame(first, instance.borrow(KEY, factory));
+    }
+
+    /**
+     * Tests that the pool never hands out more than the maximum number of
+     * connections to a device.
+     */
+    @Test(expected = ModbusIOException.class)
+    public void testMaxConnectionsPerDevice() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        instance.setMaxConnectionsPerDevice(2);
+        instance.setBorrowTimeout(10);
+        MasterConnectionFactory factory = mockFactory(true);
+        assertNotSame(instance.borrow(KEY, factory), instance.borrow(KEY, factory));
+        instance.borrow(KEY, factory);
+        fail("Exception should have been thrown.");
+    }
+
+    /**
+     * Tests that invalid idle connections are closed instead of being handed
+     * out.
+     */
+    @Test
+    public void testValidateOnBorrow() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        AbstractMasterConnectionWrapper stale = instance.borrow(KEY, mockFactory(true));
+        instance.release(KEY, stale);
+        when(stale.isValid()).thenReturn(Boolean.FALSE);
+        AbstractMasterConnectionWrapper fresh = instance.borrow(KEY, mockFactory(true));
+        assertNotSame(stale, fresh);
+        verify(stale).close();
+    }
+
+    /**
+     * Tests that disconnected connections are not kept in the pool.
+     */
+    @Test
+    public void testReleaseDisconnected() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        AbstractMasterConnectionWrapper connection = instance.borrow(KEY, mockFactory(false));
+        instance.release(KEY, connection);
+        assertEquals(0, instance.getIdleCount(KEY));
+        verify(connection).close();
+    }
+
+    /**
+     * Tests {@link MasterConnectionPool#invalidate(String,
+     * AbstractMasterConnectionWrapper)}.
+     */
+    @Test
+    public void testInvalidate() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        instance.setMaxConnectionsPerDevice(1);
+        instance.setBorrowTimeout(10);
+        AbstractMasterConnectionWrapper connection = instance.borrow(KEY, mockFactory(true));
+        instance.invalidate(KEY, connection);
+        verify(connection).close();
+        assertEquals(0, instance.getIdleCount(KEY));
+        assertNotSame(connection, instance.borrow(KEY, mockFactory(true)));
+    }
+
+    /**
+     * Tests {@link MasterConnectionPool#evictIdleConnections()}.
+     */
+    @Test
+    public void testEvictIdleConnections() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        instance.setIdleTimeout(0);
+        AbstractMasterConnectionWrapper connection = instance.borrow(KEY, mockFactory(true));
+        instance.release(KEY, connection);
+        Thread.sleep(5);
+        assertEquals(1, instance.evictIdleConnections());
+        assertEquals(0, instance.getIdleCount(KEY));
+        verify(connection).close();
+    }
+
+    /**
+     * Tests that a multiplexed connection is shared by concurrent borrowers
+     * and only counts against the device limit once.
+     */
+    @Test
+    public void testMultiplexedConnectionIsShared() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        instance.setMaxConnectionsPerDevice(1);
+        instance.setBorrowTimeout(10);
+        MasterConnectionFactory factory = multiplexedFactory();
+        AbstractMasterConnectionWrapper first = instance.borrow(KEY, factory);
+        AbstractMasterConnectionWrapper second = instance.borrow(KEY, factory);
+        assertSame(first, second);
+        instance.release(KEY, first);
+        instance.release(KEY, second);
+        verify(first, never()).close();
+        assertEquals(1, instance.getIdleCount(KEY));
+    }
+
+    /**
+     * Tests that a shared connection only counts as active while somebody is
+     * using it.
+     */
+    @Test
+    public void testSharedConnectionActiveCount() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        MasterConnectionFactory factory = multiplexedFactory();
+        AbstractMasterConnectionWrapper<?> first = instance.borrow(KEY, factory);
+        AbstractMasterConnectionWrapper<?> second = instance.borrow(KEY, factory);
+        assertEquals(1, instance.getActiveCount(KEY));
+        instance.release(KEY, first);
+        assertEquals(1, instance.getActiveCount(KEY));
+        instance.release(KEY, second);
+        assertEquals(0, instance.getActiveCount(KEY));
+        instance.borrow(KEY, factory);
+        assertEquals(1, instance.getActiveCount(KEY));
+    }
+
+    /**
+     * Tests that closing the pool closes idle connections, and an unused
+     * shared connection.
+     */
+    @Test
+    public void testCloseIdleConnections() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        AbstractMasterConnectionWrapper<?> idle = instance.borrow(KEY, mockFactory(true));
+        instance.release(KEY, idle);
+        AbstractMasterConnectionWrapper<?> shared = instance.borrow("tcp://gateway:502", multiplexedFactory());
+        instance.release("tcp://gateway:502", shared);
+        instance.close();
+        verify(idle).close();
+        verify(shared).close();
+        assertEquals(0, instance.getIdleCount(KEY));
+        assertEquals(0, instance.getIdleCount("tcp://gateway:502"));
+    }
+
+    /**
+     * Tests that a connection still leased when the pool is closed is closed
+     * when it is released, and does not free a slot in the device's new
+     * pool.
+     */
+    @Test
+    public void testCloseLeasedConnection() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        instance.setMaxConnectionsPerDevice(1);
+        instance.setBorrowTimeout(10);
+        AbstractMasterConnectionWrapper<?> leased = instance.borrow(KEY, mockFactory(true));
+        instance.close();
+        verify(leased, never()).close();
+        AbstractMasterConnectionWrapper<?> fresh = instance.borrow(KEY, mockFactory(true));
+        instance.release(KEY, leased);
+        verify(leased).close();
+        assertEquals(1, instance.getActiveCount(KEY));
+        try {
+            instance.borrow(KEY, mockFactory(true));
+            fail("Expected the device's new pool to be exhausted");
+        } catch (ModbusIOException ex) {
+            // expected
+        }
+        instance.release(KEY, fresh);
+        assertEquals(1, instance.getIdleCount(KEY));
+    }
+
+    /**
+     * Tests that a shared connection still in use when the pool is closed is
+     * closed when its last borrower releases it.
+     */
+    @Test
+    public void testCloseLeasedSharedConnection() throws Exception {
+        MasterConnectionPool instance = new MasterConnectionPool();
+        MasterConnectionFactory factory = multiplexedFactory();
+        AbstractMasterConnectionWrapper<?> first = instance.borrow(KEY, factory);
+        AbstractMasterConnectionWrapper<?> second = instance.borrow(KEY, factory);
+        instance.close();
+        instance.release(KEY, first);
+        verify(first, never()).close();
+        instance.invalidate(KEY, second);
+        verify(first).close();
+    }
+
+    /**
+     * Creates a factory which hands out mock multiplexed connections.
+     *
+     * @return the factory
+     */
+    private static MasterConnectionFactory multiplexedFactory() {
+        return new MasterConnectionFactory() {
+
+            public AbstractMasterConnectionWrapper<?> createConnection() {
+                AbstractMasterConnectionWrapper<?> connection = mock(AbstractMasterConnectionWrapper.class);
+                when(connection.isConnected()).thenReturn(Boolean.TRUE);
+                when(connection.isValid()).thenReturn(Boolean.TRUE);
+                when(connection.isMultiplexed()).thenReturn(Boolean.TRUE);
+                return connection;
+            }
+        };
+    }
+}
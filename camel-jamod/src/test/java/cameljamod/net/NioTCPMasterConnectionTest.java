@@ -0,0 +1,305 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.test.FakeModbusTCPDevice;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.ModbusTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link NioTCPMasterConnection} and {@link NioTCPTransaction}.
+ *
+ * @author Steven Swor
+ */
+public class NioTCPMasterConnectionTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The event loop.
+     */
+    private NioEventLoop eventLoop;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        eventLoop = new NioEventLoop("NioTCPMasterConnectionTest");
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventLoop.close();
+        device.stop();
+    }
+
+    private NioTCPMasterConnection createConnection(int maxInFlight) {
+        NioTCPMasterConnection connection = new NioTCPMasterConnection(device.getAddress(), eventLoop, maxInFlight);
+        connection.setPort(device.getPort());
+        connection.setTimeout(2000);
+        return connection;
+    }
+
+    /**
+     * Collects callback outcomes by register value.
+     */
+    private static class RecordingCallback implements TransactionCallback {
+
+        private final Map<Integer, Integer> values;
+        private final List<ModbusException> failures;
+        private final CountDownLatch latch;
+        private final int key;
+
+        RecordingCallback(Map<Integer, Integer> values, List<ModbusException> failures, CountDownLatch latch, int key) {
+            this.values = values;
+            this.failures = failures;
+            this.latch = latch;
+            this.key = key;
+        }
+
+        public void completed(ModbusResponse response) {
+            values.put(Integer.valueOf(key), Integer.valueOf(((ReadMultipleRegistersResponse) response).getRegisterValue(0)));
+            latch.countDown();
+        }
+
+        public void failed(ModbusException cause) {
+            synchronized (failures) {
+                failures.add(cause);
+            }
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Tests that requests submitted from one thread without waiting are all
+     * answered, even when the device answers out of order.
+     */
+    @Test
+    public void testSubmitOutOfOrder() throws Exception {
+        device.setBatchSize(4);
+        NioTCPMasterConnection connection = createConnection(4);
+        Map<Integer, Integer> values = new ConcurrentHashMap<Integer, Integer>();
+        List<ModbusException> failures = new ArrayList<ModbusException>();
+        CountDownLatch latch = new CountDownLatch(12);
+        for (int i = 0; i < 12; i++) {
+            connection.submit(new ReadMultipleRegistersRequest(i * 3, 1), new RecordingCallback(values, failures, latch, i));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(failures.isEmpty());
+        for (int i = 0; i < 12; i++) {
+            assertEquals(i * 3, values.get(Integer.valueOf(i)).intValue());
+        }
+        assertEquals(0, connection.getInFlightCount());
+        assertTrue(connection.isConnected());
+        assertEquals(1, device.getClientCount());
+    }
+
+    /**
+     * Tests that requests submitted while the event loop stops are all
+     * answered rather than left queued.
+     */
+    @Test
+    public void testSubmitWhileClosing() throws Exception {
+        final NioTCPMasterConnection connection = createConnection(4);
+        final Map<Integer, Integer> values = new ConcurrentHashMap<Integer, Integer>();
+        final List<ModbusException> failures = new ArrayList<ModbusException>();
+        final CountDownLatch latch = new CountDownLatch(200);
+        Thread submitter = new Thread(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    connection.submit(new ReadMultipleRegistersRequest(i, 1), new RecordingCallback(values, failures, latch, i));
+                    if (i == 20) {
+                        eventLoop.close();
+                    }
+                }
+            }
+        });
+        submitter.start();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        submitter.join();
+        assertFalse(failures.isEmpty());
+    }
+
+    /**
+     * Tests that one event loop drives many connections at once.
+     */
+    @Test
+    public void testManyConnectionsOneLoop() throws Exception {
+        int count = 25;
+        Map<Integer, Integer> values = new ConcurrentHashMap<Integer, Integer>();
+        List<ModbusException> failures = new ArrayList<ModbusException>();
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            createConnection(1).submit(new ReadMultipleRegistersRequest(100 + i, 1), new RecordingCallback(values, failures, latch, i));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(failures.isEmpty());
+        for (int i = 0; i < count; i++) {
+            assertEquals(100 + i, values.get(Integer.valueOf(i)).intValue());
+        }
+    }
+
+    /**
+     * Tests that an unanswered request times out without disturbing the
+     * connection.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        device.addSilentUnit(9);
+        NioTCPMasterConnection connection = createConnection(2);
+        connection.setTimeout(200);
+        connection.connect();
+        ReadMultipleRegistersRequest silent = new ReadMultipleRegistersRequest(0, 1);
+        silent.setUnitID(9);
+        NioTCPTransaction transaction = new NioTCPTransaction(connection);
+        transaction.setRetries(0);
+        transaction.setRequest(silent);
+        long start = System.currentTimeMillis();
+        try {
+            transaction.execute();
+            fail("Expected a timeout");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(0, connection.getInFlightCount());
+        assertTrue(connection.isConnected());
+
+        transaction.setRequest(new ReadMultipleRegistersRequest(7, 1));
+        transaction.execute();
+        assertEquals(7, ((ReadMultipleRegistersResponse) transaction.getResponse()).getRegisterValue(0));
+    }
+
+    /**
+     * Tests that a queued request with a short timeout expires on time, even
+     * behind one with a longer timeout.
+     */
+    @Test(timeout = 10000)
+    public void testQueuedTimeout() throws Exception {
+        device.addSilentUnit(9);
+        NioTCPMasterConnection connection = createConnection(1);
+        connection.connect();
+        Map<Integer, Integer> values = new ConcurrentHashMap<Integer, Integer>();
+        List<ModbusException> failures = new ArrayList<ModbusException>();
+        CountDownLatch slow = new CountDownLatch(2);
+        CountDownLatch fast = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            ReadMultipleRegistersRequest silent = new ReadMultipleRegistersRequest(i, 1);
+            silent.setUnitID(9);
+            connection.submit(silent, 3000, new RecordingCallback(values, failures, slow, i));
+        }
+        long start = System.currentTimeMillis();
+        connection.submit(new ReadMultipleRegistersRequest(2, 1), 100, new RecordingCallback(values, failures, fast, 2));
+        assertTrue(fast.await(1, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(2, slow.getCount());
+        synchronized (failures) {
+            assertEquals(1, failures.size());
+            assertTrue(failures.get(0) instanceof ModbusTimeoutException);
+        }
+    }
+
+    /**
+     * Tests that exception responses are reported as
+     * {@link ModbusSlaveException}s.
+     */
+    @Test(expected = ModbusSlaveException.class)
+    public void testExceptionResponse() throws Exception {
+        NioTCPTransaction transaction = new NioTCPTransaction(createConnection(1));
+        ModbusRequest request = new WriteSingleRegisterRequest(0, new SimpleRegister(1));
+        transaction.setRequest(request);
+        transaction.execute();
+    }
+
+    /**
+     * Tests that requests to a device which is not listening fail.
+     */
+    @Test
+    public void testConnectionRefused() throws Exception {
+        ServerSocket unused = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = unused.getLocalPort();
+        unused.close();
+        NioTCPMasterConnection connection = createConnection(1);
+        connection.setPort(port);
+        try {
+            connection.connect();
+            fail("Expected the connection to be refused");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertFalse(connection.isConnected());
+        NioTCPTransaction transaction = new NioTCPTransaction(connection);
+        transaction.setRetries(0);
+        transaction.setRequest(new ReadMultipleRegistersRequest(0, 1));
+        try {
+            transaction.execute();
+            fail("Expected the connection to be refused");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+    }
+
+    /**
+     * Tests that the connection reconnects after the device drops it.
+     */
+    @Test
+    public void testReconnect() throws Exception {
+        NioTCPMasterConnection connection = createConnection(1);
+        NioTCPMasterConnectionWrapper wrapper = new NioTCPMasterConnectionWrapper(connection);
+        wrapper.connect();
+        assertTrue(wrapper.isConnected());
+        long deadline = System.currentTimeMillis() + 2000;
+        // the device may not have accepted the connection yet
+        while (device.getClientCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        device.disconnectClients();
+        while (wrapper.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(wrapper.isConnected());
+        ModbusTransaction transaction = wrapper.createTransaction();
+        transaction.setRequest(new ReadMultipleRegistersRequest(11, 1));
+        transaction.execute();
+        assertEquals(11, ((ReadMultipleRegistersResponse) transaction.getResponse()).getRegisterValue(0));
+        assertTrue(wrapper.isConnected());
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.net.TCPMasterConnection;
+import net.wimpi.modbus.procimg.SimpleDigitalIn;
+import net.wimpi.modbus.procimg.SimpleDigitalOut;
+import net.wimpi.modbus.procimg.SimpleInputRegister;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link NioTCPSlaveListener}.
+ *
+ * @author Steven Swor
+ */
+public class NioTCPSlaveListenerTest {
+
+    /**
+     * The event loops.
+     */
+    private NioEventLoopGroup eventLoopGroup;
+
+    /**
+     * The process image, where register {@code n} holds {@code n}.
+     */
+    private SimpleProcessImage image;
+
+    /**
+     * The listener, once started.
+     */
+    private NioTCPSlaveListener listener;
+
+    /**
+     * Raw client sockets to close after the test.
+     */
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws Exception {
+        eventLoopGroup = new NioEventLoopGroup(2, "NioTCPSlaveListenerTest");
+        image = new SimpleProcessImage();
+        for (int i = 0; i < 256; i++) {
+            image.addRegister(new SimpleRegister(i));
+            image.addInputRegister(new SimpleInputRegister(i));
+            image.addDigitalOut(new SimpleDigitalOut(i % 2 == 1));
+            image.addDigitalIn(new SimpleDigitalIn());
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (listener != null) {
+            listener.close();
+        }
+        eventLoopGroup.close();
+    }
+
+    private void startListener(SlaveRequestHandler handler) throws Exception {
+        listener = new NioTCPSlaveListener(InetAddress.getByName("127.0.0.1"), 0, eventLoopGroup, handler);
+        listener.start();
+        assertTrue(listener.isListening());
+        assertTrue(listener.getPort() > 0);
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), listener.getPort());
+        socket.setSoTimeout(5000);
+        sockets.add(socket);
+        return socket;
+    }
+
+    private static void send(Socket socket, ModbusRequest request, int transactionId) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(MBAPCodec.encode(request, transactionId));
+        out.flush();
+    }
+
+    private static byte[] receive(DataInputStream in) throws Exception {
+        return MBAPCodec.readFrame(in);
+    }
+
+    private void awaitConnectionCount(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.getConnectionCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, listener.getConnectionCount());
+    }
+
+    /**
+     * Tests reads and writes with jamod's own master.
+     */
+    @Test
+    public void testJamodMaster() throws Exception {
+        startListener(new ProcessImageRequestHandler(image));
+        TCPMasterConnection connection = new TCPMasterConnection(InetAddress.getByName("127.0.0.1"));
+        connection.setPort(listener.getPort());
+        connection.connect();
+        try {
+            ModbusTCPTransaction transaction = new ModbusTCPTransaction(connection);
+            transaction.setRequest(new ReadMultipleRegistersRequest(10, 3));
+            transaction.execute();
+            ReadMultipleRegistersResponse registers = (ReadMultipleRegistersResponse) transaction.getResponse();
+            assertEquals(10, registers.getRegisterValue(0));
+            assertEquals(12, registers.getRegisterValue(2));
+
+            transaction.setRequest(new WriteSingleRegisterRequest(10, new SimpleRegister(1234)));
+            transaction.execute();
+            assertEquals(1234, image.getRegister(10).getValue());
+
+            transaction.setRequest(new ReadCoilsRequest(0, 4));
+            transaction.execute();
+            ReadCoilsResponse coils = (ReadCoilsResponse) transaction.getResponse();
+            assertFalse(coils.getCoilStatus(0));
+            assertTrue(coils.getCoilStatus(1));
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Tests that many clients are served at once by two threads.
+     */
+    @Test
+    public void testManyClients() throws Exception {
+        startListener(new ProcessImageRequestHandler(image));
+        int clients = 200;
+        List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+        for (int i = 0; i < clients; i++) {
+            inputs.add(new DataInputStream(new BufferedInputStream(connect().getInputStream())));
+        }
+        awaitConnectionCount(clients);
+        for (int i = 0; i < clients; i++) {
+            ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(i, 1);
+            request.setUnitID(i % 8);
+            send(sockets.get(i), request, i);
+        }
+        for (int i = 0; i < clients; i++) {
+            byte[] frame = receive(inputs.get(i));
+            assertEquals(i, MBAPCodec.getTransactionId(frame, 0));
+            assertEquals(i % 8, frame[MBAPCodec.HEADER_LENGTH - 1]);
+            ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) MBAPCodec.decodeResponse(frame, frame.length);
+            assertEquals(i, response.getRegisterValue(0));
+        }
+    }
+
+    /**
+     * Tests that a client may send more requests than are handled at once
+     * without waiting for responses.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        startListener(new ProcessImageRequestHandler(image));
+        Socket socket = connect();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int count = NioTCPSlaveConnection.MAX_PENDING_REQUESTS * 3;
+        for (int i = 0; i < count; i++) {
+            send(socket, new ReadMultipleRegistersRequest(i, 1), 1000 + i);
+        }
+        Set<Integer> answered = new HashSet<Integer>();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = receive(in);
+            int transactionId = MBAPCodec.getTransactionId(frame, 0);
+            ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) MBAPCodec.decodeResponse(frame, frame.length);
+            assertEquals(transactionId - 1000, response.getRegisterValue(0));
+            answered.add(Integer.valueOf(transactionId));
+        }
+        assertEquals(count, answered.size());
+    }
+
+    /**
+     * Tests that requests may be answered from other threads.
+     */
+    @Test
+    public void testAsynchronousHandler() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final ProcessImageRequestHandler images = new ProcessImageRequestHandler(image);
+        try {
+            startListener(new SlaveRequestHandler() {
+
+                public void handle(final ModbusRequest request, final SlaveResponder responder) {
+                    executor.execute(new Runnable() {
+
+                        public void run() {
+                            responder.respond(images.createResponse(request));
+                        }
+                    });
+                }
+            });
+            Socket socket = connect();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (int i = 0; i < 50; i++) {
+                send(socket, new ReadMultipleRegistersRequest(i, 1), i);
+            }
+            Set<Integer> answered = new HashSet<Integer>();
+            for (int i = 0; i < 50; i++) {
+                answered.add(Integer.valueOf(MBAPCodec.getTransactionId(receive(in), 0)));
+            }
+            assertEquals(50, answered.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a handler which throws answers with a slave device failure.
+     */
+    @Test
+    public void testHandlerFailure() throws Exception {
+        startListener(new SlaveRequestHandler() {
+
+            public void handle(ModbusRequest request, SlaveResponder responder) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        Socket socket = connect();
+        send(socket, new ReadMultipleRegistersRequest(0, 1), 7);
+        byte[] frame = receive(new DataInputStream(socket.getInputStream()));
+        assertEquals(7, MBAPCodec.getTransactionId(frame, 0));
+        assertEquals(Modbus.READ_MULTIPLE_REGISTERS | Modbus.EXCEPTION_OFFSET, frame[MBAPCodec.HEADER_LENGTH] & 0xff);
+        ModbusResponse response = MBAPCodec.decodeResponse(frame, frame.length);
+        assertEquals(NioTCPSlaveListener.SLAVE_DEVICE_FAILURE, ((ExceptionResponse) response).getExceptionCode());
+    }
+
+    /**
+     * Tests that a request for an unknown function is answered with an
+     * illegal function exception, not handed to the handler.
+     */
+    @Test
+    public void testUnknownFunction() throws Exception {
+        startListener(new SlaveRequestHandler() {
+
+            public void handle(ModbusRequest request, SlaveResponder responder) {
+                throw new IllegalStateException("unexpected " + request.getFunctionCode());
+            }
+        });
+        Socket socket = connect();
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[]{0, 9, 0, 0, 0, 4, 1, 0x41, 0x12, 0x34});
+        out.flush();
+        byte[] frame = receive(new DataInputStream(socket.getInputStream()));
+        assertEquals(9, MBAPCodec.getTransactionId(frame, 0));
+        assertEquals(0x41 | Modbus.EXCEPTION_OFFSET, frame[MBAPCodec.HEADER_LENGTH] & 0xff);
+        assertEquals(Modbus.ILLEGAL_FUNCTION_EXCEPTION, frame[MBAPCodec.HEADER_LENGTH + 1] & 0xff);
+    }
+
+    /**
+     * Tests that clients beyond the limit are disconnected.
+     */
+    @Test
+    public void testMaxConnections() throws Exception {
+        listener = new NioTCPSlaveListener(InetAddress.getByName("127.0.0.1"), 0, eventLoopGroup, new ProcessImageRequestHandler(image));
+        listener.setMaxConnections(2);
+        listener.start();
+        connect();
+        connect();
+        awaitConnectionCount(2);
+        Socket third = connect();
+        assertEquals(-1, third.getInputStream().read());
+        assertEquals(2, listener.getConnectionCount());
+    }
+
+    /**
+     * Tests that closing the listener disconnects its clients.
+     */
+    @Test
+    public void testClose() throws Exception {
+        startListener(new ProcessImageRequestHandler(image));
+        Socket socket = connect();
+        awaitConnectionCount(1);
+        listener.close();
+        assertEquals(-1, socket.getInputStream().read());
+        awaitConnectionCount(0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.isListening() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(listener.isListening());
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ *  Copyright 2012 Steven Swor.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.test.FakeModbusTCPDevice;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PipelinedTCPMasterConnection} and
+ * {@link PipelinedTCPTransaction}.
+ *
+ * @author Steven Swor
+ */
+public class PipelinedTCPMasterConnectionTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusTCPDevice device;
+
+    /**
+     * The connection under test.
+     */
+    private PipelinedTCPMasterConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusTCPDevice();
+        device.start();
+        connection = new PipelinedTCPMasterConnection(device.getAddress(), 4);
+        connection.setPort(device.getPort());
+        connection.setTimeout(2000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        device.stop();
+    }
+
+    /**
+     * Tests that concurrent transactions answered out of order each receive
+     * their own response.
+     */
+    @Test
+    public void testOutOfOrderResponses() throws Exception {
+        device.setBatchSize(4);
+        connection.connect();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 4; i++) {
+                final int ref = i * 10;
+                results.add(executor.submit(new Callable<Integer>() {
+
+                    public Integer call() throws Exception {
+                        PipelinedTCPTransaction transaction = new PipelinedTCPTransaction(connection);
+                        transaction.setRequest(new ReadMultipleRegistersRequest(ref, 1));
+                        transaction.execute();
+                        return Integer.valueOf(((ReadMultipleRegistersResponse) transaction.getResponse()).getRegisterValue(0));
+                    }
+                }));
+            }
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i * 10, results.get(i).get().intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, connection.getInFlightCount());
+        assertEquals(4, device.getRequestCount());
+    }
+
+    /**
+     * Tests that submitted requests are answered through their callbacks,
+     * even out of order, and that one which is never answered times out
+     * without holding up the others.
+     */
+    @Test(timeout = 10000)
+    public void testSubmit() throws Exception {
+        device.setBatchSize(3);
+        device.addSilentUnit(9);
+        final Map<Integer, Integer> values = new ConcurrentHashMap<Integer, Integer>();
+        final List<ModbusException> failures = new ArrayList<ModbusException>();
+        final CountDownLatch latch = new CountDownLatch(4);
+        ReadMultipleRegistersRequest silent = new ReadMultipleRegistersRequest(0, 1);
+        silent.setUnitID(9);
+        connection.submit(silent, 200, new TransactionCallback() {
+
+            public void completed(ModbusResponse response) {
+                latch.countDown();
+            }
+
+            public void failed(ModbusException cause) {
+                synchronized (failures) {
+                    failures.add(cause);
+                }
+                latch.countDown();
+            }
+        });
+        for (int i = 1; i < 4; i++) {
+            final int ref = i * 10;
+            connection.submit(new ReadMultipleRegistersRequest(ref, 1), 2000, new TransactionCallback() {
+
+                public void completed(ModbusResponse response) {
+                    values.put(Integer.valueOf(ref), Integer.valueOf(((ReadMultipleRegistersResponse) response).getRegisterValue(0)));
+                    latch.countDown();
+                }
+
+                public void failed(ModbusException cause) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(i * 10, values.get(Integer.valueOf(i * 10)).intValue());
+        }
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof ModbusTimeoutException);
+        assertEquals(0, connection.getInFlightCount());
+        assertTrue(connection.isConnected());
+    }
+
+    /**
+     * Tests that a transaction whose response never arrives times out and
+     * frees its slot, and that the connection remains usable.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        connection.setTimeout(200);
+        device.addSilentUnit(9);
+        PipelinedTCPTransaction transaction = new PipelinedTCPTransaction(connection);
+        transaction.setRetries(0);
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+        request.setUnitID(9);
+        transaction.setRequest(request);
+        try {
+            transaction.execute();
+            fail("Expected a timeout");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertEquals(0, connection.getInFlightCount());
+        assertTrue(connection.isConnected());
+
+        transaction.setRequest(new ReadMultipleRegistersRequest(5, 1));
+        transaction.execute();
+        assertEquals(5, ((ReadMultipleRegistersResponse) transaction.getResponse()).getRegisterValue(0));
+    }
+
+    /**
+     * Tests that a transaction's own timeout applies instead of the
+     * connection's, and that the other transactions on the connection are
+     * unaffected.
+     */
+    @Test(timeout = 10000)
+    public void testTransactionTimeout() throws Exception {
+        device.addSilentUnit(9);
+        PipelinedTCPTransaction transaction = new PipelinedTCPTransaction(connection);
+        transaction.setRetries(0);
+        transaction.setTimeout(100);
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+        request.setUnitID(9);
+        transaction.setRequest(request);
+        long started = System.currentTimeMillis();
+        try {
+            transaction.execute();
+            fail("Expected a timeout");
+        } catch (ModbusTimeoutException ex) {
+            //expected
+        }
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        assertEquals(2000, connection.getTimeout());
+
+        PipelinedTCPTransaction other = new PipelinedTCPTransaction(connection);
+        other.setRequest(new ReadMultipleRegistersRequest(5, 1));
+        other.execute();
+        assertEquals(5, ((ReadMultipleRegistersResponse) other.getResponse()).getRegisterValue(0));
+    }
+
+    /**
+     * Tests that in-flight transactions fail when the device drops the
+     * connection.
+     */
+    @Test
+    public void testDisconnectFailsInFlight() throws Exception {
+        device.addSilentUnit(9);
+        connection.connect();
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+        request.setUnitID(9);
+        PendingTransaction pending = connection.send(request);
+        Thread.sleep(100);
+        device.disconnectClients();
+        try {
+            pending.await(2000);
+            fail("Expected an I/O failure");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertTrue(pending.isDone());
+        assertFalse(connection.isConnected());
+    }
+
+    /**
+     * Tests that a response which cannot be decoded fails only its own
+     * transaction, and that the reader goes on with the next.
+     */
+    @Test
+    public void testMalformedResponse() throws Exception {
+        connection.close();
+        connection = new PipelinedTCPMasterConnection(device.getAddress(), 4) {
+
+            private boolean failed = false;
+
+            @Override
+            ModbusResponse decodeResponse(byte[] frame) throws IOException {
+                if (!failed) {
+                    failed = true;
+                    throw new IllegalStateException("Malformed");
+                }
+                return super.decodeResponse(frame);
+            }
+        };
+        connection.setPort(device.getPort());
+        connection.setTimeout(2000);
+        connection.connect();
+        try {
+            connection.send(new ReadMultipleRegistersRequest(0, 1)).await(2000);
+            fail("Expected the malformed response to fail its transaction");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertTrue(connection.isConnected());
+        ModbusResponse response = connection.send(new ReadMultipleRegistersRequest(5, 1)).await(2000);
+        assertEquals(5, ((ReadMultipleRegistersResponse) response).getRegisterValue(0));
+    }
+
+    /**
+     * Tests that the socket is torn down, rather than left without a reader,
+     * when the reader fails unexpectedly.
+     */
+    @Test
+    public void testReaderFailureClosesConnection() throws Exception {
+        connection.close();
+        connection = new PipelinedTCPMasterConnection(device.getAddress(), 4) {
+
+            @Override
+            ModbusResponse decodeResponse(byte[] frame) throws IOException {
+                throw new Error("Reader failed");
+            }
+        };
+        connection.setPort(device.getPort());
+        connection.setTimeout(2000);
+        connection.connect();
+        device.addSilentUnit(9);
+        ReadMultipleRegistersRequest silent = new ReadMultipleRegistersRequest(0, 1);
+        silent.setUnitID(9);
+        PendingTransaction inFlight = connection.send(silent);
+        try {
+            connection.send(new ReadMultipleRegistersRequest(0, 1)).await(2000);
+            fail("Expected an I/O failure");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        try {
+            inFlight.await(2000);
+            fail("Expected the transactions in flight to fail");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertFalse(connection.isConnected());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.wimpi.modbus.procimg.IllegalAddressException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PrimitiveProcessImage}.
+ *
+ * @author Steven Swor
+ */
+public class PrimitiveProcessImageTest {
+
+    @Test
+    public void testRegisters() {
+        PrimitiveProcessImage image = new PrimitiveProcessImage(65536);
+        assertEquals(65536, image.getRegisterCount());
+        image.writeRegisters(65530, new int[]{1, 0x12345, -1}, 0, 3);
+        int[] values = new int[5];
+        image.readRegisters(65530, values, 1, 3);
+        assertArrayEquals(new int[]{0, 1, 0x2345, 0xffff, 0}, values);
+        assertEquals(0xffff, image.getRegister(65532).getValue());
+        assertEquals(-1, image.getRegister(65532).toShort());
+        image.getRegister(65533).setValue(new byte[]{0x01, 0x02});
+        image.readRegisters(65533, values, 0, 1);
+        assertEquals(0x0102, values[0]);
+        assertEquals(0, image.getInputRegister(65530).getValue());
+    }
+
+    @Test
+    public void testInputRegisters() {
+        PrimitiveProcessImage image = new PrimitiveProcessImage(2, 2, 200, 2);
+        image.writeInputRegisters(60, new int[]{7, 8, 9}, 1, 2);
+        assertEquals(8, image.getInputRegister(60).getValue());
+        assertEquals(9, image.getInputRegisterRange(60, 2)[1].toUnsignedShort());
+        assertEquals(200, image.getInputRegisterCount());
+    }
+
+    @Test
+    public void testBits() {
+        PrimitiveProcessImage image = new PrimitiveProcessImage(200);
+        boolean[] states = new boolean[130];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = i % 3 == 0;
+        }
+        image.writeCoils(50, states, 0, states.length);
+        boolean[] read = new boolean[states.length];
+        image.readCoils(50, read, 0, read.length);
+        assertArrayEquals(states, read);
+        assertFalse(image.getDigitalOut(49).isSet());
+        assertTrue(image.getDigitalOut(50).isSet());
+        image.getDigitalOut(50).set(false);
+        assertFalse(image.getDigitalOut(50).isSet());
+        assertTrue(image.getDigitalOut(53).isSet());
+
+        image.writeDiscreteInputs(199, new boolean[]{true}, 0, 1);
+        assertTrue(image.getDigitalIn(199).isSet());
+        assertFalse(image.getDigitalInRange(197, 3)[1].isSet());
+        assertFalse(image.getDigitalOut(199).isSet());
+    }
+
+    @Test
+    public void testOutOfRange() {
+        PrimitiveProcessImage image = new PrimitiveProcessImage(16);
+        try {
+            image.readRegisters(10, new int[10], 0, 10);
+            fail("Expected an IllegalAddressException");
+        } catch (IllegalAddressException expected) {
+        }
+        try {
+            image.getDigitalOut(16);
+            fail("Expected an IllegalAddressException");
+        } catch (IllegalAddressException expected) {
+        }
+        try {
+            image.writeCoils(-1, new boolean[1], 0, 1);
+            fail("Expected an IllegalAddressException");
+        } catch (IllegalAddressException expected) {
+        }
+    }
+
+    /**
+     * Readers racing a writer must never see a write half done, even when it
+     * spans several stripes.
+     */
+    @Test(timeout = 30000)
+    public void testReadsAreConsistent() throws Exception {
+        final PrimitiveProcessImage image = new PrimitiveProcessImage(1024);
+        final int count = 125;
+        final int reference = PrimitiveProcessImage.STRIPE_SIZE - 10;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger torn = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+        Thread writer = new Thread(new Runnable() {
+
+            public void run() {
+                int[] values = new int[count];
+                for (int v = 0; running.get(); v++) {
+                    for (int i = 0; i < count; i++) {
+                        values[i] = v;
+                    }
+                    image.writeRegisters(reference, values, 0, count);
+                }
+            }
+        });
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+
+                public void run() {
+                    int[] values = new int[count];
+                    while (running.get()) {
+                        image.readRegisters(reference, values, 0, count);
+                        for (int i = 1; i < count; i++) {
+                            if (values[i] != values[0]) {
+                                torn.incrementAndGet();
+                                break;
+                            }
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(500);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(reads.get() > 0);
+        assertEquals(0, torn.get());
+    }
+}
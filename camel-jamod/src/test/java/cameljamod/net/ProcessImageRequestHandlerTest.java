@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.IllegalFunctionRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleDigitalIn;
+import net.wimpi.modbus.procimg.SimpleDigitalOut;
+import net.wimpi.modbus.procimg.SimpleInputRegister;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import net.wimpi.modbus.util.BitVector;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ProcessImageRequestHandler}.
+ *
+ * @author Steven Swor
+ */
+public class ProcessImageRequestHandlerTest {
+
+    /**
+     * The process image, where register {@code n} holds {@code n}.
+     */
+    private SimpleProcessImage image;
+
+    /**
+     * The handler.
+     */
+    private ProcessImageRequestHandler handler;
+
+    @Before
+    public void setUp() {
+        image = new SimpleProcessImage();
+        for (int i = 0; i < 16; i++) {
+            image.addRegister(new SimpleRegister(i));
+            image.addInputRegister(new SimpleInputRegister(100 + i));
+            image.addDigitalOut(new SimpleDigitalOut(i % 3 == 0));
+            image.addDigitalIn(new SimpleDigitalIn());
+        }
+        handler = new ProcessImageRequestHandler(image);
+    }
+
+    private static int exceptionCode(ModbusResponse response) {
+        assertTrue(response instanceof ExceptionResponse);
+        return ((ExceptionResponse) response).getExceptionCode();
+    }
+
+    @Test
+    public void testReadRegisters() {
+        ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) handler.createResponse(new ReadMultipleRegistersRequest(4, 3));
+        assertEquals(3, response.getWordCount());
+        assertEquals(4, response.getRegisterValue(0));
+        assertEquals(6, response.getRegisterValue(2));
+        ReadInputRegistersResponse inputs = (ReadInputRegistersResponse) handler.createResponse(new ReadInputRegistersRequest(15, 1));
+        assertEquals(115, inputs.getRegisterValue(0));
+    }
+
+    /**
+     * Tests that a response does not change when the image changes after it
+     * was created.
+     */
+    @Test
+    public void testReadRegistersSnapshot() {
+        ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) handler.createResponse(new ReadMultipleRegistersRequest(0, 2));
+        image.getRegister(0).setValue(99);
+        assertEquals(0, response.getRegisterValue(0));
+    }
+
+    @Test
+    public void testReadCoils() {
+        ReadCoilsResponse response = (ReadCoilsResponse) handler.createResponse(new ReadCoilsRequest(2, 4));
+        assertEquals(4, response.getBitCount());
+        assertFalse(response.getCoilStatus(0));
+        assertTrue(response.getCoilStatus(1));
+        assertFalse(response.getCoilStatus(2));
+        assertFalse(response.getCoilStatus(3));
+    }
+
+    @Test
+    public void testWrites() {
+        assertEquals(0, handler.createResponse(new WriteSingleRegisterRequest(1, new SimpleRegister(0xbeef))).getFunctionCode() & Modbus.EXCEPTION_OFFSET);
+        assertEquals(0xbeef, image.getRegister(1).getValue());
+        handler.createResponse(new WriteMultipleRegistersRequest(10, new Register[]{new SimpleRegister(7), new SimpleRegister(8)}));
+        assertEquals(7, image.getRegister(10).getValue());
+        assertEquals(8, image.getRegister(11).getValue());
+        handler.createResponse(new WriteCoilRequest(1, true));
+        assertTrue(image.getDigitalOut(1).isSet());
+        BitVector bits = new BitVector(2);
+        bits.setBit(1, true);
+        handler.createResponse(new WriteMultipleCoilsRequest(0, bits));
+        assertFalse(image.getDigitalOut(0).isSet());
+        assertTrue(image.getDigitalOut(1).isSet());
+    }
+
+    /**
+     * Tests that Read/Write Multiple Registers writes before it reads.
+     */
+    @Test
+    public void testReadWriteRegisters() {
+        ReadWriteMultipleRegistersResponse response = (ReadWriteMultipleRegistersResponse) handler.createResponse(new ReadWriteMultipleRegistersRequest(2, 3, 3, new Register[]{new SimpleRegister(30), new SimpleRegister(40)}));
+        assertEquals(3, response.getWordCount());
+        assertEquals(2, response.getRegisterValue(0));
+        assertEquals(30, response.getRegisterValue(1));
+        assertEquals(40, response.getRegisterValue(2));
+        assertEquals(40, image.getRegister(4).getValue());
+        assertEquals(Modbus.ILLEGAL_ADDRESS_EXCEPTION, exceptionCode(handler.createResponse(new ReadWriteMultipleRegistersRequest(15, 2, 0, new Register[]{new SimpleRegister(1)}))));
+        assertEquals(0, image.getRegister(0).getValue());
+    }
+
+    @Test
+    public void testIllegalAddress() {
+        assertEquals(Modbus.ILLEGAL_ADDRESS_EXCEPTION, exceptionCode(handler.createResponse(new ReadMultipleRegistersRequest(15, 2))));
+        assertEquals(Modbus.ILLEGAL_ADDRESS_EXCEPTION, exceptionCode(handler.createResponse(new WriteCoilRequest(16, true))));
+    }
+
+    @Test
+    public void testIllegalValue() {
+        assertEquals(Modbus.ILLEGAL_VALUE_EXCEPTION, exceptionCode(handler.createResponse(new ReadMultipleRegistersRequest(0, 126))));
+    }
+
+    @Test
+    public void testIllegalFunction() {
+        assertEquals(Modbus.ILLEGAL_FUNCTION_EXCEPTION, exceptionCode(handler.createResponse(new IllegalFunctionRequest(0x2b))));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2012 Steven Swor.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RTUCodec}.
+ *
+ * @author Steven Swor
+ */
+public class RTUCodecTest {
+
+    /**
+     * Tests {@link RTUCodec#crc16(byte[], int, int)} against frames from the
+     * Modbus serial line guide.
+     */
+    @Test
+    public void testCRC() throws Exception {
+        assertEquals(0xcdc5, RTUCodec.crc16(new byte[]{0x01, 0x03, 0x00, 0x00, 0x00, 0x0a}, 0, 6));
+        assertEquals(0x0a84, RTUCodec.crc16(new byte[]{0x01, 0x03, 0x00, 0x00, 0x00, 0x01}, 0, 6));
+        // the CRC of a frame including its CRC is 0
+        byte[] frame = new byte[]{0x01, 0x03, 0x00, 0x00, 0x00, 0x0a, (byte) 0xc5, (byte) 0xcd};
+        assertEquals(0, RTUCodec.crc16(frame, 0, frame.length));
+    }
+
+    /**
+     * Tests {@link RTUCodec#encode(net.wimpi.modbus.msg.ModbusMessageImpl)}.
+     */
+    @Test
+    public void testEncodeRequest() throws Exception {
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 10);
+        request.setUnitID(1);
+        byte[] expected = new byte[]{0x01, 0x03, 0x00, 0x00, 0x00, 0x0a, (byte) 0xc5, (byte) 0xcd};
+        assertArrayEquals(expected, RTUCodec.encode(request));
+    }
+
+    /**
+     * Tests that requests and responses are delimited by their function code
+     * and byte count.
+     */
+    @Test
+    public void testReadAndDecode() throws Exception {
+        WriteMultipleRegistersRequest write = new WriteMultipleRegistersRequest(4, new Register[]{new SimpleRegister(1), new SimpleRegister(2)});
+        write.setUnitID(7);
+        ReadWriteMultipleRegistersRequest readWrite = new ReadWriteMultipleRegistersRequest(3, 2, 14, new Register[]{new SimpleRegister(0xff)});
+        readWrite.setUnitID(7);
+        DataInputStream in = stream(RTUCodec.encode(write), RTUCodec.encode(readWrite));
+        byte[] frame = RTUCodec.readRequest(in);
+        ModbusRequest decoded = RTUCodec.decodeRequest(frame, frame.length);
+        assertTrue(decoded instanceof WriteMultipleRegistersRequest);
+        assertEquals(7, decoded.getUnitID());
+        assertEquals(2, ((WriteMultipleRegistersRequest) decoded).getRegisterValue(1));
+        frame = RTUCodec.readRequest(in);
+        decoded = RTUCodec.decodeRequest(frame, frame.length);
+        assertTrue(decoded instanceof ReadWriteMultipleRegistersRequest);
+        assertEquals(0xff, ((ReadWriteMultipleRegistersRequest) decoded).getRegisterValue(0));
+
+        ReadMultipleRegistersResponse read = new ReadMultipleRegistersResponse(new Register[]{new SimpleRegister(0xbeef)});
+        read.setUnitID(7);
+        ReadWriteMultipleRegistersResponse readWriteResponse = new ReadWriteMultipleRegistersResponse(new Register[]{new SimpleRegister(1), new SimpleRegister(2)});
+        readWriteResponse.setUnitID(7);
+        in = stream(RTUCodec.encode(read), RTUCodec.encode(readWriteResponse), new byte[]{0x07, (byte) 0x83, 0x02, 0x00, 0x00});
+        frame = RTUCodec.readResponse(in);
+        ModbusResponse response = RTUCodec.decodeResponse(frame, frame.length);
+        assertEquals(0xbeef, ((ReadMultipleRegistersResponse) response).getRegisterValue(0));
+        frame = RTUCodec.readResponse(in);
+        response = RTUCodec.decodeResponse(frame, frame.length);
+        assertEquals(2, ((ReadWriteMultipleRegistersResponse) response).getRegisterValue(1));
+        frame = RTUCodec.readResponse(in);
+        assertEquals(5, frame.length);
+    }
+
+    @Test
+    public void testDecodeExceptionResponse() throws Exception {
+        byte[] frame = new byte[]{0x01, (byte) 0x83, 0x02, 0x00, 0x00};
+        int crc = RTUCodec.crc16(frame, 0, 3);
+        frame[3] = (byte) crc;
+        frame[4] = (byte) (crc >> 8);
+        ModbusResponse decoded = RTUCodec.decodeResponse(frame, frame.length);
+        assertTrue(decoded instanceof ExceptionResponse);
+        assertEquals(2, ((ExceptionResponse) decoded).getExceptionCode());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadCRC() throws Exception {
+        byte[] frame = new byte[]{0x01, 0x03, 0x00, 0x00, 0x00, 0x0a, (byte) 0xc5, (byte) 0xce};
+        RTUCodec.decodeRequest(frame, frame.length);
+    }
+
+    /**
+     * Tests the serial line timings: 11 bits per character, and three and a
+     * half characters of silence up to 19200 baud.
+     */
+    @Test
+    public void testTimings() {
+        assertEquals(11000000L, RTUCodec.getTransmissionNanos(10, 10000));
+        assertEquals(4010416L, RTUCodec.getInterFrameNanos(9600));
+        assertEquals(1750000L, RTUCodec.getInterFrameNanos(115200));
+    }
+
+    private static DataInputStream stream(byte[]... frames) {
+        int length = 0;
+        for (byte[] frame : frames) {
+            length += frame.length;
+        }
+        byte[] all = new byte[length];
+        int offset = 0;
+        for (byte[] frame : frames) {
+            System.arraycopy(frame, 0, all, offset, frame.length);
+            offset += frame.length;
+        }
+        return new DataInputStream(new ByteArrayInputStream(all));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2012 Steven Swor.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package cameljamod.net;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import cameljamod.test.FakeModbusRTUDevice;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RTUOverTCPMasterConnection} and
+ * {@link RTUOverTCPTransaction}, against a loopback terminal server.
+ *
+ * @author Steven Swor
+ */
+public class RTUOverTCPMasterConnectionTest {
+
+    /**
+     * The device.
+     */
+    private FakeModbusRTUDevice device;
+
+    /**
+     * The connection under test.
+     */
+    private RTUOverTCPMasterConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeModbusRTUDevice();
+        device.start();
+        connection = new RTUOverTCPMasterConnection(device.getAddress());
+        connection.setPort(device.getPort());
+        connection.setTimeout(2000);
+        connection.setBaudRate(115200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        device.stop();
+    }
+
+    private RTUOverTCPTransaction transaction() {
+        RTUOverTCPTransaction transaction = new RTUOverTCPTransaction(connection);
+        transaction.setRetries(0);
+        return transaction;
+    }
+
+    @Test(timeout = 10000)
+    public void testReadAndWrite() throws Exception {
+        RTUOverTCPTransaction transaction = transaction();
+        WriteMultipleRegistersRequest write = new WriteMultipleRegistersRequest(20, new Register[]{new SimpleRegister(7), new SimpleRegister(8)});
+        write.setUnitID(3);
+        transaction.setRequest(write);
+        transaction.execute();
+        assertEquals(8, device.getRegister(21));
+
+        transaction = transaction();
+        ReadMultipleRegistersRequest read = new ReadMultipleRegistersRequest(20, 3);
+        read.setUnitID(3);
+        transaction.setRequest(read);
+        transaction.execute();
+        ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) transaction.getResponse();
+        assertEquals(3, response.getUnitID());
+        assertEquals(7, response.getRegisterValue(0));
+        assertEquals(22, response.getRegisterValue(2));
+
+        transaction = transaction();
+        transaction.setRequest(new ReadWriteMultipleRegistersRequest(20, 1, 30, new Register[]{new SimpleRegister(9)}));
+        transaction.execute();
+        assertEquals(7, ((ReadWriteMultipleRegistersResponse) transaction.getResponse()).getRegisterValue(0));
+        assertEquals(9, device.getRegister(30));
+        assertEquals(3, device.getRequestCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testExceptionResponse() throws Exception {
+        RTUOverTCPTransaction transaction = transaction();
+        // the fake device does not implement function code 6
+        transaction.setRequest(new WriteSingleRegisterRequest(0, new SimpleRegister(1)));
+        try {
+            transaction.execute();
+            fail("Expected an exception response");
+        } catch (ModbusSlaveException ex) {
+            assertEquals(1, ex.getType());
+        }
+        assertTrue(connection.isConnected());
+    }
+
+    /**
+     * A late response cannot be told apart from the next one, so the
+     * connection gives up its socket when a response times out.
+     */
+    @Test(timeout = 10000)
+    public void testTimeout() throws Exception {
+        connection.setTimeout(200);
+        device.addSilentUnit(9);
+        RTUOverTCPTransaction transaction = transaction();
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(0, 1);
+        request.setUnitID(9);
+        transaction.setRequest(request);
+        try {
+            transaction.execute();
+            fail("Expected a timeout");
+        } catch (ModbusTimeoutException ex) {
+            //expected
+        }
+        assertFalse(connection.isConnected());
+
+        transaction = transaction();
+        transaction.setRequest(new ReadMultipleRegistersRequest(5, 1));
+        transaction.execute();
+        assertEquals(5, ((ReadMultipleRegistersResponse) transaction.getResponse()).getRegisterValue(0));
+    }
+
+    @Test(timeout = 10000)
+    public void testCorruptResponse() throws Exception {
+        device.setCorruptNextResponse(true);
+        RTUOverTCPTransaction transaction = transaction();
+        transaction.setRequest(new ReadMultipleRegistersRequest(0, 1));
+        try {
+            transaction.execute();
+            fail("Expected the CRC check to fail");
+        } catch (ModbusIOException ex) {
+            assertFalse(ex instanceof ModbusTimeoutException);
+        }
+        // retried over a new socket
+        transaction.setRetries(1);
+        device.setCorruptNextResponse(true);
+        transaction.execute();
+        assertEquals(3, device.getRequestCount());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RequestScheduler}.
+ *
+ * @author Steven Swor
+ */
+public class RequestSchedulerTest {
+
+    @Test
+    public void testUnlimited() throws Exception {
+        RequestScheduler instance = new RequestScheduler();
+        long started = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            instance.acquire(RequestScheduler.Priority.POLL, this);
+        }
+        assertTrue(System.nanoTime() - started < 1000000000L);
+        assertEquals(0, instance.getWaitingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testRate() throws Exception {
+        RequestScheduler instance = new RequestScheduler();
+        instance.setMaxRequestsPerSecond(20);
+        long started = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            instance.acquire(RequestScheduler.Priority.POLL, this);
+        }
+        // the first turn is immediate, the other four 50ms apart
+        assertTrue(System.nanoTime() - started >= 190000000L);
+    }
+
+    /**
+     * Writes go first, then alarms, then polls, which alternate between
+     * their sources.
+     */
+    @Test(timeout = 10000)
+    public void testPriorityAndFairness() throws Exception {
+        final RequestScheduler instance = new RequestScheduler();
+        // take a turn at a rate which leaves the next one far away
+        instance.setMaxRequestsPerSecond(0.001);
+        instance.acquire(RequestScheduler.Priority.POLL, this);
+
+        final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        String[][] requests = {
+            {"a1", "a", "POLL"}, {"a2", "a", "POLL"}, {"a3", "a", "POLL"},
+            {"b1", "b", "POLL"}, {"b2", "b", "POLL"},
+            {"alarm", "c", "ALARM"}, {"write", "d", "WRITE"}
+        };
+        for (final String[] request : requests) {
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        instance.acquire(RequestScheduler.Priority.valueOf(request[2]), request[1]);
+                        granted.add(request[0]);
+                    } catch (InterruptedException ex) {
+                        //trap
+                    }
+                }
+            });
+            int expected = instance.getWaitingCount() + 1;
+            thread.start();
+            threads.add(thread);
+            while (instance.getWaitingCount() < expected) {
+                Thread.sleep(1);
+            }
+        }
+        instance.setMaxRequestsPerSecond(20);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList("write", "alarm", "a1", "b1", "a2", "b2", "a3"), granted);
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptGivesUpTurn() throws Exception {
+        final RequestScheduler instance = new RequestScheduler();
+        instance.setMaxRequestsPerSecond(0.001);
+        instance.acquire(RequestScheduler.Priority.POLL, this);
+        final boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    instance.acquire(RequestScheduler.Priority.WRITE, "a");
+                } catch (InterruptedException ex) {
+                    interrupted[0] = true;
+                }
+            }
+        });
+        thread.start();
+        while (instance.getWaitingCount() < 1) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        thread.join();
+        assertTrue(interrupted[0]);
+        assertEquals(0, instance.getWaitingCount());
+    }
+}
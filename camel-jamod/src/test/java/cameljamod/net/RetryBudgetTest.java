@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RetryBudget}.
+ *
+ * @author Steven Swor
+ */
+public class RetryBudgetTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testUnlimited() throws Exception {
+        RetryBudget budget = new RetryBudget();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(budget.tryAcquire());
+        }
+        assertEquals(0, budget.getDeniedCount());
+    }
+
+    /**
+     * A full budget holds one second's worth of retries, and refills at the
+     * configured rate.
+     */
+    @Test
+    public void testRefill() throws Exception {
+        RetryBudget budget = new RetryBudget();
+        budget.setMaxRetriesPerSecond(2);
+        long now = System.nanoTime();
+        assertTrue(budget.tryAcquire(now));
+        assertTrue(budget.tryAcquire(now));
+        assertFalse(budget.tryAcquire(now));
+        assertTrue(budget.tryAcquire(now + 500 * MS));
+        assertFalse(budget.tryAcquire(now + 500 * MS));
+        assertEquals(2, budget.getDeniedCount());
+        // idle time does not build up more than a second's worth
+        assertTrue(budget.tryAcquire(now + 60000 * MS));
+        assertTrue(budget.tryAcquire(now + 60000 * MS));
+        assertFalse(budget.tryAcquire(now + 60000 * MS));
+    }
+
+    /**
+     * Budgets under one retry per second still allow one retry at a time.
+     */
+    @Test
+    public void testSlowRate() throws Exception {
+        RetryBudget budget = new RetryBudget();
+        budget.setMaxRetriesPerSecond(0.5);
+        long now = System.nanoTime();
+        assertTrue(budget.tryAcquire(now));
+        assertFalse(budget.tryAcquire(now + 1000 * MS));
+        assertTrue(budget.tryAcquire(now + 2000 * MS));
+    }
+}
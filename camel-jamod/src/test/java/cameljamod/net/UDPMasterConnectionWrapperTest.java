@@ -136,4 +136,22 @@ public class UDPMasterConnectionWrapperTest {
             conn.close();
         }
     }
+
+    /**
+     * Jamod's UDP connection cannot take a timeout until it is connected, so
+     * the wrapper applies it on connect.
+     */
+    @Test
+    public void testSetTimeoutBeforeConnect() throws Exception {
+        UDPMasterConnection conn = new UDPMasterConnection(InetAddress.getLocalHost());
+        UDPMasterConnectionWrapper instance = new UDPMasterConnectionWrapper(conn);
+        instance.setTimeout(250);
+        assertEquals(250, instance.getTimeout());
+        instance.connect();
+        try {
+            assertEquals(250, conn.getTimeout());
+        } finally {
+            instance.close();
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.wimpi.modbus.ModbusIOException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link UnitQueue}.
+ *
+ * @author Steven Swor
+ */
+public class UnitQueueTest {
+
+    /**
+     * Requests go one at a time by default, in order of arrival.
+     */
+    @Test(timeout = 10000)
+    public void testOrder() throws Exception {
+        final UnitQueue queue = new UnitQueue("tcp://localhost:502/1");
+        queue.acquire(1000);
+        assertEquals(1, queue.getInFlightCount());
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            final int id = i;
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        queue.acquire(5000);
+                        order.add(Integer.valueOf(id));
+                        queue.release();
+                    } catch (Exception ex) {
+                        order.add(Integer.valueOf(-1));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            while (queue.getWaitingCount() < i + 1) {
+                Thread.sleep(5);
+            }
+        }
+        assertTrue(order.isEmpty());
+        queue.release();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList(0, 1, 2), order);
+        assertEquals(0, queue.getInFlightCount());
+        assertEquals(0, queue.getWaitingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testTimeout() throws Exception {
+        UnitQueue queue = new UnitQueue("tcp://localhost:502/1");
+        queue.acquire(1000);
+        try {
+            queue.acquire(50);
+            fail("Expected the request to give up");
+        } catch (ModbusIOException ex) {
+            //expected
+        }
+        assertEquals(0, queue.getWaitingCount());
+        queue.setMaxInFlight(2);
+        queue.acquire(50);
+        assertEquals(2, queue.getInFlightCount());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.test;
+
+import cameljamod.net.RTUCodec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * A scriptable serial device behind a transparent terminal server, for
+ * tests: {@link FakeModbusTCPDevice} speaking RTU frames instead of
+ * Modbus/TCP.
+ *
+ * @author Steven Swor
+ */
+public class FakeModbusRTUDevice extends FakeModbusTCPDevice {
+
+    /**
+     * Whether the next response is sent with a broken CRC.
+     */
+    private volatile boolean corruptNextResponse = false;
+
+    public void setCorruptNextResponse(boolean corruptNextResponse) {
+        this.corruptNextResponse = corruptNextResponse;
+    }
+
+    @Override
+    protected byte[] readFrame(final DataInputStream in) throws IOException {
+        return RTUCodec.readRequest(in);
+    }
+
+    @Override
+    protected ModbusRequest decodeRequest(final byte[] frame) throws IOException {
+        return RTUCodec.decodeRequest(frame, frame.length);
+    }
+
+    @Override
+    protected byte[] encodeResponse(final ModbusResponse response, final ModbusRequest request, final byte[] frame) throws IOException {
+        byte[] reply = RTUCodec.encode(response);
+        if (response.getFunctionCode() == 0) {
+            // some jamod responses never set their function code
+            reply[1] = (byte) request.getFunctionCode();
+            int crc = RTUCodec.crc16(reply, 0, reply.length - 2);
+            reply[reply.length - 2] = (byte) crc;
+            reply[reply.length - 1] = (byte) (crc >> 8);
+        }
+        if (corruptNextResponse) {
+            corruptNextResponse = false;
+            reply[reply.length - 1] ^= 0xff;
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2012 Steven Swor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cameljamod.test;
+
+import cameljamod.msg.ReadWriteMultipleRegistersRequest;
+import cameljamod.msg.ReadWriteMultipleRegistersResponse;
+import cameljamod.net.MBAPCodec;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsResponse;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleInputRegister;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * A scriptable Modbus/TCP device for tests.
+ *
+ * <p>Register {@code n} initially holds the value {@code n}.  The device can
+ * hold back responses until a batch of requests has arrived and then answer
+ * them in reverse order, which exercises transaction identifier matching,
+ * and it can ignore requests for selected unit identifiers.</p>
+ *
+ * @author Steven Swor
+ */
+public class FakeModbusTCPDevice {
+
+    /**
+     * The register values.
+     */
+    private final int[] registers = new int[65536];
+
+    /**
+     * The coil values.
+     */
+    private final boolean[] coils = new boolean[65536];
+
+    /**
+     * Unit identifiers which never get a response.
+     */
+    private final Set<Integer> silentUnits = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * The number of requests received.
+     */
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * The open client sockets.
+     */
+    private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+
+    /**
+     * The number of requests to collect before answering.
+     */
+    private volatile int batchSize = 1;
+
+    /**
+     * The server socket.
+     */
+    private ServerSocket serverSocket;
+
+    public FakeModbusTCPDevice() {
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = i;
+        }
+    }
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket client = serverSocket.accept();
+                        clients.add(client);
+                        Thread handler = new Thread(new Runnable() {
+
+                            public void run() {
+                                serve(client);
+                            }
+                        }, "FakeModbusTCPDevice-client");
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (IOException ex) {
+                    //server socket closed
+                }
+            }
+        }, "FakeModbusTCPDevice-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops listening and disconnects all clients.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            //trap
+        }
+        disconnectClients();
+    }
+
+    /**
+     * Disconnects all clients, leaving the device listening.
+     */
+    public void disconnectClients() {
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                //trap
+            }
+        }
+        clients.clear();
+    }
+
+    public InetAddress getAddress() {
+        return serverSocket.getInetAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void addSilentUnit(int unitId) {
+        silentUnits.add(Integer.valueOf(unitId));
+    }
+
+    public void removeSilentUnit(int unitId) {
+        silentUnits.remove(Integer.valueOf(unitId));
+    }
+
+    public synchronized int getRegister(int reference) {
+        return registers[reference];
+    }
+
+    public synchronized void setRegister(int reference, int value) {
+        registers[reference] = value & 0xffff;
+    }
+
+    public synchronized boolean getCoil(int reference) {
+        return coils[reference];
+    }
+
+    public synchronized void setCoil(int reference, boolean value) {
+        coils[reference] = value;
+    }
+
+    /**
+     * Serves a client until it disconnects.
+     *
+     * @param client the client socket
+     */
+    private void serve(final Socket client) {
+        try {
+            client.setSoTimeout(100);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            OutputStream out = client.getOutputStream();
+            List<byte[]> batch = new ArrayList<byte[]>();
+            while (true) {
+                boolean timedOut = false;
+                try {
+                    batch.add(readFrame(in));
+                    requestCount.incrementAndGet();
+                } catch (SocketTimeoutException ex) {
+                    // answer a partial batch
+                    timedOut = true;
+                }
+                if (!batch.isEmpty() && (timedOut || batch.size() >= batchSize)) {
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        byte[] frame = batch.get(i);
+                        ModbusRequest request = decodeRequest(frame);
+                        if (silentUnits.contains(Integer.valueOf(request.getUnitID()))) {
+                            continue;
+                        }
+                        ModbusResponse response = respond(request);
+                        response.setUnitID(request.getUnitID());
+                        out.write(encodeResponse(response, request, frame));
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            }
+        } catch (IOException ex) {
+            //client disconnected
+        } finally {
+            clients.remove(client);
+            try {
+                client.close();
+            } catch (IOException ex) {
+                //trap
+            }
+        }
+    }
+
+    /**
+     * Reads one request frame.
+     *
+     * @param in the client's stream
+     * @return the frame
+     * @throws IOException if the stream ends
+     */
+    protected byte[] readFrame(final DataInputStream in) throws IOException {
+        return MBAPCodec.readFrame(in);
+    }
+
+    /**
+     * Decodes a request frame.
+     *
+     * @param frame the frame
+     * @return the request
+     * @throws IOException if the frame cannot be decoded
+     */
+    protected ModbusRequest decodeRequest(final byte[] frame) throws IOException {
+        return MBAPCodec.decodeRequest(frame, frame.length);
+    }
+
+    /**
+     * Encodes the response to a request frame.
+     *
+     * @param response the response
+     * @param request the request
+     * @param frame the request frame
+     * @return the response frame
+     * @throws IOException if the response cannot be encoded
+     */
+    protected byte[] encodeResponse(final ModbusResponse response, final ModbusRequest request, final byte[] frame) throws IOException {
+        byte[] reply = MBAPCodec.encode(response, MBAPCodec.getTransactionId(frame, 0));
+        if (response.getFunctionCode() == 0) {
+            // some jamod responses never set their function code
+            reply[MBAPCodec.HEADER_LENGTH] = (byte) request.getFunctionCode();
+        }
+        return reply;
+    }
+
+    /**
+     * Builds the response to a request.
+     *
+     * @param request the request
+     * @return the response
+     */
+    protected synchronized ModbusResponse respond(final ModbusRequest request) {
+        if (request instanceof ReadMultipleRegistersRequest) {
+            ReadMultipleRegistersRequest read = (ReadMultipleRegistersRequest) request;
+            Register[] result = new Register[read.getWordCount()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new SimpleRegister(registers[read.getReference() + i]);
+            }
+            return new ReadMultipleRegistersResponse(result);
+        } else if (request instanceof ReadInputRegistersRequest) {
+            ReadInputRegistersRequest read = (ReadInputRegistersRequest) request;
+            InputRegister[] result = new InputRegister[read.getWordCount()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new SimpleInputRegister(registers[read.getReference() + i]);
+            }
+            return new ReadInputRegistersResponse(result);
+        } else if (request instanceof ReadCoilsRequest) {
+            ReadCoilsRequest read = (ReadCoilsRequest) request;
+            ReadCoilsResponse response = new ReadCoilsResponse(read.getBitCount());
+            for (int i = 0; i < read.getBitCount(); i++) {
+                response.setCoilStatus(i, coils[read.getReference() + i]);
+            }
+            return response;
+        } else if (request instanceof ReadInputDiscretesRequest) {
+            ReadInputDiscretesRequest read = (ReadInputDiscretesRequest) request;
+            ReadInputDiscretesResponse response = new ReadInputDiscretesResponse(read.getBitCount());
+            for (int i = 0; i < read.getBitCount(); i++) {
+                response.setDiscreteStatus(i, coils[read.getReference() + i]);
+            }
+            return response;
+        } else if (request instanceof WriteMultipleRegistersRequest) {
+            WriteMultipleRegistersRequest write = (WriteMultipleRegistersRequest) request;
+            for (int i = 0; i < write.getWordCount(); i++) {
+                registers[write.getReference() + i] = write.getRegisterValue(i);
+            }
+            return new WriteMultipleRegistersResponse(write.getReference(), write.getWordCount());
+        } else if (request instanceof WriteMultipleCoilsRequest) {
+            WriteMultipleCoilsRequest write = (WriteMultipleCoilsRequest) request;
+            for (int i = 0; i < write.getBitCount(); i++) {
+                coils[write.getReference() + i] = write.getCoilStatus(i);
+            }
+            return new WriteMultipleCoilsResponse(write.getReference(), write.getBitCount());
+        } else if (request instanceof ReadWriteMultipleRegistersRequest) {
+            ReadWriteMultipleRegistersRequest readWrite = (ReadWriteMultipleRegistersRequest) request;
+            for (int i = 0; i < readWrite.getWriteCount(); i++) {
+                registers[readWrite.getWriteReference() + i] = readWrite.getRegisterValue(i);
+            }
+            Register[] result = new Register[readWrite.getReadCount()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new SimpleRegister(registers[readWrite.getReadReference() + i]);
+            }
+            return new ReadWriteMultipleRegistersResponse(result);
+        }
+        return new ExceptionResponse(request.getFunctionCode(), 1);
+    }
+}